@@ -0,0 +1,307 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.BrokerMetrics;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.CircuitBreaker;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OperationDeadline;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * HTTP connection pool shared by all backend REST clients (Ranger, Ambari, Yarn).
+ * Connections are kept alive and reused across requests, limited per backend host,
+ * and closed by a background evictor once idle for too long.
+ *
+ * Non-blocking requests run on a separate async client with a few I/O threads,
+ * so that many backend requests can be in flight without holding a thread each.
+ *
+ * Requests go through circuit breaker of backend host: I/O errors and 5xx responses count as failures,
+ * except timeouts cut short by deadline of the operation, requests fail fast with BackendUnavailableException
+ * while breaker is open.
+ */
+public class HttpConnectionPool implements Closeable {
+
+    private Logger logger = LoggerFactory.getLogger(HttpConnectionPool.class);
+
+    // Validate pooled connection before reuse if it has been idle longer than this
+    private static final int VALIDATE_AFTER_INACTIVITY = 2000;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+
+    private final CloseableHttpClient httpClient;
+
+    private final CloseableHttpAsyncClient asyncClient;
+
+    private final RequestConfig defaultConfig;
+
+    /**
+     * @param maxTotal max connections of pool
+     * @param maxPerRoute max connections to one backend host
+     * @param connectTimeout connect timeout in millis
+     * @param socketTimeout socket read timeout in millis
+     * @param poolWaitTimeout max time to wait for a free connection from pool in millis
+     * @param keepAlive max time to keep an idle connection alive in millis, if backend not specifies a shorter one
+     * @param idleTimeout idle connections are evicted after this time in millis
+     * @param ioThreads I/O threads of async client
+     */
+    public HttpConnectionPool(int maxTotal, int maxPerRoute, int connectTimeout, int socketTimeout,
+                              int poolWaitTimeout, long keepAlive, long idleTimeout, int ioThreads) {
+        this.connectionManager = new PoolingHttpClientConnectionManager();
+        this.connectionManager.setMaxTotal(maxTotal);
+        this.connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        this.connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY);
+
+        this.defaultConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setSocketTimeout(socketTimeout)
+                .setConnectionRequestTimeout(poolWaitTimeout)
+                .build();
+
+        this.httpClient = HttpClientBuilder.create()
+                .setConnectionManager(this.connectionManager)
+                .setDefaultRequestConfig(this.defaultConfig)
+                .setKeepAliveStrategy(keepAliveStrategy(keepAlive))
+                .evictExpiredConnections()
+                .evictIdleConnections(idleTimeout, TimeUnit.MILLISECONDS)
+                .build();
+
+        this.asyncClient = HttpAsyncClients.custom()
+                .setMaxConnTotal(maxTotal)
+                .setMaxConnPerRoute(maxPerRoute)
+                .setDefaultRequestConfig(this.defaultConfig)
+                .setKeepAliveStrategy(keepAliveStrategy(keepAlive))
+                .setDefaultIOReactorConfig(IOReactorConfig.custom().setIoThreadCount(ioThreads).build())
+                .build();
+        this.asyncClient.start();
+
+        BrokerMetrics.registerGauge("http.pool", this::getStats);
+        logger.info("HTTP connection pool created, max total: " + maxTotal + ", max per route: " + maxPerRoute);
+    }
+
+    /**
+     * Execute request with pooled connection, timeouts are bounded by deadline of current operation.
+     * Caller must close response to release connection back to pool.
+     * @param backend backend name, for metrics
+     * @param request request to execute
+     * @param context request context, e.g. with backend credentials
+     */
+    public CloseableHttpResponse execute(String backend, HttpRequestBase request, HttpContext context)
+            throws IOException {
+        OperationDeadline.checkCurrent(request.getMethod() + " " + request.getURI());
+        request.setConfig(requestConfig());
+        CircuitBreaker breaker = breaker(backend, request);
+        long ticket = breaker.acquire();
+        long start = System.currentTimeMillis();
+        // Any exception, not only IOException, counts as failure so that ticket is always settled
+        boolean failed = true;
+        boolean timedOutByDeadline = false;
+        try {
+            CloseableHttpResponse response = this.httpClient.execute(request, context);
+            failed = isFailure(response);
+            return response;
+        } catch (IOException e) {
+            timedOutByDeadline = isTimedOutByDeadline(e, request.getConfig());
+            throw e;
+        } finally {
+            settle(backend, breaker, ticket, failed, timedOutByDeadline, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Execute request without blocking, response entity is fully buffered when future completes.
+     * Timeouts are bounded by deadline of current operation unless request config is already set.
+     * @param backend backend name, for metrics
+     * @param request request to execute
+     * @param context request context, must not be shared with other in-flight requests
+     * @return future of response, completes exceptionally if request fails
+     */
+    public CompletableFuture<HttpResponse> executeAsync(String backend, HttpRequestBase request, HttpContext context) {
+        OperationDeadline.checkCurrent(request.getMethod() + " " + request.getURI());
+        if (request.getConfig() == null) {
+            request.setConfig(requestConfig());
+        }
+        CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+        CircuitBreaker breaker = breaker(backend, request);
+        long ticket;
+        try {
+            ticket = breaker.acquire();
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            submitAsync(backend, request, context, breaker, ticket, start, future);
+        } catch (RuntimeException e) {
+            // e.g. async client already closed, callback will never be called
+            breaker.onFailure(ticket, System.currentTimeMillis() - start);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private void submitAsync(String backend, HttpRequestBase request, HttpContext context, CircuitBreaker breaker,
+                             long ticket, long start, CompletableFuture<HttpResponse> future) {
+        this.asyncClient.execute(request, context, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                breaker.complete(ticket, isFailure(response), System.currentTimeMillis() - start);
+                BrokerMetrics.record("http." + backend + ".requests", System.currentTimeMillis() - start);
+                future.complete(response);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                settle(backend, breaker, ticket, true, isTimedOutByDeadline(e, request.getConfig()),
+                        System.currentTimeMillis() - start);
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void cancelled() {
+                breaker.release(ticket);
+                future.cancel(false);
+            }
+        });
+    }
+
+    /**
+     * Record outcome of request in breaker of backend and in metrics
+     * @param timedOutByDeadline request timed out because deadline of operation cut its timeout short
+     */
+    private void settle(String backend, CircuitBreaker breaker, long ticket, boolean failed,
+                        boolean timedOutByDeadline, long elapsedMillis) {
+        if (timedOutByDeadline) {
+            // Backend was not given its configured timeout, the operation ran out of time instead
+            breaker.release(ticket);
+            BrokerMetrics.increment("http." + backend + ".deadline_timeouts");
+        } else {
+            breaker.complete(ticket, failed, elapsedMillis);
+            if (failed) {
+                BrokerMetrics.increment("http." + backend + ".errors");
+            }
+        }
+        BrokerMetrics.record("http." + backend + ".requests", elapsedMillis);
+    }
+
+    /**
+     * @return true if request timed out on a timeout shorter than the configured one of backend,
+     *         i.e. on a timeout bounded by remaining time of operation deadline
+     */
+    private boolean isTimedOutByDeadline(Exception e, RequestConfig config) {
+        if (config == null) {
+            return false;
+        }
+        // Pool timeout is a connect timeout too, so it is checked first
+        if (e instanceof ConnectionPoolTimeoutException) {
+            return config.getConnectionRequestTimeout() < this.defaultConfig.getConnectionRequestTimeout();
+        }
+        if (e instanceof ConnectTimeoutException) {
+            return config.getConnectTimeout() < this.defaultConfig.getConnectTimeout();
+        }
+        if (e instanceof SocketTimeoutException) {
+            return config.getSocketTimeout() < this.defaultConfig.getSocketTimeout();
+        }
+        return false;
+    }
+
+    /**
+     * @return default request config with timeouts bounded by deadline of current operation
+     */
+    public RequestConfig requestConfig() {
+        return RequestConfig.copy(this.defaultConfig)
+                .setConnectTimeout(OperationDeadline.remainingTimeout(this.defaultConfig.getConnectTimeout()))
+                .setSocketTimeout(OperationDeadline.remainingTimeout(this.defaultConfig.getSocketTimeout()))
+                .setConnectionRequestTimeout(
+                        OperationDeadline.remainingTimeout(this.defaultConfig.getConnectionRequestTimeout()))
+                .build();
+    }
+
+    /**
+     * @return stats of whole pool and of each backend host
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = toMap(this.connectionManager.getTotalStats());
+        Map<String, Object> routes = new TreeMap<>();
+        for (HttpRoute route : this.connectionManager.getRoutes()) {
+            routes.put(route.getTargetHost().toHostString(), toMap(this.connectionManager.getStats(route)));
+        }
+        stats.put("routes", routes);
+        return stats;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.httpClient.close();
+        } finally {
+            this.asyncClient.close();
+        }
+    }
+
+    /**
+     * Breaker per backend host, so that e.g. a down standby Yarn RM not blocks requests to the active one
+     */
+    private static CircuitBreaker breaker(String backend, HttpRequestBase request) {
+        return CircuitBreaker.forBackend(backend + "@" + request.getURI().getHost());
+    }
+
+    private static boolean isFailure(HttpResponse response) {
+        return response.getStatusLine().getStatusCode() >= 500;
+    }
+
+    private static Map<String, Object> toMap(PoolStats poolStats) {
+        Map<String, Object> map = new TreeMap<>();
+        map.put("leased", poolStats.getLeased());
+        map.put("available", poolStats.getAvailable());
+        map.put("pending", poolStats.getPending());
+        map.put("max", poolStats.getMax());
+        return map;
+    }
+
+    /**
+     * Keep connection alive as long as backend allows by 'Keep-Alive: timeout=n' header, at most keepAlive millis
+     */
+    private static ConnectionKeepAliveStrategy keepAliveStrategy(long keepAlive) {
+        return (HttpResponse response, HttpContext context) -> {
+            BasicHeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (it.hasNext()) {
+                HeaderElement he = it.nextElement();
+                if ("timeout".equalsIgnoreCase(he.getName()) && he.getValue() != null) {
+                    try {
+                        return Math.min(Long.parseLong(he.getValue()) * 1000, keepAlive);
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+            return keepAlive;
+        };
+    }
+}
@@ -0,0 +1,93 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.RangerV2Policy;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.BrokerMetrics;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * Local cache of Ranger policies written or read by broker, keyed by policy id.
+ * Reads of policy users and resources are served from cached copy instead of fetching the policy again.
+ * Updates read latest version of policy before writing it, since Ranger has no conditional update, and the
+ * cached version tells whether policy was changed outside broker (e.g. in Ranger admin UI) in the meantime.
+ * Entries expire after a TTL, so that such changes are picked up by reads too.
+ */
+public class RangerPolicyCache {
+
+    static final Gson gson = new GsonBuilder().create();
+
+    private final Map<String, Entry> entries;
+
+    private final long ttlMillis;
+
+    /**
+     * @param maxSize max cached policies, least recently used policies are evicted first
+     * @param ttlMillis time to live of cached policy, 0 disables cache
+     */
+    public RangerPolicyCache(int maxSize, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return copy of cached policy which caller is free to modify, null if not cached or expired
+     */
+    public synchronized RangerV2Policy get(String policyId) {
+        Entry entry = entries.get(policyId);
+        if (entry == null || System.currentTimeMillis() > entry.expireTime) {
+            if (entry != null) {
+                entries.remove(policyId);
+            }
+            BrokerMetrics.increment("ranger.policy_cache.miss");
+            return null;
+        }
+        BrokerMetrics.increment("ranger.policy_cache.hit");
+        return copy(entry.policy);
+    }
+
+    /**
+     * Cache policy returned by Ranger, policy without id or version is ignored.
+     * An older version never replaces a newer one.
+     */
+    public synchronized void put(RangerV2Policy policy) {
+        if (ttlMillis <= 0 || policy == null || policy.getPolicyId() == null || policy.getVersion() == null) {
+            return;
+        }
+        Entry existing = entries.get(policy.getPolicyId());
+        if (existing != null && existing.policy.getVersion() > policy.getVersion()) {
+            return;
+        }
+        entries.put(policy.getPolicyId(), new Entry(copy(policy), System.currentTimeMillis() + ttlMillis));
+    }
+
+    public synchronized void invalidate(String policyId) {
+        entries.remove(policyId);
+    }
+
+    public synchronized boolean contains(String policyId) {
+        Entry entry = entries.get(policyId);
+        return entry != null && System.currentTimeMillis() <= entry.expireTime;
+    }
+
+    private static RangerV2Policy copy(RangerV2Policy policy) {
+        return gson.fromJson(gson.toJsonTree(policy), RangerV2Policy.class);
+    }
+
+    private static class Entry {
+        final RangerV2Policy policy;
+        final long expireTime;
+
+        Entry(RangerV2Policy policy, long expireTime) {
+            this.policy = policy;
+            this.expireTime = expireTime;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.RangerV2Policy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Encode and decode Ranger policies directly on HTTP entity streams.
+ * Policies are written to request stream and read from response stream by Gson streaming API, instead of
+ * buffering whole body as a String first, which doubles memory of large multi-user policies.
+ */
+public class RangerPolicyCodec {
+
+    static final Gson gson = new GsonBuilder().create();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Read one policy from response entity, entity is fully consumed so that connection can be reused
+     * @return policy, null if entity is empty
+     */
+    public static RangerV2Policy read(HttpEntity entity) throws IOException {
+        if (entity == null) {
+            return null;
+        }
+        try {
+            // Gson returns null for empty document
+            return gson.fromJson(newReader(entity), RangerV2Policy.class);
+        } catch (JsonParseException e) {
+            throw new IOException("Invalid ranger policy: " + e.getMessage(), e);
+        } finally {
+            EntityUtils.consume(entity);
+        }
+    }
+
+    /**
+     * Read array of policies from response entity, one policy at a time
+     */
+    public static List<RangerV2Policy> readList(HttpEntity entity) throws IOException {
+        List<RangerV2Policy> policies = new ArrayList<>();
+        if (entity == null) {
+            return policies;
+        }
+        try {
+            JsonReader reader = newReader(entity);
+            reader.beginArray();
+            while (reader.hasNext()) {
+                policies.add(gson.fromJson(reader, RangerV2Policy.class));
+            }
+            reader.endArray();
+            return policies;
+        } catch (JsonParseException | IllegalStateException e) {
+            throw new IOException("Invalid ranger policy list: " + e.getMessage(), e);
+        } finally {
+            EntityUtils.consume(entity);
+        }
+    }
+
+    /**
+     * @return request entity which writes policy as JSON to request stream
+     */
+    public static HttpEntity entity(RangerV2Policy policy) {
+        return new PolicyEntity(policy);
+    }
+
+    /**
+     * @return policies as JSON file of Ranger policy import API
+     */
+    public static byte[] toImportFile(List<RangerV2Policy> policies) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(buffer, UTF_8));
+        writer.beginObject();
+        writer.name("policies");
+        writer.beginArray();
+        for (RangerV2Policy policy : policies) {
+            gson.toJson(policy, RangerV2Policy.class, writer);
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.flush();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * @return policy as JSON string, for debug logging
+     */
+    public static String toJson(RangerV2Policy policy) {
+        return gson.toJson(policy);
+    }
+
+    private static JsonReader newReader(HttpEntity entity) throws IOException {
+        ContentType contentType = ContentType.get(entity);
+        Charset charset = (contentType == null || contentType.getCharset() == null) ? UTF_8 : contentType.getCharset();
+        return new JsonReader(new InputStreamReader(entity.getContent(), charset));
+    }
+
+    /**
+     * Policy serialized on demand, so the entity is repeatable and no JSON string is kept with request.
+     * Content length is unknown in advance, so policy is sent in chunks by blocking client.
+     */
+    private static class PolicyEntity extends AbstractHttpEntity {
+
+        private final RangerV2Policy policy;
+
+        PolicyEntity(RangerV2Policy policy) {
+            this.policy = policy;
+            setContentType(ContentType.APPLICATION_JSON.toString());
+            setChunked(true);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        /**
+         * Used by non-blocking client, which sends entity from its content stream
+         */
+        @Override
+        public InputStream getContent() throws IOException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            writeTo(buffer);
+            return new ByteArrayInputStream(buffer.toByteArray());
+        }
+
+        @Override
+        public void writeTo(OutputStream outStream) throws IOException {
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(outStream, UTF_8));
+            gson.toJson(policy, RangerV2Policy.class, writer);
+            writer.flush();
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Local index of Ranger policy ids by (service, policy name).
+ * Loaded from policy listing of each Ranger service at startup, and kept up to date on policy create/delete,
+ * so that policy create needs no lookup by name before POST. The index is a hint, not the source of truth:
+ * a name missing from index may still exist in Ranger (e.g. created outside broker), which is detected by
+ * conflict response of policy create.
+ */
+public class RangerPolicyIndex {
+
+    private final Map<String, String> idsByName = new HashMap<>();
+
+    private final Map<String, String> namesById = new HashMap<>();
+
+    /**
+     * @return id of policy, null if not indexed
+     */
+    public synchronized String get(String serviceName, String policyName) {
+        return idsByName.get(key(serviceName, policyName));
+    }
+
+    public synchronized void put(String serviceName, String policyName, String policyId) {
+        if (serviceName == null || policyName == null || policyId == null) {
+            return;
+        }
+        String key = key(serviceName, policyName);
+        String oldId = idsByName.put(key, policyId);
+        if (oldId != null && !oldId.equals(policyId)) {
+            namesById.remove(oldId);
+        }
+        namesById.put(policyId, key);
+    }
+
+    public synchronized void remove(String policyId) {
+        String key = namesById.remove(policyId);
+        if (key != null) {
+            idsByName.remove(key);
+        }
+    }
+
+    public synchronized int size() {
+        return idsByName.size();
+    }
+
+    private static String key(String serviceName, String policyName) {
+        return serviceName + "/" + policyName;
+    }
+}
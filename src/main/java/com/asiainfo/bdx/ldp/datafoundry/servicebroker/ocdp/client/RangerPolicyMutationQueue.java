@@ -0,0 +1,155 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.exception.OCDPServiceException;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.exception.OperationTimeoutException;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.RangerV2Policy;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.BrokerMetrics;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OperationDeadline;
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Per-policy queue of pending policy mutations (add/remove users and resources).
+ * Mutations of one policy arriving within a short window are applied together by one read-modify-write,
+ * so that a burst of N changes becomes one Ranger update, and concurrent changes never overwrite each other.
+ *
+ * The first caller of a batch becomes its leader: it waits for the window, then applies mutations of all
+ * callers in arrival order, while other callers of the batch wait for the result (at most until their own
+ * deadline). The batch is always written, without the deadline of its leader, so a leader out of time never
+ * strands mutations of other callers.
+ */
+public class RangerPolicyMutationQueue {
+
+    private final Map<String, Batch> pending = new HashMap<>();
+
+    // Serialize updates of same policy, so that a batch starts after previous batch of the policy is written
+    private final Striped<Lock> policyLocks = Striped.lock(64);
+
+    private final long windowMillis;
+
+    private final BiFunction<String, List<Consumer<RangerV2Policy>>, Boolean> writer;
+
+    /**
+     * @param windowMillis how long a batch collects mutations, 0 disables coalescing
+     * @param writer applies mutations to policy by one read-modify-write, returns whether policy updated
+     */
+    public RangerPolicyMutationQueue(long windowMillis,
+                                     BiFunction<String, List<Consumer<RangerV2Policy>>, Boolean> writer) {
+        this.windowMillis = windowMillis;
+        this.writer = writer;
+    }
+
+    /**
+     * Apply mutation to policy together with other pending mutations of the policy
+     * @return true if policy updated
+     */
+    public boolean submit(String policyId, Consumer<RangerV2Policy> mutation) {
+        if (windowMillis <= 0) {
+            return write(policyId, Collections.singletonList(mutation));
+        }
+        Batch batch;
+        boolean leader = false;
+        synchronized (pending) {
+            batch = pending.get(policyId);
+            if (batch == null) {
+                batch = new Batch();
+                pending.put(policyId, batch);
+                leader = true;
+            }
+            batch.mutations.add(mutation);
+        }
+        if (!leader) {
+            return batch.await();
+        }
+        try {
+            // Not bounded by deadline of leader, mutations of other callers must not wait on an expired batch
+            Thread.sleep(windowMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            settle(policyId, batch);
+        }
+        return batch.await();
+    }
+
+    /**
+     * Write batch without deadline of its leader and complete it, batch never stays pending even if write fails
+     */
+    private void settle(String policyId, Batch batch) {
+        try {
+            batch.result.complete(OperationDeadline.detached(() -> write(policyId, batch)));
+        } catch (RuntimeException e) {
+            batch.result.completeExceptionally(e);
+        } finally {
+            synchronized (pending) {
+                pending.remove(policyId, batch);
+            }
+        }
+    }
+
+    private boolean write(String policyId, Batch batch) {
+        Lock lock = policyLocks.get(policyId);
+        lock.lock();
+        try {
+            // Close batch only now, mutations arriving while previous batch is written still join this one
+            synchronized (pending) {
+                pending.remove(policyId, batch);
+            }
+            if (batch.mutations.size() > 1) {
+                BrokerMetrics.increment("ranger.policy_mutation.coalesced", batch.mutations.size() - 1);
+            }
+            return writer.apply(policyId, batch.mutations);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean write(String policyId, List<Consumer<RangerV2Policy>> mutations) {
+        Lock lock = policyLocks.get(policyId);
+        lock.lock();
+        try {
+            return writer.apply(policyId, mutations);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class Batch {
+        final List<Consumer<RangerV2Policy>> mutations = new ArrayList<>();
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        /**
+         * Wait for result of batch, bounded by deadline of current thread (if any)
+         */
+        boolean await() {
+            OperationDeadline deadline = OperationDeadline.current();
+            try {
+                return (deadline == null) ? result.get() :
+                        result.get(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new OCDPServiceException(e.getCause().getMessage());
+            } catch (TimeoutException e) {
+                throw new OperationTimeoutException("Operation deadline of " + (deadline.getTimeoutMillis() / 1000) +
+                        "s exceeded while waiting for ranger policy update.");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new OperationTimeoutException("Interrupted while waiting for ranger policy update.");
+            }
+        }
+    }
+}
@@ -13,8 +13,6 @@ import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.BasicAuthCache;
 import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 
@@ -36,7 +34,7 @@ import org.slf4j.LoggerFactory;
 public class ambariClient {
 
     private Logger logger = LoggerFactory.getLogger(ambariClient.class);
-    private CloseableHttpClient httpClient;
+    private HttpConnectionPool httpPool;
     private HttpClientContext context;
     private URI baseUri;
     private String clusterName;
@@ -45,14 +43,14 @@ public class ambariClient {
 
     static final Gson gson = new GsonBuilder().create();
 
-    public ambariClient(String uri, String username, String password, String clusterName){
+    public ambariClient(String uri, String username, String password, String clusterName, HttpConnectionPool httpPool){
 
         if(! uri.endsWith("/")){
             uri += "/";
         }
         this.baseUri = URI.create(uri);
 
-        this.httpClient = HttpClientBuilder.create().build();
+        this.httpPool = httpPool;
 
         HttpHost targetHost = new HttpHost(this.baseUri.getHost(), 8080, "http");
         CredentialsProvider provider = new BasicCredentialsProvider();
@@ -83,6 +81,40 @@ public class ambariClient {
 
         String versionTag = getCapacitySchedulerTag(rmHost);
 
+        return getCapacitySchedulerConfigByTag(versionTag);
+
+    }
+
+    /**
+     * Tag of desired capacity-scheduler config of cluster, by one lightweight request without config properties
+     * @return tag, null if request fails
+     */
+    public String getCapacitySchedulerDesiredTag(){
+        URI uri = buildUri("api/v1/clusters",this.clusterName,"?fields=Clusters/desired_configs/capacity-scheduler");
+
+        HttpGet request = new HttpGet(uri);
+
+        String jsonStr = executeRequest(request);
+        if(jsonStr == null){
+            return null;
+        }
+        try {
+            Map<?, ?> response = gson.fromJson(jsonStr, Map.class);
+            Map<?, ?> clusters = (Map<?, ?>) response.get("Clusters");
+            Map<?, ?> desiredConfigs = (Map<?, ?>) clusters.get("desired_configs");
+            Map<?, ?> csConfig = (Map<?, ?>) desiredConfigs.get("capacity-scheduler");
+            return (String) csConfig.get("tag");
+        }catch (Exception e){
+            logger.error("Parse desired capacity-scheduler tag fail: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return capacity-scheduler config of given tag
+     */
+    public String getCapacitySchedulerConfigByTag(String versionTag){
+
         URI uri = buildUri("api/v1/clusters/" + this.clusterName,"","configurations?type=capacity-scheduler&tag="+versionTag);
 
         HttpGet request = new HttpGet(uri);
@@ -97,13 +129,20 @@ public class ambariClient {
      * @return  desired config
      */
     public String updateCapacitySchedulerConfig(Map<String,String> properties, String clusterName){
+        return updateCapacitySchedulerConfig(properties, clusterName, "version" + new Date().getTime());
+    }
+
+    /**
+     * PUT Capacity-Scheduler Config to Ambari with given tag
+     * @return response of ambari, null if update fails
+     */
+    public String updateCapacitySchedulerConfig(Map<String,String> properties, String clusterName, String tag){
 
-        Date now = new Date();
         String updateStr = null;
         String csProperties = gson.toJson(properties);
 
-        updateStr = "{\"Clusters\": {\"desired_config\": {\"type\":\"capacity-scheduler\",\"tag\":\"version"
-                + now.getTime() +"\",\"properties\":";
+        updateStr = "{\"Clusters\": {\"desired_config\": {\"type\":\"capacity-scheduler\",\"tag\":\""
+                + tag +"\",\"properties\":";
         updateStr += csProperties+"}}}";
 
         URI uri = buildUri("api/v1/clusters","",clusterName);
@@ -226,11 +265,12 @@ public class ambariClient {
 
     }
 
-    private String executeRequest(HttpUriRequest request)
+    private String executeRequest(HttpRequestBase request)
     {
         String responseDef = null;
         try{
-            CloseableHttpResponse response = this.httpClient.execute(request, this.context);
+            // Timeouts of pooled request are bounded by deadline of current operation
+            CloseableHttpResponse response = this.httpPool.execute("ambari", request, this.context);
             if(response.getStatusLine().getStatusCode() == 200){
                 responseDef = EntityUtils.toString(response.getEntity());
             }
@@ -1,19 +1,38 @@
 package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
 
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.exception.BackendUnavailableException;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.CircuitBreaker;
 import com.justinsb.etcd.EtcdClient;
 import com.justinsb.etcd.EtcdClientException;
+import com.justinsb.etcd.EtcdNode;
 import com.justinsb.etcd.EtcdResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Java Client for manipulate Etcd.
  *
+ * Reads never turn a failure into an empty value: a missing key reads as null and a missing directory lists empty,
+ * but if etcd is unreachable, its circuit breaker is open or etcd returns an error,
+ * an UncheckedIOException with a BackendUnavailableException cause is thrown.
+ * Writes throw the same exception while etcd is unreachable, errors returned by etcd (e.g. deleting a missing key)
+ * are only logged.
+ *
  * @author whitebai1986@gmail.com
  *
  */
 public class etcdClient {
 
+    private Logger logger = LoggerFactory.getLogger(etcdClient.class);
+
+    private CircuitBreaker breaker = CircuitBreaker.forBackend("etcd");
+
     private EtcdClient etcdclient;
 
     public etcdClient(String etcd_host, String etcd_port, String etcd_user, String etcd_password){
@@ -21,59 +40,81 @@ public class etcdClient {
                 "http://" +  etcd_user + ":" + etcd_password + "@" + etcd_host + ":" + etcd_port));
     }
 
+    /**
+     * @return result of key, null if key not exists
+     */
     public EtcdResult read(String key){
-        EtcdResult result = new EtcdResult();
-        try{
-            result = this.etcdclient.get(key);
-        }catch(EtcdClientException e){
-            e.printStackTrace();
-        }
-        return result;
+        return call("read " + key, () -> this.etcdclient.get(key), true, null);
     }
 
+    /**
+     * @return value of key, null if key not exists
+     */
     public String readToString(String key){
         EtcdResult result = this.read(key);
         return (result != null && result.node != null) ? result.node.value : null;
     }
 
+    /**
+     * @return child nodes of directory, empty if directory not exists or is empty
+     */
+    public List<EtcdNode> listDir(String key){
+        List<EtcdNode> nodes = call("list " + key, () -> this.etcdclient.listDirectory(key), true, null);
+        return (nodes != null) ? nodes : new ArrayList<EtcdNode>();
+    }
+
     public EtcdResult write(String key, String value){
-        EtcdResult result = new EtcdResult();
-        try{
-            result = this.etcdclient.set(key, value);
-        }catch(EtcdClientException e){
-            e.printStackTrace();
-        }
-        return result;
+        return call("write " + key, () -> this.etcdclient.set(key, value), false, new EtcdResult());
     }
 
     public EtcdResult createDir(String key) {
-        EtcdResult result = new EtcdResult();
-        try {
-            result = this.etcdclient.createDirectory(key);
-        } catch (EtcdClientException e) {
-            e.printStackTrace();
-        }
-        return result;
+        return call("create " + key, () -> this.etcdclient.createDirectory(key), false, new EtcdResult());
     }
 
     public EtcdResult delete(String key){
-        EtcdResult result = new EtcdResult();
-        try{
-            result = this.etcdclient.delete(key);
-        }catch(EtcdClientException e){
-            e.printStackTrace();
-        }
-        return result;
+        return call("delete " + key, () -> this.etcdclient.delete(key), false, new EtcdResult());
     }
 
     public EtcdResult deleteDir(String key, boolean recursive){
-        EtcdResult result = new EtcdResult();
+        return call("delete " + key, () -> this.etcdclient.deleteDirectory(key, recursive), false, new EtcdResult());
+    }
+
+    /**
+     * Call etcd through its circuit breaker
+     * @param strict whether an error returned by etcd is thrown, otherwise it is logged and fallback returned
+     * @throws UncheckedIOException with BackendUnavailableException cause if breaker is open or etcd is unreachable
+     */
+    private <T> T call(String action, EtcdCall<T> call, boolean strict, T fallback) {
+        long ticket;
         try {
-            result = this.etcdclient.deleteDirectory(key, recursive);
+            ticket = breaker.acquire();
+        } catch (BackendUnavailableException e) {
+            logger.error("Failed to " + action + ": " + e.getMessage());
+            throw new UncheckedIOException(e);
+        }
+        long start = System.currentTimeMillis();
+        // Settled in finally, any exception not classified below counts as failure
+        boolean failed = true;
+        try {
+            T result = call.call();
+            failed = false;
+            return result;
         } catch (EtcdClientException e) {
-            e.printStackTrace();
+            // Only I/O errors mean etcd is unreachable, error codes (e.g. key not found) come from a healthy etcd
+            failed = e.getCause() instanceof IOException;
+            logger.error("Failed to " + action + " in etcd.", e);
+            if (failed || strict) {
+                throw new UncheckedIOException(new BackendUnavailableException(
+                        "Failed to " + action + " in etcd: " + e.getMessage(), e));
+            }
+            return fallback;
+        } finally {
+            breaker.complete(ticket, failed, System.currentTimeMillis() - start);
         }
-        return result;
+    }
+
+    private interface EtcdCall<T> {
+        T call() throws EtcdClientException;
     }
 
 }
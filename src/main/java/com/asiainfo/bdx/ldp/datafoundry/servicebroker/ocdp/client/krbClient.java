@@ -10,6 +10,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.CircuitBreaker;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.ShellCommandUtil;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.exception.*;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config.ClusterConfig;
@@ -115,31 +116,54 @@ public class krbClient {
         command.add("-q");
         command.add(query);
 
-        result = executeCommand(command.toArray(new String[command.size()]), null);
-
-        if (!result.isSuccessful()) {
-            // Test STDERR to see of any "expected" error conditions were encountered...
-            String stdErr = result.getStderr();
-            // Did admin credentials fail?
-            if (stdErr.contains("Client not found in Kerberos database")) {
-                throw new KerberosAdminAuthenticationException(stdErr);
-            } else if (stdErr.contains("Incorrect password while initializing")) {
-                throw new KerberosAdminAuthenticationException(stdErr);
-            }
-            // Did we fail to connect to the KDC?
-            else if (stdErr.contains("Cannot contact any KDC")) {
-                throw new KerberosKDCConnectionException(stdErr);
-            } else if (stdErr.contains("Cannot resolve network address for admin server in requested realm while initializing kadmin interface")) {
-                throw new KerberosKDCConnectionException(stdErr);
-            }
-            // Was the realm invalid?
-            else if (stdErr.contains("Missing parameters in krb5.conf required for kadmin client")) {
-                throw new KerberosRealmException(stdErr);
-            } else if (stdErr.contains("Cannot find KDC for requested realm while initializing kadmin interface")) {
-                throw new KerberosRealmException(stdErr);
-            } else {
-                throw new KerberosOperationException("Unexpected error condition executing the kadmin command");
+        // Fail fast while KDC is known to be unreachable, instead of waiting for kadmin timeout
+        CircuitBreaker breaker = CircuitBreaker.forBackend("kdc");
+        long ticket;
+        try {
+            ticket = breaker.acquire();
+        } catch (BackendUnavailableException e) {
+            throw new KerberosKDCConnectionException(e.getMessage(), e);
+        }
+        long start = System.currentTimeMillis();
+        // Settled in finally, any exception not classified below counts as failure
+        boolean failed = true;
+        try {
+            result = executeCommand(command.toArray(new String[command.size()]), null);
+
+            if (!result.isSuccessful()) {
+                // Test STDERR to see of any "expected" error conditions were encountered...
+                String stdErr = result.getStderr();
+                // Did admin credentials fail?
+                if (stdErr.contains("Client not found in Kerberos database")) {
+                    throw new KerberosAdminAuthenticationException(stdErr);
+                } else if (stdErr.contains("Incorrect password while initializing")) {
+                    throw new KerberosAdminAuthenticationException(stdErr);
+                }
+                // Did we fail to connect to the KDC?
+                else if (stdErr.contains("Cannot contact any KDC")) {
+                    throw new KerberosKDCConnectionException(stdErr);
+                } else if (stdErr.contains("Cannot resolve network address for admin server in requested realm while initializing kadmin interface")) {
+                    throw new KerberosKDCConnectionException(stdErr);
+                }
+                // Was the realm invalid?
+                else if (stdErr.contains("Missing parameters in krb5.conf required for kadmin client")) {
+                    throw new KerberosRealmException(stdErr);
+                } else if (stdErr.contains("Cannot find KDC for requested realm while initializing kadmin interface")) {
+                    throw new KerberosRealmException(stdErr);
+                } else {
+                    throw new KerberosOperationException("Unexpected error condition executing the kadmin command");
+                }
             }
+            failed = false;
+        } catch (KerberosKDCConnectionException e) {
+            throw e;
+        } catch (KerberosOperationException e) {
+            // kadmin timed out or could not be run (IOException from executeCommand), KDC may be unreachable;
+            // otherwise KDC was reached and error is caused by request
+            failed = e.getCause() instanceof IOException;
+            throw e;
+        } finally {
+            breaker.complete(ticket, failed, System.currentTimeMillis() - start);
         }
 
         return result;
@@ -1,38 +1,48 @@
 package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URLEncoder;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.*;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.BrokerMetrics;
 
 import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.impl.client.CloseableHttpClient;
 
+import org.apache.http.HttpResponse;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.protocol.HttpClientContext;
-import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.auth.BasicScheme;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.HttpHost;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.AuthCache;
 import org.apache.http.impl.client.BasicAuthCache;
-import org.apache.http.protocol.HTTP;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.util.EntityUtils;
 
 import com.google.common.base.Splitter;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,21 +54,40 @@ import org.slf4j.LoggerFactory;
  */
 public class rangerClient {
 
-    private CloseableHttpClient httpClient;
-    private HttpClientContext context;
+    private HttpConnectionPool httpPool;
+    private RangerPolicyCache policyCache;
+    private RangerPolicyIndex policyIndex;
+    private RangerPolicyMutationQueue mutationQueue;
+    private CredentialsProvider credentialsProvider;
+    private AuthCache authCache;
     private URI baseUri;
     private Logger logger = LoggerFactory.getLogger(rangerClient.class);
 
-    static final Gson gson = new GsonBuilder().create();
+    // Page size of policy listing when loading policy index
+    private static final int POLICY_PAGE_SIZE = 500;
 
-    public rangerClient(String uri, String username, String password){
+    // Policy listing fails rather than loops forever, e.g. if Ranger ignores startIndex
+    private static final int MAX_POLICY_PAGES = 1000;
+
+    // Error message of Ranger when creating a policy whose name is already used in the service
+    private static final Pattern DUPLICATE_NAME_MESSAGE =
+            Pattern.compile("already exists for this name|duplicate policy name", Pattern.CASE_INSENSITIVE);
+
+    // Whether Ranger has policy import API, null until first import
+    private volatile Boolean importSupported;
+
+    public rangerClient(String uri, String username, String password, HttpConnectionPool httpPool,
+                        RangerPolicyCache policyCache, RangerPolicyIndex policyIndex, long coalesceWindowMillis){
 
         if(! uri.endsWith("/")){
             uri += "/";
         }
         this.baseUri = URI.create(uri);
-
-        this.httpClient = HttpClientBuilder.create().build();
+        this.httpPool = httpPool;
+        this.policyCache = policyCache;
+        this.policyIndex = policyIndex;
+        BrokerMetrics.registerGauge("ranger.policy_index.size", policyIndex::size);
+        this.mutationQueue = new RangerPolicyMutationQueue(coalesceWindowMillis, this::applyV2PolicyMutations);
 
         HttpHost targetHost = new HttpHost(this.baseUri.getHost(), 6080, "http");
         CredentialsProvider provider = new BasicCredentialsProvider();
@@ -66,60 +95,70 @@ public class rangerClient {
                 new UsernamePasswordCredentials(username, password));
         AuthCache authCache = new BasicAuthCache();
         authCache.put(targetHost, new BasicScheme());
-        HttpClientContext context = HttpClientContext.create();
-        context.setCredentialsProvider(provider);
-        context.setAuthCache(authCache);
-        this.context = context;
+        this.credentialsProvider = provider;
+        this.authCache = authCache;
     }
 
-    public String getV2PolicyById(String policyID){
-        return doGetPolicy("service/public/v2/api/policy", policyID);
+    public RangerV2Policy getV2PolicyById(String policyID){
+        RangerV2Policy policy = doGetPolicy("service/public/v2/api/policy", policyID);
+        cachePolicy(policy);
+        return policy;
     }
 
-    public String getV2PolicyByName(String serviceName, String policyName) {
+    public RangerV2Policy getV2PolicyByName(String serviceName, String policyName) {
         return doGetPolicy("service/public/v2/api/service/" + serviceName + "/policy", policyName);
     }
 
-    private String doGetPolicy(String url, String policy){
-        String policyDef = null;
-        URI uri = buildPolicyUri(url, policy, "");
+    private RangerV2Policy doGetPolicy(String url, String policyKey){
+        RangerV2Policy policy = null;
+        URI uri = buildPolicyUri(url, policyKey, "");
         HttpGet request = new HttpGet(uri);
         try{
-            CloseableHttpResponse response = this.httpClient.execute(request, this.context);
+            CloseableHttpResponse response = execute(request);
             if(response.getStatusLine().getStatusCode() == 200){
-                policyDef = EntityUtils.toString(response.getEntity());
+                policy = RangerPolicyCodec.read(response.getEntity());
             }
             response.close();
         }catch (IOException e){
             e.printStackTrace();
         }
-        return policyDef;
+        return policy;
     }
 
-    public String createV2Policy(String serviceName, RangerV2Policy policy) {
-        return doCreateV2Policy("service/public/v2/api/policy", serviceName, policy);
+    /**
+     * Create policy, returns existing policy with same name if any.
+     * Existing policy is found by policy index, or by lookup on conflict response of create.
+     * @return new policy, null if create fails
+     */
+    public RangerV2Policy createV2Policy(String serviceName, RangerV2Policy policy) {
+        String existingId = this.policyIndex.get(serviceName, policy.getPolicyName());
+        if (existingId != null){
+            RangerV2Policy existingPolicy = getV2PolicyById(existingId);
+            if (existingPolicy != null){
+                return existingPolicy;
+            }
+            // Policy deleted outside broker
+            this.policyIndex.remove(existingId);
+        }
+        RangerV2Policy newPolicy = doCreateV2Policy("service/public/v2/api/policy", serviceName, policy);
+        rememberPolicy(serviceName, newPolicy);
+        return newPolicy;
     }
 
-    private String doCreateV2Policy(String url, String serviceName, RangerV2Policy policy){
-        String newPolicyString = null;
-        String policyName = policy.getPolicyName();
-        // Check if there have policy with same name, get exist policy def string
-        newPolicyString = getV2PolicyByName(serviceName, policyName);
-        if (newPolicyString != null){
-            return newPolicyString;
-        }
-        String policyDef = gson.toJson(policy);
-        logger.info("DEBUG info:" + policyDef);
+    private RangerV2Policy doCreateV2Policy(String url, String serviceName, RangerV2Policy policy){
+        RangerV2Policy newPolicy = null;
+        logPolicy("Create", policy);
         URI uri = buildPolicyUri(url, "", "");
         HttpPost request = new HttpPost(uri);
-        StringEntity entity = new StringEntity(policyDef, HTTP.UTF_8);
-        entity.setContentType("application/json");
-        request.setEntity(entity);
+        request.setEntity(RangerPolicyCodec.entity(policy));
+        boolean conflict = false;
         try{
-            CloseableHttpResponse response = this.httpClient.execute(request, this.context);
+            CloseableHttpResponse response = execute(request);
             if(response.getStatusLine().getStatusCode() == 200)
             {
-                newPolicyString = EntityUtils.toString(response.getEntity(),"UTF-8");
+                newPolicy = RangerPolicyCodec.read(response.getEntity());
+            }else if (isNameConflict(response)){
+                conflict = true;
             }else{
                 logger.error("Ranger policy create fail due to: " + response.getStatusLine());
             }
@@ -127,11 +166,206 @@ public class rangerClient {
         }catch (IOException e){
             e.printStackTrace();
         }
-        return newPolicyString;
+        if (conflict){
+            // Check if there have policy with same name, get exist policy def string
+            newPolicy = getV2PolicyByName(serviceName, policy.getPolicyName());
+            if (newPolicy == null){
+                logger.error("Ranger policy create fail due to conflict, and no policy named " +
+                        policy.getPolicyName() + " found.");
+            } else {
+                BrokerMetrics.increment("ranger.policy_create.conflict");
+            }
+        }
+        return newPolicy;
+    }
+
+    /**
+     * Create many policies by a few requests, e.g. policies of all instances of a bulk onboarding.
+     * New policies are imported by Ranger policy import API in one request, and their ids are resolved by one
+     * paged listing per Ranger service. If Ranger has no import API, or import fails, policies are created by
+     * concurrent requests on non-blocking client instead of one request after another.
+     * Policies with same name already indexed are returned as is, like createV2Policy.
+     * @param createdIds ids of policies created by this call are added to it, existing policies returned are not
+     * @return new policies in order of given policies, null for policy not created
+     */
+    public List<RangerV2Policy> createV2Policies(List<RangerV2Policy> policies, Set<String> createdIds){
+        List<RangerV2Policy> result = new ArrayList<>(Collections.nCopies(policies.size(), (RangerV2Policy) null));
+        List<Integer> toImport = new ArrayList<>();
+        List<Integer> toCreate = new ArrayList<>();
+        for (int i = 0; i < policies.size(); i++){
+            RangerV2Policy policy = policies.get(i);
+            if (!Boolean.FALSE.equals(this.importSupported) &&
+                    this.policyIndex.get(policy.getServiceName(), policy.getPolicyName()) == null){
+                toImport.add(i);
+            } else {
+                toCreate.add(i);
+            }
+        }
+        if (!toImport.isEmpty()){
+            List<RangerV2Policy> imported = new ArrayList<>();
+            for (int i : toImport){
+                imported.add(policies.get(i));
+            }
+            if (importV2Policies(imported)){
+                Map<String, Map<String, RangerV2Policy>> listed = new HashMap<>();
+                for (int i : toImport){
+                    RangerV2Policy policy = policies.get(i);
+                    Map<String, RangerV2Policy> byName = listed.computeIfAbsent(policy.getServiceName(),
+                            this::listV2PoliciesByName);
+                    RangerV2Policy newPolicy = byName.get(policy.getPolicyName());
+                    if (newPolicy != null){
+                        // Import fails on existing name, so every imported policy is new
+                        rememberPolicy(policy.getServiceName(), newPolicy);
+                        createdIds.add(newPolicy.getPolicyId());
+                        result.set(i, newPolicy);
+                    } else {
+                        toCreate.add(i);
+                    }
+                }
+                BrokerMetrics.increment("ranger.policy_import.policies", toImport.size());
+            } else {
+                toCreate.addAll(toImport);
+            }
+        }
+        // Requests run concurrently on non-blocking client, bounded by connection pool per route
+        Map<Integer, CompletableFuture<RangerV2Policy>> creates = new LinkedHashMap<>();
+        for (int i : toCreate){
+            creates.put(i, createV2PolicyAsync(policies.get(i).getServiceName(), policies.get(i), createdIds));
+        }
+        for (Map.Entry<Integer, CompletableFuture<RangerV2Policy>> create : creates.entrySet()){
+            // A failed create is null like a rejected one, so callers still roll back policies created by others
+            result.set(create.getKey(), create.getValue().handle((policy, e) -> {
+                if (e != null){
+                    logger.error("Create ranger policy failed due to: " + e.getMessage());
+                    return null;
+                }
+                return policy;
+            }).join());
+        }
+        return result;
+    }
+
+    /**
+     * Import policies by Ranger policy import API, existing policies are kept.
+     * Import fails if a policy with same name already exists (e.g. index is stale), policies are then created
+     * one by one, which resolves a name conflict to the existing policy instead of overwriting it.
+     * @return true if imported, false if import fails or Ranger has no import API
+     */
+    private boolean importV2Policies(List<RangerV2Policy> policies){
+        URI uri = this.baseUri.resolve("service/plugins/policies/importPoliciesFromFile?isOverride=false");
+        HttpPost request = new HttpPost(uri);
+        long start = System.currentTimeMillis();
+        try {
+            request.setEntity(MultipartEntityBuilder.create()
+                    .addBinaryBody("file", RangerPolicyCodec.toImportFile(policies), ContentType.APPLICATION_JSON,
+                            "policies.json")
+                    .build());
+        } catch (IOException e){
+            throw new IllegalStateException("Serialize ranger policies fail: " + e.getMessage(), e);
+        }
+        try (CloseableHttpResponse response = execute(request)){
+            int statusCode = response.getStatusLine().getStatusCode();
+            EntityUtils.consume(response.getEntity());
+            if (statusCode == 200 || statusCode == 204){
+                this.importSupported = true;
+                BrokerMetrics.record("ranger.policy_import", System.currentTimeMillis() - start);
+                logger.info("Imported " + policies.size() + " ranger policies.");
+                return true;
+            }
+            if (statusCode == 404 || statusCode == 405){
+                // Ranger before 0.7 has no import API
+                this.importSupported = false;
+                logger.warn("Ranger policy import API not available, policies are created one by one.");
+                return false;
+            }
+            logger.error("Import " + policies.size() + " ranger policies fail due to: " + response.getStatusLine());
+        } catch (IOException e){
+            logger.error("Import " + policies.size() + " ranger policies fail due to: " + e.getMessage());
+        }
+        BrokerMetrics.increment("ranger.policy_import.errors");
+        return false;
+    }
+
+    /**
+     * @return policies of Ranger service by name, empty if listing fails
+     */
+    private Map<String, RangerV2Policy> listV2PoliciesByName(String serviceName){
+        Map<String, RangerV2Policy> byName = new HashMap<>();
+        List<RangerV2Policy> policies = listV2Policies(serviceName);
+        if (policies != null){
+            for (RangerV2Policy policy : policies){
+                byName.put(policy.getPolicyName(), policy);
+            }
+        }
+        return byName;
+    }
+
+    /**
+     * Load policy index of a Ranger service by paged listing of its policies
+     * @return number of policies indexed, -1 if listing fails
+     */
+    public int loadPolicyIndex(String serviceName){
+        List<RangerV2Policy> policies = listV2Policies(serviceName);
+        if (policies == null){
+            return -1;
+        }
+        for (RangerV2Policy policy : policies){
+            this.policyIndex.put(serviceName, policy.getPolicyName(), policy.getPolicyId());
+        }
+        return policies.size();
+    }
+
+    /**
+     * List all policies of a Ranger service by a few paged requests
+     * @return policies of service, null if listing fails or Ranger does not page as requested
+     */
+    public List<RangerV2Policy> listV2Policies(String serviceName){
+        List<RangerV2Policy> result = new ArrayList<>();
+        Set<String> firstIds = new HashSet<>();
+        for (int pages = 0, startIndex = 0; ; pages++, startIndex += POLICY_PAGE_SIZE){
+            if (pages == MAX_POLICY_PAGES){
+                logger.error("List policies of ranger service " + serviceName + " failed: more than " +
+                        MAX_POLICY_PAGES + " pages.");
+                return null;
+            }
+            URI uri = this.baseUri.resolve("service/public/v2/api/service/" + urlEscape(serviceName) +
+                    "/policy?startIndex=" + startIndex + "&pageSize=" + POLICY_PAGE_SIZE);
+            List<RangerV2Policy> page;
+            try (CloseableHttpResponse response = execute(new HttpGet(uri))){
+                if (response.getStatusLine().getStatusCode() != 200){
+                    logger.error("List policies of ranger service " + serviceName + " failed: " +
+                            response.getStatusLine());
+                    return null;
+                }
+                page = RangerPolicyCodec.readList(response.getEntity());
+            } catch (IOException e){
+                logger.error("List policies of ranger service " + serviceName + " failed: " + e.getMessage());
+                return null;
+            }
+            if (startIndex == 0 && page.size() > POLICY_PAGE_SIZE){
+                // Ranger ignores paging and returns all policies at once
+                return page;
+            }
+            if (!page.isEmpty() && !firstIds.add(page.get(0).getPolicyId())){
+                // Same page again, policies after first page can not be listed
+                logger.error("List policies of ranger service " + serviceName + " failed: startIndex " +
+                        startIndex + " returned a page already listed.");
+                return null;
+            }
+            result.addAll(page);
+            if (page.size() < POLICY_PAGE_SIZE){
+                return result;
+            }
+        }
     }
 
     public boolean removeV2Policy(String policyID){
-        return doRemovePolicy("service/public/v2/api/policy", policyID);
+        this.policyCache.invalidate(policyID);
+        boolean removed = doRemovePolicy("service/public/v2/api/policy", policyID);
+        if (removed){
+            this.policyIndex.remove(policyID);
+        }
+        return removed;
     }
 
     private boolean doRemovePolicy(String url, String policyID){
@@ -139,7 +373,7 @@ public class rangerClient {
         URI uri = buildPolicyUri(url, policyID, "");
         HttpDelete request = new HttpDelete(uri);
         try{
-            CloseableHttpResponse response = this.httpClient.execute(request, this.context);
+            CloseableHttpResponse response = execute(request);
             status = (response.getStatusLine().getStatusCode() == 204);
             response.close();
         }catch (IOException e){
@@ -149,89 +383,462 @@ public class rangerClient {
     }
 
     public boolean updateV2Policy(String policyID, RangerV2Policy policy){
-        return doUpdatePolicy("service/public/v2/api/policy/", policyID, policy);
+        RangerV2Policy updatedPolicy = doUpdatePolicy("service/public/v2/api/policy/", policyID, policy);
+        cachePolicy(updatedPolicy);
+        return updatedPolicy != null;
     }
 
-    private boolean doUpdatePolicy(String url, String policyID, RangerV2Policy policy){
-        boolean status = false;
-        String policyUpdateDef = gson.toJson(policy);
-        logger.info("DEBUG info:" + policyUpdateDef);
+    /**
+     * @return updated policy returned by Ranger, null if update fails
+     */
+    private RangerV2Policy doUpdatePolicy(String url, String policyID, RangerV2Policy policy){
+        RangerV2Policy updatedPolicy = null;
+        logPolicy("Update", policy);
         URI uri = buildPolicyUri(url + policyID, "", "");
         HttpPut request = new HttpPut(uri);
-        StringEntity entity = new StringEntity(policyUpdateDef, HTTP.UTF_8);
-        entity.setContentType("application/json");
-        request.setEntity(entity);
+        request.setEntity(RangerPolicyCodec.entity(policy));
         try{
-            CloseableHttpResponse response = this.httpClient.execute(request, this.context);
-            status = (response.getStatusLine().getStatusCode() == 200);
-            if (!status) {
+            CloseableHttpResponse response = execute(request);
+            if (response.getStatusLine().getStatusCode() != 200) {
                 logger.error("Update policy [{}] failed: " + response.getStatusLine().getReasonPhrase(), policyID);
 			}else {
+                updatedPolicy = RangerPolicyCodec.read(response.getEntity());
                 logger.info("Update ranger [{}] policy successfully!", policyID);
             }
             response.close();
         }catch (IOException e){
             e.printStackTrace();
         }
-        return status;
+        return updatedPolicy;
     }
 
     public  List<String> getResourcsFromV2Policy(String policyId, String resourcetype){
-        String currentPolicy = getV2PolicyById(policyId);
-        RangerV2Policy rp = gson.fromJson(currentPolicy, RangerV2Policy.class);
+        RangerV2Policy rp = loadV2Policy(policyId, true);
         return rp.getResourceValues(resourcetype);
     }
 
     public List<String> getUsersFromV2Policy(String policyId) {
-        String currentPolicy = getV2PolicyById(policyId);
-        RangerV2Policy rp = gson.fromJson(currentPolicy, RangerV2Policy.class);
+        RangerV2Policy rp = loadV2Policy(policyId, true);
         return rp.getUserList();
     }
 
+    /**
+     * @return given users not granted by policy yet, e.g. to revert only users added by a failed operation
+     */
+    public List<String> getUsersNotInV2Policy(String policyId, List<String> users) {
+        RangerV2Policy rp = loadV2Policy(policyId, true);
+        List<String> absent = new ArrayList<>();
+        for (String user : users){
+            if (rp == null || !rp.hasUser(user)){
+                absent.add(user);
+            }
+        }
+        return absent;
+    }
+
+    /**
+     * @return given resources not covered by policy yet
+     */
+    public List<String> getResourcesNotInV2Policy(String policyId, List<String> resources, String resourceType) {
+        RangerV2Policy rp = loadV2Policy(policyId, true);
+        List<String> absent = new ArrayList<>();
+        for (String resource : resources){
+            if (rp == null || !rp.hasResourceValue(resourceType, resource)){
+                absent.add(resource);
+            }
+        }
+        return absent;
+    }
+
     public boolean appendResourceToV2Policy(String policyId, String serviceInstanceResource, String resourceType) {
-        String currentPolicy = getV2PolicyById(policyId);
-        RangerV2Policy rp = gson.fromJson(currentPolicy, RangerV2Policy.class);
-        rp.updateResource(resourceType, serviceInstanceResource);
-        return updateV2Policy(policyId, rp);
+        return mutateV2Policy(policyId, rp -> rp.updateResource(resourceType, serviceInstanceResource));
     }
 
     public boolean removeResourceFromV2Policy(String policyId, String serviceInstanceResource, String resourceType){
-        String currentPolicy = getV2PolicyById(policyId);
-        RangerV2Policy rp = gson.fromJson(currentPolicy, RangerV2Policy.class);
-        rp.removeResource(resourceType, serviceInstanceResource);
-        return updateV2Policy(policyId, rp);
+        return mutateV2Policy(policyId, rp -> rp.removeResource(resourceType, serviceInstanceResource));
+    }
+
+    /**
+     * Append several resources to policy by one update
+     */
+    public boolean appendResourcesToV2Policy(String policyId, List<String> resources, String resourceType) {
+        return mutateV2Policy(policyId, rp -> resources.forEach(resource -> rp.updateResource(resourceType, resource)));
+    }
+
+    /**
+     * Remove several resources from policy by one update
+     */
+    public boolean removeResourcesFromV2Policy(String policyId, List<String> resources, String resourceType) {
+        return mutateV2Policy(policyId, rp -> resources.forEach(resource -> rp.removeResource(resourceType, resource)));
     }
 
     public boolean appendUsersToV2Policy
             (String policyId, String groupName, List<String> users, List<String> permissions) {
-        String currentPolicy = getV2PolicyById(policyId);
-        if (currentPolicy == null)
-        {
+        return mutateV2Policy(policyId, rp -> {
+            for (String user : users ){
+                if (rp.hasUser(user)){
+                    // Refresh accesses list if user already exist in policy
+                    rp.updateUserAccesses(user, permissions);
+                } else {
+                    // Append new policyItem if user not exist in policy
+                    rp.addPolicyItems(new ArrayList<String>(){{add(user);}},
+                            new ArrayList<String>(){{add(groupName);}}, new ArrayList<>(), true, permissions);
+                }
+            }
+        });
+    }
+
+    public boolean removeUserFromV2Policy(String policyId, String userName){
+        return mutateV2Policy(policyId, rp -> rp.removePolicyItem(userName));
+    }
+
+    /**
+     * Remove several users from policy by one update
+     */
+    public boolean removeUsersFromV2Policy(String policyId, List<String> users){
+        return mutateV2Policy(policyId, rp -> users.forEach(rp::removePolicyItem));
+    }
+
+    /**
+     * Remove policy if it exists. Cached policy is removed directly, otherwise the policy is fetched first.
+     * @return true if policy removed or not exists
+     */
+    public boolean removeV2PolicyIfExists(String policyID){
+        if (this.policyCache.contains(policyID) && removeV2Policy(policyID)){
+            return true;
+        }
+        if (getV2PolicyById(policyID) == null){
+            logger.warn("ranger policy " + policyID + " doesn't exist, do not need to remove");
+            this.policyIndex.remove(policyID);
+            return true;
+        }
+        return removeV2Policy(policyID);
+    }
+
+    /**
+     * Apply changes to a policy, together with other changes of the policy submitted at the same time
+     * @param policyId policy id
+     * @param mutation changes to apply to policy
+     * @return true if policy updated
+     */
+    private boolean mutateV2Policy(String policyId, Consumer<RangerV2Policy> mutation){
+        return this.mutationQueue.submit(policyId, mutation);
+    }
+
+    /**
+     * Read-modify-write of a policy, confirmed by policy version.
+     * Ranger has no conditional update, so latest version of policy is read right before the write and changes
+     * are applied to it: an edit made outside broker (e.g. in Ranger admin UI) since policy was cached is kept
+     * instead of overwritten by the cached copy. Version returned by the write must be the next one of the version
+     * read, otherwise policy was also changed in the short window between read and write, which is
+     * last-writer-wins; the policy is then dropped from cache so that nothing else starts from it.
+     * Reads of policy (users, resources) are still served by the cache.
+     * @param policyId policy id
+     * @param mutations changes to apply to policy, in order
+     * @return true if policy updated
+     */
+    private boolean applyV2PolicyMutations(String policyId, List<Consumer<RangerV2Policy>> mutations){
+        RangerV2Policy cached = this.policyCache.get(policyId);
+        RangerV2Policy rp = loadV2Policy(policyId, false);
+        if (rp == null){
+            this.policyCache.invalidate(policyId);
             return false;
         }
-        RangerV2Policy rp = gson.fromJson(currentPolicy, RangerV2Policy.class);
-        for (String user : users ){
-            if (rp.getUserList().contains(user)){
-                // Refresh accesses list if user already exist in policy
-                rp.updateUserAccesses(user, permissions);
-            } else {
-                // Append new policyItem if user not exist in policy
-                rp.addPolicyItems(new ArrayList<String>(){{add(user);}},
-                        new ArrayList<String>(){{add(groupName);}}, new ArrayList<>(), true, permissions);
+        Long baseVersion = rp.getVersion();
+        if (cached != null && !Objects.equals(cached.getVersion(), baseVersion)){
+            logger.warn("Ranger policy [{}] changed by others from cached version {} to {}, changes applied to latest version.",
+                    policyId, cached.getVersion(), baseVersion);
+            BrokerMetrics.increment("ranger.policy_cache.conflict");
+        }
+        for (Consumer<RangerV2Policy> mutation : mutations){
+            mutation.accept(rp);
+        }
+        RangerV2Policy updated = doUpdatePolicy("service/public/v2/api/policy/", policyId, rp);
+        if (updated == null){
+            this.policyCache.invalidate(policyId);
+            return false;
+        }
+        if (baseVersion != null && updated.getVersion() != null && updated.getVersion() != baseVersion + 1){
+            logger.warn("Ranger policy [{}] updated from version {} to {}, it was changed by others between read and update.",
+                    policyId, baseVersion, updated.getVersion());
+            BrokerMetrics.increment("ranger.policy_cache.conflict");
+            this.policyCache.invalidate(policyId);
+        } else {
+            this.policyCache.put(updated);
+        }
+        return true;
+    }
+
+    /**
+     * @param useCache whether cached copy can be used
+     * @return policy which caller is free to modify, null if policy not found
+     */
+    private RangerV2Policy loadV2Policy(String policyId, boolean useCache){
+        if (useCache){
+            RangerV2Policy cached = this.policyCache.get(policyId);
+            if (cached != null){
+                return cached;
             }
         }
-        return updateV2Policy(policyId, rp);
+        // Policy cache keeps its own copy, so policy read from Ranger is free to modify
+        return getV2PolicyById(policyId);
     }
 
-    public boolean removeUserFromV2Policy(String policyId, String userName){
-        String currentPolicy = getV2PolicyById(policyId);
-        if (currentPolicy == null)
-        {
+    private void cachePolicy(RangerV2Policy policy){
+        if (policy != null){
+            this.policyCache.put(policy);
+        }
+    }
+
+    /**
+     * Cache and index policy created by broker
+     */
+    private void rememberPolicy(String serviceName, RangerV2Policy policy){
+        if (policy != null){
+            this.policyCache.put(policy);
+            this.policyIndex.put(serviceName, policy.getPolicyName(), policy.getPolicyId());
+        }
+    }
+
+    /**
+     * Ranger rejects policy with duplicated name by 400, newer versions may use 409.
+     * 400 is also returned for other invalid policies (e.g. user not synced yet, bad resource),
+     * so it is a name conflict only if error message says so. Error message is logged otherwise.
+     */
+    private boolean isNameConflict(HttpResponse response) throws IOException{
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode == 409){
+            return true;
+        }
+        if (statusCode != 400){
             return false;
         }
-        RangerV2Policy rp = gson.fromJson(currentPolicy, RangerV2Policy.class);
-        rp.removePolicyItem(userName);
-        return updateV2Policy(policyId, rp);
+        String message = (response.getEntity() != null) ? EntityUtils.toString(response.getEntity()) : "";
+        if (DUPLICATE_NAME_MESSAGE.matcher(message).find()){
+            return true;
+        }
+        logger.error("Ranger policy rejected: " + message);
+        return false;
+    }
+
+    /**
+     * Get policy without blocking
+     * @return future of policy, completes with null if policy not found or request fails
+     */
+    public CompletableFuture<RangerV2Policy> getV2PolicyByIdAsync(String policyID){
+        HttpGet request = new HttpGet(buildPolicyUri("service/public/v2/api/policy", policyID, ""));
+        return executeAsync(request, response -> (response.getStatusLine().getStatusCode() == 200) ?
+                RangerPolicyCodec.read(response.getEntity()) : null, null).thenApply(policy -> {
+            cachePolicy(policy);
+            return policy;
+        });
+    }
+
+    /**
+     * Create policy without blocking, see {@link #createV2Policy(String, RangerV2Policy)}
+     * @return future of new policy, completes with null if create fails
+     */
+    public CompletableFuture<RangerV2Policy> createV2PolicyAsync(String serviceName, RangerV2Policy policy){
+        return createV2PolicyAsync(serviceName, policy, null);
+    }
+
+    /**
+     * Create policy without blocking, and record whether the policy returned is created by this call,
+     * so that rollback of a failed operation never removes a policy with same name which existed before.
+     * @param createdIds id of policy is added to it if created by this call, must be thread safe; null to skip
+     * @return future of new policy, completes with null if create fails
+     */
+    public CompletableFuture<RangerV2Policy> createV2PolicyAsync(String serviceName, RangerV2Policy policy,
+                                                                 Set<String> createdIds){
+        String existingId = this.policyIndex.get(serviceName, policy.getPolicyName());
+        CompletableFuture<RangerV2Policy> existing = (existingId == null) ?
+                CompletableFuture.completedFuture(null) : getV2PolicyByIdAsync(existingId);
+        logPolicy("Create", policy);
+        HttpPost postRequest = new HttpPost(buildPolicyUri("service/public/v2/api/policy", "", ""));
+        postRequest.setEntity(RangerPolicyCodec.entity(policy));
+        HttpGet getRequest = new HttpGet(
+                buildPolicyUri("service/public/v2/api/service/" + serviceName + "/policy", policy.getPolicyName(), ""));
+        // Requests after the first one are sent from I/O thread, so bound them by deadline of current operation now
+        postRequest.setConfig(this.httpPool.requestConfig());
+        getRequest.setConfig(this.httpPool.requestConfig());
+        return existing.thenCompose(existingPolicy -> {
+            if (existingPolicy != null){
+                return CompletableFuture.completedFuture(existingPolicy);
+            }
+            if (existingId != null){
+                // Policy deleted outside broker
+                this.policyIndex.remove(existingId);
+            }
+            CompletableFuture<Integer> conflict = new CompletableFuture<>();
+            return executeAsync(postRequest, response -> {
+                int statusCode = response.getStatusLine().getStatusCode();
+                if (statusCode == 200){
+                    RangerV2Policy newPolicy = RangerPolicyCodec.read(response.getEntity());
+                    if (newPolicy != null && createdIds != null){
+                        createdIds.add(newPolicy.getPolicyId());
+                    }
+                    return newPolicy;
+                }
+                if (isNameConflict(response)){
+                    conflict.complete(statusCode);
+                    return null;
+                }
+                logger.error("Ranger policy create fail due to: " + response.getStatusLine());
+                return null;
+            }, null).thenCompose(newPolicy -> {
+                if (newPolicy != null || !conflict.isDone()){
+                    return CompletableFuture.completedFuture(newPolicy);
+                }
+                // Check if there have policy with same name, get exist policy
+                return executeAsync(getRequest, response -> (response.getStatusLine().getStatusCode() == 200) ?
+                        RangerPolicyCodec.read(response.getEntity()) : null, null).thenApply(existingByName -> {
+                    if (existingByName == null){
+                        logger.error("Ranger policy create fail due to conflict, and no policy named " +
+                                policy.getPolicyName() + " found.");
+                    } else {
+                        BrokerMetrics.increment("ranger.policy_create.conflict");
+                    }
+                    return existingByName;
+                });
+            });
+        }).thenApply(newPolicy -> {
+            rememberPolicy(serviceName, newPolicy);
+            return newPolicy;
+        });
+    }
+
+    /**
+     * Remove policy without blocking
+     * @return future of remove result
+     */
+    public CompletableFuture<Boolean> removeV2PolicyAsync(String policyID){
+        this.policyCache.invalidate(policyID);
+        HttpDelete request = new HttpDelete(buildPolicyUri("service/public/v2/api/policy", policyID, ""));
+        return executeAsync(request, response -> response.getStatusLine().getStatusCode() == 204, false)
+                .thenApply(removed -> {
+                    if (removed){
+                        this.policyIndex.remove(policyID);
+                    }
+                    return removed;
+                });
+    }
+
+    /**
+     * Remove policy if it exists without blocking, see {@link #removeV2PolicyIfExists(String)}
+     * @return future of remove result, true if policy removed or not exists
+     */
+    public CompletableFuture<Boolean> removeV2PolicyIfExistsAsync(String policyID){
+        CompletableFuture<Boolean> removeCached = this.policyCache.contains(policyID) ?
+                removeV2PolicyAsync(policyID) : CompletableFuture.completedFuture(false);
+        // Requests after the first one are sent from I/O thread, so bound them by deadline of current operation now
+        HttpGet getRequest = new HttpGet(buildPolicyUri("service/public/v2/api/policy", policyID, ""));
+        getRequest.setConfig(this.httpPool.requestConfig());
+        HttpDelete deleteRequest = new HttpDelete(buildPolicyUri("service/public/v2/api/policy", policyID, ""));
+        deleteRequest.setConfig(this.httpPool.requestConfig());
+        return removeCached.thenCompose(removed -> {
+            if (removed){
+                return CompletableFuture.completedFuture(true);
+            }
+            return executeAsync(getRequest, response -> response.getStatusLine().getStatusCode() == 200, false)
+                    .thenCompose(exists -> {
+                        if (!exists){
+                            logger.warn("ranger policy " + policyID + " doesn't exist, do not need to remove");
+                            this.policyIndex.remove(policyID);
+                            return CompletableFuture.completedFuture(true);
+                        }
+                        return executeAsync(deleteRequest,
+                                response -> response.getStatusLine().getStatusCode() == 204, false)
+                                .thenApply(deleted -> {
+                                    if (deleted){
+                                        this.policyIndex.remove(policyID);
+                                    }
+                                    return deleted;
+                                });
+                    });
+        });
+    }
+
+    /**
+     * Update policy without blocking
+     * @return future of update result
+     */
+    public CompletableFuture<Boolean> updateV2PolicyAsync(String policyID, RangerV2Policy policy){
+        logPolicy("Update", policy);
+        HttpPut request = new HttpPut(buildPolicyUri("service/public/v2/api/policy/" + policyID, "", ""));
+        request.setEntity(RangerPolicyCodec.entity(policy));
+        return executeAsync(request, response -> {
+            if (response.getStatusLine().getStatusCode() != 200) {
+                logger.error("Update policy [{}] failed: " + response.getStatusLine().getReasonPhrase(), policyID);
+                return null;
+            }
+            logger.info("Update ranger [{}] policy successfully!", policyID);
+            return RangerPolicyCodec.read(response.getEntity());
+        }, null).thenApply(updatedPolicy -> {
+            cachePolicy(updatedPolicy);
+            return updatedPolicy != null;
+        });
+    }
+
+    /**
+     * Check without blocking whether user is known by Ranger, i.e. already synced from LDAP by Ranger usersync
+     * @return future of check result, completes with false if request fails
+     */
+    public CompletableFuture<Boolean> userExistsAsync(String userName){
+        HttpGet request = new HttpGet(buildPolicyUri("service/xusers/users/userName", userName, ""));
+        return executeAsync(request, response -> response.getStatusLine().getStatusCode() == 200, false);
+    }
+
+    /**
+     * Check without blocking whether group is known by Ranger, i.e. already synced from LDAP by Ranger usersync
+     * @return future of check result, completes with false if request fails
+     */
+    public CompletableFuture<Boolean> groupExistsAsync(String groupName){
+        HttpGet request = new HttpGet(buildPolicyUri("service/xusers/groups/groupName", groupName, ""));
+        return executeAsync(request, response -> response.getStatusLine().getStatusCode() == 200, false);
+    }
+
+    /**
+     * Policy body is only serialized for logging when debug is enabled, it can be large for multi-user policies
+     */
+    private void logPolicy(String action, RangerV2Policy policy){
+        if (logger.isDebugEnabled()){
+            logger.debug(action + " ranger policy: " + RangerPolicyCodec.toJson(policy));
+        }
+    }
+
+    /**
+     * Execute request by shared connection pool, timeouts bounded by deadline of current operation
+     */
+    private CloseableHttpResponse execute(HttpRequestBase request) throws IOException {
+        return this.httpPool.execute("ranger", request, newContext());
+    }
+
+    /**
+     * Execute request without blocking, failures are logged and mapped to fallback value like blocking requests
+     */
+    private <T> CompletableFuture<T> executeAsync(HttpRequestBase request, ResponseHandler<T> handler, T fallback) {
+        return this.httpPool.executeAsync("ranger", request, newContext()).handle((HttpResponse response, Throwable e) -> {
+            if (e != null){
+                logger.error("Ranger request " + request.getMethod() + " " + request.getURI() + " failed: " + e.getMessage());
+                return fallback;
+            }
+            try{
+                return handler.handleResponse(response);
+            }catch (IOException ioe){
+                logger.error("Read ranger response of " + request.getURI() + " failed: " + ioe.getMessage());
+                return fallback;
+            }
+        });
+    }
+
+    /**
+     * Context per request, HttpClientContext is not safe to share by concurrent requests
+     */
+    private HttpClientContext newContext() {
+        HttpClientContext context = HttpClientContext.create();
+        context.setCredentialsProvider(this.credentialsProvider);
+        context.setAuthCache(this.authCache);
+        return context;
     }
 
     private URI buildPolicyUri(String prefix, String key, String suffix) {
@@ -10,8 +10,6 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.BasicAuthCache;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
@@ -29,7 +27,7 @@ import java.util.List;
  */
 public class yarnClient{
 
-    private CloseableHttpClient httpClient;
+    private HttpConnectionPool httpPool;
     private List<HttpClientContext> contexts;
     private List<URI> baseUris;
 
@@ -44,7 +42,6 @@ public class yarnClient{
         }
         URI baseUri = URI.create(uri);
         this.baseUris.add(baseUri);
-        this.httpClient = HttpClientBuilder.create().build();
         HttpHost targetHost = new HttpHost(baseUri.getHost(), baseUri.getPort(), baseUri.getScheme());
         AuthCache authCache = new BasicAuthCache();
         authCache.put(targetHost, new BasicScheme());
@@ -53,13 +50,15 @@ public class yarnClient{
         this.contexts.add(context);
     }
 
-    public yarnClient(String uri) {
+    public yarnClient(String uri, HttpConnectionPool httpPool) {
+        this.httpPool = httpPool;
         this.contexts =new ArrayList<>();
         this.baseUris =new ArrayList<>();
         buildContext(uri);
     }
 
-    public yarnClient(String uri1, String uri2) {
+    public yarnClient(String uri1, String uri2, HttpConnectionPool httpPool) {
+        this.httpPool = httpPool;
         this.contexts =new ArrayList<>();
         this.baseUris =new ArrayList<>();
         buildContext(uri1);
@@ -111,7 +110,8 @@ public class yarnClient{
         String responseDef = null;
         for (int i=0; i<requests.size(); i++) {
             try {
-                CloseableHttpResponse response = this.httpClient.execute(requests.get(i), this.contexts.get(i));
+                // Timeouts of pooled request are bounded by deadline of current operation
+                CloseableHttpResponse response = this.httpPool.execute("yarn", requests.get(i), this.contexts.get(i));
                 if (response.getStatusLine().getStatusCode() == 200) {
                     responseDef = EntityUtils.toString(response.getEntity());
                 }
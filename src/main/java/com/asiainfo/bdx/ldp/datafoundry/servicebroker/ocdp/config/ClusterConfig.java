@@ -1,10 +1,15 @@
 package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config;
 
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.HttpConnectionPool;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.RangerPolicyCache;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.RangerPolicyIndex;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.ambariClient;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.etcdClient;
 
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.rangerClient;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.yarnClient;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.CircuitBreaker;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OperationDeadline;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.env.Environment;
@@ -12,6 +17,9 @@ import org.springframework.context.EnvironmentAware;
 import org.springframework.ldap.core.LdapTemplate;
 import org.springframework.ldap.core.support.LdapContextSource;
 
+import java.util.HashMap;
+import java.util.Map;
+
 
 /**
  * Created by baikai on 5/28/16.
@@ -19,6 +27,14 @@ import org.springframework.ldap.core.support.LdapContextSource;
 @Configuration
 public class ClusterConfig implements EnvironmentAware{
 
+    public static final String RANGER_POLICY_MODE_INSTANCE = "instance";
+
+    public static final String RANGER_POLICY_MODE_TENANT = "tenant";
+
+    public static final String RANGER_AUTHZ_MODE_USER = "user";
+
+    public static final String RANGER_AUTHZ_MODE_GROUP = "group";
+
     // Etcd connectivity properties
     private String etcd_host;
 
@@ -64,6 +80,28 @@ public class ClusterConfig implements EnvironmentAware{
 
     private String ranger_pwd;
 
+    // Local cache of ranger policies, ttl 0 disables cache
+    private int ranger_policyCache_size;
+
+    private long ranger_policyCache_ttl;
+
+    // Window of merging concurrent changes of one ranger policy into one update, 0 disables merging
+    private long ranger_coalesceWindow;
+
+    // instance: one ranger policy per service instance; tenant: all instances of a tenant share one policy per service
+    private String ranger_policyMode;
+
+    // user: users are listed by ranger policies; group: policies list one LDAP group per instance (or tenant)
+    private String ranger_authzMode;
+
+    // Backoff of polling Ranger until usersync picks up new LDAP users
+    private long ranger_usersyncInitialBackoff;
+
+    private long ranger_usersyncMaxBackoff;
+
+    // off, report or repair: how scheduled reconciliation handles mismatches between ranger policies and instances
+    private String ranger_reconcileMode;
+
     // Hadoop HDFS connectivity properties
     private String hdfs_nameNode;
 
@@ -130,6 +168,12 @@ public class ClusterConfig implements EnvironmentAware{
 
     private String yarn_superUserKeytab;
 
+    // Yarn queue changes within this window are applied by one capacity-scheduler update
+    private long yarn_queueBatchWindow;
+
+    // Number of zero-capacity yarn queues kept ready for instance provision, 0 disables spare queues
+    private int yarn_spareQueuePoolSize;
+
     //Hadoop MapReduce History server
     private String mr_history_url;
 
@@ -145,6 +189,35 @@ public class ClusterConfig implements EnvironmentAware{
     private String kafka_hosts;
     
 	private String kafka_port;
+
+    // Time budget of one broker operation, and of one backend HTTP request
+    private long operation_timeout_seconds;
+
+    private int backend_request_timeout;
+
+    // Connection pool shared by Ranger/Ambari/Yarn REST clients
+    private int http_pool_maxTotal;
+
+    private int http_pool_maxPerRoute;
+
+    private int http_connect_timeout;
+
+    private int http_pool_waitTimeout;
+
+    private long http_keepAlive;
+
+    private long http_idleTimeout;
+
+    private int http_async_ioThreads;
+
+    // How long results of create/update/bind requests are kept to deduplicate retried requests
+    private long request_dedup_ttl_seconds;
+
+    // Max instances processed at the same time by one bulk operation
+    private int bulk_concurrency;
+
+    // Number of pre-created hdfs folders kept ready for instance provision, 0 disables warm pool
+    private int hdfs_warm_pool_size;
     
 	@Override
     public void setEnvironment(Environment env){
@@ -168,6 +241,14 @@ public class ClusterConfig implements EnvironmentAware{
         this.ranger_url = env.getProperty("RANGER_URL");
         this.ranger_user = env.getProperty("RANGER_ADMIN_USER");
         this.ranger_pwd = env.getProperty("RANGER_ADMIN_PASSWORD");
+        this.ranger_policyCache_size = env.getProperty("RANGER_POLICY_CACHE_SIZE", Integer.class, 1000);
+        this.ranger_policyCache_ttl = env.getProperty("RANGER_POLICY_CACHE_TTL_SECONDS", Long.class, 300L) * 1000;
+        this.ranger_coalesceWindow = env.getProperty("RANGER_POLICY_COALESCE_WINDOW_MS", Long.class, 50L);
+        this.ranger_policyMode = env.getProperty("RANGER_POLICY_MODE", RANGER_POLICY_MODE_INSTANCE);
+        this.ranger_authzMode = env.getProperty("RANGER_AUTHZ_MODE", RANGER_AUTHZ_MODE_USER);
+        this.ranger_usersyncInitialBackoff = env.getProperty("RANGER_USERSYNC_INITIAL_BACKOFF_MS", Long.class, 500L);
+        this.ranger_usersyncMaxBackoff = env.getProperty("RANGER_USERSYNC_MAX_BACKOFF_MS", Long.class, 10000L);
+        this.ranger_reconcileMode = env.getProperty("RANGER_RECONCILE_MODE", "report");
         this.hdfs_nameNode = env.getProperty("HDFS_NAME_NODE");
         this.hdfs_rpcPort = env.getProperty("HDFS_RPC_PORT");
         this.hdfs_port = env.getProperty("HDFS_PORT");
@@ -199,6 +280,8 @@ public class ClusterConfig implements EnvironmentAware{
         this.yarn_rm_port = env.getProperty("YARN_RESOURCEMANAGER_PORT");
         this.yarn_rm_url = env.getProperty("YARN_RESOURCEMANAGER_URL");
         this.yarn_rm_url2 = env.getProperty("YARN_RESOURCEMANAGER_URL2");
+        this.yarn_queueBatchWindow = env.getProperty("YARN_QUEUE_BATCH_WINDOW_MS", Long.class, 50L);
+        this.yarn_spareQueuePoolSize = env.getProperty("YARN_SPARE_QUEUE_POOL_SIZE", Integer.class, 0);
         this.yarn_superUser = env.getProperty("YARN_SUPER_USER");
         this.yarn_superUserKeytab = env.getProperty("YARN_SUPER_USER_KEYTAB");
         this.mr_history_url = env.getProperty("MR_HISTORY_URL");
@@ -209,6 +292,36 @@ public class ClusterConfig implements EnvironmentAware{
         this.kafka_jaas_path = env.getProperty("KAFKA_JAAS_PATH");
         this.kafka_hosts = env.getProperty("KAFKA_HOSTS");
         this.kafka_port = env.getProperty("KAFKA_PORT");
+        this.operation_timeout_seconds = env.getProperty("OPERATION_TIMEOUT_SECONDS", Long.class, 600L);
+        this.backend_request_timeout = env.getProperty("BACKEND_REQUEST_TIMEOUT_SECONDS", Integer.class, 60) * 1000;
+        OperationDeadline.configureGrace(env.getProperty("ROLLBACK_TIMEOUT_SECONDS", Long.class, 60L) * 1000);
+        this.http_pool_maxTotal = env.getProperty("HTTP_POOL_MAX_TOTAL", Integer.class, 100);
+        this.http_pool_maxPerRoute = env.getProperty("HTTP_POOL_MAX_PER_ROUTE", Integer.class, 20);
+        this.http_connect_timeout = env.getProperty("HTTP_CONNECT_TIMEOUT_SECONDS", Integer.class, 10) * 1000;
+        this.http_pool_waitTimeout = env.getProperty("HTTP_POOL_WAIT_TIMEOUT_SECONDS", Integer.class, 10) * 1000;
+        this.http_keepAlive = env.getProperty("HTTP_KEEP_ALIVE_SECONDS", Long.class, 30L) * 1000;
+        this.http_idleTimeout = env.getProperty("HTTP_IDLE_TIMEOUT_SECONDS", Long.class, 60L) * 1000;
+        this.http_async_ioThreads = env.getProperty("HTTP_ASYNC_IO_THREADS", Integer.class, 2);
+        this.request_dedup_ttl_seconds = env.getProperty("REQUEST_DEDUP_TTL_SECONDS", Long.class, 300L);
+        this.bulk_concurrency = env.getProperty("BULK_CONCURRENCY", Integer.class, 10);
+        this.hdfs_warm_pool_size = env.getProperty("HDFS_WARM_POOL_SIZE", Integer.class, 0);
+        long slowCallMillis = env.getProperty("CIRCUIT_BREAKER_SLOW_CALL_MS", Long.class, 10000L);
+        CircuitBreaker.configure(
+                env.getProperty("CIRCUIT_BREAKER_WINDOW_SIZE", Integer.class, 20),
+                env.getProperty("CIRCUIT_BREAKER_MIN_CALLS", Integer.class, 10),
+                env.getProperty("CIRCUIT_BREAKER_FAILURE_RATE", Integer.class, 50),
+                slowCallMillis,
+                env.getProperty("CIRCUIT_BREAKER_OPEN_MS", Long.class, 30000L),
+                env.getProperty("CIRCUIT_BREAKER_HALF_OPEN_PROBES", Integer.class, 1));
+        // Capacity-scheduler refresh by Ambari and policy import by Ranger are normally slow
+        CircuitBreaker.configureSlowCall("ambari", env.getProperty("CIRCUIT_BREAKER_SLOW_CALL_MS_AMBARI", Long.class,
+                Math.max(slowCallMillis, 60000L)));
+        CircuitBreaker.configureSlowCall("ranger", env.getProperty("CIRCUIT_BREAKER_SLOW_CALL_MS_RANGER", Long.class,
+                Math.max(slowCallMillis, 30000L)));
+        for (String backend : new String[]{"yarn", "etcd", "kdc", "hdfs", "hbase", "hive", "kafka"}) {
+            CircuitBreaker.configureSlowCall(backend, env.getProperty(
+                    "CIRCUIT_BREAKER_SLOW_CALL_MS_" + backend.toUpperCase(), Long.class, slowCallMillis));
+        }
     }
 
     public String getEtcdHost() { return etcd_host; }
@@ -234,6 +347,11 @@ public class ClusterConfig implements EnvironmentAware{
     public String getRangerUrl() { return ranger_url; }
     public String getRangerUser() { return ranger_user; }
     public String getRangerPwd() { return ranger_pwd; }
+    public boolean isRangerTenantPolicyMode() { return RANGER_POLICY_MODE_TENANT.equalsIgnoreCase(ranger_policyMode); }
+    public boolean isRangerGroupAuthzMode() { return RANGER_AUTHZ_MODE_GROUP.equalsIgnoreCase(ranger_authzMode); }
+    public long getRangerUsersyncInitialBackoff() { return ranger_usersyncInitialBackoff; }
+    public long getRangerUsersyncMaxBackoff() { return ranger_usersyncMaxBackoff; }
+    public String getRangerReconcileMode() { return ranger_reconcileMode; }
 
     public String getHdfsNameNode() { return hdfs_nameNode;}
     public String getHdfsRpcPort() { return hdfs_rpcPort; }
@@ -281,6 +399,8 @@ public class ClusterConfig implements EnvironmentAware{
     public String getYarnRMUrl(){return yarn_rm_url;}
     public String getYarnSuperUser(){return yarn_superUser;}
     public String getYarnSuperUserKeytab(){return yarn_superUserKeytab;}
+    public long getYarnQueueBatchWindow(){return yarn_queueBatchWindow;}
+    public int getYarnSpareQueuePoolSize(){return yarn_spareQueuePoolSize;}
 
     public String getMRHistoryURL() { return mr_history_url; }
 
@@ -288,6 +408,12 @@ public class ClusterConfig implements EnvironmentAware{
     public String getSparkThriftPort() { return spark_thrift_port; }
     public String getSparkHistoryURL() { return spark_history_url; }
 
+    public long getOperationTimeoutSeconds() { return operation_timeout_seconds; }
+    public int getBackendRequestTimeout() { return backend_request_timeout; }
+    public long getRequestDedupTtlSeconds() { return request_dedup_ttl_seconds; }
+    public int getBulkConcurrency() { return bulk_concurrency; }
+    public int getHdfsWarmPoolSize() { return hdfs_warm_pool_size; }
+
     public etcdClient getEtcdClient(){
         return new etcdClient(etcd_host, etcd_port, etcd_user, etcd_pwd);
     }
@@ -299,6 +425,11 @@ public class ClusterConfig implements EnvironmentAware{
         contextSource.setUserDn(ldap_userDN);
         contextSource.setPassword(ldap_password);
         contextSource.setBase(ldap_base);
+        // Avoid LDAP calls hang forever
+        Map<String, Object> ldapEnv = new HashMap<>();
+        ldapEnv.put("com.sun.jndi.ldap.connect.timeout", String.valueOf(backend_request_timeout));
+        ldapEnv.put("com.sun.jndi.ldap.read.timeout", String.valueOf(backend_request_timeout));
+        contextSource.setBaseEnvironmentProperties(ldapEnv);
         return contextSource;
     }
 
@@ -307,22 +438,30 @@ public class ClusterConfig implements EnvironmentAware{
         return new LdapTemplate(this.getLdapContextSource());
     }
 
+    @Bean(destroyMethod = "close")
+    public HttpConnectionPool getHttpConnectionPool(){
+        return new HttpConnectionPool(http_pool_maxTotal, http_pool_maxPerRoute, http_connect_timeout,
+                backend_request_timeout, http_pool_waitTimeout, http_keepAlive, http_idleTimeout, http_async_ioThreads);
+    }
+
     @Bean
     public rangerClient getRangerClient(){
-        return new rangerClient(ranger_url, ranger_user, ranger_pwd);
+        return new rangerClient(ranger_url, ranger_user, ranger_pwd, this.getHttpConnectionPool(),
+                new RangerPolicyCache(ranger_policyCache_size, ranger_policyCache_ttl), new RangerPolicyIndex(),
+                ranger_coalesceWindow);
     }
 
     @Bean
     public ambariClient getAmbariClient(){
-        return new ambariClient(ambari_host,ambari_adminUser,ambari_adminPwd, cluster_name);
+        return new ambariClient(ambari_host,ambari_adminUser,ambari_adminPwd, cluster_name, this.getHttpConnectionPool());
     }
 
     @Bean
     public yarnClient getYarnClient(){
         if (yarn_rm_url2 != null)
-            return new yarnClient(yarn_rm_url,yarn_rm_url2);
+            return new yarnClient(yarn_rm_url,yarn_rm_url2, this.getHttpConnectionPool());
         else
-            return new yarnClient(yarn_rm_url);
+            return new yarnClient(yarn_rm_url, this.getHttpConnectionPool());
     }
     
     public String getZk_connection() {
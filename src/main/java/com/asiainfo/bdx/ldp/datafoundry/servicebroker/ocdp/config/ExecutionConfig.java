@@ -0,0 +1,162 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.catalina.connector.Connector;
+import org.apache.coyote.AbstractProtocol;
+import org.apache.coyote.ProtocolHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.aop.interceptor.AsyncUncaughtExceptionHandler;
+import org.springframework.aop.interceptor.SimpleAsyncUncaughtExceptionHandler;
+import org.springframework.boot.context.embedded.ConfigurableEmbeddedServletContainer;
+import org.springframework.boot.context.embedded.EmbeddedServletContainerCustomizer;
+import org.springframework.boot.context.embedded.tomcat.TomcatConnectorCustomizer;
+import org.springframework.boot.context.embedded.tomcat.TomcatEmbeddedServletContainerFactory;
+import org.springframework.context.EnvironmentAware;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.scheduling.annotation.AsyncConfigurer;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+/**
+ * Threads used by broker to run blocking backend I/O (etcd/Ranger/Ambari HTTP, kadmin, HDFS/HBase RPC, Hive JDBC).
+ *
+ * Two execution modes are supported, selected by env EXECUTION_MODE:
+ *     pooled: async operations and backend fan-out run in bounded thread pools,
+ *             request handling runs in default tomcat thread pool;
+ *     virtual: async operations, backend fan-out and request handling run in virtual threads,
+ *              falls back to pooled mode if runtime not supports virtual threads.
+ */
+@Configuration
+public class ExecutionConfig implements AsyncConfigurer, EnvironmentAware {
+
+    public static final String MODE_POOLED = "pooled";
+
+    public static final String MODE_VIRTUAL = "virtual";
+
+    private Logger logger = LoggerFactory.getLogger(ExecutionConfig.class);
+
+    private String execution_mode;
+
+    private int async_poolSize;
+
+    private int async_queueCapacity;
+
+    private int backend_poolSize;
+
+    private ExecutorService virtualExecutor;
+
+    @Override
+    public void setEnvironment(Environment env){
+        this.execution_mode = env.getProperty("EXECUTION_MODE", MODE_POOLED);
+        this.async_poolSize = env.getProperty("ASYNC_POOL_SIZE", Integer.class, 20);
+        this.async_queueCapacity = env.getProperty("ASYNC_QUEUE_CAPACITY", Integer.class, 500);
+        this.backend_poolSize = env.getProperty("BACKEND_POOL_SIZE", Integer.class, 50);
+        if (MODE_VIRTUAL.equalsIgnoreCase(execution_mode)){
+            this.virtualExecutor = newVirtualThreadExecutor();
+            if (this.virtualExecutor == null){
+                logger.warn("Virtual threads not supported by current runtime, fall back to pooled execution mode.");
+                this.execution_mode = MODE_POOLED;
+            } else {
+                this.execution_mode = MODE_VIRTUAL;
+            }
+        } else {
+            this.execution_mode = MODE_POOLED;
+        }
+        logger.info("Broker execution mode: " + execution_mode);
+    }
+
+    public String getExecutionMode() { return execution_mode; }
+
+    /**
+     * Executor for @Async service instance operations
+     */
+    @Override
+    public Executor getAsyncExecutor() {
+        return operationExecutor();
+    }
+
+    /**
+     * Executor of service instance operations, shared by @Async methods and stages of operations
+     * which resume after waiting on backends without holding a thread (e.g. waiting for Ranger usersync).
+     */
+    @Bean
+    public Executor operationExecutor() {
+        if (virtualExecutor != null){
+            return new TaskExecutorAdapter(virtualExecutor);
+        }
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(async_poolSize);
+        executor.setMaxPoolSize(async_poolSize);
+        executor.setQueueCapacity(async_queueCapacity);
+        executor.setThreadNamePrefix("ocdp-async-");
+        executor.setDaemon(true);
+        return executor;
+    }
+
+    @Override
+    public AsyncUncaughtExceptionHandler getAsyncUncaughtExceptionHandler() {
+        return new SimpleAsyncUncaughtExceptionHandler();
+    }
+
+    /**
+     * Executor for parallel backend calls inside one operation, kept apart from async executor
+     * so that fan-out tasks never wait for threads held by their parent operations.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService backendExecutor(){
+        if (virtualExecutor != null){
+            return virtualExecutor;
+        }
+        return Executors.newFixedThreadPool(backend_poolSize, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ocdp-backend-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Run tomcat request processing in virtual threads for virtual execution mode
+     */
+    @Bean
+    public EmbeddedServletContainerCustomizer requestExecutorCustomizer(){
+        return (ConfigurableEmbeddedServletContainer container) -> {
+            if (virtualExecutor == null || !(container instanceof TomcatEmbeddedServletContainerFactory)){
+                return;
+            }
+            ((TomcatEmbeddedServletContainerFactory) container).addConnectorCustomizers(
+                    new TomcatConnectorCustomizer() {
+                        @Override
+                        public void customize(Connector connector) {
+                            ProtocolHandler handler = connector.getProtocolHandler();
+                            if (handler instanceof AbstractProtocol){
+                                ((AbstractProtocol<?>) handler).setExecutor(virtualExecutor);
+                            }
+                        }
+                    });
+        };
+    }
+
+    /**
+     * Create virtual thread per task executor by reflection, so that broker still builds and runs on Java 8.
+     * @return executor, or null if runtime not supports virtual threads
+     */
+    private ExecutorService newVirtualThreadExecutor(){
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e){
+            return null;
+        }
+    }
+}
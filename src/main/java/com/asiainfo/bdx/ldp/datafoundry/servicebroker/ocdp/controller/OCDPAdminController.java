@@ -0,0 +1,135 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.controller;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config.ClusterConfig;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.BulkCreateServiceInstanceRequest;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.RangerReconcileReport;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.common.OCDPServiceInstanceBulkService;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.common.RangerPolicyReconciler;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.BrokerMetrics;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.CircuitBreaker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cloud.servicebroker.model.ErrorMessage;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+/**
+ * Broker admin API, not part of service broker API.
+ * Secured by broker credentials like service broker API.
+ */
+@RestController
+@RequestMapping("/admin")
+public class OCDPAdminController {
+
+    private Logger logger = LoggerFactory.getLogger(OCDPAdminController.class);
+
+    // Extra time for streaming results after operation deadline
+    private static final long RESPONSE_TIMEOUT_MARGIN = 60000L;
+
+    @Autowired
+    private OCDPServiceInstanceBulkService bulkService;
+
+    @Autowired
+    private RangerPolicyReconciler rangerPolicyReconciler;
+
+    @Autowired
+    private ClusterConfig clusterConfig;
+
+    /**
+     * Create service instances in bulk, result of each instance is streamed back as one JSON object per line.
+     */
+    @RequestMapping(value = "/service_instances", method = RequestMethod.POST)
+    public ResponseBodyEmitter createServiceInstances(@RequestBody BulkCreateServiceInstanceRequest request) {
+        logger.info("Receiving bulk create request for " + request.getInstances().size() + " service instances.");
+        ResponseBodyEmitter emitter = newEmitter();
+        bulkService.createServiceInstances(request, emitter);
+        return emitter;
+    }
+
+    /**
+     * Delete all service instances of an organization and/or a space,
+     * result of each instance is streamed back as one JSON object per line.
+     */
+    @RequestMapping(value = "/service_instances", method = RequestMethod.DELETE)
+    public ResponseBodyEmitter deleteServiceInstances(
+            @RequestParam(value = "organization_guid", required = false) String organizationGuid,
+            @RequestParam(value = "space_guid", required = false) String spaceGuid) {
+        if (organizationGuid == null && spaceGuid == null) {
+            throw new IllegalArgumentException("organization_guid or space_guid is required.");
+        }
+        logger.info("Receiving bulk delete request for organization: " + organizationGuid + ", space: " + spaceGuid);
+        ResponseBodyEmitter emitter = newEmitter();
+        bulkService.deleteServiceInstances(organizationGuid, spaceGuid, emitter);
+        return emitter;
+    }
+
+    /**
+     * Broker metrics, e.g. backend request latency and HTTP connection pool stats.
+     */
+    @RequestMapping(value = "/metrics", method = RequestMethod.GET)
+    public Map<String, Object> getMetrics() {
+        return BrokerMetrics.snapshot();
+    }
+
+    /**
+     * Broker health, DEGRADED while circuit breaker of any backend is not closed.
+     */
+    @RequestMapping(value = "/health", method = RequestMethod.GET)
+    public Map<String, Object> getHealth() {
+        Map<String, Map<String, Object>> backends = CircuitBreaker.snapshotAll();
+        String status = "UP";
+        for (Map<String, Object> backend : backends.values()) {
+            if (!CircuitBreaker.CLOSED.equals(backend.get("state"))) {
+                status = "DEGRADED";
+                break;
+            }
+        }
+        Map<String, Object> health = new LinkedHashMap<>();
+        health.put("status", status);
+        health.put("backends", backends);
+        return health;
+    }
+
+    /**
+     * Report of last reconciliation between ranger policies and service instances.
+     */
+    @RequestMapping(value = "/ranger/reconcile", method = RequestMethod.GET)
+    public RangerReconcileReport getRangerReconcileReport() {
+        RangerReconcileReport report = rangerPolicyReconciler.getLastReport();
+        if (report == null) {
+            throw new IllegalArgumentException("Ranger policies not reconciled yet.");
+        }
+        return report;
+    }
+
+    /**
+     * Reconcile ranger policies with service instances now, mismatches are repaired if repair is true.
+     */
+    @RequestMapping(value = "/ranger/reconcile", method = RequestMethod.POST)
+    public RangerReconcileReport reconcileRangerPolicies(
+            @RequestParam(value = "repair", required = false, defaultValue = "false") boolean repair) {
+        logger.info("Receiving ranger reconcile request, repair: " + repair);
+        return rangerPolicyReconciler.reconcile(repair);
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    public ErrorMessage handleException(IllegalArgumentException e) {
+        return new ErrorMessage(e.getMessage());
+    }
+
+    private ResponseBodyEmitter newEmitter() {
+        return new ResponseBodyEmitter(clusterConfig.getOperationTimeoutSeconds() * 1000L + RESPONSE_TIMEOUT_MARGIN);
+    }
+}
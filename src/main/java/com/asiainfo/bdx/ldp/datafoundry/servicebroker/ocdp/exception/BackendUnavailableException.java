@@ -0,0 +1,21 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.exception;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown without calling a backend while its circuit breaker is open, or when backend could not be reached,
+ * so callers handle it like any other I/O failure of the backend.
+ */
+public class BackendUnavailableException extends IOException {
+
+	private static final long serialVersionUID = 4327826436512895307L;
+
+	public BackendUnavailableException(String message) {
+		super(message);
+	}
+
+	public BackendUnavailableException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+}
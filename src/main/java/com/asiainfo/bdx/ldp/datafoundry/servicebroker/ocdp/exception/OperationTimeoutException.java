@@ -0,0 +1,14 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.exception;
+
+/**
+ * Exception thrown when a broker operation runs out of its time budget.
+ */
+public class OperationTimeoutException extends OCDPServiceException {
+
+	private static final long serialVersionUID = -3524178126601835102L;
+
+	public OperationTimeoutException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,84 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Request to create many service instances in one batch, e.g. all instances of a new tenant.
+ * Organization/space guid of request applies to instances which not specify their own.
+ */
+public class BulkCreateServiceInstanceRequest {
+
+	@JsonProperty("organization_guid")
+	private String organizationGuid;
+
+	@JsonProperty("space_guid")
+	private String spaceGuid;
+
+	@JsonProperty("instances")
+	private List<InstanceSpec> instances = new ArrayList<>();
+
+	public String getOrganizationGuid() {
+		return organizationGuid;
+	}
+
+	public String getSpaceGuid() {
+		return spaceGuid;
+	}
+
+	public List<InstanceSpec> getInstances() {
+		return instances;
+	}
+
+	/**
+	 * Spec of one service instance. Parameters are same as parameters of create request,
+	 * plus optional 'user_name' and 'accesses' (comma separated) to create ranger policy for existing users.
+	 */
+	public static class InstanceSpec {
+
+		@JsonProperty("service_instance_id")
+		private String serviceInstanceId;
+
+		@JsonProperty("service_id")
+		private String serviceDefinitionId;
+
+		@JsonProperty("plan_id")
+		private String planId;
+
+		@JsonProperty("organization_guid")
+		private String organizationGuid;
+
+		@JsonProperty("space_guid")
+		private String spaceGuid;
+
+		@JsonProperty("parameters")
+		private Map<String, Object> parameters;
+
+		public String getServiceInstanceId() {
+			return serviceInstanceId;
+		}
+
+		public String getServiceDefinitionId() {
+			return serviceDefinitionId;
+		}
+
+		public String getPlanId() {
+			return planId;
+		}
+
+		public String getOrganizationGuid() {
+			return organizationGuid;
+		}
+
+		public String getSpaceGuid() {
+			return spaceGuid;
+		}
+
+		public Map<String, Object> getParameters() {
+			return parameters;
+		}
+	}
+}
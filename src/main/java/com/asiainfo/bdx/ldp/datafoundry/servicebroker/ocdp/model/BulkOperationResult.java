@@ -0,0 +1,66 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model;
+
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import org.springframework.cloud.servicebroker.model.OperationState;
+
+/**
+ * Result of one service instance in a bulk operation, streamed back as soon as the instance is done.
+ */
+@JsonAutoDetect(getterVisibility = JsonAutoDetect.Visibility.NONE)
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BulkOperationResult {
+
+	@JsonSerialize
+	@JsonProperty("service_instance_id")
+	private String serviceInstanceId;
+
+	@JsonSerialize
+	@JsonProperty("service_id")
+	private String serviceDefinitionId;
+
+	@JsonSerialize
+	@JsonProperty("state")
+	private String state;
+
+	@JsonSerialize
+	@JsonProperty("description")
+	private String description;
+
+	@JsonSerialize
+	@JsonProperty("credentials")
+	private Map<String, Object> credentials;
+
+	public BulkOperationResult(String serviceInstanceId, String serviceDefinitionId, OperationState state,
+							   String description) {
+		this.serviceInstanceId = serviceInstanceId;
+		this.serviceDefinitionId = serviceDefinitionId;
+		this.state = state.getValue();
+		this.description = description;
+	}
+
+	public BulkOperationResult withCredentials(Map<String, Object> credentials) {
+		this.credentials = credentials;
+		return this;
+	}
+
+	public String getServiceInstanceId() {
+		return serviceInstanceId;
+	}
+
+	public String getServiceDefinitionId() {
+		return serviceDefinitionId;
+	}
+
+	public boolean isSucceeded() {
+		return OperationState.SUCCEEDED.getValue().equals(state);
+	}
+
+	public String getDescription() {
+		return description;
+	}
+}
@@ -0,0 +1,171 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OperationDeadline;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Step-level progress of one async service instance operation.
+ * Published as description of last operation response, so that broker users can see
+ * which step an operation is running, how long each finished step took and why it failed.
+ */
+public class OperationProgress {
+
+    private final OperationType operationType;
+
+    private final OperationDeadline deadline;
+
+    private final long startTime;
+
+    private final List<Step> steps = new ArrayList<>();
+
+    private String failureMessage;
+
+    private boolean finished;
+
+    public OperationProgress(OperationType operationType, OperationDeadline deadline) {
+        this.operationType = operationType;
+        this.deadline = deadline;
+        this.startTime = System.currentTimeMillis();
+    }
+
+    public OperationType getOperationType() {
+        return operationType;
+    }
+
+    public OperationDeadline getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Finish current step (if any) and start a new one.
+     * Operation is abandoned here if its deadline already expired.
+     * @param name step name
+     */
+    public void startStep(String name) {
+        deadline.check("step [" + name + "]");
+        doStartStep(name);
+    }
+
+    private synchronized void doStartStep(String name) {
+        long now = System.currentTimeMillis();
+        finishCurrentStep(now);
+        steps.add(new Step(name, now));
+    }
+
+    /**
+     * Record one retry of current step, e.g. ranger policy creation waiting for ldap user sync.
+     */
+    public synchronized void retry() {
+        Step current = currentStep();
+        if (current != null) {
+            current.retries++;
+        }
+    }
+
+    /**
+     * Mark operation as succeeded, finish current step.
+     */
+    public synchronized void succeed() {
+        finishCurrentStep(System.currentTimeMillis());
+        this.finished = true;
+    }
+
+    /**
+     * Mark operation as failed, record root cause message of given error.
+     * @param e error thrown by operation
+     */
+    public synchronized void fail(Throwable e) {
+        if (failureMessage != null) {
+            // Keep the first failure, e.g. timeout reported before cancelled operation thread stops
+            return;
+        }
+        Throwable rootCause = e;
+        while (rootCause.getCause() != null && rootCause.getCause() != rootCause) {
+            rootCause = rootCause.getCause();
+        }
+        String message = rootCause.getMessage();
+        this.failureMessage = (message != null) ? message : rootCause.getClass().getSimpleName();
+        finishCurrentStep(System.currentTimeMillis());
+        this.finished = true;
+    }
+
+    public synchronized boolean isFailed() {
+        return failureMessage != null;
+    }
+
+    public synchronized String getFailureMessage() {
+        return failureMessage;
+    }
+
+    /**
+     * Human readable description, e.g.
+     * "provision running 12.3s, step 2 [create yarn queue] running 8.1s; done: [create hive database] 4.2s".
+     */
+    public synchronized String getDescription() {
+        long now = System.currentTimeMillis();
+        StringBuilder sb = new StringBuilder();
+        sb.append(operationType.getValue());
+        if (failureMessage != null) {
+            sb.append(" failed");
+        } else if (finished) {
+            sb.append(" succeeded");
+        } else {
+            sb.append(" running");
+        }
+        sb.append(" ").append(seconds(now - startTime));
+        Step current = currentStep();
+        if (current != null && current.endTime == 0) {
+            sb.append(", step ").append(steps.size()).append(" [").append(current.name).append("] running ")
+                    .append(seconds(now - current.startTime)).append(retries(current));
+        } else if (failureMessage != null && current != null) {
+            sb.append(" at step ").append(steps.size()).append(" [").append(current.name).append("]");
+        }
+        boolean first = true;
+        for (Step step : steps) {
+            if (step.endTime == 0) {
+                continue;
+            }
+            sb.append(first ? "; done: " : ", ");
+            sb.append("[").append(step.name).append("] ").append(seconds(step.endTime - step.startTime))
+                    .append(retries(step));
+            first = false;
+        }
+        if (failureMessage != null) {
+            sb.append("; cause: ").append(failureMessage);
+        }
+        return sb.toString();
+    }
+
+    private Step currentStep() {
+        return steps.isEmpty() ? null : steps.get(steps.size() - 1);
+    }
+
+    private void finishCurrentStep(long now) {
+        Step current = currentStep();
+        if (current != null && current.endTime == 0) {
+            current.endTime = now;
+        }
+    }
+
+    private static String retries(Step step) {
+        return step.retries == 0 ? "" : " (" + step.retries + " retries)";
+    }
+
+    private static String seconds(long millis) {
+        return (millis / 1000) + "." + ((millis % 1000) / 100) + "s";
+    }
+
+    private static class Step {
+        final String name;
+        final long startTime;
+        long endTime;
+        int retries;
+
+        Step(String name, long startTime) {
+            this.name = name;
+            this.startTime = startTime;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+/**
+ * Result of one reconciliation between ranger policies and service instances in repository.
+ */
+@JsonAutoDetect(getterVisibility = JsonAutoDetect.Visibility.NONE)
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class RangerReconcileReport {
+
+	/**
+	 * Instance refers to a policy which not exists in ranger
+	 */
+	public static final String MISSING_POLICY = "missing_policy";
+
+	/**
+	 * Policy of instance not covers resource of instance, e.g. resource removed in ranger admin UI
+	 */
+	public static final String MISSING_RESOURCE = "missing_resource";
+
+	/**
+	 * Policy of instance disabled in ranger
+	 */
+	public static final String DISABLED_POLICY = "disabled_policy";
+
+	/**
+	 * Broker-owned policy which no instance refers to, e.g. left behind by a failed create
+	 */
+	public static final String ORPHAN_POLICY = "orphan_policy";
+
+	/**
+	 * Policy id of instance not matches policies of its service
+	 */
+	public static final String MALFORMED_POLICY_ID = "malformed_policy_id";
+
+	@JsonSerialize
+	@JsonProperty("start_time")
+	private long startTime;
+
+	@JsonSerialize
+	@JsonProperty("duration_ms")
+	private long durationMillis;
+
+	@JsonSerialize
+	@JsonProperty("repair")
+	private boolean repair;
+
+	@JsonSerialize
+	@JsonProperty("checked_instances")
+	private int checkedInstances;
+
+	@JsonSerialize
+	@JsonProperty("listed_policies")
+	private int listedPolicies;
+
+	@JsonSerialize
+	@JsonProperty("errors")
+	private List<String> errors = new ArrayList<>();
+
+	@JsonSerialize
+	@JsonProperty("findings")
+	private List<Finding> findings = new ArrayList<>();
+
+	public RangerReconcileReport(boolean repair) {
+		this.startTime = System.currentTimeMillis();
+		this.repair = repair;
+	}
+
+	public Finding addFinding(String type, String serviceInstanceId, String rangerService, String policyId,
+							  String detail) {
+		Finding finding = new Finding(type, serviceInstanceId, rangerService, policyId, detail);
+		findings.add(finding);
+		return finding;
+	}
+
+	public void addError(String error) {
+		errors.add(error);
+	}
+
+	public void addCheckedInstance() {
+		checkedInstances++;
+	}
+
+	public void addListedPolicies(int count) {
+		listedPolicies += count;
+	}
+
+	public void finish() {
+		this.durationMillis = System.currentTimeMillis() - startTime;
+	}
+
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	public boolean isRepair() {
+		return repair;
+	}
+
+	public List<Finding> getFindings() {
+		return findings;
+	}
+
+	public List<String> getErrors() {
+		return errors;
+	}
+
+	@JsonAutoDetect(getterVisibility = JsonAutoDetect.Visibility.NONE)
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public static class Finding {
+
+		@JsonSerialize
+		@JsonProperty("type")
+		private String type;
+
+		@JsonSerialize
+		@JsonProperty("service_instance_id")
+		private String serviceInstanceId;
+
+		@JsonSerialize
+		@JsonProperty("ranger_service")
+		private String rangerService;
+
+		@JsonSerialize
+		@JsonProperty("policy_id")
+		private String policyId;
+
+		@JsonSerialize
+		@JsonProperty("detail")
+		private String detail;
+
+		@JsonSerialize
+		@JsonProperty("repaired")
+		private boolean repaired;
+
+		Finding(String type, String serviceInstanceId, String rangerService, String policyId, String detail) {
+			this.type = type;
+			this.serviceInstanceId = serviceInstanceId;
+			this.rangerService = rangerService;
+			this.policyId = policyId;
+			this.detail = detail;
+		}
+
+		public void setRepaired(boolean repaired) {
+			this.repaired = repaired;
+		}
+
+		public String getType() {
+			return type;
+		}
+	}
+}
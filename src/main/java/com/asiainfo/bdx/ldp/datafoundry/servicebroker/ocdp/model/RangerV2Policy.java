@@ -1,6 +1,5 @@
 package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model;
 
-import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OCDPConstants;
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
@@ -19,6 +18,11 @@ public class RangerV2Policy{
     @JsonProperty("id")
     private String id;
 
+    // Increased by Ranger on each update of policy
+    @JsonSerialize
+    @JsonProperty("version")
+    private Long version;
+
     @JsonSerialize
     @JsonProperty("isEnabled")
     private boolean isEnabled;
@@ -45,7 +49,11 @@ public class RangerV2Policy{
 
     @JsonSerialize
     @JsonProperty("policyItems")
-    private List<PolicyItem> policyItems;
+    // Serialized as JSON array like a list; a set of distinct items so removal of an item needs no scan
+    private Set<PolicyItem> policyItems;
+
+    // Policy item of each user, built on first lookup and kept in step with policyItems; transient so Gson skips it
+    private transient Map<String, PolicyItem> itemsByUser;
 
     public RangerV2Policy(String policyName, String id, String description,
                             String service, boolean isEnabled, boolean isAuditEnabled){
@@ -56,7 +64,7 @@ public class RangerV2Policy{
         this.isAuditEnabled = isAuditEnabled;
         this.isEnabled = isEnabled;
         this.resources = new HashMap<>();
-        this.policyItems = new ArrayList<>();
+        this.policyItems = new LinkedHashSet<>();
     }
 
     // For HBase/Hive ranger policy
@@ -69,7 +77,7 @@ public class RangerV2Policy{
 
     // For HDFS/Kafka/Yarn ranger policy
     public void addResources2(String resourceType, List<String> resourceList, boolean isExcludes, boolean isRecursive){
-        RangerResource2 rr = new RangerResource2();
+        RangerResource rr = new RangerResource();
         rr.values.addAll(resourceList);
         rr.isExcludes = isExcludes;
         rr.isRecursive = isRecursive;
@@ -77,24 +85,18 @@ public class RangerV2Policy{
     }
 
     public void updateResource(String resourceType, String resourceName) {
-        if (resourceType.equals(OCDPConstants.HDFS_RESOURCE_TYPE) ||
-                resourceType.equals(OCDPConstants.KAFKA_RESOURCE_TYPE) ||
-                resourceType.equals(OCDPConstants.YARN_RANGER_RESOURCE_TYPE)){
-            RangerResource2 rr = (RangerResource2)resources.get(resourceType);
-            rr.values.add(resourceName);
-        } else {
-            RangerResource rr = resources.get(resourceType);
+        RangerResource rr = resources.get(resourceType);
+        // Appending same resource twice is a no-op, e.g. retried append
+        if (!rr.values.contains(resourceName)){
             rr.values.add(resourceName);
         }
     }
 
     public void updateUserAccesses(String userName, List<String> types){
-        for(PolicyItem pi : policyItems){
-            if(pi.getUsers().contains(userName)){
-                pi.accesses.clear();
-                pi.accesses.addAll(pi.getAccesses(types));
-                break;
-            }
+        PolicyItem pi = itemsByUser().get(userName);
+        if(pi != null){
+            pi.accesses.clear();
+            pi.accesses.addAll(pi.getAccesses(types));
         }
     }
 
@@ -121,26 +123,79 @@ public class RangerV2Policy{
         pi.accesses = pi.getAccesses(types);
 
         policyItems.add(pi);
+        itemsByUser().putIfAbsent(user, pi);
     }
 
     public void removePolicyItem(String user) {
-        for(PolicyItem pi : policyItems){
-            if(pi.getUsers().contains(user)){
-                policyItems.remove(pi);
-                break;
+        PolicyItem pi = itemsByUser().get(user);
+        if(pi == null){
+            return;
+        }
+        policyItems.remove(pi);
+        for(String itemUser : pi.getUsers()){
+            itemsByUser.remove(itemUser, pi);
+        }
+        // Another item may also list a user of removed item
+        for(String itemUser : pi.getUsers()){
+            if(!itemsByUser.containsKey(itemUser)){
+                indexUser(itemUser);
             }
         }
     }
 
+    /**
+     * Grant accesses of the item of a user to a group instead, e.g. placeholder user of a policy built for an LDAP group
+     */
+    public void replaceUserWithGroup(String user, String group){
+        PolicyItem pi = itemsByUser().get(user);
+        if(pi == null){
+            return;
+        }
+        pi.users.remove(user);
+        if(!pi.groups.contains(group)){
+            pi.groups.add(group);
+        }
+        itemsByUser.remove(user, pi);
+    }
+
+    public boolean hasUser(String userName){
+        return itemsByUser().containsKey(userName);
+    }
+
     public String getPolicyId(){return id;}
+    public boolean isEnabled(){return isEnabled;}
     public String getPolicyName(){return name;}
-    public List<PolicyItem> getPolicyItems(){return policyItems;}
+    public String getServiceName(){return service;}
+    public Long getVersion(){return version;}
+    public Collection<PolicyItem> getPolicyItems(){return policyItems;}
     public List<String> getUserList(){
-        List<String> users = new LinkedList<>();
-        for (PolicyItem policyItem: policyItems) {
-            users.addAll(policyItem.getUsers());
+        return new ArrayList<>(itemsByUser().keySet());
+    }
+
+    /**
+     * Users of policy items indexed by user name, first item wins if a user is listed by several items.
+     * Policy parsed by Gson has no index, so it is built lazily from policyItems.
+     */
+    private Map<String, PolicyItem> itemsByUser(){
+        if (itemsByUser == null){
+            itemsByUser = new LinkedHashMap<>();
+            for (PolicyItem policyItem : policyItems) {
+                for (String user : policyItem.getUsers()) {
+                    itemsByUser.putIfAbsent(user, policyItem);
+                }
+            }
+        }
+        return itemsByUser;
+    }
+
+    // Rare case of a user listed by more than one item, index next item of the user
+    private void indexUser(String user){
+        for (PolicyItem policyItem : policyItems) {
+            if (policyItem.getUsers().contains(user)) {
+                itemsByUser.put(user, policyItem);
+                return;
+            }
         }
-        return users;
     }
     //Temp fix for citic case, do not pass group when create policy
     /**
@@ -152,18 +207,23 @@ public class RangerV2Policy{
         return resources.get(resourceType).values;
     }
 
-    class RangerResource2 extends RangerResource{
-        boolean isRecursive;
+    public boolean hasResourceValue(String resourceType, String resourceName){
+        RangerResource rr = resources.get(resourceType);
+        return rr != null && rr.values.contains(resourceName);
     }
 
+    // Policy parsed from Ranger response always has this type whatever the service is,
+    // so isRecursive is kept here to survive read-modify-write of HDFS/Kafka/Yarn policies; null for HBase/Hive.
     class RangerResource{
         boolean isExcludes;
+        Boolean isRecursive;
         List<String> values = new ArrayList<String>();
     }
 
     class PolicyItem{
         List<String> users = new ArrayList<String>();
-        //List<String> groups = new ArrayList<String>();
+        // Kept so that groups of policy items survive read-modify-write of policy
+        List<String> groups = new ArrayList<String>();
         boolean delegateAdmin;
         List<RangerAccess> accesses = new ArrayList<RangerAccess>();
         List<String> conditions = new ArrayList<String>();
@@ -193,12 +253,9 @@ public class RangerV2Policy{
             return users;
         }
 
-        //Temp fix for citic case, do not pass group when create policy
-        /**
         public List<String> getGroups(){
             return groups;
         }
-         **/
     }
 
 }
@@ -2,6 +2,8 @@ package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.repository;
 
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.ServiceInstance;
 
+import java.util.List;
+
 /**
  * Repository for ServiceInstance objects
  * 
@@ -12,6 +14,14 @@ public interface OCDPServiceInstanceRepository {
 
     ServiceInstance findOne(String serviceInstanceId);
 
+    /**
+     * Find service instances of an organization and/or a space
+     * @param organizationGuid organization guid, null matches any organization
+     * @param spaceGuid space guid, null matches any space
+     * @throws java.io.UncheckedIOException if repository can not be listed, never returns a partial or empty list instead
+     */
+    List<ServiceInstance> findAll(String organizationGuid, String spaceGuid);
+
     void save(ServiceInstance instance);
 
     void delete(String serviceInstanceId);
@@ -12,7 +12,11 @@ import org.slf4j.LoggerFactory;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.ServiceInstance;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.repository.OCDPServiceInstanceRepository;
 
+import com.justinsb.etcd.EtcdNode;
+
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -77,6 +81,30 @@ public class OCDPServiceInstanceRepositoryImpl implements OCDPServiceInstanceRep
         return instance;
     }
 
+    @Override
+    public List<ServiceInstance> findAll(String organizationGuid, String spaceGuid) {
+        logger.info("Try to find OCDPServiceInstances of organization: " + organizationGuid + ", space: " + spaceGuid +
+                " in repository.");
+        List<ServiceInstance> instances = new ArrayList<>();
+        for (EtcdNode node : etcdClient.listDir("/servicebroker/ocdp/instance")) {
+            String serviceInstanceId = node.key.substring(node.key.lastIndexOf("/") + 1);
+            // Check org/space before reading whole instance
+            if (organizationGuid != null && !organizationGuid.equals(etcdClient.readToString(
+                    "/servicebroker/ocdp/instance/" + serviceInstanceId + "/organizationGuid"))) {
+                continue;
+            }
+            if (spaceGuid != null && !spaceGuid.equals(etcdClient.readToString(
+                    "/servicebroker/ocdp/instance/" + serviceInstanceId + "/spaceGuid"))) {
+                continue;
+            }
+            ServiceInstance instance = findOne(serviceInstanceId);
+            if (instance != null) {
+                instances.add(instance);
+            }
+        }
+        return instances;
+    }
+
     @Override
     public void save(ServiceInstance instance) {
         String serviceInstanceId = instance.getServiceInstanceId();
@@ -1,5 +1,6 @@
 package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service;
 
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.RangerV2Policy;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.ServiceInstance;
 
 import java.io.IOException;
@@ -20,6 +21,13 @@ public interface OCDPAdminService {
     String createPolicyForResources(String policyName, List<String> resources, List<String> userList,
                                     String groupName, List<String> permissions);
 
+    /**
+     * Build ranger policies createPolicyForResources would create, without creating them, so that policies of
+     * many instances can be created in one batch. Policies are in order of ids in composite policy id.
+     */
+    List<RangerV2Policy> buildPoliciesForResources(String policyName, List<String> resources, List<String> userList,
+                                                   String groupName, List<String> permissions);
+
     boolean appendResourcesToPolicy(String policyId, String serviceInstanceResource);
 
     boolean appendUsersToPolicy(String policyId, String groupName, List<String> users, List<String> permissions);
@@ -10,6 +10,9 @@ import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.ServiceInstance
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.ServiceInstanceBinding;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.repository.OCDPServiceInstanceBindingRepository;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.repository.OCDPServiceInstanceRepository;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.common.LdapGroupAuthzService;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.common.RangerTenantPolicyService;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.common.RequestDedupService;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OCDPAdminServiceMapper;
 
 import org.springframework.cloud.servicebroker.exception.ServiceInstanceDoesNotExistException;
@@ -51,6 +54,15 @@ public class OCDPServiceInstanceBindingService implements ServiceInstanceBinding
     @Autowired
     private ApplicationContext context;
 
+    @Autowired
+    private RequestDedupService dedupService;
+
+    @Autowired
+    private RangerTenantPolicyService tenantPolicyService;
+
+    @Autowired
+    private LdapGroupAuthzService groupAuthzService;
+
     private etcdClient etcdClient;
 
     private rangerClient rc;
@@ -66,9 +78,18 @@ public class OCDPServiceInstanceBindingService implements ServiceInstanceBinding
 
 	@Override
 	public CreateServiceInstanceBindingResponse createServiceInstanceBinding(
+            CreateServiceInstanceBindingRequest request) throws OCDPServiceException {
+        logger.info("Receiving binding request: " + request);
+        // Duplicate binding request (e.g. retried by cloud controller) returns result of previous one
+        String fingerprint = RequestDedupService.fingerprint(
+                request.getServiceInstanceId() + "/" + request.getBindingId(), "bind",
+                request.getPlanId(), request.getParameters());
+        return dedupService.execute(fingerprint, () -> bindServiceInstance(request));
+    }
+
+    private CreateServiceInstanceBindingResponse bindServiceInstance(
             CreateServiceInstanceBindingRequest request) throws OCDPServiceException {
 		try {
-	        logger.info("Receiving binding request: " + request);
 	        String serviceDefinitionId = request.getServiceDefinitionId();
 	        String bindingId = request.getBindingId();
 	        String serviceInstanceId = request.getServiceInstanceId();
@@ -161,6 +182,18 @@ public class OCDPServiceInstanceBindingService implements ServiceInstanceBinding
         if (serviceInstancePolicyId == null || serviceInstancePolicyId.length() == 0){
             throw new OCDPServiceException("Ranger policy not found.");
         }
+        if (tenantPolicyService.isTenantPolicy(
+                instance.getOrganizationGuid(), instance.getServiceDefinitionId(), serviceInstancePolicyId)){
+            // Tenant policy is shared by all instances of tenant, unbinding one instance keeps user in tenant
+            logger.info("Keep user " + userName + " in tenant policy " + serviceInstancePolicyId);
+            return;
+        }
+        String ldapGroup = (String) instance.getServiceInstanceCredentials().get("ldapGroup");
+        if (ldapGroup != null) {
+            // Policy grants LDAP group of instance, only membership of user changes; policy is deleted with instance
+            groupAuthzService.removeMember(ldapGroup, userName);
+            return;
+        }
         try {
             List<String> users = rc.getUsersFromV2Policy(serviceInstancePolicyId.split(":")[0]);
             if (users.size() == 1 && users.contains(userName)) {
@@ -3,11 +3,14 @@ package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config.ClusterConfig;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.etcdClient;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.exception.OCDPServiceException;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.exception.OperationTimeoutException;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.*;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.repository.OCDPServiceInstanceRepository;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.common.OCDPServiceInstanceCommonService;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.common.RequestDedupService;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.BrokerUtil;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OCDPAdminServiceMapper;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OperationDeadline;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -21,9 +24,10 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.ldap.core.LdapTemplate;
 import org.springframework.stereotype.Service;
 
-import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
 /**
@@ -40,6 +44,9 @@ public class OCDPServiceInstanceService implements ServiceInstanceService {
     @Autowired
     private OCDPServiceInstanceRepository repository;
 
+    @Autowired
+    private RequestDedupService dedupService;
+
     private ClusterConfig clusterConfig;
 
     // Operation response cache
@@ -49,6 +56,9 @@ public class OCDPServiceInstanceService implements ServiceInstanceService {
 
     private Map<String, Future<UpdateServiceInstanceResponse>> instanceUpdateStateMap;
 
+    // Step-level progress of running operations, published as last operation description
+    private Map<String, OperationProgress> instanceProgressMap;
+
     private LdapTemplate ldap;
 
     private etcdClient etcdClient;
@@ -58,19 +68,34 @@ public class OCDPServiceInstanceService implements ServiceInstanceService {
         this.clusterConfig = clusterConfig;
         this.ldap = clusterConfig.getLdapTemplate();
         this.etcdClient = clusterConfig.getEtcdClient();
-        this.instanceProvisionStateMap = new HashMap<>();
-        this.instanceDeleteStateMap = new HashMap<>();
-        this.instanceUpdateStateMap = new HashMap<>();
+        this.instanceProvisionStateMap = new ConcurrentHashMap<>();
+        this.instanceDeleteStateMap = new ConcurrentHashMap<>();
+        this.instanceUpdateStateMap = new ConcurrentHashMap<>();
+        this.instanceProgressMap = new ConcurrentHashMap<>();
     }
 
     @Override
     public CreateServiceInstanceResponse createServiceInstance(
             CreateServiceInstanceRequest request) throws OCDPServiceException {
-        	logger.info("Receiving create request: " + request);
+        logger.info("Receiving create request: " + request);
+        // Duplicate create request (e.g. retried by cloud controller) attaches to previous one
+        String fingerprint = RequestDedupService.fingerprint(request.getServiceInstanceId(),
+                OperationType.PROVISION.getValue(), request.getPlanId(), request.getParameters());
+        return dedupService.execute(fingerprint, () -> provisionServiceInstance(request, fingerprint));
+    }
+
+    private CreateServiceInstanceResponse provisionServiceInstance(
+            CreateServiceInstanceRequest request, String fingerprint) throws OCDPServiceException {
             String serviceDefinitionId = request.getServiceDefinitionId();
             String serviceInstanceId = request.getServiceInstanceId();
             String planId = request.getPlanId();
 
+            // Service instance not saved to etcd until provision completed, so check in-flight provision first
+            Future<CreateServiceInstanceResponse> inFlight = this.instanceProvisionStateMap.get(serviceInstanceId);
+            if (inFlight != null && !inFlight.isDone()) {
+                logger.warn("Service instance with the given ID is provisioning: " + serviceInstanceId + ".");
+                throw new ServiceInstanceExistsException(serviceInstanceId, serviceDefinitionId);
+            }
             ServiceInstance instance = repository.findOne(serviceInstanceId);
             // Check service instance and planid
             if (instance != null) {
@@ -83,14 +108,18 @@ public class OCDPServiceInstanceService implements ServiceInstanceService {
             logger.info("Start to create OCDPServiceInstance: " + serviceInstanceId + "...");
             CreateServiceInstanceResponse response;
             OCDPServiceInstanceCommonService service = getOCDPServiceInstanceCommonService();
+            OperationProgress progress = newOperationProgress(OperationType.PROVISION);
             if(request.isAsyncAccepted()){
-                Future<CreateServiceInstanceResponse> responseFuture = service.doCreateServiceInstanceAsync(request);
+                this.instanceProgressMap.put(serviceInstanceId, progress);
+                Future<CreateServiceInstanceResponse> responseFuture = service.doCreateServiceInstanceAsync(
+                        request, progress);
                 this.instanceProvisionStateMap.put(request.getServiceInstanceId(), responseFuture);
+                dedupService.attachOperation(fingerprint, responseFuture);
                 //CITIC case: return service credential info in provision response body
                 Map<String, Object> credential = service.getOCDPServiceCredential(serviceDefinitionId, serviceInstanceId);
                 response = new OCDPCreateServiceInstanceResponse().withCredential(credential).withAsync(true);
             } else {
-                response = service.doCreateServiceInstance(request);
+                response = service.doCreateServiceInstance(request, progress);
             }
             return response;
 		} catch (Exception e) {
@@ -112,27 +141,28 @@ public class OCDPServiceInstanceService implements ServiceInstanceService {
                 throw new OCDPServiceException("Service instance " + serviceInstanceId + " not exist.");
             }
             // Get Last operation response object from cache
-            boolean is_operation_done = false;
-            if( operationType == OperationType.PROVISION){
-                Future<CreateServiceInstanceResponse> responseFuture = this.instanceProvisionStateMap.get(serviceInstanceId);
-                is_operation_done = responseFuture.isDone();
-            } else if( operationType == OperationType.DELETE){
-                Future<DeleteServiceInstanceResponse> responseFuture = this.instanceDeleteStateMap.get(serviceInstanceId);
-                is_operation_done = responseFuture.isDone();
-            } else if ( operationType == OperationType.UPDATE){
-                Future<UpdateServiceInstanceResponse> responseFuture = this.instanceUpdateStateMap.get(serviceInstanceId);
-                is_operation_done = responseFuture.isDone();
+            Future<?> responseFuture = getOperationFuture(serviceInstanceId, operationType);
+            OperationProgress progress = this.instanceProgressMap.get(serviceInstanceId);
+            // Abandon operation which runs out of its time budget
+            if (!responseFuture.isDone() && progress != null && progress.getDeadline().isExpired()){
+                logger.warn("Operation " + operationType.getValue() + " of service instance " + serviceInstanceId +
+                        " exceeded deadline, cancelling it.");
+                progress.fail(new OperationTimeoutException("Operation deadline of " +
+                        clusterConfig.getOperationTimeoutSeconds() + "s exceeded."));
+                responseFuture.cancel(true);
             }
             // Return operation type
-            if(is_operation_done){
+            if(responseFuture.isDone()){
                 removeOperationState(serviceInstanceId, operationType);
-                if (checkOperationResult(serviceInstanceId, operationType)){
-                    return new GetLastServiceOperationResponse().withOperationState(OperationState.SUCCEEDED);
-                } else {
-                    return new GetLastServiceOperationResponse().withOperationState(OperationState.FAILED);
-                }
+                boolean succeeded = checkOperationResult(serviceInstanceId, operationType, responseFuture);
+                String description = getOperationDescription(progress, responseFuture);
+                logger.info("Last operation of service instance [{}]: {}", serviceInstanceId, description);
+                return new GetLastServiceOperationResponse()
+                        .withOperationState(succeeded ? OperationState.SUCCEEDED : OperationState.FAILED)
+                        .withDescription(description);
             }else{
-                return new GetLastServiceOperationResponse().withOperationState(OperationState.IN_PROGRESS);
+                return new GetLastServiceOperationResponse().withOperationState(OperationState.IN_PROGRESS)
+                        .withDescription(getOperationDescription(progress, responseFuture));
             }
 		} catch (Exception e) {
 			logger.error("getLastOperation error: ", e);
@@ -156,13 +186,15 @@ public class OCDPServiceInstanceService implements ServiceInstanceService {
             logger.info("Start to delete OCDPServiceInstance: " + serviceInstanceId + "...");
             DeleteServiceInstanceResponse response;
             OCDPServiceInstanceCommonService service = getOCDPServiceInstanceCommonService();
+            OperationProgress progress = newOperationProgress(OperationType.DELETE);
             if(request.isAsyncAccepted()){
+                this.instanceProgressMap.put(serviceInstanceId, progress);
                 Future<DeleteServiceInstanceResponse> responseFuture = service.doDeleteServiceInstanceAsync(
-                        request, instance);
+                        request, instance, progress);
                 this.instanceDeleteStateMap.put(request.getServiceInstanceId(), responseFuture);
                 response = new DeleteServiceInstanceResponse().withAsync(true);
             } else {
-                response = service.doDeleteServiceInstance(request, instance);
+                response = service.doDeleteServiceInstance(request, instance, progress);
             }
             return response;
 		} catch (Exception e) {
@@ -175,6 +207,14 @@ public class OCDPServiceInstanceService implements ServiceInstanceService {
     @Override
     public UpdateServiceInstanceResponse updateServiceInstance(UpdateServiceInstanceRequest request)
             throws OCDPServiceException {
+        // Duplicate update request (e.g. retried by cloud controller) attaches to previous one
+        String fingerprint = RequestDedupService.fingerprint(request.getServiceInstanceId(),
+                OperationType.UPDATE.getValue(), request.getPlanId(), request.getParameters());
+        return dedupService.execute(fingerprint, () -> modifyServiceInstance(request, fingerprint));
+    }
+
+    private UpdateServiceInstanceResponse modifyServiceInstance(UpdateServiceInstanceRequest request,
+                                                                String fingerprint) throws OCDPServiceException {
     	try {
             String serviceInstanceId = request.getServiceInstanceId();
             Map<String, Object> params = request.getParameters();
@@ -200,13 +240,16 @@ public class OCDPServiceInstanceService implements ServiceInstanceService {
             }
             UpdateServiceInstanceResponse response;
             OCDPServiceInstanceCommonService service = getOCDPServiceInstanceCommonService();
+            OperationProgress progress = newOperationProgress(OperationType.UPDATE);
             if (request.isAsyncAccepted()){
+                this.instanceProgressMap.put(serviceInstanceId, progress);
                 Future<UpdateServiceInstanceResponse> responseFuture = service.doUpdateServiceInstanceAsync(
-                        request, instance, password);
+                        request, instance, password, progress);
                 this.instanceUpdateStateMap.put(request.getServiceInstanceId(), responseFuture);
+                dedupService.attachOperation(fingerprint, responseFuture);
                 response = new OCDPUpdateServiceInstanceResponse().withAsync(true);
             }else {
-                response = service.doUpdateServiceInstance(request, instance, password);
+                response = service.doUpdateServiceInstance(request, instance, password, progress);
             }
             return response;
 		} catch (Exception e) {
@@ -232,7 +275,42 @@ public class OCDPServiceInstanceService implements ServiceInstanceService {
         }
     }
 
-    private boolean checkOperationResult(String serviceInstanceId, OperationType operationType){
+    private OperationProgress newOperationProgress(OperationType operationType){
+        OperationDeadline deadline = new OperationDeadline(clusterConfig.getOperationTimeoutSeconds() * 1000L);
+        return new OperationProgress(operationType, deadline);
+    }
+
+    private Future<?> getOperationFuture(String serviceInstanceId, OperationType operationType){
+        if (operationType == OperationType.PROVISION){
+            return this.instanceProvisionStateMap.get(serviceInstanceId);
+        } else if (operationType == OperationType.DELETE){
+            return this.instanceDeleteStateMap.get(serviceInstanceId);
+        } else {
+            return this.instanceUpdateStateMap.get(serviceInstanceId);
+        }
+    }
+
+    private String getOperationDescription(OperationProgress progress, Future<?> responseFuture){
+        if (progress != null){
+            return progress.getDescription();
+        }
+        return responseFuture.isDone() ? null : "in progress";
+    }
+
+    private boolean checkOperationResult(String serviceInstanceId, OperationType operationType,
+                                         Future<?> responseFuture){
+        // Any exception thrown by async operation means operation failed
+        try {
+            responseFuture.get();
+        } catch (ExecutionException e) {
+            logger.error("Operation " + operationType.getValue() + " of service instance " + serviceInstanceId +
+                    " failed due to: " + e.getCause().getMessage());
+            return false;
+        } catch (Exception e) {
+            logger.error("Operation " + operationType.getValue() + " of service instance " + serviceInstanceId +
+                    " interrupted: " + e.getMessage());
+            return false;
+        }
         if (operationType == OperationType.PROVISION){
             // For instance provision case, return true if instance information existed in etcd
             return (repository.findOne(serviceInstanceId) != null);
@@ -240,8 +318,7 @@ public class OCDPServiceInstanceService implements ServiceInstanceService {
             // For instance delete case, return true if instance information not existed in etcd
             return (repository.findOne(serviceInstanceId) == null);
         } else if (operationType == OperationType.UPDATE) {
-            // Temp solution: For instance update case, just return true if update operation is done
-            // Need a better solution in future to determine update operation is fail or success
+            // For instance update case, return true if update operation completed without error
             return true;
         } else {
             return false;
@@ -249,6 +326,7 @@ public class OCDPServiceInstanceService implements ServiceInstanceService {
     }
 
     private void removeOperationState(String serviceInstanceId, OperationType operationType){
+        this.instanceProgressMap.remove(serviceInstanceId);
         if (operationType == OperationType.PROVISION){
             this.instanceProvisionStateMap.remove(serviceInstanceId);
         } else if ( operationType == OperationType.DELETE){
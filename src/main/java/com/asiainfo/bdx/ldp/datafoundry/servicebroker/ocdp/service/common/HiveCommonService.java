@@ -4,10 +4,9 @@ import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.rangerClient;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config.ClusterConfig;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.RangerV2Policy;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.BrokerUtil;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.CircuitBreaker;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OCDPConstants;
 import com.google.common.collect.Lists;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import org.apache.hadoop.conf.Configuration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,12 +14,16 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.lang.reflect.UndeclaredThrowableException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Created by baikai on 8/8/16.
@@ -30,8 +33,6 @@ public class HiveCommonService {
 
     private Logger logger = LoggerFactory.getLogger(HiveCommonService.class);
 
-    static final Gson gson = new GsonBuilder().create();
-
     private static String driverName = "org.apache.hive.jdbc.HiveDriver";
 
     private static final List<String> ACCESSES = Lists.newArrayList("select", "update", "create",
@@ -46,10 +47,10 @@ public class HiveCommonService {
 
     private Configuration conf;
 
-    private Connection conn;
-
     private String hiveJDBCUrl;
 
+    private CircuitBreaker breaker = CircuitBreaker.forBackend("hive");
+
     @Autowired
     public HiveCommonService(ClusterConfig clusterConfig){
         this.clusterConfig = clusterConfig;
@@ -68,12 +69,7 @@ public class HiveCommonService {
     public String createDatabase(String serviceInstanceId) throws Exception{
         String databaseName = serviceInstanceId.replaceAll("-", "");
         try{
-            BrokerUtil.authentication(
-                    this.conf, this.clusterConfig.getHiveSuperUser(), this.clusterConfig.getHiveSuperUserKeytab());
-            Class.forName(driverName);
-            this.conn = DriverManager.getConnection(this.hiveJDBCUrl);
-            Statement stmt = conn.createStatement();
-            stmt.execute("create database " + databaseName);
+            executeStatement("create database " + databaseName);
         }catch (ClassNotFoundException e){
             logger.error("Hive JDBC driver not found in classpath.");
             e.printStackTrace();
@@ -83,17 +79,43 @@ public class HiveCommonService {
             logger.error("Hive database create fail due to: " + e.getLocalizedMessage());
             e.printStackTrace();
             throw e;
-        }finally {
-            conn.close();
-            logger.info("Hive Database " + databaseName + " has been created.");
         }
+        logger.info("Hive Database " + databaseName + " has been created.");
         return databaseName;
     }
 
     public String assignPermissionToDatabase(String policyName, final String dbName, List<String> userList, String groupName,
                                              List<String> permissions){
+        return assignPermissionToDatabaseAsync(policyName, dbName, userList, groupName, permissions, null).join();
+    }
+
+    /**
+     * Create hive policy without blocking, so that it can be created together with policies of other services
+     * @param createdIds id of policy is added to it if created by this call, see rangerClient.createV2PolicyAsync
+     * @return future of policy id, completes with null if create fails
+     */
+    public CompletableFuture<String> assignPermissionToDatabaseAsync(String policyName, final String dbName,
+                                                                     List<String> userList, String groupName,
+                                                                     List<String> permissions, Set<String> createdIds){
         logger.info("Assigning select/update/create/drop/alter/index/lock/all permission to hive database.");
-        String policyId = null;
+        RangerV2Policy rp = buildDatabasePolicy(policyName, dbName, userList, groupName, permissions);
+        return rc.createV2PolicyAsync(rp.getServiceName(), rp, createdIds).thenApply(newPolicy -> {
+            if (newPolicy != null){
+                String policyId = newPolicy.getPolicyId();
+                logger.info("Assign permissions [{}] of user [{}] to hive database [{}] successful with policyid [{}].",
+                        permissions, userList.toString(), dbName, policyId);
+                return policyId;
+            }
+            logger.error("Assign permissions of user [{}] to hive database [{}] failed!", userList.toString(), dbName);
+            return null;
+        });
+    }
+
+    /**
+     * Build hive policy of database, policy is not created
+     */
+    public RangerV2Policy buildDatabasePolicy(String policyName, String dbName, List<String> userList,
+                                              String groupName, List<String> permissions){
         String serviceName = clusterConfig.getClusterName()+"_hive";
         ArrayList<String> dbList = Lists.newArrayList(dbName);
         ArrayList<String> tbList = Lists.newArrayList("*");
@@ -113,16 +135,7 @@ public class HiveCommonService {
         } else {
             rp.addPolicyItems(userList,groupList,conditions,false,permissions);
         }
-        String newPolicyString = rc.createV2Policy(serviceName, rp);
-        if (newPolicyString != null){
-            RangerV2Policy newPolicyObj = gson.fromJson(newPolicyString, RangerV2Policy.class);
-            policyId = newPolicyObj.getPolicyId();
-            logger.info("Assign permissions [{}] of user [{}] to hive database [{}] successful with policyid [{}].",
-                    permissions, userList.toString(), dbName, policyId);
-            return policyId;
-        }
-        logger.error("Assign permissions of user [{}] to hive database [{}] failed!", userList.toString(), dbName);
-        return policyId;
+        return rp;
     }
 
     public boolean appendResourceToDatabasePermission(String policyId, String databaseName){
@@ -136,12 +149,7 @@ public class HiveCommonService {
 
     public void deleteDatabase(String dbName) throws Exception{
         try{
-            BrokerUtil.authentication(
-                    this.conf, this.clusterConfig.getHiveSuperUser(), this.clusterConfig.getHiveSuperUserKeytab());
-            Class.forName(driverName);
-            this.conn = DriverManager.getConnection(this.hiveJDBCUrl);
-            Statement stmt = conn.createStatement();
-            stmt.execute("drop database if exists " + dbName + " cascade");
+            executeStatement("drop database if exists " + dbName + " cascade");
         }catch (ClassNotFoundException e){
             logger.error("Hive JDBC driver not found in classpath.");
             e.printStackTrace();
@@ -150,8 +158,6 @@ public class HiveCommonService {
             logger.error("Hive database drop fail due to: " + e.getLocalizedMessage());
             e.printStackTrace();
             throw e;
-        }finally {
-            conn.close();
         }
     }
 
@@ -159,6 +165,10 @@ public class HiveCommonService {
         return rc.removeV2Policy(policyId);
     }
 
+    public CompletableFuture<Boolean> unassignPermissionFromDatabaseAsync(String policyId){
+        return rc.removeV2PolicyAsync(policyId);
+    }
+
     public boolean removeResourceFromDatabasePermission(String policyId, String databaseName){
         return rc.removeResourceFromV2Policy(policyId, databaseName, OCDPConstants.HIVE_RANGER_RESOURCE_TYPE);
     }
@@ -171,4 +181,38 @@ public class HiveCommonService {
         return rc.getResourcsFromV2Policy(policyId, OCDPConstants.HIVE_RANGER_RESOURCE_TYPE);
     }
 
+    /**
+     * Execute one statement as hive super user.
+     * Each call opens its own JDBC connection, so that concurrent calls not close connection of each other.
+     */
+    private void executeStatement(String sql) throws IOException, ClassNotFoundException, SQLException{
+        Class.forName(driverName);
+        long ticket = breaker.acquire();
+        long start = System.currentTimeMillis();
+        // Settled in finally, any exception not classified below counts as failure
+        boolean failed = true;
+        try{
+            BrokerUtil.doAs(this.conf, this.clusterConfig.getHiveSuperUser(), this.clusterConfig.getHiveSuperUserKeytab(),
+                    () -> {
+                        try (Connection conn = DriverManager.getConnection(this.hiveJDBCUrl);
+                             Statement stmt = conn.createStatement()){
+                            stmt.execute(sql);
+                        }
+                        return null;
+                    });
+            failed = false;
+        }catch (UndeclaredThrowableException e){
+            // doAs wraps checked exceptions other than IOException
+            if (e.getCause() instanceof SQLException){
+                SQLException sqlException = (SQLException) e.getCause();
+                // SQL state class 08 is connection exception, others are errors returned by HiveServer2
+                failed = sqlException.getSQLState() != null && sqlException.getSQLState().startsWith("08");
+                throw sqlException;
+            }
+            throw e;
+        }finally {
+            breaker.complete(ticket, failed, System.currentTimeMillis() - start);
+        }
+    }
+
 }
@@ -0,0 +1,185 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.etcdClient;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.rangerClient;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config.ClusterConfig;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.exception.OCDPServiceException;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.RangerV2Policy;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.OCDPAdminService;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.BrokerUtil;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OCDPAdminServiceMapper;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OperationDeadline;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Striped;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.ldap.NameNotFoundException;
+import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.stereotype.Service;
+
+/**
+ * Authorization of service instances by LDAP groups (enabled by RANGER_AUTHZ_MODE=group).
+ * Ranger policies of an instance grant permissions to one LDAP group of the instance (or of the tenant service in
+ * tenant policy mode) instead of listing users, so adding or removing a user is one LDAP modify of group membership,
+ * without rewriting Ranger policies or waiting for Ranger usersync to pick up the user.
+ * Hadoop services resolve groups of users from LDAP, so membership changes take effect once their group cache expires.
+ *
+ * Groups are posix groups under ou=Group named 'ocdp_<instance id>' or 'ocdp_<organization guid>_<service>',
+ * group of an instance is recorded as 'ldapGroup' in instance credentials.
+ * HDFS policies of hive/mr/spark instances grant /user/{USER} instead of /user/<name> dir of each user.
+ */
+@Service
+public class LdapGroupAuthzService {
+
+    // Placeholder user of policies built for a group, Ranger expands it to the user accessing a resource
+    static final String USER_MACRO = "{USER}";
+
+    private static final String GROUP_PREFIX = "ocdp_";
+
+    private Logger logger = LoggerFactory.getLogger(LdapGroupAuthzService.class);
+
+    // Serialize membership changes of same group, LDAP rejects adding a member twice
+    private final Striped<Lock> groupLocks = Striped.lock(64);
+
+    private ClusterConfig clusterConfig;
+
+    private LdapTemplate ldap;
+
+    private etcdClient etcdClient;
+
+    private rangerClient rc;
+
+    @Autowired
+    public LdapGroupAuthzService(ClusterConfig clusterConfig) {
+        this.clusterConfig = clusterConfig;
+        this.ldap = clusterConfig.getLdapTemplate();
+        this.etcdClient = clusterConfig.getEtcdClient();
+        this.rc = clusterConfig.getRangerClient();
+    }
+
+    /**
+     * @return true if policies of new instances should grant permissions to LDAP groups
+     */
+    public boolean isEnabled() {
+        return clusterConfig.isRangerGroupAuthzMode();
+    }
+
+    public static String instanceGroup(String serviceInstanceId) {
+        return GROUP_PREFIX + serviceInstanceId;
+    }
+
+    public static String tenantGroup(String organizationGuid, String serviceDefinitionId) {
+        return GROUP_PREFIX + organizationGuid + "_" + OCDPAdminServiceMapper.getOCDPServiceName(serviceDefinitionId);
+    }
+
+    /**
+     * Add users to group, group is created if not exists; users already in group are skipped
+     */
+    public void addMembers(String group, List<String> users) {
+        Lock lock = groupLocks.get(group);
+        lock.lock();
+        try {
+            List<String> members = BrokerUtil.getLDAPGroupMembers(ldap, group);
+            if (members == null) {
+                logger.info("create new ldap group: " + group);
+                BrokerUtil.createLDAPGroup(ldap, etcdClient, group);
+                members = new ArrayList<>();
+            }
+            List<String> newMembers = new ArrayList<>();
+            for (String user : users) {
+                if (!members.contains(user) && !newMembers.contains(user)) {
+                    newMembers.add(user);
+                }
+            }
+            if (!newMembers.isEmpty()) {
+                BrokerUtil.modifyLDAPGroupMembers(ldap, group, newMembers, true);
+                logger.info("Users [{}] added to ldap group [{}].", newMembers, group);
+            }
+        } catch (Exception e) {
+            logger.error("Add users to ldap group fail due to: " + e.getLocalizedMessage());
+            throw new OCDPServiceException("Add users to ldap group fail due to: " + e.getLocalizedMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove user from group, no-op if user or group not exists
+     */
+    public void removeMember(String group, String user) {
+        Lock lock = groupLocks.get(group);
+        lock.lock();
+        try {
+            List<String> members = BrokerUtil.getLDAPGroupMembers(ldap, group);
+            if (members == null || !members.contains(user)) {
+                logger.info("User [{}] not in ldap group [{}], skip removing.", user, group);
+                return;
+            }
+            BrokerUtil.modifyLDAPGroupMembers(ldap, group, Lists.newArrayList(user), false);
+            logger.info("User [{}] removed from ldap group [{}].", user, group);
+        } catch (Exception e) {
+            logger.error("Remove user from ldap group fail due to: " + e.getLocalizedMessage());
+            throw new OCDPServiceException("Remove user from ldap group fail due to: " + e.getLocalizedMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Delete group once no policy grants permissions to it, failures are only logged
+     */
+    public void deleteGroup(String group) {
+        try {
+            BrokerUtil.removeLDAPGroup(ldap, group);
+            logger.info("Ldap group [{}] deleted.", group);
+        } catch (NameNotFoundException e) {
+            logger.info("Ldap group [{}] not exists, skip deleting.", group);
+        } catch (Exception e) {
+            logger.error("Delete ldap group [{}] fail due to: " + e.getLocalizedMessage(), group);
+        }
+    }
+
+    /**
+     * Create policies granting group permissions to resource of instance, group must be known by Ranger already.
+     * Policies are built like policies of users, with a placeholder user replaced by the group.
+     * @return policy id (composite id for hive/mr/spark), null if create fails
+     */
+    public String createPolicyForGroup(OCDPAdminService ocdp, String policyName, String resource, String group,
+                                       List<String> accesses) {
+        List<RangerV2Policy> policies = ocdp.buildPoliciesForResources(policyName, Lists.newArrayList(resource),
+                Lists.newArrayList(USER_MACRO), group, accesses);
+        for (RangerV2Policy policy : policies) {
+            policy.replaceUserWithGroup(USER_MACRO, group);
+        }
+        Set<String> createdIds = ConcurrentHashMap.newKeySet();
+        List<RangerV2Policy> created = rc.createV2Policies(policies, createdIds);
+        List<String> policyIds = new ArrayList<>();
+        for (RangerV2Policy policy : created) {
+            if (policy != null) {
+                policyIds.add(policy.getPolicyId());
+            }
+        }
+        if (policyIds.size() == created.size()) {
+            logger.info("Policy [{}] of ldap group [{}] created with policy id [{}].", policyName, group, policyIds);
+            return Joiner.on(":").join(policyIds);
+        }
+        // Remove policies created here, so that a retry starts from scratch instead of leaving orphan policies;
+        // policies with same name which existed before are kept
+        OperationDeadline.withGrace(() -> {
+            for (String policyId : createdIds) {
+                logger.info("Rollback policy [{}] created for ldap group [{}].", policyId, group);
+                rc.removeV2PolicyIfExists(policyId);
+            }
+            return null;
+        });
+        return null;
+    }
+}
@@ -0,0 +1,761 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.common;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.rangerClient;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config.ClusterConfig;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.exception.OCDPServiceException;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.BulkCreateServiceInstanceRequest;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.BulkCreateServiceInstanceRequest.InstanceSpec;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.BulkOperationResult;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.OperationProgress;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.OperationType;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.RangerV2Policy;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.ServiceInstance;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.repository.OCDPServiceInstanceRepository;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.OCDPAdminService;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.impl.HDFSAdminService;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.impl.HiveAdminService;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.BrokerUtil;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OCDPAdminServiceMapper;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OCDPConstants;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OperationDeadline;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.cloud.servicebroker.model.OperationState;
+import org.springframework.context.ApplicationContext;
+import org.springframework.http.MediaType;
+import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+/**
+ * Bulk operations on service instances, e.g. onboarding or removing a tenant with all its instances at once.
+ * Work is planned for the whole batch instead of one broker call per instance:
+ * yarn queues of all instances are created/revoked with one capacity-scheduler update,
+ * LDAP users are checked once per batch,
+ * ranger policies of all instances are created in one batch by Ranger policy import API when available,
+ * resources of instances are created/deleted in parallel, bounded by env BULK_CONCURRENCY.
+ * Result of each instance is streamed back as soon as the instance is done, one JSON object per line.
+ */
+@Service
+public class OCDPServiceInstanceBulkService {
+
+    private Logger logger = LoggerFactory.getLogger(OCDPServiceInstanceBulkService.class);
+
+    @Autowired
+    private ApplicationContext context;
+
+    @Autowired
+    private OCDPServiceInstanceRepository repository;
+
+    @Autowired
+    private OCDPServiceInstanceCommonService commonService;
+
+    @Autowired
+    private YarnCommonService yarnCommonService;
+
+    @Autowired
+    private RangerTenantPolicyService tenantPolicyService;
+
+    @Autowired
+    private RangerUserSyncService userSyncService;
+
+    @Autowired
+    private LdapGroupAuthzService groupAuthzService;
+
+    @Autowired
+    private HDFSAdminService hdfsAdminService;
+
+    @Autowired
+    private ExecutorService backendExecutor;
+
+    @Autowired
+    @Qualifier("operationExecutor")
+    private Executor operationExecutor;
+
+    private ClusterConfig clusterConfig;
+
+    private LdapTemplate ldap;
+
+    private rangerClient rc;
+
+    @Autowired
+    public OCDPServiceInstanceBulkService(ClusterConfig clusterConfig) {
+        this.clusterConfig = clusterConfig;
+        this.ldap = clusterConfig.getLdapTemplate();
+        this.rc = clusterConfig.getRangerClient();
+    }
+
+    /**
+     * Bulk create returns once resources are created, remaining steps wait for Ranger usersync without holding a thread
+     */
+    @Async
+    public void createServiceInstances(BulkCreateServiceInstanceRequest request, ResponseBodyEmitter emitter) {
+        OperationDeadline.attach(new OperationDeadline(clusterConfig.getOperationTimeoutSeconds() * 1000L));
+        try {
+            doCreateServiceInstances(request, emitter).whenComplete((v, e) -> {
+                if (e == null) {
+                    emitter.complete();
+                } else {
+                    logger.error("Bulk create service instances error: ", OCDPServiceInstanceCommonService.causeOf(e));
+                    emitter.completeWithError(OCDPServiceInstanceCommonService.causeOf(e));
+                }
+            });
+        } catch (Exception e) {
+            logger.error("Bulk create service instances error: ", e);
+            emitter.completeWithError(e);
+        } finally {
+            OperationDeadline.detach();
+        }
+    }
+
+    private CompletableFuture<Void> doCreateServiceInstances(BulkCreateServiceInstanceRequest request,
+                                                             ResponseBodyEmitter emitter) throws Exception {
+        OperationDeadline deadline = OperationDeadline.current();
+        logger.info("Start to create " + request.getInstances().size() + " service instances in bulk...");
+        // 1) Validate instance specs, LDAP users are checked only once for whole batch
+        Map<String, InstanceSpec> specs = new LinkedHashMap<>();
+        Map<String, Boolean> ldapUsers = new HashMap<>();
+        for (InstanceSpec spec : request.getInstances()) {
+            String error = validate(spec, specs, ldapUsers);
+            if (error != null) {
+                logger.warn("Skip service instance " + spec.getServiceInstanceId() + ": " + error);
+                emit(emitter, failed(spec, error));
+            } else {
+                specs.put(spec.getServiceInstanceId(), spec);
+            }
+        }
+
+        // 2) Create yarn queues for all hive/mr/spark instances with one capacity-scheduler update
+        Map<String, String> queues = new HashMap<>();
+        List<InstanceSpec> queueSpecs = new ArrayList<>();
+        List<String> quotas = new ArrayList<>();
+        for (InstanceSpec spec : specs.values()) {
+            if (needsQueue(spec.getServiceDefinitionId())) {
+                queueSpecs.add(spec);
+                quotas.add(yarnCommonService.getQuotaFromPlan(spec.getServiceDefinitionId(), spec.getPlanId(),
+                        spec.getParameters()).get(OCDPConstants.YARN_QUEUE_QUOTA));
+            }
+        }
+        if (!queueSpecs.isEmpty()) {
+            try {
+                List<String> queuePaths = yarnCommonService.createQueues(quotas);
+                for (int i = 0; i < queueSpecs.size(); i++) {
+                    queues.put(queueSpecs.get(i).getServiceInstanceId(), queuePaths.get(i));
+                }
+            } catch (Exception e) {
+                logger.error("Create yarn queues in bulk fail due to: " + e.getMessage());
+                for (InstanceSpec spec : queueSpecs) {
+                    specs.remove(spec.getServiceInstanceId());
+                    emit(emitter, failed(spec, "Create yarn queue fail due to: " + e.getMessage()));
+                }
+            }
+        }
+
+        // 3) Create resources and credentials in parallel
+        List<Callable<PendingCreate>> tasks = new ArrayList<>();
+        for (InstanceSpec spec : specs.values()) {
+            String queue = queues.get(spec.getServiceInstanceId());
+            tasks.add(() -> provision(request, spec, queue));
+        }
+        List<String> unusedQueues = new ArrayList<>();
+        List<String> succeeded = new ArrayList<>();
+        // Results of step 5 are handled in operation executor threads
+        Consumer<BulkOperationResult> resultHandler = result -> {
+            synchronized (emitter) {
+                emit(emitter, result);
+                if (result.isSucceeded()) {
+                    succeeded.add(result.getServiceInstanceId());
+                } else if (queues.containsKey(result.getServiceInstanceId())) {
+                    unusedQueues.add(queues.get(result.getServiceInstanceId()));
+                }
+            }
+        };
+        List<PendingCreate> provisioned = new ArrayList<>();
+        runBounded(tasks, pending -> {
+            if (pending.progress.isFailed()) {
+                resultHandler.accept(pending.toResult());
+            } else {
+                provisioned.add(pending);
+            }
+        });
+
+        // 4) Create ranger policies of all instances in one batch
+        // 5) Create policies not created in batch one by one, save instances in parallel
+        return createPolicies(provisioned)
+                .thenComposeAsync(v -> deadline.run(() -> completeAll(provisioned, resultHandler)), operationExecutor)
+                .thenRunAsync(() -> deadline.run(() -> {
+                    // 6) Revoke queues of failed instances with one capacity-scheduler update
+                    synchronized (emitter) {
+                        if (!unusedQueues.isEmpty()) {
+                            logger.info("Revoke yarn queues of failed service instances: " + unusedQueues);
+                            try {
+                                yarnCommonService.deleteQueues(unusedQueues);
+                            } catch (RuntimeException e) {
+                                // Results are already sent, queues without instance are left to admin
+                                logger.error("Unused yarn queues " + unusedQueues + " not revoked: " + e.getMessage());
+                            }
+                        }
+                        logger.info("Bulk create service instances completed, " + succeeded.size() + " of " +
+                                request.getInstances().size() + " succeeded.");
+                    }
+                    return null;
+                }), operationExecutor);
+    }
+
+    /**
+     * Start completing instances, at most bulk concurrency instances prepare their policies at the same time
+     * @return future completes when all instances are completed and their results handled
+     */
+    private CompletableFuture<Void> completeAll(List<PendingCreate> provisioned,
+                                                Consumer<BulkOperationResult> resultHandler) {
+        List<Callable<CompletableFuture<Void>>> completions = new ArrayList<>();
+        for (PendingCreate pending : provisioned) {
+            completions.add(() -> complete(pending).thenAccept(resultHandler));
+        }
+        List<CompletableFuture<Void>> completed = new ArrayList<>();
+        try {
+            runBounded(completions, completed::add);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OCDPServiceException("Bulk create service instances interrupted.");
+        } catch (ExecutionException e) {
+            throw new OCDPServiceException("Bulk create service instances fail due to: " + e.getCause().getMessage());
+        }
+        return CompletableFuture.allOf(completed.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private PendingCreate provision(BulkCreateServiceInstanceRequest request, InstanceSpec spec, String queue) {
+        String serviceDefinitionId = spec.getServiceDefinitionId();
+        PendingCreate pending = new PendingCreate(spec,
+                spec.getOrganizationGuid() != null ? spec.getOrganizationGuid() : request.getOrganizationGuid(),
+                spec.getSpaceGuid() != null ? spec.getSpaceGuid() : request.getSpaceGuid(),
+                new OperationProgress(OperationType.PROVISION, OperationDeadline.current()));
+        try {
+            pending.ocdp = getOCDPAdminService(serviceDefinitionId);
+            String resourceType = OCDPAdminServiceMapper.getOCDPResourceType(serviceDefinitionId);
+            // 1) Create big data resources like hdfs folder, hbase namespace ...
+            pending.progress.startStep("create " + OCDPAdminServiceMapper.getOCDPServiceName(serviceDefinitionId) +
+                    " resources");
+            pending.resource = createResource(pending.ocdp, spec, queue);
+
+            // 2) Generate service instance credential info
+            pending.progress.startStep("generate credentials");
+            pending.credentials = pending.ocdp.generateCredentialsInfo(spec.getServiceInstanceId());
+            pending.credentials.put(resourceType, pending.resource);
+            pending.users = splitParameter(spec, "user_name");
+            pending.accesses = splitParameter(spec, "accesses");
+        } catch (Exception e) {
+            failed(pending, e);
+        }
+        return pending;
+    }
+
+    /**
+     * Create ranger policies of instances by one batch instead of one create per policy,
+     * instances in tenant policy mode are left to complete, which adds them to policy of their tenant,
+     * and so are instances in group authorization mode, whose policies grant an LDAP group created per instance.
+     * If any policy of an instance is not created, policies of the instance created in batch are removed,
+     * and the instance falls back to creating its policy with retries in complete.
+     * @return future completes when batch is done, waiting for Ranger usersync holds no thread
+     */
+    private CompletableFuture<Void> createPolicies(List<PendingCreate> provisioned) {
+        List<PendingCreate> batch = new ArrayList<>();
+        Set<String> users = new LinkedHashSet<>();
+        Set<String> dirUsers = new LinkedHashSet<>();
+        for (PendingCreate pending : provisioned) {
+            if (pending.needsPolicy() && !tenantPolicyService.isEnabled(pending.organizationGuid) &&
+                    !groupAuthzService.isEnabled()) {
+                batch.add(pending);
+                users.addAll(pending.users);
+                if (needsQueue(pending.spec.getServiceDefinitionId())) {
+                    dirUsers.addAll(pending.users);
+                }
+            }
+        }
+        if (batch.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        // Ranger rejects policy for users not synced from LDAP yet, /user dirs are covered by hive/mr/spark policies
+        OperationDeadline deadline = OperationDeadline.current();
+        OperationProgress progress = new OperationProgress(OperationType.PROVISION, deadline);
+        return userSyncService.waitForUsers(new ArrayList<>(users), progress)
+                .thenApplyAsync(v -> deadline.run(() -> {
+                    if (!dirUsers.isEmpty()) {
+                        hdfsAdminService.createUserDirs(new ArrayList<>(dirUsers));
+                    }
+                    return true;
+                }), operationExecutor)
+                .exceptionally(e -> {
+                    logger.warn("Prepare batch creation of ranger policies fail, create them one by one: " +
+                            OCDPServiceInstanceCommonService.causeOf(e).getMessage());
+                    return false;
+                })
+                .thenAccept(prepared -> {
+                    if (prepared) {
+                        deadline.run(() -> {
+                            createPolicyBatch(batch);
+                            return null;
+                        });
+                    }
+                });
+    }
+
+    /**
+     * Create ranger policies of prepared batch by one import
+     */
+    private void createPolicyBatch(List<PendingCreate> batch) {
+        // Policies of instance i are policies[offsets[i], offsets[i + 1])
+        List<PendingCreate> built = new ArrayList<>();
+        List<RangerV2Policy> policies = new ArrayList<>();
+        List<Integer> offsets = new ArrayList<>();
+        for (PendingCreate pending : batch) {
+            String policyName = OCDPAdminServiceMapper.getOCDPServiceName(pending.spec.getServiceDefinitionId()) +
+                    "_" + pending.spec.getServiceInstanceId();
+            try {
+                List<RangerV2Policy> instancePolicies = pending.ocdp.buildPoliciesForResources(policyName,
+                        Lists.newArrayList(pending.resource), pending.users, clusterConfig.getLdapGroup(),
+                        pending.accesses);
+                built.add(pending);
+                offsets.add(policies.size());
+                policies.addAll(instancePolicies);
+            } catch (RuntimeException e) {
+                logger.warn("Build ranger policies of service instance " + pending.spec.getServiceInstanceId() +
+                        " fail: " + e.getMessage());
+            }
+        }
+        offsets.add(policies.size());
+        logger.info("Create " + policies.size() + " ranger policies of " + built.size() + " service instances in batch...");
+        Set<String> createdIds = ConcurrentHashMap.newKeySet();
+        List<RangerV2Policy> created = rc.createV2Policies(policies, createdIds);
+        for (int i = 0; i < built.size(); i++) {
+            List<String> policyIds = new ArrayList<>();
+            for (RangerV2Policy policy : created.subList(offsets.get(i), offsets.get(i + 1))) {
+                if (policy != null) {
+                    policyIds.add(policy.getPolicyId());
+                }
+            }
+            if (policyIds.size() == offsets.get(i + 1) - offsets.get(i)) {
+                built.get(i).policyId = String.join(":", policyIds);
+            } else {
+                OperationDeadline.withGrace(() -> {
+                    for (String policyId : policyIds) {
+                        // Policy with same name which existed before is kept
+                        if (createdIds.contains(policyId)) {
+                            rc.removeV2PolicyIfExists(policyId);
+                        }
+                    }
+                    return null;
+                });
+            }
+        }
+    }
+
+    /**
+     * Create ranger policy of instance if not created in batch, then save instance
+     * @return future of instance result, never completes exceptionally
+     */
+    private CompletableFuture<BulkOperationResult> complete(PendingCreate pending) {
+        InstanceSpec spec = pending.spec;
+        CompletableFuture<String> policy;
+        try {
+            // 3) Create ranger policy for tenant users if not created in batch
+            if (pending.needsPolicy() && pending.policyId == null) {
+                policy = commonService.createPolicyForResourcesAsync(pending.ocdp, pending.resource, pending.users,
+                        pending.accesses, spec.getServiceDefinitionId(), spec.getServiceInstanceId(),
+                        pending.organizationGuid, pending.progress);
+            } else {
+                policy = CompletableFuture.completedFuture(pending.policyId);
+            }
+        } catch (RuntimeException e) {
+            policy = new CompletableFuture<>();
+            policy.completeExceptionally(e);
+        }
+        return policy.handleAsync((policyId, e) -> pending.progress.getDeadline().run(() -> {
+            if (e != null) {
+                return failed(pending, OCDPServiceInstanceCommonService.causeOf(e));
+            }
+            pending.policyId = policyId;
+            return save(pending);
+        }), operationExecutor);
+    }
+
+    private BulkOperationResult save(PendingCreate pending) {
+        InstanceSpec spec = pending.spec;
+        String serviceDefinitionId = spec.getServiceDefinitionId();
+        String serviceInstanceId = spec.getServiceInstanceId();
+        try {
+            if (pending.needsPolicy()) {
+                pending.credentials.put("rangerPolicyId", pending.policyId);
+                String ldapGroup = commonService.ldapGroupOf(pending.organizationGuid, serviceDefinitionId,
+                        serviceInstanceId);
+                if (ldapGroup != null) {
+                    pending.credentials.put("ldapGroup", ldapGroup);
+                }
+            }
+
+            // 4) Save service instance
+            pending.progress.startStep("save service instance");
+            ServiceInstance instance = new ServiceInstance(serviceInstanceId, serviceDefinitionId, spec.getPlanId(),
+                    pending.organizationGuid, pending.spaceGuid, null);
+            instance.setCredential(pending.credentials);
+            repository.save(instance);
+            pending.progress.succeed();
+            logger.info("Create service instance " + serviceInstanceId + " successfully!");
+            return pending.toResult().withCredentials(pending.credentials);
+        } catch (Exception e) {
+            return failed(pending, e);
+        }
+    }
+
+    private BulkOperationResult failed(PendingCreate pending, Throwable e) {
+        logger.error("Create service instance " + pending.spec.getServiceInstanceId() + " fail due to: " +
+                e.getMessage());
+        pending.progress.fail(e);
+        // Instance is not saved, so no delete would ever remove what was created for it
+        OperationDeadline.withGrace(() -> {
+            release(pending);
+            return null;
+        });
+        return pending.toResult();
+    }
+
+    /**
+     * Remove ranger policy, LDAP group and resources created for an instance which failed before it was saved,
+     * yarn queue of instance is revoked later in batch with queues of other failed instances.
+     * Failures are only logged, result of instance is failed anyway.
+     */
+    private void release(PendingCreate pending) {
+        InstanceSpec spec = pending.spec;
+        String serviceDefinitionId = spec.getServiceDefinitionId();
+        String serviceInstanceId = spec.getServiceInstanceId();
+        if (pending.policyId != null) {
+            ServiceInstance instance = new ServiceInstance(serviceInstanceId, serviceDefinitionId, spec.getPlanId(),
+                    pending.organizationGuid, pending.spaceGuid, null);
+            try {
+                if (!commonService.deletePolicyOfInstance(pending.ocdp, instance, pending.policyId,
+                        pending.resource)) {
+                    logger.error("Ranger policy [{}] of failed service instance {} not deleted.", pending.policyId,
+                            serviceInstanceId);
+                }
+                // Only LDAP group of instance is deleted here, group of tenant is deleted with tenant policy
+                String ldapGroup = commonService.ldapGroupOf(pending.organizationGuid, serviceDefinitionId,
+                        serviceInstanceId);
+                if (LdapGroupAuthzService.instanceGroup(serviceInstanceId).equals(ldapGroup)) {
+                    groupAuthzService.deleteGroup(ldapGroup);
+                }
+            } catch (RuntimeException e) {
+                logger.error("Ranger policy [{}] of failed service instance {} not deleted: " + e.getMessage(),
+                        pending.policyId, serviceInstanceId);
+            }
+        }
+        if (pending.resource == null) {
+            return;
+        }
+        logger.info("Rollback resources of failed service instance {}: {}", serviceInstanceId, pending.resource);
+        try {
+            if (pending.ocdp instanceof HiveAdminService) {
+                ((HiveAdminService) pending.ocdp).deprovisionDatabase(pending.resource);
+            } else if (!needsQueue(serviceDefinitionId)) {
+                pending.ocdp.deprovisionResources(pending.resource);
+            }
+            // mr/spark instance resource is the queue itself
+        } catch (Exception e) {
+            logger.error("Resources " + pending.resource + " of failed service instance " + serviceInstanceId +
+                    " not deleted: " + e.getMessage());
+        }
+    }
+
+    @Async
+    public void deleteServiceInstances(String organizationGuid, String spaceGuid, ResponseBodyEmitter emitter) {
+        OperationDeadline.attach(new OperationDeadline(clusterConfig.getOperationTimeoutSeconds() * 1000L));
+        try {
+            doDeleteServiceInstances(organizationGuid, spaceGuid, emitter);
+            emitter.complete();
+        } catch (Exception e) {
+            logger.error("Bulk delete service instances error: ", e);
+            emitter.completeWithError(e);
+        } finally {
+            OperationDeadline.detach();
+        }
+    }
+
+    private void doDeleteServiceInstances(String organizationGuid, String spaceGuid, ResponseBodyEmitter emitter)
+            throws Exception {
+        List<ServiceInstance> instances = repository.findAll(organizationGuid, spaceGuid);
+        logger.info("Start to delete " + instances.size() + " service instances of organization: " +
+                organizationGuid + ", space: " + spaceGuid + " in bulk...");
+        // 1) Delete ranger policies and resources in parallel, yarn queues are kept for step 2
+        List<Callable<PendingDelete>> tasks = new ArrayList<>();
+        for (ServiceInstance instance : instances) {
+            tasks.add(() -> deprovision(instance));
+        }
+        List<PendingDelete> queueDeletes = new ArrayList<>();
+        runBounded(tasks, pending -> {
+            if (pending.queue != null && !pending.progress.isFailed()) {
+                queueDeletes.add(pending);
+            } else {
+                emit(emitter, pending.toResult());
+            }
+        });
+
+        // 2) Revoke yarn queues of all hive/mr/spark instances with one capacity-scheduler update
+        if (!queueDeletes.isEmpty()) {
+            List<String> queues = new ArrayList<>();
+            for (PendingDelete pending : queueDeletes) {
+                queues.add(pending.queue);
+            }
+            logger.info("Revoke yarn queues: " + queues);
+            RuntimeException revokeError = null;
+            try {
+                yarnCommonService.deleteQueues(queues);
+            } catch (RuntimeException e) {
+                revokeError = e;
+            }
+            for (PendingDelete pending : queueDeletes) {
+                if (revokeError != null) {
+                    // Instance is kept with its queue, so that bulk delete can be retried
+                    pending.progress.fail(revokeError);
+                    emit(emitter, pending.toResult());
+                    continue;
+                }
+                try {
+                    pending.progress.startStep("remove service instance");
+                    repository.delete(pending.instance.getServiceInstanceId());
+                    pending.progress.succeed();
+                } catch (RuntimeException e) {
+                    pending.progress.fail(e);
+                }
+                emit(emitter, pending.toResult());
+            }
+        }
+        logger.info("Bulk delete service instances of organization: " + organizationGuid + ", space: " +
+                spaceGuid + " completed.");
+    }
+
+    private PendingDelete deprovision(ServiceInstance instance) {
+        String serviceDefinitionId = instance.getServiceDefinitionId();
+        String serviceInstanceId = instance.getServiceInstanceId();
+        PendingDelete pending = new PendingDelete(instance,
+                new OperationProgress(OperationType.DELETE, OperationDeadline.current()));
+        try {
+            OCDPAdminService ocdp = getOCDPAdminService(serviceDefinitionId);
+            Map<String, Object> credentials = instance.getServiceInstanceCredentials();
+            String resourceType = OCDPAdminServiceMapper.getOCDPResourceType(serviceDefinitionId);
+            String resource = (String) credentials.get(resourceType);
+            String policyId = (String) credentials.get("rangerPolicyId");
+            // 1) Remove ranger policy if it exists
+            if (policyId != null && policyId.length() != 0) {
+                pending.progress.startStep("delete ranger policy");
+                if (!commonService.deletePolicyOfInstance(ocdp, instance, policyId, resource)) {
+                    throw new OCDPServiceException("Ranger policy delete failed.");
+                }
+            }
+            // 2) Delete big data resources, yarn queue is only recorded here and revoked later in batch
+            pending.progress.startStep("delete " + OCDPAdminServiceMapper.getOCDPServiceName(serviceDefinitionId) +
+                    " resources");
+            if (ocdp instanceof HiveAdminService) {
+                pending.queue = ((HiveAdminService) ocdp).deprovisionDatabase(resource);
+                pending.progress.startStep("revoke yarn queue");
+            } else if (needsQueue(serviceDefinitionId)) {
+                pending.queue = resource;
+                pending.progress.startStep("revoke yarn queue");
+            } else {
+                ocdp.deprovisionResources(resource);
+                // 3) Clean service instance from etcd
+                pending.progress.startStep("remove service instance");
+                repository.delete(serviceInstanceId);
+                pending.progress.succeed();
+                logger.info("Delete service instance " + serviceInstanceId + " successfully!");
+            }
+        } catch (Exception e) {
+            logger.error("Delete service instance " + serviceInstanceId + " fail due to: " + e.getMessage());
+            pending.progress.fail(e);
+        }
+        return pending;
+    }
+
+    /**
+     * Run tasks on backend executor, at most bulk concurrency tasks at the same time.
+     * Result of each task is handled in current thread as soon as the task is done.
+     */
+    private <T> void runBounded(List<Callable<T>> tasks, Consumer<T> resultHandler)
+            throws InterruptedException, ExecutionException {
+        CompletionService<T> completionService = new ExecutorCompletionService<>(backendExecutor);
+        Iterator<Callable<T>> it = tasks.iterator();
+        int running = 0;
+        while (running < clusterConfig.getBulkConcurrency() && it.hasNext()) {
+            completionService.submit(OperationDeadline.propagate(it.next()));
+            running++;
+        }
+        while (running > 0) {
+            T result = completionService.take().get();
+            running--;
+            if (it.hasNext()) {
+                completionService.submit(OperationDeadline.propagate(it.next()));
+                running++;
+            }
+            resultHandler.accept(result);
+        }
+    }
+
+    private String createResource(OCDPAdminService ocdp, InstanceSpec spec, String queue) {
+        try {
+            if (queue == null) {
+                return ocdp.provisionResources(spec.getServiceDefinitionId(), spec.getPlanId(),
+                        spec.getServiceInstanceId(), spec.getParameters());
+            } else if (ocdp instanceof HiveAdminService) {
+                return ((HiveAdminService) ocdp).provisionResources(spec.getServiceDefinitionId(), spec.getPlanId(),
+                        spec.getServiceInstanceId(), spec.getParameters(), queue);
+            } else {
+                // mr/spark instance resource is the queue itself
+                return queue;
+            }
+        } catch (Exception e) {
+            throw new OCDPServiceException("OCDP ressource provision fails due to: " + e.getLocalizedMessage());
+        }
+    }
+
+    private String validate(InstanceSpec spec, Map<String, InstanceSpec> accepted, Map<String, Boolean> ldapUsers) {
+        String serviceDefinitionId = spec.getServiceDefinitionId();
+        String serviceInstanceId = spec.getServiceInstanceId();
+        if (serviceInstanceId == null || serviceDefinitionId == null || spec.getPlanId() == null) {
+            return "service_instance_id, service_id and plan_id are required.";
+        } else if (OCDPAdminServiceMapper.getOCDPAdminService(serviceDefinitionId) == null) {
+            return "Unknown service id: " + serviceDefinitionId;
+        } else if (!spec.getPlanId().equals(OCDPAdminServiceMapper.getOCDPServicePlan(serviceDefinitionId))) {
+            return "Unknown plan id: " + spec.getPlanId();
+        } else if (accepted.containsKey(serviceInstanceId) || repository.findOne(serviceInstanceId) != null) {
+            return "Service instance with the given ID already exists.";
+        }
+        for (String user : splitParameter(spec, "user_name")) {
+            Boolean exists = ldapUsers.get(user);
+            if (exists == null) {
+                exists = BrokerUtil.isLDAPUserExist(ldap, user);
+                ldapUsers.put(user, exists);
+            }
+            if (!exists) {
+                return "LDAP user " + user + " not exist.";
+            }
+        }
+        return null;
+    }
+
+    private boolean needsQueue(String serviceDefinitionId) {
+        String resourceType = OCDPAdminServiceMapper.getOCDPResourceType(serviceDefinitionId);
+        return resourceType.equals(OCDPConstants.HIVE_RESOURCE_TYPE) ||
+                resourceType.equals(OCDPConstants.MAPREDUCE_RESOURCE_TYPE) ||
+                resourceType.equals(OCDPConstants.SPARK_RESOURCE_TYPE);
+    }
+
+    private List<String> splitParameter(InstanceSpec spec, String key) {
+        List<String> values = Lists.newArrayList();
+        Object value = (spec.getParameters() == null) ? null : spec.getParameters().get(key);
+        if (value != null) {
+            // Need trim blank space, otherwise call ranger policy api will fail.
+            for (String item : ((String) value).split(",")) {
+                if (item.trim().length() != 0) {
+                    values.add(item.trim());
+                }
+            }
+        }
+        return values;
+    }
+
+    private BulkOperationResult failed(InstanceSpec spec, String description) {
+        return new BulkOperationResult(spec.getServiceInstanceId(), spec.getServiceDefinitionId(),
+                OperationState.FAILED, description);
+    }
+
+    private void emit(ResponseBodyEmitter emitter, BulkOperationResult result) {
+        try {
+            emitter.send(result, MediaType.APPLICATION_JSON);
+            emitter.send("\n", MediaType.TEXT_PLAIN);
+        } catch (IOException | IllegalStateException e) {
+            // Client gone away, keep going so that every instance still ends up in a consistent state
+            logger.warn("Fail to send result of service instance " + result.getServiceInstanceId() +
+                    ": " + e.getMessage());
+        }
+    }
+
+    private OCDPAdminService getOCDPAdminService(String serviceDefinitionId) {
+        return (OCDPAdminService) this.context.getBean(
+                OCDPAdminServiceMapper.getOCDPAdminService(serviceDefinitionId)
+        );
+    }
+
+    /**
+     * Service instance being created by bulk create
+     */
+    private static class PendingCreate {
+        final InstanceSpec spec;
+        final String organizationGuid;
+        final String spaceGuid;
+        final OperationProgress progress;
+        OCDPAdminService ocdp;
+        String resource;
+        Map<String, Object> credentials;
+        List<String> users;
+        List<String> accesses;
+        // Ranger policy id, null until created
+        String policyId;
+
+        PendingCreate(InstanceSpec spec, String organizationGuid, String spaceGuid, OperationProgress progress) {
+            this.spec = spec;
+            this.organizationGuid = organizationGuid;
+            this.spaceGuid = spaceGuid;
+            this.progress = progress;
+        }
+
+        boolean needsPolicy() {
+            return !users.isEmpty() && !accesses.isEmpty();
+        }
+
+        BulkOperationResult toResult() {
+            return new BulkOperationResult(spec.getServiceInstanceId(), spec.getServiceDefinitionId(),
+                    progress.isFailed() ? OperationState.FAILED : OperationState.SUCCEEDED, progress.getDescription());
+        }
+    }
+
+    /**
+     * Service instance being deleted by bulk delete
+     */
+    private static class PendingDelete {
+        final ServiceInstance instance;
+        final OperationProgress progress;
+        // Yarn queue to revoke in batch, null if instance has no queue
+        String queue;
+
+        PendingDelete(ServiceInstance instance, OperationProgress progress) {
+            this.instance = instance;
+            this.progress = progress;
+        }
+
+        BulkOperationResult toResult() {
+            return new BulkOperationResult(instance.getServiceInstanceId(), instance.getServiceDefinitionId(),
+                    progress.isFailed() ? OperationState.FAILED : OperationState.SUCCEEDED, progress.getDescription());
+        }
+    }
+}
@@ -5,16 +5,24 @@ import java.lang.Thread;
 import java.util.List;
 import java.util.Map;
 import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.etcdClient;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.rangerClient;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config.ClusterConfig;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.OCDPAdminService;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.impl.HDFSAdminService;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.BrokerUtil;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OperationDeadline;
 import com.google.common.collect.Lists;
 import org.springframework.cloud.servicebroker.model.*;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.OCDPCreateServiceInstanceResponse;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.OperationProgress;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.exception.*;
@@ -22,8 +30,10 @@ import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.repository.OCDPServic
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.ServiceInstance;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.krbClient;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OCDPAdminServiceMapper;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OCDPConstants;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.ApplicationContext;
 import org.springframework.ldap.core.LdapTemplate;
 import org.springframework.stereotype.Service;
@@ -50,6 +60,22 @@ public class OCDPServiceInstanceCommonService {
     @Autowired
     private ApplicationContext context;
 
+    @Autowired
+    private RangerUserSyncService userSyncService;
+
+    @Autowired
+    private RangerTenantPolicyService tenantPolicyService;
+
+    @Autowired
+    private LdapGroupAuthzService groupAuthzService;
+
+    @Autowired
+    private HDFSAdminService hdfsAdminService;
+
+    @Autowired
+    @Qualifier("operationExecutor")
+    private Executor operationExecutor;
+
     private ClusterConfig clusterConfig;
 
     private LdapTemplate ldap;
@@ -60,6 +86,9 @@ public class OCDPServiceInstanceCommonService {
 
     private rangerClient rc;
 
+    // Users are synced to Ranger before policy create/update, so only transient Ranger failures are retried
+    private static final int POLICY_UPDATE_ATTEMPTS = 3;
+
     @Autowired
     public OCDPServiceInstanceCommonService(ClusterConfig clusterConfig) {
         this.clusterConfig = clusterConfig;
@@ -71,14 +100,29 @@ public class OCDPServiceInstanceCommonService {
 
     @Async
     public Future<CreateServiceInstanceResponse> doCreateServiceInstanceAsync(
-            CreateServiceInstanceRequest request) throws OCDPServiceException {
+            CreateServiceInstanceRequest request, OperationProgress progress) throws OCDPServiceException {
         return new AsyncResult<CreateServiceInstanceResponse>(
-                doCreateServiceInstance(request)
+                doCreateServiceInstance(request, progress)
         );
     }
 
     public CreateServiceInstanceResponse doCreateServiceInstance(
-            CreateServiceInstanceRequest request) throws OCDPServiceException {
+            CreateServiceInstanceRequest request, OperationProgress progress) throws OCDPServiceException {
+        OperationDeadline.attach(progress.getDeadline());
+        try {
+            CreateServiceInstanceResponse response = createServiceInstance(request, progress);
+            progress.succeed();
+            return response;
+        } catch (RuntimeException e) {
+            progress.fail(e);
+            throw e;
+        } finally {
+            OperationDeadline.detach();
+        }
+    }
+
+    private CreateServiceInstanceResponse createServiceInstance(
+            CreateServiceInstanceRequest request, OperationProgress progress) throws OCDPServiceException {
         String serviceDefinitionId = request.getServiceDefinitionId();
         String serviceInstanceId = request.getServiceInstanceId();
         String planId = request.getPlanId();
@@ -86,10 +130,12 @@ public class OCDPServiceInstanceCommonService {
         OCDPAdminService ocdp = getOCDPAdminService(serviceDefinitionId);
 
         // 1) Create big data resources like hdfs folder, hbase namespace ...
+        progress.startStep("create " + OCDPAdminServiceMapper.getOCDPServiceName(serviceDefinitionId) + " resources");
         String serviceInstanceResource = createTenentResource(
                 ocdp, serviceDefinitionId, planId, serviceInstanceId, params);
 
         // 2) Generate service instance credential info
+        progress.startStep("generate credentials");
         Map<String, Object> credentials = ocdp.generateCredentialsInfo(serviceInstanceId);
         String serviceResourceType = OCDPAdminServiceMapper.getOCDPResourceType(serviceDefinitionId);
         // For spark/mr instance provision, need append queue name into credentials,
@@ -101,6 +147,7 @@ public class OCDPServiceInstanceCommonService {
         credentials.put(serviceResourceType, serviceInstanceResource);
 
         // 3) Save service instance
+        progress.startStep("save service instance");
         ServiceInstance instance = new ServiceInstance(request);
         instance.setCredential(credentials);
         repository.save(instance);
@@ -114,12 +161,30 @@ public class OCDPServiceInstanceCommonService {
 
     @Async
     public Future<DeleteServiceInstanceResponse> doDeleteServiceInstanceAsync(
-            DeleteServiceInstanceRequest request, ServiceInstance instance) throws OCDPServiceException {
-        return new AsyncResult<DeleteServiceInstanceResponse>(doDeleteServiceInstance(request, instance));
+            DeleteServiceInstanceRequest request, ServiceInstance instance, OperationProgress progress)
+            throws OCDPServiceException {
+        return new AsyncResult<DeleteServiceInstanceResponse>(doDeleteServiceInstance(request, instance, progress));
     }
 
     public DeleteServiceInstanceResponse doDeleteServiceInstance(
-            DeleteServiceInstanceRequest request, ServiceInstance instance) throws OCDPServiceException {
+            DeleteServiceInstanceRequest request, ServiceInstance instance, OperationProgress progress)
+            throws OCDPServiceException {
+        OperationDeadline.attach(progress.getDeadline());
+        try {
+            DeleteServiceInstanceResponse response = deleteServiceInstance(request, instance, progress);
+            progress.succeed();
+            return response;
+        } catch (RuntimeException e) {
+            progress.fail(e);
+            throw e;
+        } finally {
+            OperationDeadline.detach();
+        }
+    }
+
+    private DeleteServiceInstanceResponse deleteServiceInstance(
+            DeleteServiceInstanceRequest request, ServiceInstance instance, OperationProgress progress)
+            throws OCDPServiceException {
         String serviceDefinitionId = request.getServiceDefinitionId();
         OCDPAdminService ocdp = getOCDPAdminService(serviceDefinitionId);
         String serviceInstanceId = request.getServiceInstanceId();
@@ -130,30 +195,104 @@ public class OCDPServiceInstanceCommonService {
         // 1) Remove resource from ranger policy if it exists
         if (serviceInstancePolicyId != null && serviceInstancePolicyId.length() != 0 ) {
         logger.info("Service instance policy exists, start to deleting policy " + serviceInstancePolicyId);
-            if (!ocdp.deletePolicyForResources(serviceInstancePolicyId)) {
+            progress.startStep("delete ranger policy");
+            if (!deletePolicyOfInstance(ocdp, instance, serviceInstancePolicyId, serviceInstanceResource)) {
             	logger.error("Ranger policy [{}] delete failed.", serviceInstancePolicyId);
                 throw new OCDPServiceException("Ranger policy delete failed.");
             }
+            // Only LDAP group of instance is deleted here, group of tenant is deleted with tenant policy
+            String ldapGroup = (String)Credential.get("ldapGroup");
+            if (LdapGroupAuthzService.instanceGroup(serviceInstanceId).equals(ldapGroup)) {
+                groupAuthzService.deleteGroup(ldapGroup);
+            }
         }
         // 2 )Delete big data resources like hdfs folder, hbase namespace ...
+        progress.startStep("delete " + OCDPAdminServiceMapper.getOCDPServiceName(serviceDefinitionId) + " resources");
         deleteTenentResource(ocdp, serviceInstanceResource);
 
         // 3) Clean service instance from etcd
+        progress.startStep("remove service instance");
         repository.delete(serviceInstanceId);
         logger.info("Delete service instance " + serviceInstanceId + " successfully!");
 
         return new DeleteServiceInstanceResponse().withAsync(false);
 	}
 
-    @Async
+    /**
+     * Update service instance in operation executor. Operation waiting for Ranger usersync is parked
+     * without holding a thread, and resumed in operation executor once users appear in Ranger.
+     * Cancelling returned future cancels operation deadline, which stops the running stage and the stages not started.
+     */
     public Future<UpdateServiceInstanceResponse> doUpdateServiceInstanceAsync(
-            UpdateServiceInstanceRequest request, ServiceInstance instance, String password) throws OCDPServiceException {
-        return new AsyncResult<UpdateServiceInstanceResponse>(doUpdateServiceInstance(request, instance, password));
+            UpdateServiceInstanceRequest request, ServiceInstance instance, String password,
+            OperationProgress progress) throws OCDPServiceException {
+        OperationDeadline deadline = progress.getDeadline();
+        CompletableFuture<UpdateServiceInstanceResponse> result = new CompletableFuture<UpdateServiceInstanceResponse>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                deadline.cancel(mayInterruptIfRunning);
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+        CompletableFuture
+                .supplyAsync(() -> inOperation(progress,
+                        () -> updateServiceInstance(request, instance, password, progress)), operationExecutor)
+                .thenCompose(response -> response)
+                .whenComplete((response, e) -> {
+                    if (e != null) {
+                        Throwable cause = causeOf(e);
+                        progress.fail(cause);
+                        result.completeExceptionally(cause);
+                    } else {
+                        progress.succeed();
+                        result.complete(response);
+                    }
+                });
+        return result;
     }
 
-    @SuppressWarnings("unchecked")
     public UpdateServiceInstanceResponse doUpdateServiceInstance(
-            UpdateServiceInstanceRequest request, ServiceInstance instance, String password) throws OCDPServiceException {
+            UpdateServiceInstanceRequest request, ServiceInstance instance, String password,
+            OperationProgress progress) throws OCDPServiceException {
+        try {
+            UpdateServiceInstanceResponse response = inOperation(progress,
+                    () -> updateServiceInstance(request, instance, password, progress)).join();
+            progress.succeed();
+            return response;
+        } catch (CompletionException e) {
+            Throwable cause = causeOf(e);
+            progress.fail(cause);
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            progress.fail(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Run one stage of operation in current thread with operation deadline attached
+     */
+    private <T> T inOperation(OperationProgress progress, Supplier<T> stage) {
+        return progress.getDeadline().run(stage);
+    }
+
+    /**
+     * @return error thrown by stage of operation, unwrapped from CompletionException/ExecutionException
+     */
+    static Throwable causeOf(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<UpdateServiceInstanceResponse> updateServiceInstance(
+            UpdateServiceInstanceRequest request, ServiceInstance instance, String password,
+            OperationProgress progress) throws OCDPServiceException {
         String serviceDefinitionId = request.getServiceDefinitionId();
         String serviceInstanceId = request.getServiceInstanceId();
         OCDPAdminService ocdp = getOCDPAdminService(serviceDefinitionId);
@@ -174,13 +313,18 @@ public class OCDPServiceInstanceCommonService {
                 for (String access : accessesStr.split(",")){
                     accesses.add(access.trim());
                 }
-                addUserToServiceInstance(ocdp, instance, users, password, accesses);
+                return addUserToServiceInstance(ocdp, instance, users, password, accesses, progress)
+                        .thenApply(v -> {
+                            logger.info("Update service instance [{}] successfully!", serviceInstanceId);
+                            return new UpdateServiceInstanceResponse().withAsync(false);
+                        });
             } else {
                 logger.info("Skip add user to ServiceInstance if parameter 'accesses' is empty string.");
             }
         } else {
             // Resize service instance
             logger.info("Resizing service instance: " + serviceInstanceId);
+            progress.startStep("resize resource quota");
             try{
                 ocdp.resizeResourceQuota(instance, params);
             } catch (IOException e){
@@ -190,11 +334,16 @@ public class OCDPServiceInstanceCommonService {
             logger.info("Resizing service instance [{}] with params [{}] successful.", serviceInstanceId, params);
         }
         logger.info("Update service instance [{}] successfully!", serviceInstanceId);
-        return new UpdateServiceInstanceResponse().withAsync(false);
+        return CompletableFuture.completedFuture(new UpdateServiceInstanceResponse().withAsync(false));
     }
 
-    private void addUserToServiceInstance(OCDPAdminService ocdp, ServiceInstance instance, List<String> users,
-                                           String password, List<String> accesses) {
+    /**
+     * Create LDAP user and krb principal, then grant permissions to users once Ranger usersync picks them up
+     * @return future completes when users added to ranger policy of service instance
+     */
+    private CompletableFuture<Void> addUserToServiceInstance(
+            OCDPAdminService ocdp, ServiceInstance instance, List<String> users, String password,
+            List<String> accesses, OperationProgress progress) {
         // 1) Create LDAP user and krb principal for tenant user if it not exits
         if(users.size() == 1){
             // Temp fix for issue: https://github.com/OCManager/OCDP_ServiceBroker/issues/48
@@ -202,8 +351,10 @@ public class OCDPServiceInstanceCommonService {
             // because in 'create instance for tenant' case, all tenant users are already exist,
             // no need to check/create again.
             String username = users.get(0);
+            progress.startStep("create ldap user");
             if (createLDAPUser(username)){
                 // New LDAP user created, should create krb principal/keytab too
+                progress.startStep("create kerberos principal");
                 createKrbPricAndKeytab(username, password);
             } else {
                 // Exists LDAP user, no need to create again;
@@ -218,7 +369,39 @@ public class OCDPServiceInstanceCommonService {
                 }
             }
         }
-        // 2) Create policy for service instance or append user to an exists policy
+        // 2) Policy grants LDAP group of instance, users only need to join the group
+        String ldapGroup = authzGroupOf(instance);
+        if (ldapGroup != null) {
+            return addUsersToGroupOfInstance(ocdp, instance, ldapGroup, users, accesses, progress);
+        }
+        // 3) Create policy for service instance or append user to an exists policy once ranger usersync done
+        return grantPolicyToUsers(ocdp, instance, users, accesses, progress);
+    }
+
+    /**
+     * Add users to LDAP group of instance by one LDAP modify, policy granting the group is created for first users
+     */
+    private CompletableFuture<Void> addUsersToGroupOfInstance(
+            OCDPAdminService ocdp, ServiceInstance instance, String ldapGroup, List<String> users,
+            List<String> accesses, OperationProgress progress) {
+        String serviceInstancePolicyId = (String) instance.getServiceInstanceCredentials().get("rangerPolicyId");
+        if (serviceInstancePolicyId == null || serviceInstancePolicyId.length() == 0) {
+            // Users join the group when policy is created
+            return grantPolicyToUsers(ocdp, instance, users, accesses, progress);
+        }
+        progress.startStep("add users to ldap group");
+        addGroupMembers(ldapGroup, users, instance.getServiceDefinitionId());
+        logger.info("Users [{}] added to ldap group [{}] of policy [{}].", users, ldapGroup, serviceInstancePolicyId);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Create policy for service instance or append users to policy of instance.
+     * Waiting for ranger usersync holds no thread, policy is updated in operation executor afterwards.
+     */
+    private CompletableFuture<Void> grantPolicyToUsers(OCDPAdminService ocdp, ServiceInstance instance,
+                                                       List<String> users, List<String> accesses,
+                                                       OperationProgress progress) {
         String serviceInstanceId = instance.getServiceInstanceId();
         String serviceInstancePolicyId = (String) instance.getServiceInstanceCredentials().get("rangerPolicyId");
         String serviceDefinitionId = instance.getServiceDefinitionId();
@@ -226,13 +409,26 @@ public class OCDPServiceInstanceCommonService {
         String serviceInstanceResource = (String) instance.getServiceInstanceCredentials().get(resourceType);
         if (serviceInstancePolicyId == null || serviceInstancePolicyId.length() == 0 ){
             // Create new ranger policy for service instance and update policy to service instance
-            serviceInstancePolicyId = createPolicyForResources(
-                    ocdp, serviceInstanceResource, users, accesses, serviceDefinitionId, serviceInstanceId);
-            updateServiceInstanceCredentials(instance, "rangerPolicyId", serviceInstancePolicyId);
-        } else {
-            // Append users to service instance policy
-            updateUsersToPolicy(ocdp, serviceInstancePolicyId, users, accesses);
+            return createPolicyForResourcesAsync(ocdp, serviceInstanceResource, users, accesses,
+                    serviceDefinitionId, serviceInstanceId, instance.getOrganizationGuid(), progress)
+                    .thenAcceptAsync(policyId -> inOperation(progress, () -> {
+                        String ldapGroup = ldapGroupOf(instance.getOrganizationGuid(), serviceDefinitionId,
+                                serviceInstanceId);
+                        if (ldapGroup != null) {
+                            instance.getServiceInstanceCredentials().put("ldapGroup", ldapGroup);
+                        }
+                        updateServiceInstanceCredentials(instance, "rangerPolicyId", policyId);
+                        return null;
+                    }), operationExecutor);
         }
+        // Append users to service instance policy, Ranger rejects users not synced from LDAP yet
+        progress.startStep("wait for ranger usersync");
+        return userSyncService.waitForUsers(users, progress).thenAcceptAsync(
+                v -> inOperation(progress, () -> {
+                    progress.startStep("append users to ranger policy");
+                    updateUsersToPolicy(ocdp, serviceInstancePolicyId, users, accesses, progress);
+                    return null;
+                }), operationExecutor);
     }
 
     public Map<String, Object> getOCDPServiceCredential(
@@ -341,25 +537,60 @@ public class OCDPServiceInstanceCommonService {
         }
     }
 
+    /**
+     * Grant users permissions to resource of instance, by policy of instance or by tenant policy in tenant mode.
+     * Policy is created in operation executor once users (or LDAP group) are synced to Ranger,
+     * no thread is held while waiting.
+     * @return future of policy id
+     */
+    CompletableFuture<String> createPolicyForResourcesAsync(
+            OCDPAdminService ocdp, String serviceInstanceResource, List<String> userList, List<String> accesses,
+            String serviceDefinitionId, String serviceInstanceId, String organizationGuid, OperationProgress progress){
+        String ldapGroup = ldapGroupOf(organizationGuid, serviceDefinitionId, serviceInstanceId);
+        CompletableFuture<Void> synced;
+        if (ldapGroup != null) {
+            // Policy grants LDAP group instead of users, Ranger rejects policy for group not synced from LDAP yet
+            progress.startStep("add users to ldap group");
+            addGroupMembers(ldapGroup, userList, serviceDefinitionId);
+            progress.startStep("wait for ranger usersync");
+            synced = userSyncService.waitForGroups(Lists.newArrayList(ldapGroup), progress);
+        } else {
+            // Ranger rejects policy for users not synced from LDAP yet
+            progress.startStep("wait for ranger usersync");
+            synced = userSyncService.waitForUsers(userList, progress);
+        }
+        return synced.thenApplyAsync(v -> inOperation(progress, () -> {
+            progress.startStep("create ranger policy");
+            return createPolicyForResources(ocdp, serviceInstanceResource, userList, accesses,
+                    serviceDefinitionId, serviceInstanceId, organizationGuid, ldapGroup, progress);
+        }), operationExecutor);
+    }
+
     private String createPolicyForResources(
             OCDPAdminService ocdp, String serviceInstanceResource, List<String> userList, List<String> accesses,
-            String serviceDefinitionId, String serviceInstanceId){
+            String serviceDefinitionId, String serviceInstanceId, String organizationGuid, String ldapGroup,
+            OperationProgress progress){
         String policyId = null;
+        boolean tenantPolicy = tenantPolicyService.isEnabled(organizationGuid);
         //String policyName = OCDPAdminServiceMapper.getOCDPServiceName(serviceDefinitionId) + "_" + serviceInstanceResource;
         String policyName = OCDPAdminServiceMapper.getOCDPServiceName(serviceDefinitionId) + "_" + serviceInstanceId;
-        int i = 0;
         logger.info("Try to create ranger policy...");
-        while(i++ <= 40){
-            policyId = ocdp.createPolicyForResources(policyName, Lists.newArrayList(serviceInstanceResource),
-                    userList, clusterConfig.getLdapGroup(), accesses);
-            // TODO Need get a way to force sync up ldap users with ranger service, for temp solution will wait 60 sec
-            if (policyId == null){
-                try{
-                    Thread.sleep(3000);
-                }catch (InterruptedException e){
-                    e.printStackTrace();
-                }
-            }else{
+        for (int attempt = 0; attempt < POLICY_UPDATE_ATTEMPTS; attempt++){
+            if (attempt > 0){
+                progress.retry();
+                backoff(attempt, "Ranger policy create cancelled.");
+            }
+            if (tenantPolicy){
+                policyId = tenantPolicyService.addInstance(ocdp, organizationGuid, serviceDefinitionId,
+                        serviceInstanceId, serviceInstanceResource, userList, ldapGroup, accesses);
+            } else if (ldapGroup != null){
+                policyId = groupAuthzService.createPolicyForGroup(ocdp, policyName, serviceInstanceResource,
+                        ldapGroup, accesses);
+            } else {
+                policyId = ocdp.createPolicyForResources(policyName, Lists.newArrayList(serviceInstanceResource),
+                        userList, clusterConfig.getLdapGroup(), accesses);
+            }
+            if (policyId != null){
                 logger.info("Ranger policy created. Policy ID = " + policyId);
                 break;
             }
@@ -371,21 +602,61 @@ public class OCDPServiceInstanceCommonService {
         return policyId;
     }
 
+    /**
+     * LDAP group which policy of a new instance grants permissions to
+     * @return group of instance (or of tenant service in tenant mode), null if policy lists users
+     */
+    String ldapGroupOf(String organizationGuid, String serviceDefinitionId, String serviceInstanceId){
+        if (tenantPolicyService.isEnabled(organizationGuid)){
+            // Existing tenant policy keeps its way of granting permissions
+            if (tenantPolicyService.hasTenantPolicy(organizationGuid, serviceDefinitionId)){
+                return tenantPolicyService.getLdapGroup(organizationGuid, serviceDefinitionId);
+            }
+            return groupAuthzService.isEnabled() ?
+                    LdapGroupAuthzService.tenantGroup(organizationGuid, serviceDefinitionId) : null;
+        }
+        return groupAuthzService.isEnabled() ? LdapGroupAuthzService.instanceGroup(serviceInstanceId) : null;
+    }
+
+    /**
+     * @return LDAP group granted by policy of instance, or by policy to create if instance has no policy yet
+     */
+    private String authzGroupOf(ServiceInstance instance){
+        Map<String, Object> credentials = instance.getServiceInstanceCredentials();
+        String serviceInstancePolicyId = (String) credentials.get("rangerPolicyId");
+        if (serviceInstancePolicyId != null && serviceInstancePolicyId.length() != 0){
+            return (String) credentials.get("ldapGroup");
+        }
+        return ldapGroupOf(instance.getOrganizationGuid(), instance.getServiceDefinitionId(),
+                instance.getServiceInstanceId());
+    }
+
+    /**
+     * Add users to LDAP group, hdfs policy of hive/mr/spark grants /user/{USER} so /user dirs of users are created too
+     */
+    private void addGroupMembers(String ldapGroup, List<String> users, String serviceDefinitionId){
+        groupAuthzService.addMembers(ldapGroup, users);
+        String resourceType = OCDPAdminServiceMapper.getOCDPResourceType(serviceDefinitionId);
+        if (resourceType.equals(OCDPConstants.HIVE_RESOURCE_TYPE) ||
+                resourceType.equals(OCDPConstants.MAPREDUCE_RESOURCE_TYPE) ||
+                resourceType.equals(OCDPConstants.SPARK_RESOURCE_TYPE)){
+            hdfsAdminService.createUserDirs(users);
+        }
+    }
+
     private void updateUsersToPolicy(
-            OCDPAdminService ocdp, String serviceInstancePolicyId, List<String> users, List<String> accesses){
-        int i = 0;
+            OCDPAdminService ocdp, String serviceInstancePolicyId, List<String> users, List<String> accesses,
+            OperationProgress progress){
         boolean policyUpdateResult = false;
         logger.info("Try to append user to ranger policy...");
-        while(i++ <= 40){
+        for (int attempt = 0; attempt < POLICY_UPDATE_ATTEMPTS; attempt++){
+            if (attempt > 0){
+                progress.retry();
+                backoff(attempt, "Append user to ranger policy cancelled.");
+            }
             policyUpdateResult = ocdp.appendUsersToPolicy(
                     serviceInstancePolicyId, this.clusterConfig.getLdapGroup(), users, accesses);
-            if (!policyUpdateResult){
-                try{
-                    Thread.sleep(3000);
-                }catch (InterruptedException e){
-                    e.printStackTrace();
-                }
-            }else{
+            if (policyUpdateResult){
                 logger.info("Append user to ranger policy succeed. Policy ID = " + serviceInstancePolicyId);
                 break;
             }
@@ -396,6 +667,28 @@ public class OCDPServiceInstanceCommonService {
         }
     }
 
+    /**
+     * Delete policy of instance, or only remove resource of instance from tenant policy
+     * @return true if succeed
+     */
+    boolean deletePolicyOfInstance(OCDPAdminService ocdp, ServiceInstance instance, String policyId, String resource){
+        String organizationGuid = instance.getOrganizationGuid();
+        if (tenantPolicyService.isTenantPolicy(organizationGuid, instance.getServiceDefinitionId(), policyId)){
+            return tenantPolicyService.removeInstance(ocdp, organizationGuid, instance.getServiceDefinitionId(),
+                    instance.getServiceInstanceId(), policyId, resource);
+        }
+        return ocdp.deletePolicyForResources(policyId);
+    }
+
+    private void backoff(int attempt, String cancelMessage){
+        try{
+            OperationDeadline.sleep(userSyncService.backoffMillis(attempt));
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new OCDPServiceException(cancelMessage);
+        }
+    }
+
     private void rollbackLDAPUser(String userName) {
         logger.info("Rollback LDAP user: " + userName);
         try{
@@ -0,0 +1,46 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.common;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.rangerClient;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config.ClusterConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+
+/**
+ * Load Ranger policy index of all Ranger services used by broker once broker started.
+ * Loading runs in background: until it completes, policy create still works by falling back to
+ * lookup on conflict response.
+ */
+@Service
+public class RangerPolicyIndexLoader {
+
+    static final String[] RANGER_SERVICE_SUFFIXES = {"_hadoop", "_hbase", "_hive", "_kafka", "_yarn"};
+
+    private Logger logger = LoggerFactory.getLogger(RangerPolicyIndexLoader.class);
+
+    private ClusterConfig clusterConfig;
+
+    private rangerClient rc;
+
+    @Autowired
+    public RangerPolicyIndexLoader(ClusterConfig clusterConfig) {
+        this.clusterConfig = clusterConfig;
+        this.rc = clusterConfig.getRangerClient();
+    }
+
+    @Async
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadPolicyIndex() {
+        for (String suffix : RANGER_SERVICE_SUFFIXES) {
+            String serviceName = clusterConfig.getClusterName() + suffix;
+            int count = rc.loadPolicyIndex(serviceName);
+            if (count >= 0) {
+                logger.info("Indexed " + count + " policies of ranger service " + serviceName);
+            }
+        }
+    }
+}
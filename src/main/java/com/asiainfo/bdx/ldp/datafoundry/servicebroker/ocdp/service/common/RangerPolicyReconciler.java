@@ -0,0 +1,354 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.rangerClient;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config.ClusterConfig;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.RangerReconcileReport;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.RangerReconcileReport.Finding;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.RangerV2Policy;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.ServiceInstance;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.repository.OCDPServiceInstanceRepository;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.OCDPAdminService;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.BrokerMetrics;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OCDPAdminServiceMapper;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OCDPConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Reconcile ranger policies with rangerPolicyId of service instances in repository.
+ * All policies of each ranger service are pulled by a few paged list requests and compared with
+ * repository in memory, instead of one GET per instance. Mismatches are reported, and repaired if enabled:
+ *     instance refers to a missing policy: repoint instance to the policy with its expected name, if any;
+ *     policy not covers resource of instance: append resource to policy;
+ *     broker-owned policy not referred by any instance: delete policy, once it is found orphan by two runs
+ *     in a row, so that policy of an instance being created is not deleted. Orphans are only looked for
+ *     if instances and tenant policies were listed from repository without error, and never if repository
+ *     lists nothing while ranger lists broker-owned policies;
+ *     disabled policy: reported only, it may be disabled on purpose.
+ */
+@Service
+public class RangerPolicyReconciler {
+
+    public static final String MODE_OFF = "off";
+
+    public static final String MODE_REPORT = "report";
+
+    public static final String MODE_REPAIR = "repair";
+
+    private static final Pattern GUID =
+            Pattern.compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+
+    private Logger logger = LoggerFactory.getLogger(RangerPolicyReconciler.class);
+
+    @Autowired
+    private OCDPServiceInstanceRepository repository;
+
+    @Autowired
+    private ApplicationContext context;
+
+    @Autowired
+    private RangerTenantPolicyService tenantPolicyService;
+
+    private ClusterConfig clusterConfig;
+
+    private rangerClient rc;
+
+    private volatile RangerReconcileReport lastReport;
+
+    // Orphan policy ids found by last run
+    private Set<String> lastOrphans = new HashSet<>();
+
+    @Autowired
+    public RangerPolicyReconciler(ClusterConfig clusterConfig) {
+        this.clusterConfig = clusterConfig;
+        this.rc = clusterConfig.getRangerClient();
+    }
+
+    @Scheduled(initialDelayString = "${RANGER_RECONCILE_INTERVAL_MS:3600000}",
+            fixedDelayString = "${RANGER_RECONCILE_INTERVAL_MS:3600000}")
+    public void scheduledReconcile() {
+        String mode = clusterConfig.getRangerReconcileMode();
+        if (MODE_OFF.equalsIgnoreCase(mode)) {
+            return;
+        }
+        try {
+            reconcile(MODE_REPAIR.equalsIgnoreCase(mode));
+        } catch (Exception e) {
+            logger.error("Reconcile ranger policies fail due to: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * @return report of last run, null if never run
+     */
+    public RangerReconcileReport getLastReport() {
+        return lastReport;
+    }
+
+    /**
+     * Reconcile ranger policies with service instances
+     * @param repair whether to repair mismatches or only report them
+     */
+    public synchronized RangerReconcileReport reconcile(boolean repair) {
+        RangerReconcileReport report = new RangerReconcileReport(repair);
+        logger.info("Start to reconcile ranger policies, repair: " + repair);
+
+        // 1) List all policies of each ranger service
+        Map<String, Map<String, RangerV2Policy>> policiesByService = new HashMap<>();
+        for (String suffix : RangerPolicyIndexLoader.RANGER_SERVICE_SUFFIXES) {
+            String serviceName = clusterConfig.getClusterName() + suffix;
+            List<RangerV2Policy> policies = rc.listV2Policies(serviceName);
+            if (policies == null) {
+                // Policies of the service unknown, skip checks of it rather than report false mismatches
+                report.addError("List policies of ranger service " + serviceName + " failed.");
+                continue;
+            }
+            Map<String, RangerV2Policy> byId = new HashMap<>();
+            for (RangerV2Policy policy : policies) {
+                byId.put(policy.getPolicyId(), policy);
+            }
+            policiesByService.put(serviceName, byId);
+            report.addListedPolicies(policies.size());
+        }
+
+        // 2) Check policies referred by each instance
+        Set<String> referenced;
+        List<ServiceInstance> instances;
+        try {
+            referenced = tenantPolicyService.listTenantPolicyIds();
+            instances = repository.findAll(null, null);
+        } catch (RuntimeException e) {
+            // Without complete list of referred policies every broker-owned policy would look orphan
+            report.addError("List service instances and tenant policies failed, orphan check skipped: " +
+                    e.getMessage());
+            this.lastOrphans = new HashSet<>();
+            return finish(report);
+        }
+        for (ServiceInstance instance : instances) {
+            String policyId = (String) instance.getServiceInstanceCredentials().get("rangerPolicyId");
+            if (policyId == null || policyId.length() == 0) {
+                continue;
+            }
+            // Referred even if instance can not be checked below
+            Collections.addAll(referenced, policyId.split(":"));
+            report.addCheckedInstance();
+            try {
+                reconcileInstance(instance, policyId, policiesByService, referenced, report);
+            } catch (RuntimeException e) {
+                report.addError("Reconcile service instance " + instance.getServiceInstanceId() + " failed: " +
+                        e.getMessage());
+            }
+        }
+
+        // 3) Find broker-owned policies not referred by any instance
+        Map<String, RangerV2Policy> candidates = new HashMap<>();
+        Map<String, String> candidateServices = new HashMap<>();
+        for (Map.Entry<String, Map<String, RangerV2Policy>> e : policiesByService.entrySet()) {
+            for (RangerV2Policy policy : e.getValue().values()) {
+                if (!referenced.contains(policy.getPolicyId()) && isBrokerOwned(policy.getPolicyName())) {
+                    candidates.put(policy.getPolicyId(), policy);
+                    candidateServices.put(policy.getPolicyId(), e.getKey());
+                }
+            }
+        }
+        if (referenced.isEmpty() && !candidates.isEmpty()) {
+            // Repository lists nothing while ranger has broker policies, more likely a repository problem
+            // than all instances deleted, so do not report (and later delete) every policy as orphan
+            report.addError("No service instance or tenant policy listed from repository while ranger lists " +
+                    candidates.size() + " broker-owned policies, orphan check skipped.");
+            this.lastOrphans = new HashSet<>();
+            return finish(report);
+        }
+        Set<String> orphans = new HashSet<>();
+        for (RangerV2Policy policy : candidates.values()) {
+            orphans.add(policy.getPolicyId());
+            Finding finding = report.addFinding(RangerReconcileReport.ORPHAN_POLICY, null,
+                    candidateServices.get(policy.getPolicyId()), policy.getPolicyId(),
+                    "Policy " + policy.getPolicyName() + " not referred by any instance.");
+            if (repair && lastOrphans.contains(policy.getPolicyId())) {
+                finding.setRepaired(rc.removeV2Policy(policy.getPolicyId()));
+            }
+        }
+        this.lastOrphans = orphans;
+        return finish(report);
+    }
+
+    private RangerReconcileReport finish(RangerReconcileReport report) {
+        report.finish();
+        BrokerMetrics.record("ranger.reconcile", report.getDurationMillis());
+        BrokerMetrics.increment("ranger.reconcile.findings", report.getFindings().size());
+        logger.info("Reconcile ranger policies completed with " + report.getFindings().size() + " findings and " +
+                report.getErrors().size() + " errors.");
+        this.lastReport = report;
+        return report;
+    }
+
+    private void reconcileInstance(ServiceInstance instance, String policyId,
+                                   Map<String, Map<String, RangerV2Policy>> policiesByService,
+                                   Set<String> referenced, RangerReconcileReport report) {
+        String serviceInstanceId = instance.getServiceInstanceId();
+        String serviceDefinitionId = instance.getServiceDefinitionId();
+        String resource = (String) instance.getServiceInstanceCredentials().get(
+                OCDPAdminServiceMapper.getOCDPResourceType(serviceDefinitionId));
+        if (resource == null) {
+            report.addError("Service instance " + serviceInstanceId + " has no resource.");
+            return;
+        }
+        List<PolicyPart> parts = expectedPolicyParts(serviceDefinitionId, resource);
+        String[] policyIds = policyId.split(":");
+        if (parts == null || parts.size() != policyIds.length) {
+            report.addFinding(RangerReconcileReport.MALFORMED_POLICY_ID, serviceInstanceId, null, policyId,
+                    "Policy id not matches policies of service " +
+                            OCDPAdminServiceMapper.getOCDPServiceName(serviceDefinitionId) + ".");
+            return;
+        }
+        boolean policyIdChanged = false;
+        boolean resourceMissing = false;
+        List<Finding> resourceFindings = new ArrayList<>();
+        for (int i = 0; i < parts.size(); i++) {
+            PolicyPart part = parts.get(i);
+            referenced.add(policyIds[i]);
+            Map<String, RangerV2Policy> policies = policiesByService.get(part.rangerService);
+            if (policies == null) {
+                continue;
+            }
+            RangerV2Policy policy = policies.get(policyIds[i]);
+            if (policy == null) {
+                Finding finding = report.addFinding(RangerReconcileReport.MISSING_POLICY, serviceInstanceId,
+                        part.rangerService, policyIds[i], "Policy not exists in ranger.");
+                RangerV2Policy replacement = findByName(policies, expectedPolicyNames(instance));
+                if (replacement != null && report.isRepair()) {
+                    policyIds[i] = replacement.getPolicyId();
+                    referenced.add(replacement.getPolicyId());
+                    policyIdChanged = true;
+                    finding.setRepaired(true);
+                }
+                continue;
+            }
+            if (!policy.isEnabled()) {
+                report.addFinding(RangerReconcileReport.DISABLED_POLICY, serviceInstanceId, part.rangerService,
+                        policy.getPolicyId(), "Policy " + policy.getPolicyName() + " is disabled.");
+            }
+            if (part.resourceValue != null && !policy.hasResourceValue(part.resourceType, part.resourceValue)) {
+                resourceMissing = true;
+                resourceFindings.add(report.addFinding(RangerReconcileReport.MISSING_RESOURCE, serviceInstanceId,
+                        part.rangerService, policy.getPolicyId(),
+                        "Policy " + policy.getPolicyName() + " not covers " + part.resourceType + " " +
+                                part.resourceValue + "."));
+            }
+        }
+        if (policyIdChanged) {
+            String newPolicyId = String.join(":", policyIds);
+            Map<String, Object> credentials = instance.getServiceInstanceCredentials();
+            credentials.put("rangerPolicyId", newPolicyId);
+            instance.setCredential(credentials);
+            repository.delete(serviceInstanceId);
+            repository.save(instance);
+            logger.info("Repoint service instance " + serviceInstanceId + " from ranger policy " + policyId +
+                    " to " + newPolicyId);
+            policyId = newPolicyId;
+        }
+        if (resourceMissing && report.isRepair()) {
+            // Appending resource is idempotent, so all parts of a composite policy can be repaired at once
+            boolean repaired = getOCDPAdminService(serviceDefinitionId).appendResourcesToPolicy(policyId, resource);
+            for (Finding finding : resourceFindings) {
+                finding.setRepaired(repaired);
+            }
+        }
+    }
+
+    /**
+     * Ranger service and instance resource of each part of policy id, in same order as policy id parts
+     * @return null if service not uses ranger policy
+     */
+    private List<PolicyPart> expectedPolicyParts(String serviceDefinitionId, String resource) {
+        String clusterName = clusterConfig.getClusterName();
+        List<PolicyPart> parts = new ArrayList<>();
+        String serviceName = OCDPAdminServiceMapper.getOCDPServiceName(serviceDefinitionId);
+        if ("hdfs".equals(serviceName)) {
+            parts.add(new PolicyPart(clusterName + "_hadoop", OCDPConstants.HDFS_RANGER_RESOURCE_TYPE, resource));
+        } else if ("hbase".equals(serviceName)) {
+            parts.add(new PolicyPart(clusterName + "_hbase", OCDPConstants.HBASE_RANGER_RESOURCE_TYPE, resource + ":*"));
+        } else if ("kafka".equals(serviceName)) {
+            parts.add(new PolicyPart(clusterName + "_kafka", OCDPConstants.KAFKA_RESOURCE_TYPE, resource));
+        } else if ("hive".equals(serviceName)) {
+            String[] resources = resource.split(":");
+            parts.add(new PolicyPart(clusterName + "_hive", OCDPConstants.HIVE_RANGER_RESOURCE_TYPE, resources[0]));
+            parts.add(new PolicyPart(clusterName + "_hadoop", OCDPConstants.HDFS_RANGER_RESOURCE_TYPE,
+                    "/apps/hive/warehouse/" + resources[0] + ".db"));
+            parts.add(new PolicyPart(clusterName + "_yarn", OCDPConstants.YARN_RANGER_RESOURCE_TYPE, resources[1]));
+        } else if ("mr".equals(serviceName) || "spark".equals(serviceName)) {
+            // Hdfs policy only covers history and /user dirs, not a resource of instance
+            parts.add(new PolicyPart(clusterName + "_hadoop", null, null));
+            parts.add(new PolicyPart(clusterName + "_yarn", OCDPConstants.YARN_RANGER_RESOURCE_TYPE, resource));
+        } else {
+            return null;
+        }
+        return parts;
+    }
+
+    private List<String> expectedPolicyNames(ServiceInstance instance) {
+        String serviceName = OCDPAdminServiceMapper.getOCDPServiceName(instance.getServiceDefinitionId());
+        List<String> names = new ArrayList<>();
+        names.add(serviceName + "_" + instance.getServiceInstanceId());
+        if (instance.getOrganizationGuid() != null) {
+            names.add(serviceName + "_" + instance.getOrganizationGuid());
+        }
+        return names;
+    }
+
+    private RangerV2Policy findByName(Map<String, RangerV2Policy> policies, List<String> names) {
+        for (RangerV2Policy policy : policies.values()) {
+            if (names.contains(policy.getPolicyName())) {
+                return policy;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Broker names policies '<ocdp service name>_<instance id or organization guid>', ids are Cloud Foundry guids.
+     * A policy named otherwise, e.g. 'hive_finance' created by an admin, is never taken as broker-owned.
+     */
+    static boolean isBrokerOwned(String policyName) {
+        if (policyName == null) {
+            return false;
+        }
+        for (String serviceDefinitionId : OCDPAdminServiceMapper.getOCDPServiceIds()) {
+            String prefix = OCDPAdminServiceMapper.getOCDPServiceName(serviceDefinitionId) + "_";
+            if (policyName.startsWith(prefix) && GUID.matcher(policyName.substring(prefix.length())).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private OCDPAdminService getOCDPAdminService(String serviceDefinitionId) {
+        return (OCDPAdminService) this.context.getBean(OCDPAdminServiceMapper.getOCDPAdminService(serviceDefinitionId));
+    }
+
+    private static class PolicyPart {
+        final String rangerService;
+        final String resourceType;
+        final String resourceValue;
+
+        PolicyPart(String rangerService, String resourceType, String resourceValue) {
+            this.rangerService = rangerService;
+            this.resourceType = resourceType;
+            this.resourceValue = resourceValue;
+        }
+    }
+}
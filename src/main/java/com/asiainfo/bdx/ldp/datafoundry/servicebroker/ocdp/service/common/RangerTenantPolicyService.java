@@ -0,0 +1,236 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.common;
+
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.etcdClient;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config.ClusterConfig;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.exception.OCDPServiceException;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.OCDPAdminService;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OCDPAdminServiceMapper;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Striped;
+import com.justinsb.etcd.EtcdNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Ranger policies shared by all service instances of a tenant (enabled by RANGER_POLICY_MODE=tenant).
+ * Instead of one policy (or 2-3 policies for hive/mr/spark) per instance, each tenant has one policy per service,
+ * named '<service>_<organization guid>'; resources of instances are appended to and removed from it.
+ * So number of policies downloaded and evaluated by Ranger plugins grows with tenants instead of instances.
+ *
+ * Tenant policy is recorded in etcd:
+ *     /servicebroker/ocdp/tenant/<organization guid>/<service>/rangerPolicyId: policy id;
+ *     /servicebroker/ocdp/tenant/<organization guid>/<service>/instances/<instance id>: resource of instance;
+ *     /servicebroker/ocdp/tenant/<organization guid>/<service>/ldapGroup: LDAP group granted by policy, if created
+ *     in group authorization mode, see {@link LdapGroupAuthzService}.
+ * Policy is deleted together with its last instance.
+ */
+@Service
+public class RangerTenantPolicyService {
+
+    private static final String TENANT_ROOT = "/servicebroker/ocdp/tenant";
+
+    private Logger logger = LoggerFactory.getLogger(RangerTenantPolicyService.class);
+
+    // Serialize changes of same tenant policy, e.g. two instances of a new tenant both creating the policy
+    private final Striped<Lock> tenantLocks = Striped.lock(64);
+
+    private ClusterConfig clusterConfig;
+
+    private etcdClient etcdClient;
+
+    @Autowired
+    private LdapGroupAuthzService groupAuthzService;
+
+    @Autowired
+    public RangerTenantPolicyService(ClusterConfig clusterConfig) {
+        this.clusterConfig = clusterConfig;
+        this.etcdClient = clusterConfig.getEtcdClient();
+    }
+
+    /**
+     * @return true if instances of given tenant should share tenant policy
+     */
+    public boolean isEnabled(String organizationGuid) {
+        return clusterConfig.isRangerTenantPolicyMode() && organizationGuid != null && organizationGuid.length() != 0;
+    }
+
+    /**
+     * @return true if policy is the tenant policy, false for policy of instance created in instance mode
+     * @throws OCDPServiceException if tenant policy can not be read, callers must not treat a shared policy
+     *                              as policy of one instance
+     */
+    public boolean isTenantPolicy(String organizationGuid, String serviceDefinitionId, String policyId) {
+        if (organizationGuid == null || policyId == null) {
+            return false;
+        }
+        String path = tenantPath(organizationGuid, serviceDefinitionId);
+        try {
+            return policyId.equals(etcdClient.readToString(path + "/rangerPolicyId"));
+        } catch (UncheckedIOException e) {
+            logger.error("Read tenant policy of [{}] fail.", path, e);
+            throw new OCDPServiceException("Can not determine whether policy " + policyId + " is a tenant policy: " +
+                    e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * @return LDAP group granted by tenant policy, null if tenant policy not exists or it lists users
+     */
+    public String getLdapGroup(String organizationGuid, String serviceDefinitionId) {
+        return etcdClient.readToString(tenantPath(organizationGuid, serviceDefinitionId) + "/ldapGroup");
+    }
+
+    /**
+     * @return true if tenant policy exists
+     */
+    public boolean hasTenantPolicy(String organizationGuid, String serviceDefinitionId) {
+        return etcdClient.readToString(tenantPath(organizationGuid, serviceDefinitionId) + "/rangerPolicyId") != null;
+    }
+
+    /**
+     * Grant users permissions to resource of instance by tenant policy, tenant policy is created if not exists
+     * @param group LDAP group granted by a new tenant policy instead of users, null to list users by policy;
+     *              users are not appended to an existing policy which grants a group
+     * @return tenant policy id, null if policy create/update fails
+     */
+    public String addInstance(OCDPAdminService ocdp, String organizationGuid, String serviceDefinitionId,
+                              String serviceInstanceId, String resource, List<String> users, String group,
+                              List<String> accesses) {
+        String path = tenantPath(organizationGuid, serviceDefinitionId);
+        Lock lock = tenantLocks.get(path);
+        lock.lock();
+        try {
+            String policyId = etcdClient.readToString(path + "/rangerPolicyId");
+            if (policyId == null) {
+                String policyName = OCDPAdminServiceMapper.getOCDPServiceName(serviceDefinitionId) + "_" + organizationGuid;
+                if (group != null) {
+                    policyId = groupAuthzService.createPolicyForGroup(ocdp, policyName, resource, group, accesses);
+                } else {
+                    policyId = ocdp.createPolicyForResources(policyName, Lists.newArrayList(resource), users,
+                            clusterConfig.getLdapGroup(), accesses);
+                }
+                if (policyId == null) {
+                    logger.error("Create tenant policy [{}] fail.", policyName);
+                    return null;
+                }
+                etcdClient.write(path + "/rangerPolicyId", policyId);
+                if (group != null) {
+                    etcdClient.write(path + "/ldapGroup", group);
+                }
+                logger.info("Tenant policy [{}] created with policy id [{}].", policyName, policyId);
+                // Policy with same name may already exist, e.g. created by another broker, make sure it covers instance
+                if (!ocdp.appendResourcesToPolicy(policyId, resource)) {
+                    return null;
+                }
+            } else {
+                if (!ocdp.appendResourcesToPolicy(policyId, resource)) {
+                    logger.error("Append resource [{}] to tenant policy [{}] fail.", resource, policyId);
+                    return null;
+                }
+                if (etcdClient.readToString(path + "/ldapGroup") == null &&
+                        !ocdp.appendUsersToPolicy(policyId, clusterConfig.getLdapGroup(), users, accesses)) {
+                    logger.error("Append users [{}] to tenant policy [{}] fail.", users, policyId);
+                    return null;
+                }
+            }
+            etcdClient.write(path + "/instances/" + serviceInstanceId, resource);
+            logger.info("Resource [{}] of instance [{}] added to tenant policy [{}].", resource, serviceInstanceId, policyId);
+            return policyId;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Revoke permissions to resource of instance from tenant policy, tenant policy is deleted with its last instance.
+     * Instance is the last one only if instance list was read and contains nothing but this instance.
+     * @return true if resource removed, false if removal or instance list read fails
+     */
+    public boolean removeInstance(OCDPAdminService ocdp, String organizationGuid, String serviceDefinitionId,
+                                  String serviceInstanceId, String policyId, String resource) {
+        String path = tenantPath(organizationGuid, serviceDefinitionId);
+        Lock lock = tenantLocks.get(path);
+        lock.lock();
+        try {
+            List<String> instanceKeys;
+            try {
+                instanceKeys = listInstances(path);
+            } catch (UncheckedIOException e) {
+                logger.error("List instances of tenant policy [{}] fail.", policyId, e);
+                return false;
+            }
+            boolean recorded = false;
+            boolean othersRecorded = false;
+            for (String instanceKey : instanceKeys) {
+                if (instanceKey.endsWith("/" + serviceInstanceId)) {
+                    recorded = true;
+                } else {
+                    othersRecorded = true;
+                }
+            }
+            if (!recorded) {
+                logger.warn("Instance [{}] not recorded in tenant policy [{}], policy is kept.",
+                        serviceInstanceId, policyId);
+            }
+            if (recorded && !othersRecorded) {
+                if (!ocdp.deletePolicyForResources(policyId)) {
+                    logger.error("Delete tenant policy [{}] fail.", policyId);
+                    return false;
+                }
+                String group = etcdClient.readToString(path + "/ldapGroup");
+                if (group != null) {
+                    groupAuthzService.deleteGroup(group);
+                }
+                etcdClient.deleteDir(path, true);
+                logger.info("Tenant policy [{}] deleted with its last instance [{}].", policyId, serviceInstanceId);
+                return true;
+            }
+            if (!ocdp.removeResourceFromPolicy(policyId, resource)) {
+                logger.error("Remove resource [{}] from tenant policy [{}] fail.", resource, policyId);
+                return false;
+            }
+            etcdClient.delete(path + "/instances/" + serviceInstanceId);
+            logger.info("Resource [{}] of instance [{}] removed from tenant policy [{}].", resource, serviceInstanceId, policyId);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return ids of all policies recorded as tenant policy, composite ids are split
+     * @throws java.io.UncheckedIOException if tenant policies can not be listed from etcd
+     */
+    public Set<String> listTenantPolicyIds() {
+        Set<String> policyIds = new HashSet<>();
+        for (EtcdNode tenant : etcdClient.listDir(TENANT_ROOT)) {
+            for (EtcdNode service : etcdClient.listDir(tenant.key)) {
+                String policyId = etcdClient.readToString(service.key + "/rangerPolicyId");
+                if (policyId != null) {
+                    Collections.addAll(policyIds, policyId.split(":"));
+                }
+            }
+        }
+        return policyIds;
+    }
+
+    private List<String> listInstances(String path) {
+        List<String> keys = Lists.newArrayList();
+        etcdClient.listDir(path + "/instances").forEach(node -> keys.add(node.key));
+        return keys;
+    }
+
+    private static String tenantPath(String organizationGuid, String serviceDefinitionId) {
+        return TENANT_ROOT + "/" + organizationGuid + "/" +
+                OCDPAdminServiceMapper.getOCDPServiceName(serviceDefinitionId);
+    }
+}
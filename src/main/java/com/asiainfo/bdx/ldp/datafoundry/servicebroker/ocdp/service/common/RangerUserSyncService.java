@@ -0,0 +1,161 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import javax.annotation.PreDestroy;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.rangerClient;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config.ClusterConfig;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.exception.OperationTimeoutException;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.OperationProgress;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.BrokerMetrics;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OperationDeadline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Readiness check of users and groups in Ranger.
+ * New LDAP users and groups can not be granted permissions by Ranger policy until Ranger usersync picks them up,
+ * so before policy create/update broker polls Ranger for the users with exponential backoff and jitter.
+ * No thread is held while waiting: user checks are non-blocking requests, and next check is scheduled on a timer,
+ * so that operation waiting for usersync is parked and resumed once all users appear.
+ */
+@Service
+public class RangerUserSyncService {
+
+    private Logger logger = LoggerFactory.getLogger(RangerUserSyncService.class);
+
+    // Users already known by Ranger, usersync never removes them while broker runs
+    private final Set<String> knownUsers = ConcurrentHashMap.newKeySet();
+
+    // Groups already known by Ranger
+    private final Set<String> knownGroups = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ocdp-ranger-usersync");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private rangerClient rc;
+
+    private long initialBackoff;
+
+    private long maxBackoff;
+
+    @Autowired
+    public RangerUserSyncService(ClusterConfig clusterConfig) {
+        this.rc = clusterConfig.getRangerClient();
+        this.initialBackoff = clusterConfig.getRangerUsersyncInitialBackoff();
+        this.maxBackoff = clusterConfig.getRangerUsersyncMaxBackoff();
+    }
+
+    /**
+     * Wait until all users are known by Ranger
+     * @param users user names
+     * @param progress progress of operation, each check which misses users is recorded as one retry
+     * @return future completes when all users appear, or completes exceptionally with OperationTimeoutException
+     *         if users not appear before operation deadline
+     */
+    public CompletableFuture<Void> waitForUsers(List<String> users, OperationProgress progress) {
+        return waitFor("Users", users, knownUsers, rc::userExistsAsync, progress);
+    }
+
+    /**
+     * Wait until all groups are known by Ranger, like waitForUsers
+     * @param groups group names
+     */
+    public CompletableFuture<Void> waitForGroups(List<String> groups, OperationProgress progress) {
+        return waitFor("Groups", groups, knownGroups, rc::groupExistsAsync, progress);
+    }
+
+    /**
+     * Delay before next attempt of a backend call, grows exponentially up to max backoff,
+     * jitter spreads attempts of concurrent operations.
+     * @param attempt number of attempts already made, starting from 0
+     */
+    public long backoffMillis(int attempt) {
+        long delay = Math.min(maxBackoff, initialBackoff << Math.min(attempt, 20));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private CompletableFuture<Void> waitFor(String kind, List<String> names, Set<String> known,
+                                            Function<String, CompletableFuture<Boolean>> exists,
+                                            OperationProgress progress) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        List<String> pending = new ArrayList<>();
+        for (String name : names) {
+            if (!known.contains(name)) {
+                pending.add(name);
+            }
+        }
+        if (pending.isEmpty()) {
+            result.complete(null);
+            return result;
+        }
+        long startTime = System.currentTimeMillis();
+        check(kind, pending, known, exists, progress, 0, result);
+        return result.whenComplete((v, e) -> {
+            long waited = System.currentTimeMillis() - startTime;
+            BrokerMetrics.record("ranger.usersync.wait", waited);
+            if (e == null) {
+                logger.info(kind + " " + pending + " synced to Ranger after " + waited + " ms.");
+            }
+        });
+    }
+
+    private void check(String kind, List<String> pending, Set<String> known,
+                       Function<String, CompletableFuture<Boolean>> exists, OperationProgress progress, int attempt,
+                       CompletableFuture<Void> result) {
+        List<CompletableFuture<Boolean>> checks = new ArrayList<>();
+        for (String name : pending) {
+            checks.add(exists.apply(name));
+        }
+        CompletableFuture.allOf(checks.toArray(new CompletableFuture<?>[0])).whenComplete((v, e) -> {
+            List<String> stillPending = new ArrayList<>();
+            for (int i = 0; i < pending.size(); i++) {
+                if (Boolean.TRUE.equals(checks.get(i).getNow(false))) {
+                    known.add(pending.get(i));
+                } else {
+                    stillPending.add(pending.get(i));
+                }
+            }
+            if (stillPending.isEmpty()) {
+                result.complete(null);
+                return;
+            }
+            OperationDeadline deadline = progress.getDeadline();
+            if (result.isDone() || deadline.isExpired()) {
+                result.completeExceptionally(new OperationTimeoutException(
+                        kind + " " + stillPending + " not synced to Ranger before operation deadline."));
+                return;
+            }
+            progress.retry();
+            long delay = Math.min(backoffMillis(attempt), deadline.remainingMillis());
+            logger.debug(kind + " " + stillPending + " not synced to Ranger yet, check again after " + delay + " ms.");
+            try {
+                scheduler.schedule(() -> check(kind, stillPending, known, exists, progress, attempt + 1, result),
+                        delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ex) {
+                result.completeExceptionally(ex);
+            }
+        });
+    }
+}
@@ -0,0 +1,166 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.common;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config.ClusterConfig;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.exception.OCDPServiceException;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Short-lived dedup table for broker requests retried by Cloud Controller.
+ * Requests are fingerprinted by (instance id, operation, plan, parameters). A duplicate request either
+ * attaches to the in-flight request with same fingerprint, or returns its stored result within TTL,
+ * instead of doing backend work again.
+ */
+@Service
+public class RequestDedupService {
+
+    private Logger logger = LoggerFactory.getLogger(RequestDedupService.class);
+
+    static final Gson gson = new GsonBuilder().create();
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private long ttlMillis;
+
+    @Autowired
+    public RequestDedupService(ClusterConfig clusterConfig) {
+        this.ttlMillis = clusterConfig.getRequestDedupTtlSeconds() * 1000L;
+    }
+
+    /**
+     * Build request fingerprint
+     * @param id service instance id (or instance id + binding id for bind)
+     * @param operation operation name, e.g. provision/update/bind
+     * @param planId plan id
+     * @param params request parameters
+     * @return hex encoded sha-256 of request content
+     */
+    public static String fingerprint(String id, String operation, String planId, Map<String, Object> params) {
+        // Sort parameters so that same parameters always produce same fingerprint
+        String paramsStr = (params == null) ? "" : gson.toJson(new TreeMap<>(params));
+        String content = id + "\n" + operation + "\n" + planId + "\n" + paramsStr;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest(content.getBytes(StandardCharsets.UTF_8))) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Execute request once per fingerprint within TTL.
+     * @param fingerprint request fingerprint
+     * @param request request handling logic
+     * @return result of request, or result of the in-flight/completed duplicate request
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String fingerprint, Supplier<T> request) {
+        purgeExpired();
+        Entry entry = new Entry();
+        while (true) {
+            Entry existing = entries.putIfAbsent(fingerprint, entry);
+            if (existing == null) {
+                break;
+            }
+            if (existing.isStale()) {
+                // Replace stale entry atomically, retry if another request replaced it first
+                if (entries.replace(fingerprint, existing, entry)) {
+                    break;
+                }
+                continue;
+            }
+            logger.info("Duplicate request [{}], attach to previous request.", fingerprint);
+            return (T) existing.await();
+        }
+        try {
+            T result = request.get();
+            entry.expireTime = System.currentTimeMillis() + ttlMillis;
+            entry.result.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            // Failed request is not cached, so that a retry does the work again
+            entries.remove(fingerprint, entry);
+            entry.result.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Attach async backend operation to request, a failed operation invalidates stored result of request.
+     * @param fingerprint request fingerprint
+     * @param operation async operation started by request
+     */
+    public void attachOperation(String fingerprint, Future<?> operation) {
+        Entry entry = entries.get(fingerprint);
+        if (entry != null) {
+            entry.operation = operation;
+        }
+    }
+
+    private void purgeExpired() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            if (e.getValue().isStale()) {
+                entries.remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    private static class Entry {
+        final CompletableFuture<Object> result = new CompletableFuture<>();
+        // 0 means request still in flight
+        volatile long expireTime;
+        volatile Future<?> operation;
+
+        boolean isStale() {
+            if (expireTime != 0 && System.currentTimeMillis() > expireTime) {
+                return true;
+            }
+            Future<?> op = operation;
+            if (op == null || !op.isDone()) {
+                return false;
+            }
+            try {
+                op.get();
+                return false;
+            } catch (Exception e) {
+                return true;
+            }
+        }
+
+        Object await() {
+            try {
+                return result.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new OCDPServiceException(e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new OCDPServiceException("Interrupted while waiting for duplicate request.");
+            }
+        }
+    }
+}
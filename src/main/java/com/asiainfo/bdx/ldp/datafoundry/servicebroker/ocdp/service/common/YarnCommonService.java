@@ -9,22 +9,29 @@ import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.exception.OCDPService
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.CapacitySchedulerConfig;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.RangerV2Policy;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.ServiceInstance;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.BrokerMetrics;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OCDPAdminServiceMapper;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OCDPConstants;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.YarnCapacityCalculator;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.YarnQueueTree;
 import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Created by baikai on 8/5/16.
@@ -49,7 +56,19 @@ public class YarnCommonService {
 
     private yarnClient yClient;
 
-    private YarnCapacityCalculator capacityCalculator;
+    // Applies concurrent queue changes by one capacity-scheduler update
+    private YarnQueueChangeBatcher queueChanges;
+
+    // Capacity-scheduler config of last known desired tag, copied for each calculation
+    private volatile CapacitySchedulerSnapshot csSnapshot;
+
+    // Total memory of cluster in MB, sampled periodically from Yarn RM
+    private volatile String clusterTotalMemory;
+
+    // Base tag of last failed config update and number of failed updates on it, changed only by queue change commits
+    private String failedBaseTag;
+
+    private int failedUpdates;
 
     @Autowired
     public YarnCommonService (ClusterConfig clusterConfig) throws IOException{
@@ -60,32 +79,73 @@ public class YarnCommonService {
         this.ambClient = clusterConfig.getAmbariClient();
 
         this.yClient = clusterConfig.getYarnClient();
+
+        this.queueChanges = new YarnQueueChangeBatcher(clusterConfig.getYarnQueueBatchWindow(),
+                this::renewCapacityCaculater, this::updateCapacityScheduler);
     }
 
-    public synchronized String createQueue(String quota) throws IOException{
-        String queue_suffix;
-        String queuePath;
-        logger.info("Try to calculate queue capacity using quota [{}] GB", quota);
+    public String createQueue(String quota) throws IOException{
+        return createQueues(Lists.newArrayList(quota)).get(0);
+    }
+
+    /**
+     * Create queues with one capacity-scheduler config update and one queue refresh,
+     * shared with queue changes of concurrent operations.
+     * Either all queues are created or none of them.
+     * @param quotas queue quotas in GB
+     * @return queue paths, in same order as quotas
+     */
+    public List<String> createQueues(List<String> quotas) throws IOException{
+        logger.info("Try to calculate queue capacity using quotas {} GB", quotas);
+        List<String> queuePaths;
         try {
-            renewCapacityCaculater();
-            queue_suffix = capacityCalculator.applyQueue(new Long(quota));
-            if(queue_suffix == null)
-                throw new OCDPServiceException("Not Enough Queue Capacity to apply!");
-            queuePath = "root."+queue_suffix;
+            queuePaths = queueChanges.submit(capacityCalculator -> {
+                List<String> newQueuePaths = new ArrayList<>();
+                for (String quota : quotas){
+                    String queue_suffix = capacityCalculator.applyQueue(new Long(quota));
+                    if(queue_suffix == null)
+                        throw new OCDPServiceException("Not Enough Queue Capacity to apply!");
+                    newQueuePaths.add("root."+queue_suffix);
+                }
+                return newQueuePaths;
+            });
         }catch (Exception e){
             e.printStackTrace();
             throw e;
         }
-        logger.info("Name of new queue: " + queuePath);
-        ambClient.updateCapacitySchedulerConfig(this.capacityCalculator.getProperties(),clusterConfig.getClusterName());
-        ambClient.refreshYarnQueue(clusterConfig.getYarnRMHost());
+        logger.info("Name of new queues: " + queuePaths);
         logger.info("Queue capacity refreshing...");
-        return queuePath;
+        return queuePaths;
     }
 
-    public synchronized String assignPermissionToQueue(String policyName, final String queueName, List<String> userList,
-                                                       String groupName, List<String> permissions){
-        String policyId = null;
+    public String assignPermissionToQueue(String policyName, final String queueName, List<String> userList,
+                                          String groupName, List<String> permissions){
+        return assignPermissionToQueueAsync(policyName, queueName, userList, groupName, permissions, null).join();
+    }
+
+    /**
+     * Create yarn policy without blocking, so that it can be created together with policies of other services
+     * @param createdIds id of policy is added to it if created by this call, see rangerClient.createV2PolicyAsync
+     * @return future of policy id, completes with null if create fails
+     */
+    public CompletableFuture<String> assignPermissionToQueueAsync(String policyName, final String queueName,
+                                                                  List<String> userList, String groupName,
+                                                                  List<String> permissions, Set<String> createdIds){
+        RangerV2Policy rp = buildQueuePolicy(policyName, queueName, userList, groupName, permissions);
+        return rc.createV2PolicyAsync(rp.getServiceName(), rp, createdIds).thenApply(newPolicy -> {
+            if (newPolicy != null){
+                return newPolicy.getPolicyId();
+            }
+            logger.error("Failed to assign permissions to yarn queue [{}] for user [{}]." ,queueName, userList.toString());
+            return null;
+        });
+    }
+
+    /**
+     * Build yarn policy of queue, policy is not created
+     */
+    public RangerV2Policy buildQueuePolicy(String policyName, String queueName, List<String> userList,
+                                           String groupName, List<String> permissions){
         String serviceName = clusterConfig.getClusterName()+"_yarn";
         ArrayList<String> queueList = Lists.newArrayList(queueName);
         ArrayList<String> groupList = Lists.newArrayList(groupName);
@@ -100,76 +160,65 @@ public class YarnCommonService {
         } else {
             rp.addPolicyItems(userList,groupList,conditions,false,permissions);
         }
-        String newPolicyString = rc.createV2Policy(serviceName, rp);
-        if (newPolicyString != null){
-            RangerV2Policy newPolicyObj = gson.fromJson(newPolicyString, RangerV2Policy.class);
-            policyId = newPolicyObj.getPolicyId();
-        }
-        else {
-            logger.error("Failed to assign permissions to yarn queue [{}] for user [{}]." ,queueName, userList.toString());
-        }
-        return policyId;
+        return rp;
     }
-//not used
-    public boolean appendResourceToQueuePermission(String policyId, String queueName) {
-        boolean updateResult = rc.appendResourceToV2Policy(policyId, queueName, OCDPConstants.YARN_RANGER_RESOURCE_TYPE);
-        if(updateResult){
-            List<String> users = rc.getUsersFromV2Policy(policyId);
-            if(users.size() >= 1){
-                for (String user : users){
-                    capacityCalculator.addQueueMapping(user, queueName);
-                    logger.info("Add queue mapping: user = " + user +", queueName = " + queueName);
-                }
-                ambClient.updateCapacitySchedulerConfig(this.capacityCalculator.getProperties(),clusterConfig.getClusterName());
-                ambClient.refreshYarnQueue(clusterConfig.getYarnRMHost());
-                logger.info("Queue capacity refreshing...");
 
-            }
-        }
-        return updateResult;
+    /**
+     * Grant users of policy permissions to one more queue, e.g. queue of new instance in tenant policy.
+     * Users of a tenant own many queues, so no user-to-queue mapping is added.
+     */
+    public boolean appendResourceToQueuePermission(String policyId, String queueName) {
+        return rc.appendResourceToV2Policy(policyId, queueName, OCDPConstants.YARN_RANGER_RESOURCE_TYPE);
     }
 
     public boolean appendUsersToQueuePermission(String policyId, String groupName, List<String> users, List<String> permissions){
         return rc.appendUsersToV2Policy(policyId, groupName, users, permissions);
     }
 
-    public synchronized void deleteQueue(String queueName){
+    public void deleteQueue(String queueName){
         try{
-            renewCapacityCaculater();
-            capacityCalculator.revokeQueue(queueName);
-            ambClient.updateCapacitySchedulerConfig(capacityCalculator.getProperties(),clusterConfig.getClusterName());
-            ambClient.refreshYarnQueue(clusterConfig.getYarnRMHost());
-            logger.info("Refreshing yarn queues...");
+            deleteQueues(Lists.newArrayList(queueName));
         }catch (Exception e){
             e.printStackTrace();
         }
     }
 
-    public boolean unassignPermissionFromQueue(String policyId){
-        if (rc.getV2PolicyById(policyId) != null) {
-            logger.info("Unassign submit/admin permission to yarn queue.");
-            return this.rc.removeV2Policy(policyId);
-        }
-        else {
-            logger.warn("ranger policy " + policyId + " doesn't exist, do not need to remove");
-            return true;
+    /**
+     * Revoke queues with one capacity-scheduler config update and one queue refresh,
+     * shared with queue changes of concurrent operations.
+     * Revoking a queue already revoked is a no-op, so failed revoke can be retried with the same queues.
+     * @param queueNames queue paths, e.g. root.queue1
+     * @throws OCDPServiceException if config update or queue refresh fails
+     */
+    public void deleteQueues(List<String> queueNames){
+        try{
+            queueChanges.submit(capacityCalculator -> {
+                for (String queueName : queueNames){
+                    capacityCalculator.revokeQueue(queueName);
+                }
+                return null;
+            });
+            logger.info("Refreshing yarn queues...");
+        }catch (RuntimeException e){
+            logger.error("Revoke yarn queues " + queueNames + " fail due to: " + e.getMessage());
+            throw new OCDPServiceException("Revoke yarn queues fail due to: " + e.getMessage());
         }
     }
-//not used
+
+    public boolean unassignPermissionFromQueue(String policyId){
+        return unassignPermissionFromQueueAsync(policyId).join();
+    }
+
+    /**
+     * Delete yarn policy without blocking, so that it can be deleted together with policies of other services
+     * @return future of delete result, true if policy not exists
+     */
+    public CompletableFuture<Boolean> unassignPermissionFromQueueAsync(String policyId){
+        logger.info("Unassign submit/admin permission to yarn queue.");
+        return this.rc.removeV2PolicyIfExistsAsync(policyId);
+    }
     public boolean removeResourceFromQueuePermission(String policyId, String queueName){
-        boolean updateResult = rc.removeResourceFromV2Policy(policyId, queueName, OCDPConstants.YARN_RANGER_RESOURCE_TYPE);
-        if(updateResult){
-            renewCapacityCaculater();
-            List<String> users = rc.getUsersFromV2Policy(policyId);
-            if(users.size() >= 1){
-                for (String user : users){
-                    this.capacityCalculator.removeQueueMapping(user, queueName);
-                }
-                ambClient.updateCapacitySchedulerConfig(this.capacityCalculator.getProperties(),clusterConfig.getClusterName());
-                ambClient.refreshYarnQueue(clusterConfig.getYarnRMHost());
-            }
-        }
-        return updateResult;
+        return rc.removeResourceFromV2Policy(policyId, queueName, OCDPConstants.YARN_RANGER_RESOURCE_TYPE);
     }
 
     public boolean removeUserFromQueuePermission(String policyId, String userName){
@@ -187,7 +236,6 @@ public class YarnCommonService {
     }
 
     public void resizeResourceQuota(ServiceInstance instance, Map<String, Object> cuzQuota){
-        renewCapacityCaculater();
         String serviceDefinitionId = instance.getServiceDefinitionId();
         String planId = instance.getPlanId();
         Map<String, String> quota = getQuotaFromPlan(serviceDefinitionId, planId, cuzQuota);
@@ -197,19 +245,139 @@ public class YarnCommonService {
         	queueName = queueName.split(":")[1];
         }
         logger.info("Resizing queue " + queueName + "...");
-        capacityCalculator.updateQueue(queueName, new Long(quota.get(OCDPConstants.YARN_QUEUE_QUOTA)));
-        ambClient.updateCapacitySchedulerConfig(capacityCalculator.getProperties(),clusterConfig.getClusterName());
-        ambClient.refreshYarnQueue(clusterConfig.getYarnRMHost());
+        String queueToResize = queueName;
+        queueChanges.submit(capacityCalculator -> {
+            capacityCalculator.updateQueue(queueToResize, new Long(quota.get(OCDPConstants.YARN_QUEUE_QUOTA)));
+            return null;
+        });
         logger.info("Resizing queue " + queueName + " successfully to " + quota.get(OCDPConstants.YARN_QUEUE_QUOTA));
     }
 
-    private void renewCapacityCaculater(){
-        String csConfig = ambClient.getCapacitySchedulerConfig(clusterConfig.getYarnRMHost());
+    /**
+     * Sample total memory of cluster, capacities of queues are calculated from latest sample.
+     * Last sample is kept if Yarn RM is not reachable.
+     */
+    @Scheduled(initialDelay = 10000, fixedDelayString = "${YARN_METRICS_REFRESH_INTERVAL_MS:60000}")
+    public void refreshClusterMemory(){
+        synchronized (yClient){
+            try {
+                yClient.getClusterMetrics();
+                this.clusterTotalMemory = String.valueOf(Double.parseDouble(yClient.getTotalMemory()));
+            } catch (RuntimeException e){
+                logger.warn("Sample yarn cluster metrics fail, keep last sample: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Keep spare zero-capacity queues under root up to configured size, so that queue create of provision only
+     * changes capacities of an existing queue. Missing queues are added by one capacity-scheduler update, only
+     * while no other queue change is in flight, so that refill never delays provisions.
+     */
+    @Scheduled(initialDelay = 10000, fixedDelayString = "${YARN_SPARE_QUEUE_REFILL_INTERVAL_MS:60000}")
+    public void refillSpareQueues(){
+        int poolSize = this.clusterConfig.getYarnSpareQueuePoolSize();
+        if (poolSize <= 0 || !queueChanges.isIdle()){
+            return;
+        }
+        try {
+            if (renewCapacityCaculater().countFreeQueues() >= poolSize){
+                return;
+            }
+            List<String> added = queueChanges.submit(capacityCalculator ->
+                    capacityCalculator.addFreeQueues(Math.max(0, poolSize - capacityCalculator.countFreeQueues())));
+            if (!added.isEmpty()){
+                logger.info("Refill spare yarn queues with " + added.size() + " queues: " + added);
+                BrokerMetrics.increment("yarn.spare_queue.created", added.size());
+            }
+        } catch (RuntimeException e){
+            logger.error("Refill spare yarn queues fails due to: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * @return calculator of current capacity-scheduler config and latest cluster memory sample
+     */
+    private YarnCapacityCalculator renewCapacityCaculater(){
+        CapacitySchedulerSnapshot snapshot = loadCapacityScheduler();
+        if (clusterTotalMemory == null){
+            refreshClusterMemory();
+        }
+        if (clusterTotalMemory == null){
+            throw new OCDPServiceException("Yarn cluster metrics not available.");
+        }
+        return new YarnCapacityCalculator(clusterTotalMemory, snapshot.queues.copy(), snapshot.tag);
+    }
+
+    /**
+     * Capacity-scheduler config is validated by its desired tag in Ambari, it is only fetched and parsed again
+     * when tag changes, e.g. config updated by another broker or by hand.
+     */
+    private CapacitySchedulerSnapshot loadCapacityScheduler(){
+        String tag = ambClient.getCapacitySchedulerDesiredTag();
+        CapacitySchedulerSnapshot snapshot = this.csSnapshot;
+        if (tag != null && snapshot != null && tag.equals(snapshot.tag)){
+            BrokerMetrics.increment("yarn.capacity_scheduler.cache_hit");
+            return snapshot;
+        }
+        BrokerMetrics.increment("yarn.capacity_scheduler.cache_miss");
+        String csConfig = (tag != null) ? ambClient.getCapacitySchedulerConfigByTag(tag) :
+                ambClient.getCapacitySchedulerConfig(clusterConfig.getYarnRMHost());
         logger.info("Get Capacity-scheduler Config from ambari: " + csConfig);
         CapacitySchedulerConfig csActualConfig = gson.fromJson(csConfig, CapacitySchedulerConfig.class);
-        yClient.getClusterMetrics();
-        String clusterTotalMemory = yClient.getTotalMemory();
-        this.capacityCalculator = new YarnCapacityCalculator(clusterTotalMemory,csActualConfig);
+        CapacitySchedulerConfig.Configs configs = csActualConfig.getItems().get(0);
+        snapshot = new CapacitySchedulerSnapshot(configs.getTag(), YarnQueueTree.parse(configs.getProperties()));
+        this.csSnapshot = snapshot;
+        return snapshot;
+    }
+
+    /**
+     * PUT properties of capacity calculator as new desired config and refresh queues. The config put is cached
+     * with its tag so that next queue operation needs not fetch it again.
+     *
+     * Calculator is loaded in the same batch commit just before, by the desired tag read then, so the tag is not
+     * read again here: a commit costs one desired tag GET, one config GET only if the tag changed, one PUT and
+     * one queue refresh.
+     * New tag is derived from base tag only, and Ambari rejects a tag which already exists, so of brokers updating
+     * same base version concurrently only the first succeeds, instead of the last silently overwriting the others.
+     * @return true if updated, false on conflict with another update
+     */
+    private boolean updateCapacityScheduler(YarnCapacityCalculator capacityCalculator){
+        String baseTag = capacityCalculator.getConfigTag();
+        // Derived tag may be taken by an earlier failed update on same base, e.g. config reverted to base by hand
+        int attempt = (baseTag != null && baseTag.equals(failedBaseTag)) ? failedUpdates : 0;
+        String tag = nextConfigTag(baseTag, attempt);
+        Map<String, String> properties = capacityCalculator.getProperties();
+        String result = ambClient.updateCapacitySchedulerConfig(properties, clusterConfig.getClusterName(), tag);
+        if (result == null){
+            logger.warn("Update capacity-scheduler config [{}] based on [{}] fail.", tag, baseTag);
+            BrokerMetrics.increment("yarn.capacity_scheduler.conflict");
+            this.csSnapshot = null;
+            this.failedBaseTag = baseTag;
+            this.failedUpdates = attempt + 1;
+            return false;
+        }
+        this.csSnapshot = new CapacitySchedulerSnapshot(tag, capacityCalculator.getQueueTree().copy());
+        ambClient.refreshYarnQueue(clusterConfig.getYarnRMHost());
+        return true;
+    }
+
+    private static String nextConfigTag(String baseTag, int attempt){
+        String seed = (attempt == 0) ? String.valueOf(baseTag) : baseTag + "#" + attempt;
+        return "ocdp_" + Hashing.md5().hashBytes(seed.getBytes(Charset.forName("UTF-8"))).toString().substring(0, 16);
+    }
+
+    /**
+     * Parsed capacity-scheduler config of one config version, never changed, calculators work on copies
+     */
+    private static class CapacitySchedulerSnapshot {
+        final String tag;
+        final YarnQueueTree queues;
+
+        CapacitySchedulerSnapshot(String tag, YarnQueueTree queues) {
+            this.tag = tag;
+            this.queues = queues;
+        }
     }
 
 }
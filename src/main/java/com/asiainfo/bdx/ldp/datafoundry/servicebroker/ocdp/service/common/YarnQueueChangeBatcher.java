@@ -0,0 +1,214 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.exception.OCDPServiceException;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.BrokerMetrics;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OperationDeadline;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.YarnCapacityCalculator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Group commit of yarn queue changes (queue allocations, revocations and resizes).
+ * Changes arriving within a short window are applied to one capacity-scheduler config, which is put to Ambari
+ * by one update followed by one queue refresh, then all callers of the batch complete together.
+ * So concurrent hive/mr/spark provisions share one config version instead of queueing for a version each.
+ *
+ * The first caller of a batch becomes its leader: it waits for the window, then applies changes of all callers
+ * in arrival order, like {@link com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.RangerPolicyMutationQueue}.
+ * Each change runs on a copy of the config, so a failing change (e.g. not enough capacity) fails only its caller.
+ * The batch is always committed, without the deadline of its leader, so a leader out of time never strands the
+ * changes of other callers.
+ *
+ * Config put is conditioned on the config version changes were applied to. If another broker (or a manual edit)
+ * changed config in between, commit reports a conflict, and changes are applied again to the new config and
+ * committed again, so that concurrent writers never overwrite each other's queues.
+ */
+public class YarnQueueChangeBatcher {
+
+    // Commits of a batch before giving up on conflicts
+    private static final int COMMIT_ATTEMPTS = 5;
+
+    private Logger logger = LoggerFactory.getLogger(YarnQueueChangeBatcher.class);
+
+    private final Object pendingLock = new Object();
+
+    private Batch pending;
+
+    // Serialize commits, so that a batch starts from config written by previous batch
+    private final ReentrantLock commitLock = new ReentrantLock();
+
+    private final long windowMillis;
+
+    private final Supplier<YarnCapacityCalculator> loader;
+
+    private final Function<YarnCapacityCalculator, Boolean> committer;
+
+    /**
+     * @param windowMillis how long a batch collects changes, 0 disables batching
+     * @param loader loads calculator of current capacity-scheduler config
+     * @param committer puts config of calculator to Ambari and refreshes queues if config is still the version
+     *                  calculator was loaded from, returns false on conflict
+     */
+    public YarnQueueChangeBatcher(long windowMillis, Supplier<YarnCapacityCalculator> loader,
+                                  Function<YarnCapacityCalculator, Boolean> committer) {
+        this.windowMillis = windowMillis;
+        this.loader = loader;
+        this.committer = committer;
+    }
+
+    /**
+     * Apply change to capacity-scheduler config together with other pending changes
+     * @param change changes calculator, returns result for caller; throws to reject change
+     * @return result of change once config with change is put and queues refreshed
+     */
+    public <T> T submit(Function<YarnCapacityCalculator, T> change) {
+        Change<T> entry = new Change<>(change);
+        Batch batch;
+        boolean leader = false;
+        synchronized (pendingLock) {
+            batch = pending;
+            if (batch == null) {
+                batch = new Batch();
+                pending = batch;
+                leader = true;
+            }
+            batch.changes.add(entry);
+        }
+        if (leader) {
+            try {
+                if (windowMillis > 0) {
+                    // Not bounded by deadline of leader, changes of other callers must not wait on an expired batch
+                    Thread.sleep(windowMillis);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                // Always commit the batch, other callers are waiting for it
+                Batch closing = batch;
+                OperationDeadline.detached(() -> {
+                    commit(closing);
+                    return null;
+                });
+            }
+        }
+        try {
+            return entry.result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if no change is waiting or being committed, e.g. for background changes during quiet periods
+     */
+    public boolean isIdle() {
+        synchronized (pendingLock) {
+            if (pending != null) {
+                return false;
+            }
+        }
+        return !commitLock.isLocked();
+    }
+
+    private void commit(Batch batch) {
+        commitLock.lock();
+        try {
+            // Close batch only now, changes arriving while previous batch is committed still join this one
+            synchronized (pendingLock) {
+                if (pending == batch) {
+                    pending = null;
+                }
+            }
+            if (batch.changes.size() > 1) {
+                BrokerMetrics.increment("yarn.queue_change.coalesced", batch.changes.size() - 1);
+            }
+            long start = System.currentTimeMillis();
+            try {
+                for (int attempt = 1; !apply(batch); attempt++) {
+                    if (attempt >= COMMIT_ATTEMPTS) {
+                        throw new OCDPServiceException("Capacity-scheduler config changed by others during " +
+                                attempt + " attempts of yarn queue changes.");
+                    }
+                    logger.warn("Capacity-scheduler config conflict, apply {} yarn queue changes again.",
+                            batch.changes.size());
+                    BrokerMetrics.increment("yarn.queue_change.retry");
+                }
+            } catch (RuntimeException e) {
+                logger.error("Commit of {} yarn queue changes fail: " + e.getMessage(), batch.changes.size());
+                for (Change<?> change : batch.changes) {
+                    change.result.completeExceptionally(e);
+                }
+                return;
+            } finally {
+                BrokerMetrics.record("yarn.queue_change.commit", System.currentTimeMillis() - start);
+            }
+            for (Change<?> change : batch.changes) {
+                change.complete();
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Apply changes to current config and commit it
+     * @return false on conflict
+     */
+    private boolean apply(Batch batch) {
+        YarnCapacityCalculator calculator = loader.get();
+        boolean changed = false;
+        for (Change<?> change : batch.changes) {
+            YarnCapacityCalculator trial = calculator.copy();
+            try {
+                change.apply(trial);
+                calculator = trial;
+                changed = true;
+            } catch (RuntimeException e) {
+                logger.error("Yarn queue change rejected: " + e.getMessage());
+                change.error = e;
+            }
+        }
+        return !changed || committer.apply(calculator);
+    }
+
+    private static class Batch {
+        final List<Change<?>> changes = new ArrayList<>();
+    }
+
+    private static class Change<T> {
+        final Function<YarnCapacityCalculator, T> action;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        // Result of action, returned to caller once config is committed
+        T value;
+        // Set if action rejected change on last attempt
+        RuntimeException error;
+
+        Change(Function<YarnCapacityCalculator, T> action) {
+            this.action = action;
+        }
+
+        void apply(YarnCapacityCalculator calculator) {
+            error = null;
+            value = action.apply(calculator);
+        }
+
+        void complete() {
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(value);
+            }
+        }
+    }
+}
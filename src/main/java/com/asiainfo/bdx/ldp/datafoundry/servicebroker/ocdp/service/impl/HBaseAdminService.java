@@ -6,10 +6,12 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.CircuitBreaker;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OCDPAdminServiceMapper;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OCDPConstants;
 import com.google.common.collect.Lists;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.DoNotRetryIOException;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.NamespaceDescriptor;
@@ -23,6 +25,8 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
+
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.rangerClient;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config.CatalogConfig;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config.ClusterConfig;
@@ -30,8 +34,6 @@ import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.RangerV2Policy;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.ServiceInstance;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.OCDPAdminService;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.BrokerUtil;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 
 /**
  * Created by baikai on 5/19/16.
@@ -41,8 +43,6 @@ public class HBaseAdminService implements OCDPAdminService{
 
     private Logger logger = LoggerFactory.getLogger(HBaseAdminService.class);
 
-    static final Gson gson = new GsonBuilder().create();
-
     @Autowired
     private ApplicationContext context;
 
@@ -52,6 +52,7 @@ public class HBaseAdminService implements OCDPAdminService{
 
     private Configuration conf;
 
+    // Shared by all threads, hbase connection is thread-safe and heavy to create (zookeeper session, meta lookup)
     private Connection connection;
 
     private static final List<String> ACCESSES = Lists.newArrayList("read", "write", "create", "admin");
@@ -79,23 +80,18 @@ public class HBaseAdminService implements OCDPAdminService{
         String nsName = serviceInstanceId.replaceAll("-", "");
         Map<String, String> quota = this.getQuotaFromPlan(serviceDefinitionId, planId, cuzQuota);
         try{
-            BrokerUtil.authentication(
-                    this.conf, this.clusterConfig.getHbaseMasterPrincipal(), this.clusterConfig.getHbaseMasterUserKeytab());
-            this.connection = ConnectionFactory.createConnection(conf);
-            Admin admin = this.connection.getAdmin();
-            NamespaceDescriptor namespaceDescriptor = NamespaceDescriptor.create(nsName).build();
-            namespaceDescriptor.setConfiguration(
-                    "hbase.namespace.quota.maxtables", quota.get(OCDPConstants.HBASE_NAMESPACE_TABLE_QUOTA));
-            namespaceDescriptor.setConfiguration(
-                    "hbase.namespace.quota.maxregions", quota.get(OCDPConstants.HBASE_NAMESPACE_REGION_QUOTA));
-            admin.createNamespace(namespaceDescriptor);
-            admin.close();
+            doAsSuperUser(admin -> {
+                NamespaceDescriptor namespaceDescriptor = NamespaceDescriptor.create(nsName).build();
+                namespaceDescriptor.setConfiguration(
+                        "hbase.namespace.quota.maxtables", quota.get(OCDPConstants.HBASE_NAMESPACE_TABLE_QUOTA));
+                namespaceDescriptor.setConfiguration(
+                        "hbase.namespace.quota.maxregions", quota.get(OCDPConstants.HBASE_NAMESPACE_REGION_QUOTA));
+                admin.createNamespace(namespaceDescriptor);
+            });
         }catch(IOException e){
             logger.error("HBase namespace create fail due to: " + e.getLocalizedMessage());
             e.printStackTrace();
             throw e;
-        }finally {
-            this.connection.close();
         }
         return nsName;
     }
@@ -105,6 +101,23 @@ public class HBaseAdminService implements OCDPAdminService{
                                            String groupName, List<String> permissions){
         logger.info("Assign read/write/create/admin permission to hbase namespace.");
         String policyId = null;
+        RangerV2Policy rp = buildPolicy(policyName, tableList, userList, groupName, permissions);
+        RangerV2Policy newPolicy = rc.createV2Policy(rp.getServiceName(), rp);
+        if (newPolicy != null){
+            policyId = newPolicy.getPolicyId();
+        }
+        return policyId;
+    }
+
+    @Override
+    public List<RangerV2Policy> buildPoliciesForResources(String policyName, List<String> tableList,
+                                                          List<String> userList, String groupName,
+                                                          List<String> permissions){
+        return Lists.newArrayList(buildPolicy(policyName, tableList, userList, groupName, permissions));
+    }
+
+    private RangerV2Policy buildPolicy(String policyName, List<String> tableList, List<String> userList,
+                                       String groupName, List<String> permissions){
         String serviceName = clusterConfig.getClusterName()+"_hbase";
         ArrayList<String> cfList = Lists.newArrayList("*");
         ArrayList<String> cList = Lists.newArrayList("*");
@@ -115,9 +128,8 @@ public class HBaseAdminService implements OCDPAdminService{
         RangerV2Policy rp = new RangerV2Policy(
                 policyName,"","This is HBase Policy",serviceName,true,true);
         ArrayList<String> nsList = new ArrayList<String>();
-        // Convert namespace name to 'ns:*'
         for (String e : tableList){
-            nsList.add(e + ":*");
+            nsList.add(toRangerTable(e));
         }
         rp.addResources(OCDPConstants.HBASE_RANGER_RESOURCE_TYPE, nsList, false);
         rp.addResources("column-family", cfList, false);
@@ -127,17 +139,13 @@ public class HBaseAdminService implements OCDPAdminService{
         } else {
             rp.addPolicyItems(userList,groupList,conditions,false,permissions);
         }
-        String newPolicyString = rc.createV2Policy(serviceName, rp);
-        if (newPolicyString != null){
-            RangerV2Policy newPolicyObj = gson.fromJson(newPolicyString, RangerV2Policy.class);
-            policyId = newPolicyObj.getPolicyId();
-        }
-        return policyId;
+        return rp;
     }
 
     @Override
     public boolean appendResourcesToPolicy(String policyId, String serviceInstanceResource){
-        return rc.appendResourceToV2Policy(policyId, serviceInstanceResource, OCDPConstants.HBASE_RANGER_RESOURCE_TYPE);
+        return rc.appendResourceToV2Policy(
+                policyId, toRangerTable(serviceInstanceResource), OCDPConstants.HBASE_RANGER_RESOURCE_TYPE);
     }
 
     @Override
@@ -149,26 +157,20 @@ public class HBaseAdminService implements OCDPAdminService{
     @Override
     public void deprovisionResources(String serviceInstanceResuorceName) throws Exception{
         try{
-            BrokerUtil.authentication(
-                    this.conf, this.clusterConfig.getHbaseMasterPrincipal(),
-                    this.clusterConfig.getHbaseMasterUserKeytab());
-            this.connection = ConnectionFactory.createConnection(conf);
-            Admin admin = this.connection.getAdmin();
-            // Should drop all tables under such namespace
-            TableName[] tableNames = admin.listTableNamesByNamespace(serviceInstanceResuorceName);
-            for (TableName name : tableNames) {
-                admin.disableTable(name);
-                admin.deleteTable(name);
-            }
-            admin.deleteNamespace(serviceInstanceResuorceName);
-            admin.close();
+            doAsSuperUser(admin -> {
+                // Should drop all tables under such namespace
+                TableName[] tableNames = admin.listTableNamesByNamespace(serviceInstanceResuorceName);
+                for (TableName name : tableNames) {
+                    admin.disableTable(name);
+                    admin.deleteTable(name);
+                }
+                admin.deleteNamespace(serviceInstanceResuorceName);
+            });
             logger.info("Delete HBase namespace successful.");
         }catch (IOException e){
             logger.error("HBase namespace delete fail due to: " + e.getLocalizedMessage());
             e.printStackTrace();
             throw e;
-        } finally {
-            this.connection.close();
         }
     }
 
@@ -181,7 +183,7 @@ public class HBaseAdminService implements OCDPAdminService{
     @Override
     public boolean removeResourceFromPolicy(String policyId, String serviceInstanceResource){
         return rc.removeResourceFromV2Policy(
-                policyId, serviceInstanceResource, OCDPConstants.HBASE_RANGER_RESOURCE_TYPE);
+                policyId, toRangerTable(serviceInstanceResource), OCDPConstants.HBASE_RANGER_RESOURCE_TYPE);
     }
 
     @Override
@@ -214,28 +216,69 @@ public class HBaseAdminService implements OCDPAdminService{
         String resourceType = OCDPAdminServiceMapper.getOCDPResourceType(serviceDefinitionId);
         String ns = (String)instance.getServiceInstanceCredentials().get(resourceType);
         try{
-            BrokerUtil.authentication(conf, clusterConfig.getHbaseMasterPrincipal(),
-                    clusterConfig.getHbaseMasterUserKeytab());
-            this.connection = ConnectionFactory.createConnection(conf);
-            Admin admin = connection.getAdmin();
-            NamespaceDescriptor namespaceDescriptor = admin.getNamespaceDescriptor(ns);
-            namespaceDescriptor.setConfiguration(
-                    "hbase.namespace.quota.maxtables", quota.get(OCDPConstants.HBASE_NAMESPACE_TABLE_QUOTA));
-            namespaceDescriptor.setConfiguration(
-                    "hbase.namespace.quota.maxregions", quota.get(OCDPConstants.HBASE_NAMESPACE_REGION_QUOTA));
-            admin.modifyNamespace(namespaceDescriptor);
-            admin.close();
+            doAsSuperUser(admin -> {
+                NamespaceDescriptor namespaceDescriptor = admin.getNamespaceDescriptor(ns);
+                namespaceDescriptor.setConfiguration(
+                        "hbase.namespace.quota.maxtables", quota.get(OCDPConstants.HBASE_NAMESPACE_TABLE_QUOTA));
+                namespaceDescriptor.setConfiguration(
+                        "hbase.namespace.quota.maxregions", quota.get(OCDPConstants.HBASE_NAMESPACE_REGION_QUOTA));
+                admin.modifyNamespace(namespaceDescriptor);
+            });
         } catch (IOException e){
             e.printStackTrace();
             throw e;
-        } finally {
-            connection.close();
         }
     }
 
+    /**
+     * Convert namespace name to 'ns:*', i.e. all tables of namespace
+     */
+    private static String toRangerTable(String namespace){
+        return namespace + ":*";
+    }
+
     private Map<String, String> getQuotaFromPlan(String serviceDefinitionId, String planId, Map<String, Object> cuzQuota){
         CatalogConfig catalogConfig = (CatalogConfig) this.context.getBean("catalogConfig");
         return catalogConfig.getQuotaFromPlan(serviceDefinitionId, planId, cuzQuota);
     }
 
+    @PreDestroy
+    public synchronized void closeConnection() throws IOException{
+        if (this.connection != null){
+            this.connection.close();
+            this.connection = null;
+        }
+    }
+
+    /**
+     * Run action with hbase admin of hbase master principal.
+     * Admin is not thread-safe so each call gets its own admin from the shared connection.
+     */
+    private void doAsSuperUser(AdminAction action) throws IOException{
+        // Errors returned by master (e.g. namespace exists) do not mean HBase is unavailable
+        CircuitBreaker.forBackend("hbase").execute(() ->
+                BrokerUtil.doAs(this.conf, this.clusterConfig.getHbaseMasterPrincipal(),
+                this.clusterConfig.getHbaseMasterUserKeytab(), () -> {
+                    try (Admin admin = getConnection().getAdmin()){
+                        action.run(admin);
+                    }
+                    return null;
+                }), e -> !(e instanceof DoNotRetryIOException));
+    }
+
+    /**
+     * Get shared connection, (re)create it if not created yet or aborted.
+     * Must be called as hbase master principal, connection keeps the user it is created with.
+     */
+    private synchronized Connection getConnection() throws IOException{
+        if (this.connection == null || this.connection.isClosed() || this.connection.isAborted()){
+            this.connection = ConnectionFactory.createConnection(conf);
+        }
+        return this.connection;
+    }
+
+    private interface AdminAction {
+        void run(Admin admin) throws IOException;
+    }
+
 }
@@ -2,9 +2,16 @@ package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.impl;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Set;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
 import java.net.URI;
 
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config.CatalogConfig;
@@ -13,20 +20,21 @@ import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.exception.OCDPService
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.RangerV2Policy;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.ServiceInstance;
 import com.google.common.collect.Lists;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Service;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.OCDPAdminService;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.rangerClient;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.*;
 
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.fs.permission.FsAction;
 import org.apache.hadoop.hdfs.DistributedFileSystem;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.ipc.RemoteException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,8 +46,6 @@ public class HDFSAdminService implements OCDPAdminService{
 
     private Logger logger = LoggerFactory.getLogger(HDFSAdminService.class);
 
-    static final Gson gson = new GsonBuilder().create();
-
     private static final FsPermission FS_PERMISSION = new FsPermission(FsAction.ALL, FsAction.ALL,
             FsAction.NONE);
 
@@ -51,12 +57,13 @@ public class HDFSAdminService implements OCDPAdminService{
     @Autowired
     private ApplicationContext context;
 
+    @Autowired
+    private ExecutorService backendExecutor;
+
     private ClusterConfig clusterConfig;
 
     private rangerClient rc;
 
-    private DistributedFileSystem dfs;
-
     private Configuration conf;
 
     private String hdfsRPCUrl;
@@ -67,14 +74,18 @@ public class HDFSAdminService implements OCDPAdminService{
 
     private static final String HDFS_STORAGE_SPACE_QUOTA = "1000000000";
 
+    // Parent folder of pre-created instance folders
+    private static final String WARM_POOL_PATH = "/servicebroker/.pool";
+
+    // Names of pre-created folders ready to be claimed
+    private final Queue<String> pooledDirs = new ConcurrentLinkedQueue<>();
+
     @Autowired
     public HDFSAdminService(ClusterConfig clusterConfig){
         this.clusterConfig = clusterConfig;
 
         this.rc = clusterConfig.getRangerClient();
 
-        this.dfs = new DistributedFileSystem();
-
         this.conf = new Configuration();
 
         if (this.clusterConfig.getHdfsNameservices() != null) {
@@ -111,66 +122,165 @@ public class HDFSAdminService implements OCDPAdminService{
                                      Map<String, Object> cuzQuota) throws Exception{
         String pathName = "/servicebroker/" + serviceInstanceId;
         Map<String, String> quota = this.getQuotaFromPlan(serviceDefinitionId, planId, cuzQuota);
-        this.createHDFSDir(
-                pathName, quota.get(OCDPConstants.HDFS_NAMESPACE_QUOTA), quota.get(OCDPConstants.HDFS_STORAGE_QUOTA));
+        if (! this.claimPooledDir(
+                pathName, quota.get(OCDPConstants.HDFS_NAMESPACE_QUOTA), quota.get(OCDPConstants.HDFS_STORAGE_QUOTA))){
+            this.createHDFSDir(
+                    pathName, quota.get(OCDPConstants.HDFS_NAMESPACE_QUOTA), quota.get(OCDPConstants.HDFS_STORAGE_QUOTA));
+        }
         return pathName;
     }
 
-    public void createHDFSDir(String pathName, String nameSpaceQuota, String storageSpaceQuota) throws IOException{
+    /**
+     * Keep warm pool filled up to configured size, folders claimed by provision are replaced here
+     * instead of on request path.
+     * Only hdfs folders are pooled: a folder is claimed by rename, while hbase namespaces, hive databases and
+     * kafka topics are named after instance id in credentials and can not be renamed; yarn has spare queues.
+     */
+    @Scheduled(initialDelay = 10000, fixedDelayString = "${HDFS_WARM_POOL_REFILL_INTERVAL_MS:60000}")
+    public void refillWarmPool(){
+        int poolSize = this.clusterConfig.getHdfsWarmPoolSize();
+        if (poolSize <= 0){
+            return;
+        }
         try{
-            BrokerUtil.authentication(
-                    this.conf, this.clusterConfig.getHdfsSuperUser(), this.clusterConfig.getHdfsUserKeytab());
-            this.dfs.initialize(URI.create(this.hdfsRPCUrl), this.conf);
-            if (! this.dfs.exists(new Path(pathName))){
-                this.dfs.mkdirs(new Path(pathName), FS_PERMISSION);
-                if (nameSpaceQuota != null && storageSpaceQuota !=null) {
-                    this.dfs.setQuota(new Path(pathName),
-                            Long.parseLong(nameSpaceQuota), Long.parseLong(storageSpaceQuota));
-                    logger.info("Set path " + pathName + "'s namespace quota to " + nameSpaceQuota +
-                            ", set storage space quota to " + storageSpaceQuota + ".");
+            doAsSuperUser(dfs -> {
+                Path poolPath = new Path(WARM_POOL_PATH);
+                if (! dfs.exists(poolPath)){
+                    dfs.mkdirs(poolPath, FS_PERMISSION);
+                }
+                // Sync with folders on hdfs, e.g. created before broker restart or claimed by another broker
+                List<String> existing = new ArrayList<>();
+                for (FileStatus status : dfs.listStatus(poolPath)){
+                    existing.add(status.getPath().getName());
+                }
+                pooledDirs.retainAll(existing);
+                for (String name : existing){
+                    if (! pooledDirs.contains(name)){
+                        pooledDirs.add(name);
+                    }
                 }
-                logger.info("Create hdfs folder " + pathName + " successful.");
-            } else {
-                logger.info("HDFS folder exists, not need to create again.");
+                for (int i = existing.size(); i < poolSize; i++){
+                    String name = UUID.randomUUID().toString();
+                    dfs.mkdirs(new Path(poolPath, name), FS_PERMISSION);
+                    pooledDirs.add(name);
+                }
+                if (existing.size() < poolSize){
+                    logger.info("Refill hdfs warm pool with " + (poolSize - existing.size()) + " folders.");
+                }
+                return null;
+            });
+        }catch (IOException e){
+            logger.error("Refill hdfs warm pool fails due to: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Claim a pre-created folder from warm pool by renaming it to given path, then set its quota.
+     * @return false if warm pool is disabled or empty, folder should be created on request path then
+     */
+    private boolean claimPooledDir(String pathName, String nameSpaceQuota, String storageSpaceQuota) throws IOException{
+        if (this.clusterConfig.getHdfsWarmPoolSize() <= 0 || pooledDirs.isEmpty()){
+            return false;
+        }
+        return doAsSuperUser(dfs -> {
+            if (dfs.exists(new Path(pathName))){
+                return false;
             }
-        }catch (Exception e){
+            String name;
+            while ((name = pooledDirs.poll()) != null){
+                // Rename fails if folder already claimed by another broker, try next one
+                if (dfs.rename(new Path(WARM_POOL_PATH, name), new Path(pathName))){
+                    if (nameSpaceQuota != null && storageSpaceQuota !=null) {
+                        dfs.setQuota(new Path(pathName),
+                                Long.parseLong(nameSpaceQuota), Long.parseLong(storageSpaceQuota));
+                    }
+                    logger.info("Claim hdfs folder " + name + " from warm pool as " + pathName + ".");
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    public void createHDFSDir(String pathName, String nameSpaceQuota, String storageSpaceQuota) throws IOException{
+        try{
+            doAsSuperUser(dfs -> {
+                if (! dfs.exists(new Path(pathName))){
+                    dfs.mkdirs(new Path(pathName), FS_PERMISSION);
+                    if (nameSpaceQuota != null && storageSpaceQuota !=null) {
+                        dfs.setQuota(new Path(pathName),
+                                Long.parseLong(nameSpaceQuota), Long.parseLong(storageSpaceQuota));
+                        logger.info("Set path " + pathName + "'s namespace quota to " + nameSpaceQuota +
+                                ", set storage space quota to " + storageSpaceQuota + ".");
+                    }
+                    logger.info("Create hdfs folder " + pathName + " successful.");
+                } else {
+                    logger.info("HDFS folder exists, not need to create again.");
+                }
+                return null;
+            });
+        }catch (IOException e){
             logger.error("Set HDFS folder quota fails due to: " + e.getLocalizedMessage());
             e.printStackTrace();
             throw e;
-        } finally {
-            this.dfs.close();
         }
     }
 
     public void setQuota(String pathName, String nameSpaceQuota, String storageSpaceQuota) throws IOException {
+        // Use default namespacequota/storgespacequota if not pass.
+        String nsQuota = (nameSpaceQuota == null || nameSpaceQuota.equals("")) ? HDFS_NAME_SPACE_QUOTA : nameSpaceQuota;
+        String ssQuota = (storageSpaceQuota == null || storageSpaceQuota.equals("")) ?
+                HDFS_STORAGE_SPACE_QUOTA : storageSpaceQuota;
         try{
-            BrokerUtil.authentication(
-                    this.conf, this.clusterConfig.getHdfsSuperUser(), this.clusterConfig.getHdfsUserKeytab());
-            this.dfs.initialize(URI.create(this.hdfsRPCUrl), this.conf);
-            if(nameSpaceQuota == null || nameSpaceQuota.equals("")){
-                // Use default namespacequota if not pass.
-                nameSpaceQuota = HDFS_NAME_SPACE_QUOTA;
-            }
-            if (storageSpaceQuota == null || storageSpaceQuota.equals("")){
-                // Use default storgespacequota if not pass.
-                storageSpaceQuota = HDFS_STORAGE_SPACE_QUOTA;
-            }
-            this.dfs.setQuota(new Path(pathName), Long.parseLong(nameSpaceQuota), Long.parseLong(storageSpaceQuota));
-        }catch (Exception e){
+            doAsSuperUser(dfs -> {
+                dfs.setQuota(new Path(pathName), Long.parseLong(nsQuota), Long.parseLong(ssQuota));
+                return null;
+            });
+        }catch (IOException e){
             logger.error("Set HDFS folder quota fails due to: " + e.getLocalizedMessage());
             e.printStackTrace();
             throw e;
-        } finally {
-            this.dfs.close();
-            logger.info("Set path " + pathName + "'s namespace quota to " + nameSpaceQuota +
-                    ", set storage space quota to " + storageSpaceQuota + ".");
         }
+        logger.info("Set path " + pathName + "'s namespace quota to " + nsQuota +
+                ", set storage space quota to " + ssQuota + ".");
     }
 
     @Override
     public String createPolicyForResources(String policyName, List<String> resources, List<String> userList,
                                            String groupName, List<String> permissions){
-        String policyId = null;
+        return createPolicyForResourcesAsync(policyName, resources, userList, groupName, permissions, null).join();
+    }
+
+    @Override
+    public List<RangerV2Policy> buildPoliciesForResources(String policyName, List<String> resources,
+                                                          List<String> userList, String groupName,
+                                                          List<String> permissions){
+        return Lists.newArrayList(buildPolicy(policyName, resources, userList, groupName, permissions));
+    }
+
+    /**
+     * Create hdfs policy without blocking, so that it can be created together with policies of other services
+     * @param createdIds id of policy is added to it if created by this call, see rangerClient.createV2PolicyAsync
+     * @return future of policy id, completes with null if create fails
+     */
+    public CompletableFuture<String> createPolicyForResourcesAsync(String policyName, List<String> resources,
+                                                                   List<String> userList, String groupName,
+                                                                   List<String> permissions, Set<String> createdIds){
+        RangerV2Policy rp = buildPolicy(policyName, resources, userList, groupName, permissions);
+        return rc.createV2PolicyAsync(rp.getServiceName(), rp, createdIds).thenApply(newPolicy -> {
+            if (newPolicy != null){
+                return newPolicy.getPolicyId();
+            }
+            logger.error("Failed to create hdfs policy to user [{}] of resources [{}] ", userList.toString(), resources);
+            return null;
+        });
+    }
+
+    /**
+     * Build hdfs policy of resources, policy is not created
+     */
+    public RangerV2Policy buildPolicy(String policyName, List<String> resources, List<String> userList,
+                                      String groupName, List<String> permissions){
         String serviceName = clusterConfig.getClusterName()+"_hadoop";
         ArrayList<String> groupList = Lists.newArrayList(groupName);
         //ArrayList<String> userList = new ArrayList<String>(){{add(userName);}};
@@ -184,15 +294,7 @@ public class HDFSAdminService implements OCDPAdminService{
         } else {
             rp.addPolicyItems(userList,groupList,conditions,false,permissions);
         }
-        String newPolicyString = rc.createV2Policy(serviceName, rp);
-        if (newPolicyString != null){
-            RangerV2Policy newPolicyObj = gson.fromJson(newPolicyString, RangerV2Policy.class);
-            policyId = newPolicyObj.getPolicyId();
-        }
-        else {
-            logger.error("Failed to create hdfs policy to user [{}] of resources [{}] ", userList.toString(), resources);
-        }
-        return policyId;
+        return rp;
     }
 
     @Override
@@ -205,33 +307,73 @@ public class HDFSAdminService implements OCDPAdminService{
         return rc.appendUsersToV2Policy(policyId, groupName, users, permissions);
     }
 
+    /**
+     * Create /user/<name> dir of each user, dirs are created concurrently
+     * @throws OCDPServiceException if any dir not created
+     */
+    public void createUserDirs(List<String> users){
+        CompositeOperation mkdirs = new CompositeOperation("hdfs.create_user_dirs", backendExecutor);
+        for (String user : users) {
+            mkdirs.step("/user/" + user, () -> {
+                createHDFSDir("/user/" + user, null, null);
+                return true;
+            }, null);
+        }
+        if (!mkdirs.run()) {
+            throw new OCDPServiceException("Create hdfs user path of users " + users + " failed.");
+        }
+    }
+
+    /**
+     * Add step of granting users permissions to their /user/<name> dirs by hdfs policy to a composite operation:
+     * dirs are created concurrently, then appended to policy by one update together with users.
+     * Rollback revokes only users and dirs which were not in policy before the step.
+     */
+    public CompositeOperation grantUserDirsStep(CompositeOperation operation, String policyId, String groupName,
+                                                List<String> users){
+        List<String> userDirs = new ArrayList<>();
+        users.forEach(user -> userDirs.add("/user/" + user));
+        AtomicReference<List<String>> newUsers = new AtomicReference<>(new ArrayList<>());
+        AtomicReference<List<String>> newDirs = new AtomicReference<>(new ArrayList<>());
+        return operation.step("hdfs policy " + policyId, () -> {
+            newUsers.set(rc.getUsersNotInV2Policy(policyId, users));
+            newDirs.set(rc.getResourcesNotInV2Policy(policyId, userDirs, OCDPConstants.HDFS_RANGER_RESOURCE_TYPE));
+            createUserDirs(users);
+            boolean resourcesAppended = rc.appendResourcesToV2Policy(
+                    policyId, userDirs, OCDPConstants.HDFS_RANGER_RESOURCE_TYPE);
+            boolean usersAppended = rc.appendUsersToV2Policy(policyId, groupName, users, ACCESSES);
+            logger.info("User [{}] and dirs [{}] added to hdfs policy [{}] with result [{}].",
+                    users, userDirs, policyId, resourcesAppended && usersAppended);
+            return resourcesAppended && usersAppended;
+        }, () -> (newUsers.get().isEmpty() || rc.removeUsersFromV2Policy(policyId, newUsers.get())) &&
+                (newDirs.get().isEmpty() ||
+                        rc.removeResourcesFromV2Policy(policyId, newDirs.get(), OCDPConstants.HDFS_RANGER_RESOURCE_TYPE)));
+    }
+
     @Override
     public void deprovisionResources(String serviceInstanceResuorceName) throws Exception{
         try{
-            BrokerUtil.authentication(
-                    this.conf, this.clusterConfig.getHdfsSuperUser(), this.clusterConfig.getHdfsUserKeytab());
-            this.dfs.initialize(URI.create(this.hdfsRPCUrl), this.conf);
-            this.dfs.delete(new Path(serviceInstanceResuorceName), true);
+            doAsSuperUser(dfs -> dfs.delete(new Path(serviceInstanceResuorceName), true));
             logger.info("Delete hdfs folder successful.");
         }catch (Exception e){
             logger.error("HDFS folder delete fail due to: " + e.getLocalizedMessage());
             e.printStackTrace();
             throw e;
-        } finally {
-            this.dfs.close();
         }
     }
 
     @Override
     public boolean deletePolicyForResources(String policyId){
-        if (rc.getV2PolicyById(policyId) != null) {
-            logger.info("Unassign read/write/execute permission to hdfs folder.");
-            return this.rc.removeV2Policy(policyId);
-        }
-        else {
-            logger.warn("ranger policy " + policyId + " doesn't exist, do not need to remove");
-            return true;
-        }
+        return deletePolicyForResourcesAsync(policyId).join();
+    }
+
+    /**
+     * Delete hdfs policy without blocking, so that it can be deleted together with policies of other services
+     * @return future of delete result, true if policy not exists
+     */
+    public CompletableFuture<Boolean> deletePolicyForResourcesAsync(String policyId){
+        logger.info("Unassign read/write/execute permission to hdfs folder.");
+        return this.rc.removeV2PolicyIfExistsAsync(policyId);
     }
 
     @Override
@@ -285,4 +427,27 @@ public class HDFSAdminService implements OCDPAdminService{
         return catalogConfig.getQuotaFromPlan(serviceDefinitionId, planId, cuzQuota);
     }
 
+    /**
+     * Run action with a file system opened as hdfs super user.
+     * Each call opens its own file system, so that concurrent calls not close file system of each other.
+     */
+    private <T> T doAsSuperUser(FileSystemAction<T> action) throws IOException{
+        // Errors returned by namenode (e.g. file exists, quota exceeded) do not mean HDFS is unavailable
+        return CircuitBreaker.forBackend("hdfs").execute(() ->
+                BrokerUtil.doAs(this.conf, this.clusterConfig.getHdfsSuperUser(), this.clusterConfig.getHdfsUserKeytab(),
+                () -> {
+                    DistributedFileSystem dfs = new DistributedFileSystem();
+                    dfs.initialize(URI.create(this.hdfsRPCUrl), this.conf);
+                    try{
+                        return action.run(dfs);
+                    } finally {
+                        dfs.close();
+                    }
+                }), e -> !(e instanceof RemoteException));
+    }
+
+    private interface FileSystemAction<T> {
+        T run(DistributedFileSystem dfs) throws IOException;
+    }
+
 }
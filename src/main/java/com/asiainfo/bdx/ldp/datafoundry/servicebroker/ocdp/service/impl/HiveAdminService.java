@@ -4,7 +4,13 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,13 +18,17 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Service;
 
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.rangerClient;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config.CatalogConfig;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config.ClusterConfig;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.RangerV2Policy;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.ServiceInstance;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.OCDPAdminService;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.common.HiveCommonService;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.common.YarnCommonService;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.CompositeOperation;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OCDPConstants;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OperationDeadline;
 import com.google.common.collect.Lists;
 
 /**
@@ -32,8 +42,13 @@ public class HiveAdminService implements OCDPAdminService {
     @Autowired
     private ApplicationContext context;
 
+    @Autowired
+    private ExecutorService backendExecutor;
+
     private ClusterConfig clusterConfig;
 
+    private rangerClient rc;
+
     private HiveCommonService hiveCommonService;
 
     private HDFSAdminService hdfsAdminService;
@@ -44,6 +59,7 @@ public class HiveAdminService implements OCDPAdminService {
     public HiveAdminService(ClusterConfig clusterConfig, HiveCommonService hiveCommonService, HDFSAdminService hdfsAdminService,
                             YarnCommonService yarnCommonService){
         this.clusterConfig = clusterConfig;
+        this.rc = clusterConfig.getRangerClient();
         this.hiveCommonService = hiveCommonService;
         this.hdfsAdminService = hdfsAdminService;
         this.yarnCommonService = yarnCommonService;
@@ -53,81 +69,133 @@ public class HiveAdminService implements OCDPAdminService {
     public String provisionResources(String serviceDefinitionId, String planId, String serviceInstanceId,
                                      Map<String, Object> cuzQuota) throws Exception{
         Map<String, String> quota = this.getQuotaFromPlan(serviceDefinitionId, planId, cuzQuota);
-        String dbName = hiveCommonService.createDatabase(serviceInstanceId);
-        // Set database storage quota
-        if(dbName != null){
-            hdfsAdminService.setQuota(
-                    "/apps/hive/warehouse/" + dbName + ".db", null, quota.get(OCDPConstants.HDFS_STORAGE_QUOTA));
-        }
+        String dbName = createDatabase(serviceInstanceId, quota);
         String queueName = yarnCommonService.createQueue(quota.get(OCDPConstants.YARN_QUEUE_QUOTA));
         return dbName + ":" + queueName;
     }
 
+    /**
+     * Provision hive database for a queue which is already created, e.g. queues created in batch by bulk provision.
+     */
+    public String provisionResources(String serviceDefinitionId, String planId, String serviceInstanceId,
+                                     Map<String, Object> cuzQuota, String queueName) throws Exception{
+        Map<String, String> quota = this.getQuotaFromPlan(serviceDefinitionId, planId, cuzQuota);
+        String dbName = createDatabase(serviceInstanceId, quota);
+        return dbName + ":" + queueName;
+    }
+
     @Override
     public String createPolicyForResources(String policyName, List<String> resources, List<String> userList,
                                            String groupName, List<String> permissions){
         String[] resourcesList = resources.get(0).split(":");
-        String hivePolicyId = this.hiveCommonService.assignPermissionToDatabase(
-                policyName, resourcesList[0], userList, groupName, permissions);
+        List<String> hdfsFolders = hdfsFolders(resourcesList[0], userList);
+        hdfsAdminService.createUserDirs(userList);
+        // Hive, hdfs and yarn policies are independent, create them concurrently
+        Set<String> createdIds = ConcurrentHashMap.newKeySet();
+        CompletableFuture<String> hivePolicy = this.hiveCommonService.assignPermissionToDatabaseAsync(
+                policyName, resourcesList[0], userList, groupName, permissions, createdIds);
+        CompletableFuture<String> hdfsPolicy = this.hdfsAdminService.createPolicyForResourcesAsync(
+                policyName, hdfsFolders, userList, groupName, null, createdIds);
+        CompletableFuture<String> yarnPolicy = this.yarnCommonService.assignPermissionToQueueAsync(
+                policyName, resourcesList[1], userList, groupName, null, createdIds);
+        String hivePolicyId = policyIdOrNull(hivePolicy);
         logger.info("Creating hive policy for user [{}] with resource [{}] with result policyid [{}].",
                 userList.toString(), resourcesList[0], hivePolicyId);
+        String hdfsPolicyId = policyIdOrNull(hdfsPolicy);
+        logger.info("Creating hdfs policy for user [{}] with resource [{}] with result policyid [{}].",
+                userList.toString(), hdfsFolders, hdfsPolicyId);
+        String yarnPolicyId = policyIdOrNull(yarnPolicy);
+        logger.info("Creating yarn policy for user [{}] with resource [{}] with result policyid [{}].",
+                userList.toString(), resourcesList[1], yarnPolicyId);
+        if (hivePolicyId != null && hdfsPolicyId != null && yarnPolicyId != null) {
+            return hivePolicyId + ":" + hdfsPolicyId + ":" + yarnPolicyId;
+        }
+        // Remove policies created here, so that a retry starts from scratch instead of leaving orphan policies;
+        // policies with same name which existed before are kept
+        OperationDeadline.withGrace(() -> {
+            for (String createdPolicyId : createdIds) {
+                logger.info("Rollback policy [{}] created for user [{}].", createdPolicyId, userList);
+                rc.removeV2PolicyIfExists(createdPolicyId);
+            }
+            return null;
+        });
+        return null;
+    }
+
+    /**
+     * @return policy id, null if policy create failed or threw, so that policies created by others are rolled back
+     */
+    private String policyIdOrNull(CompletableFuture<String> policy){
+        return policy.handle((policyId, e) -> {
+            if (e != null) {
+                logger.error("Create policy failed due to: " + e.getMessage());
+                return null;
+            }
+            return policyId;
+        }).join();
+    }
+
+    /**
+     * Hive, hdfs and yarn policies in order of composite policy id, /user dirs of users are not created
+     */
+    @Override
+    public List<RangerV2Policy> buildPoliciesForResources(String policyName, List<String> resources,
+                                                          List<String> userList, String groupName,
+                                                          List<String> permissions){
+        String[] resourcesList = resources.get(0).split(":");
+        return Lists.newArrayList(
+                hiveCommonService.buildDatabasePolicy(policyName, resourcesList[0], userList, groupName, permissions),
+                hdfsAdminService.buildPolicy(policyName, hdfsFolders(resourcesList[0], userList), userList, groupName, null),
+                yarnCommonService.buildQueuePolicy(policyName, resourcesList[1], userList, groupName, null));
+    }
+
+    private static List<String> hdfsFolders(String dbName, List<String> userList){
         // Temp fix: for 'create instance in tenant' case,
         // create one ranger policy for multiple user and multiple /user/<userName> dirs
         // Please refer to: https://github.com/OCManager/OCDP_ServiceBroker/issues/48
         List<String> hdfsFolders = new ArrayList<String>(){
             {
-                add("/apps/hive/warehouse/" + resourcesList[0] + ".db");
+                add("/apps/hive/warehouse/" + dbName + ".db");
                 add("/tmp/hive");
                 add("/ats/active");
             }
         };
         for (String userName : userList) {
             hdfsFolders.add("/user/" + userName);
-            createHdfsPath("/user/" + userName);
         }
-        String hdfsPolicyId = this.hdfsAdminService.createPolicyForResources(
-                policyName, hdfsFolders, userList, groupName, null);
-        logger.info("Creating hdfs policy for user [{}] with resource [{}] with result policyid [{}].",
-                userList.toString(), hdfsFolders, hdfsPolicyId);
-        String yarnPolicyId = this.yarnCommonService.assignPermissionToQueue(
-                policyName, resourcesList[1], userList, groupName, null);
-        logger.info("Creating yarn policy for user [{}] with resource [{}] with result policyid [{}].",
-                userList.toString(), resourcesList[1], yarnPolicyId);
-        return (hivePolicyId != null && hdfsPolicyId != null && yarnPolicyId != null) ? hivePolicyId + ":" + hdfsPolicyId + ":" + yarnPolicyId : null;
+        return hdfsFolders;
     }
 
 	@Override
     public boolean appendResourcesToPolicy(String policyId, String serviceInstanceResource){
+        String[] policyIds = policyId.split(":");
         String[] resourcesList = serviceInstanceResource.split(":");
         boolean appendResourceToHivePolicy = hiveCommonService.appendResourceToDatabasePermission(
-                policyId, resourcesList[0]);
+                policyIds[0], resourcesList[0]);
+        boolean appendResourceToHDFSPolicy = hdfsAdminService.appendResourcesToPolicy(
+                policyIds[1], "/apps/hive/warehouse/" + resourcesList[0] + ".db");
         boolean appendResourceToYarnPolicy = yarnCommonService.appendResourceToQueuePermission(
-                policyId, resourcesList[1]);
-        return appendResourceToHivePolicy && appendResourceToYarnPolicy;
+                policyIds[2], resourcesList[1]);
+        return appendResourceToHivePolicy && appendResourceToHDFSPolicy && appendResourceToYarnPolicy;
     }
 
     @Override
     public boolean appendUsersToPolicy(
             String policyId, String groupName, List<String> users, List<String> permissions){
         String[] policyIds = policyId.split(":");
-        boolean userAppendToHivePolicy = this.hiveCommonService.appendUsersToDatabasePermission(
-                policyIds[0], groupName, users, permissions);
-        logger.info("User [{}] added to hive policy [{}] with result [{}].", users, policyIds[0], userAppendToHivePolicy);
+        // Hive, hdfs and yarn policies are updated concurrently, users are revoked from all of them if any update fails
+        CompositeOperation operation = new CompositeOperation("hive.append_users", backendExecutor);
+        grantUsersStep(operation, "hive policy " + policyIds[0], policyIds[0], users,
+                () -> this.hiveCommonService.appendUsersToDatabasePermission(policyIds[0], groupName, users, permissions));
         // Temp fix: when update pass multiple users, append users to policy that create for multiple users and multiple /user/<userName> dirs
         // Please refer to: https://github.com/OCManager/OCDP_ServiceBroker/issues/48
-        boolean userAppendToHDFSPolicy = this.hdfsAdminService.appendUsersToPolicy(
-                policyIds[1], groupName, users, Lists.newArrayList("read", "write","execute"));
-        logger.info("User [{}] added to hdfs policy [{}] with result [{}].", users, policyIds[1], userAppendToHDFSPolicy);
-        boolean resourceAppendToHDFSPolicy = false;
-        for (String user : users) {
-            logger.info("Create /user dir for user ", user);
-            createHdfsPath("/user/" + user);
-            resourceAppendToHDFSPolicy = this.hdfsAdminService.appendResourcesToPolicy(policyIds[1], "/user/" + user);
-        }
-        boolean userAppendToYarnPolicy = this.yarnCommonService.appendUsersToQueuePermission(
-                policyIds[2], groupName, users, Lists.newArrayList("submit-app", "admin-queue"));
-        logger.info("User [{}] added to yarn policy [{}] with result [{}].", users, policyIds[2], userAppendToYarnPolicy);
-        return userAppendToHivePolicy && resourceAppendToHDFSPolicy && userAppendToHDFSPolicy && userAppendToYarnPolicy;
+        this.hdfsAdminService.grantUserDirsStep(operation, policyIds[1], groupName, users);
+        grantUsersStep(operation, "yarn policy " + policyIds[2], policyIds[2], users,
+                () -> this.yarnCommonService.appendUsersToQueuePermission(
+                        policyIds[2], groupName, users, Lists.newArrayList("submit-app", "admin-queue")));
+        boolean usersAppended = operation.run();
+        logger.info("User [{}] added to policy [{}] with result [{}].", users, policyId, usersAppended);
+        return usersAppended;
     }
 
     @Override
@@ -139,40 +207,60 @@ public class HiveAdminService implements OCDPAdminService {
         logger.info("Delete queue [{}] successful!", resources[1]);
     }
 
+    /**
+     * Delete hive database but keep its queue, so that queues of many instances can be revoked in one batch.
+     * @return queue name of the instance
+     */
+    public String deprovisionDatabase(String serviceInstanceResuorceName)throws Exception{
+        String[] resources = serviceInstanceResuorceName.split(":");
+        this.hiveCommonService.deleteDatabase(resources[0]);
+        logger.info("Delete database [{}] successful!", resources[0]);
+        return resources[1];
+    }
+
     @Override
     public boolean deletePolicyForResources(String policyId){
         String[] policyIds = policyId.split(":");
-        boolean hivePolicyDeleted = this.hiveCommonService.unassignPermissionFromDatabase(policyIds[0]);
+        // Hive, hdfs and yarn policies are independent, delete them concurrently
+        CompletableFuture<Boolean> hivePolicy = this.hiveCommonService.unassignPermissionFromDatabaseAsync(policyIds[0]);
+        CompletableFuture<Boolean> hdfsPolicy = this.hdfsAdminService.deletePolicyForResourcesAsync(policyIds[1]);
+        CompletableFuture<Boolean> yarnPolicy = this.yarnCommonService.unassignPermissionFromQueueAsync(policyIds[2]);
+        boolean hivePolicyDeleted = hivePolicy.join();
         logger.info("Delete hive policy [{}] with result [{}].", policyIds[0], hivePolicyDeleted);
-        boolean hdfsPolicyDeleted = this.hdfsAdminService.deletePolicyForResources(policyIds[1]);
+        boolean hdfsPolicyDeleted = hdfsPolicy.join();
         logger.info("Delete hdfs policy [{}] with result [{}].", policyIds[1], hdfsPolicyDeleted);
-        boolean yarnPolicyDeleted = this.yarnCommonService.unassignPermissionFromQueue(policyIds[2]);
+        boolean yarnPolicyDeleted = yarnPolicy.join();
         logger.info("Delete yarn policy [{}] with result [{}].", policyIds[2], yarnPolicyDeleted);
         return hivePolicyDeleted && hdfsPolicyDeleted && yarnPolicyDeleted;
     }
 
     @Override
     public boolean removeResourceFromPolicy(String policyId, String serviceInstanceResource){
+        String[] policyIds = policyId.split(":");
         String[] resourcesList = serviceInstanceResource.split(":");
         boolean removeResourceFromHivePolicy = hiveCommonService.removeResourceFromDatabasePermission(
-                policyId, resourcesList[0]);
+                policyIds[0], resourcesList[0]);
+        boolean removeResourceFromHDFSPolicy = hdfsAdminService.removeResourceFromPolicy(
+                policyIds[1], "/apps/hive/warehouse/" + resourcesList[0] + ".db");
         boolean removeResourceFromYarnPolicy = yarnCommonService.removeResourceFromQueuePermission(
-                policyId, resourcesList[1]);
-        return removeResourceFromHivePolicy && removeResourceFromYarnPolicy;
+                policyIds[2], resourcesList[1]);
+        return removeResourceFromHivePolicy && removeResourceFromHDFSPolicy && removeResourceFromYarnPolicy;
     }
 
     @Override
     public boolean removeUserFromPolicy(String policyId, String userName){
         String[] policyIds = policyId.split(":");
-        boolean userRemovedFromHivePolicy = this.hiveCommonService.removeUserFromDatabasePermission(
-                policyIds[0], userName);
-        logger.info("User [{}] removed from hive policy [{}] with result [{}].", userName, policyIds[0], userRemovedFromHivePolicy);
-        boolean userRemovedFromHDFSPolicy = this.hdfsAdminService.removeUserFromPolicy(policyIds[1], userName);
-        logger.info("User [{}] removed from hdfs policy [{}] with result [{}].", userName, policyIds[1], userRemovedFromHDFSPolicy);
-        boolean userRemovedFromYarnPolicy = this.yarnCommonService.removeUserFromQueuePermission(
-                policyIds[2], userName);
-        logger.info("User [{}] removed from yarn policy [{}] with result [{}].", userName, policyIds[2], userRemovedFromYarnPolicy);
-        return userRemovedFromHivePolicy && userRemovedFromHDFSPolicy && userRemovedFromYarnPolicy;
+        // Removal is idempotent, so a partial failure is not reverted but left to retry of whole operation
+        boolean userRemoved = new CompositeOperation("hive.remove_user", backendExecutor)
+                .step("hive policy " + policyIds[0],
+                        () -> this.hiveCommonService.removeUserFromDatabasePermission(policyIds[0], userName), null)
+                .step("hdfs policy " + policyIds[1],
+                        () -> this.hdfsAdminService.removeUserFromPolicy(policyIds[1], userName), null)
+                .step("yarn policy " + policyIds[2],
+                        () -> this.yarnCommonService.removeUserFromQueuePermission(policyIds[2], userName), null)
+                .run();
+        logger.info("User [{}] removed from policy [{}] with result [{}].", userName, policyId, userRemoved);
+        return userRemoved;
     }
 
     @Override
@@ -208,23 +296,32 @@ public class HiveAdminService implements OCDPAdminService {
         hdfsAdminService.resizeResourceQuota(instance, cuzQuota);
     }
 
+    private String createDatabase(String serviceInstanceId, Map<String, String> quota) throws Exception{
+        String dbName = hiveCommonService.createDatabase(serviceInstanceId);
+        // Set database storage quota
+        if(dbName != null){
+            hdfsAdminService.setQuota(
+                    "/apps/hive/warehouse/" + dbName + ".db", null, quota.get(OCDPConstants.HDFS_STORAGE_QUOTA));
+        }
+        return dbName;
+    }
+
+    /**
+     * Add step of granting users permissions by a policy, rollback revokes only users not in policy before the step
+     */
+    private void grantUsersStep(CompositeOperation operation, String name, String policyId, List<String> users,
+                                Callable<Boolean> grant){
+        AtomicReference<List<String>> newUsers = new AtomicReference<>(new ArrayList<>());
+        operation.step(name, () -> {
+            newUsers.set(rc.getUsersNotInV2Policy(policyId, users));
+            return grant.call();
+        }, () -> newUsers.get().isEmpty() || rc.removeUsersFromV2Policy(policyId, newUsers.get()));
+    }
+
     private Map<String, String> getQuotaFromPlan(String serviceDefinitionId, String planId,
                                                  Map<String, Object> cuzQuota){
         CatalogConfig catalogConfig = (CatalogConfig) this.context.getBean("catalogConfig");
         return catalogConfig.getQuotaFromPlan(serviceDefinitionId, planId, cuzQuota);
     }
-    
-    /**
-     * Create hdfs user path
-     * @param path
-     */
-    private void createHdfsPath(String path) {
-    	try {
-			this.hdfsAdminService.createHDFSDir(path, null, null);
-		} catch (IOException e) {
-			logger.error("Create hdfs user path [{}] failed!", e);
-			throw new RuntimeException(e);
-		}
-	}
 
 }
@@ -7,6 +7,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 
+import org.I0Itec.zkclient.exception.ZkTimeoutException;
+import org.apache.zookeeper.KeeperException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -18,15 +20,15 @@ import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.KafkaClient;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.rangerClient;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config.CatalogConfig;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config.ClusterConfig;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.exception.BackendUnavailableException;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.exception.OCKafkaException;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.CustomizeQuotaItem;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.RangerV2Policy;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.ServiceInstance;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.OCDPAdminService;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.CircuitBreaker;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 
 @Service
 public class KafkaAdminService implements OCDPAdminService{
@@ -37,7 +39,6 @@ public class KafkaAdminService implements OCDPAdminService{
 	
     private static final List<String> ACCESSES = Lists.newArrayList("publish", "consume", "configure", "describe", "create", "delete", "kafka_admin");
 	
-    private Gson gson = new GsonBuilder().create();
     
 	private ClusterConfig sys_env;
 	
@@ -70,6 +71,23 @@ public class KafkaAdminService implements OCDPAdminService{
 	public String createPolicyForResources(String policyName, List<String> resources, List<String> defaultUsers,
 			String groupName, List<String> permissions) {
         String policyId = null;
+        RangerV2Policy policy = buildPolicy(policyName, resources, defaultUsers, groupName, permissions);
+        RangerV2Policy newPolicy = ranger.createV2Policy(sys_env.getClusterName()+"_kafka", policy);
+        if (newPolicy != null){
+            policyId = newPolicy.getPolicyId();
+        }
+        LOG.info("Create policy [{}] for tenant [{}] successful with policy id [{}]", policyName, defaultUsers.toString(), policyId);
+        return policyId;
+	}
+
+	@Override
+	public List<RangerV2Policy> buildPoliciesForResources(String policyName, List<String> resources,
+			List<String> defaultUsers, String groupName, List<String> permissions) {
+		return Lists.newArrayList(buildPolicy(policyName, resources, defaultUsers, groupName, permissions));
+	}
+
+	private RangerV2Policy buildPolicy(String policyName, List<String> resources, List<String> defaultUsers,
+			String groupName, List<String> permissions) {
         RangerV2Policy policy = newPolicy(policyName);
         policy.addResources2(Constants.REROURCE_TYPE, resources, false, false);
        // policy.addPolicyItems(Lists.newArrayList(defaultUser), Lists.newArrayList(groupName), Lists.newArrayList(), false, ACCESSES);
@@ -82,13 +100,7 @@ public class KafkaAdminService implements OCDPAdminService{
 						Lists.newArrayList(defaultUser), Lists.newArrayList(groupName), Lists.newArrayList(), false, permissions);
 			}
 		}
-        String newPolicyString = ranger.createV2Policy(sys_env.getClusterName()+"_kafka", policy);
-        if (newPolicyString != null){
-            RangerV2Policy newPolicyObj = gson.fromJson(newPolicyString, RangerV2Policy.class);
-            policyId = newPolicyObj.getPolicyId();
-        }
-        LOG.info("Create policy [{}] for tenant [{}] successful with policy id [{}]", policyName, defaultUsers.toString(), policyId);
-        return policyId;
+		return policy;
 	}
 	
 	@Override
@@ -101,7 +113,7 @@ public class KafkaAdminService implements OCDPAdminService{
 	@Override
 	public void deprovisionResources(String serviceInstanceResuorceName) throws Exception {
 		try {
-			KafkaClient.getClient().deleteTopic(serviceInstanceResuorceName);
+			callKafka(client -> client.deleteTopic(serviceInstanceResuorceName));
 			// TODO: topic consumer group need to be taken care of.
 			LOG.info("Deprovision Kafka resource {} successful!", serviceInstanceResuorceName);
 		} catch (OCKafkaException e) {
@@ -129,7 +141,7 @@ public class KafkaAdminService implements OCDPAdminService{
 		String topic = getTopic(instance);
 		try {
 			changePartitions(topic, cuzQuota); 
-			KafkaClient.getClient().changeConfig(topic, trans(cuzQuota));
+			callKafka(client -> client.changeConfig(topic, trans(cuzQuota)));
 			LOG.info("Resizing kafka quota for topic [{}] successful with config [{}].", topic, cuzQuota);
 		} catch (OCKafkaException e) {
 			LOG.error("Change kafka topic [{}] config failed: {}", topic, e);
@@ -171,7 +183,7 @@ public class KafkaAdminService implements OCDPAdminService{
 			return; // no partition changing request found
 		}
 		String par = String.valueOf(cuzQuota.get(Constants.TOPIC_QUOTA));
-		KafkaClient.getClient().changePartitions(topic, Integer.valueOf(par));
+		callKafka(client -> client.changePartitions(topic, Integer.valueOf(par)));
 		LOG.info("Kafka topic [{}]'s partition changed to [{}]", topic, par);
 	}
 
@@ -184,7 +196,7 @@ public class KafkaAdminService implements OCDPAdminService{
 		try {
 			Properties props = buildProperties(quota);
 			String par_num = String.valueOf(quota.get(Constants.TOPIC_QUOTA));
-			KafkaClient.getClient().createTopic(topic.name(), Integer.valueOf(par_num), Constants.REP_FACTOR, props);
+			callKafka(client -> client.createTopic(topic.name(), Integer.valueOf(par_num), Constants.REP_FACTOR, props));
 			LOG.info("Topic {} created successful with {} partitions and config: {}", topic, par_num, props);
 			return topic.name();
 		} catch (OCKafkaException e) {
@@ -392,6 +404,46 @@ public class KafkaAdminService implements OCDPAdminService{
 		}
 	}
 	
+	/**
+	 * Call kafka through its circuit breaker, fail fast while zookeeper of kafka is known to be unreachable.
+	 * Only zookeeper connection errors count as failures, not invalid requests (e.g. topic exists).
+	 */
+	private void callKafka(KafkaAction action) throws OCKafkaException {
+		CircuitBreaker breaker = CircuitBreaker.forBackend("kafka");
+		long ticket;
+		try {
+			ticket = breaker.acquire();
+		} catch (BackendUnavailableException e) {
+			throw new OCKafkaException(e.getMessage(), e);
+		}
+		long start = System.currentTimeMillis();
+		// Settled in finally, e.g. an Error counts as failure
+		boolean failed = true;
+		try {
+			action.run(KafkaClient.getClient());
+			failed = false;
+		} catch (OCKafkaException | RuntimeException e) {
+			failed = isZkUnavailable(e);
+			throw e;
+		} finally {
+			breaker.complete(ticket, failed, System.currentTimeMillis() - start);
+		}
+	}
+
+	private static boolean isZkUnavailable(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof ZkTimeoutException || t instanceof KeeperException.ConnectionLossException ||
+					t instanceof KeeperException.SessionExpiredException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private interface KafkaAction {
+		void run(KafkaClient client) throws OCKafkaException;
+	}
+
 	/**
 	 * Constants fields of Kafka service.
 	 * @author EthanWang
@@ -1,10 +1,14 @@
 package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.impl;
 
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.rangerClient;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config.ClusterConfig;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.RangerV2Policy;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.ServiceInstance;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.OCDPAdminService;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.common.YarnCommonService;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.CompositeOperation;
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OCDPConstants;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OperationDeadline;
 import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,7 +20,12 @@ import java.util.UUID;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by baikai on 8/4/16.
@@ -25,8 +34,13 @@ import java.util.Map;
 public class YarnAdminService implements OCDPAdminService {
     private Logger logger = LoggerFactory.getLogger(YarnAdminService.class);
 
+    @Autowired
+    private ExecutorService backendExecutor;
+
     private ClusterConfig clusterConfig;
 
+    private rangerClient rc;
+
     private YarnCommonService yarnCommonService;
 
     private HDFSAdminService hdfsAdminService;
@@ -35,6 +49,7 @@ public class YarnAdminService implements OCDPAdminService {
     public YarnAdminService(ClusterConfig clusterConfig,
                             YarnCommonService yarnCommonService, HDFSAdminService hdfsAdminService){
         this.clusterConfig = clusterConfig;
+        this.rc = clusterConfig.getRangerClient();
         this.yarnCommonService = yarnCommonService;
         this.hdfsAdminService = hdfsAdminService;
     }
@@ -49,6 +64,67 @@ public class YarnAdminService implements OCDPAdminService {
     @Override
     public String createPolicyForResources(String policyName, final List<String> resources, List<String> userList,
                                            String groupName, List<String> permissions) {
+        List<String> hdfsFolderForJobExec = hdfsFolders(policyName, userList);
+        hdfsAdminService.createUserDirs(userList);
+        // Hdfs and yarn policies are independent, create them concurrently
+        String resource = resources.get(0);
+        Set<String> createdIds = ConcurrentHashMap.newKeySet();
+        CompletableFuture<String> hdfsPolicy = this.hdfsAdminService.createPolicyForResourcesAsync(
+                policyName, hdfsFolderForJobExec, userList, groupName, null, createdIds);
+        CompletableFuture<String> yarnPolicy = this.yarnCommonService.assignPermissionToQueueAsync(
+                policyName, resource, userList, groupName, null, createdIds);
+
+        String hdfsPolicyId = policyIdOrNull(hdfsPolicy);
+        if ( hdfsPolicyId != null){
+            logger.info("Assign permissions for folder " + hdfsFolderForJobExec.toString()  + " with policy id " + hdfsPolicyId);
+        }
+
+        String yarnPolicyId = policyIdOrNull(yarnPolicy);
+        if ( yarnPolicyId != null){
+            logger.info("Assign permissions for folder " + resource  + " with policy id " + yarnPolicyId);
+        }
+        // return policy ids if both yarn policy and hdfs policy create successfully
+        if (hdfsPolicyId != null && yarnPolicyId != null) {
+            return hdfsPolicyId + ":" + yarnPolicyId;
+        }
+        // Remove policy created here, so that a retry starts from scratch instead of leaving orphan policy;
+        // policy with same name which existed before is kept
+        OperationDeadline.withGrace(() -> {
+            for (String createdPolicyId : createdIds) {
+                logger.info("Rollback policy " + createdPolicyId + " created for user " + userList);
+                rc.removeV2PolicyIfExists(createdPolicyId);
+            }
+            return null;
+        });
+        return null;
+    }
+
+    /**
+     * @return policy id, null if policy create failed or threw, so that policy created by other is rolled back
+     */
+    private String policyIdOrNull(CompletableFuture<String> policy){
+        return policy.handle((policyId, e) -> {
+            if (e != null) {
+                logger.error("Create policy failed due to: " + e.getMessage());
+                return null;
+            }
+            return policyId;
+        }).join();
+    }
+
+    /**
+     * Hdfs and yarn policies in order of composite policy id, /user dirs of users are not created
+     */
+    @Override
+    public List<RangerV2Policy> buildPoliciesForResources(String policyName, List<String> resources,
+                                                          List<String> userList, String groupName,
+                                                          List<String> permissions){
+        return Lists.newArrayList(
+                hdfsAdminService.buildPolicy(policyName, hdfsFolders(policyName, userList), userList, groupName, null),
+                yarnCommonService.buildQueuePolicy(policyName, resources.get(0), userList, groupName, null));
+    }
+
+    private static List<String> hdfsFolders(String policyName, List<String> userList){
         String historyPath = "/" + policyName.split("_")[0] + "-history";
         // Temp fix: for 'create instance in tenant' case,
         // create one ranger policy for multiple user and multiple /user/<userName> dirs
@@ -62,45 +138,31 @@ public class YarnAdminService implements OCDPAdminService {
         };
         for (String userName : userList) {
             hdfsFolderForJobExec.add("/user/" + userName);
-            createHdfsPath("/user/" + userName);
-        }
-        String hdfsPolicyId = this.hdfsAdminService.createPolicyForResources(
-                policyName, hdfsFolderForJobExec, userList, groupName, null);
-        if ( hdfsPolicyId != null){
-            logger.info("Assign permissions for folder " + hdfsFolderForJobExec.toString()  + " with policy id " + hdfsPolicyId);
-        }
-
-        String resource = resources.get(0);
-        String yarnPolicyId = this.yarnCommonService.assignPermissionToQueue(policyName, resource, userList, groupName, null);
-        if ( yarnPolicyId != null){
-            logger.info("Assign permissions for folder " + resource  + " with policy id " + yarnPolicyId);
         }
-        // return policy ids if both yarn policy and hdfs policy create successfully
-        return ( hdfsPolicyId != null && yarnPolicyId != null) ? hdfsPolicyId + ":" + yarnPolicyId : null;
+        return hdfsFolderForJobExec;
     }
 
     @Override
     public boolean appendResourcesToPolicy(String policyId, String serviceInstanceResource){
-        return yarnCommonService.appendResourceToQueuePermission(policyId, serviceInstanceResource);
+        // Hdfs policy only covers history and /user dirs, queue is the only resource of instance
+        return yarnCommonService.appendResourceToQueuePermission(policyId.split(":")[1], serviceInstanceResource);
     }
 
     @Override
     public boolean appendUsersToPolicy(
             String policyId, String groupName, List<String> users, List<String> permissions) {
         String[] policyIds = policyId.split(":");
+        // Hdfs and yarn policies are updated concurrently, users are revoked from both if any update fails
+        CompositeOperation operation = new CompositeOperation("yarn.append_users", backendExecutor);
         // Temp fix: when update pass multiple users, append users to policy that create for multiple users and multiple /user/<userName> dirs
         // Please refer to: https://github.com/OCManager/OCDP_ServiceBroker/issues/48
-        boolean resourceAppendToHDFSPolicy = false;
-        for (String user : users) {
-            logger.info("Create /user dir for user ", user);
-            createHdfsPath("/user/" + user);
-            resourceAppendToHDFSPolicy = this.hdfsAdminService.appendResourcesToPolicy(policyIds[0], "/user/" + user);
-        }
-        boolean userAppendToHDFSPolicy = this.hdfsAdminService.appendUsersToPolicy(
-                policyIds[0], groupName, users, Lists.newArrayList("read", "write","execute"));
-        boolean userAppendToYarnPolicy = this.yarnCommonService.appendUsersToQueuePermission(
-                policyIds[1], groupName, users, permissions);
-        return userAppendToHDFSPolicy && resourceAppendToHDFSPolicy && userAppendToYarnPolicy;
+        this.hdfsAdminService.grantUserDirsStep(operation, policyIds[0], groupName, users);
+        AtomicReference<List<String>> newYarnUsers = new AtomicReference<>(new ArrayList<>());
+        operation.step("yarn policy " + policyIds[1], () -> {
+            newYarnUsers.set(rc.getUsersNotInV2Policy(policyIds[1], users));
+            return this.yarnCommonService.appendUsersToQueuePermission(policyIds[1], groupName, users, permissions);
+        }, () -> newYarnUsers.get().isEmpty() || rc.removeUsersFromV2Policy(policyIds[1], newYarnUsers.get()));
+        return operation.run();
     }
 
     @Override
@@ -112,32 +174,35 @@ public class YarnAdminService implements OCDPAdminService {
     public boolean deletePolicyForResources(String policyId) {
         String[] policyIds = policyId.split(":");
         logger.info("Delete hdfs ranger policy " + policyIds[0]);
-        boolean hdfsPolicyDeleted = this.hdfsAdminService.deletePolicyForResources(policyIds[0]);
         logger.info("Delete yarn ranger policy " + policyIds[1]);
-        boolean yarnPolicyDeleted = this.yarnCommonService.unassignPermissionFromQueue(policyIds[1]);
+        // Hdfs and yarn policies are independent, delete them concurrently
+        CompletableFuture<Boolean> hdfsPolicy = this.hdfsAdminService.deletePolicyForResourcesAsync(policyIds[0]);
+        CompletableFuture<Boolean> yarnPolicy = this.yarnCommonService.unassignPermissionFromQueueAsync(policyIds[1]);
+        boolean hdfsPolicyDeleted = hdfsPolicy.join();
+        boolean yarnPolicyDeleted = yarnPolicy.join();
         return hdfsPolicyDeleted && yarnPolicyDeleted;
     }
 
     @Override
     public boolean removeResourceFromPolicy(String policyId, String serviceInstanceResource){
-        return yarnCommonService.removeResourceFromQueuePermission(policyId, serviceInstanceResource);
+        return yarnCommonService.removeResourceFromQueuePermission(policyId.split(":")[1], serviceInstanceResource);
     }
 
     @Override
     public boolean removeUserFromPolicy(String policyId, String userName) {
         String[] policyIds = policyId.split(":");
-        boolean userRemovedFromHDFSPolicy = this.hdfsAdminService.removeUserFromPolicy(policyIds[0], userName);
-        boolean resourceRemovedFromHDFSPolicy = this.hdfsAdminService.removeResourceFromPolicy(
-                policyIds[0], "/user/" + userName);
-        boolean userRemovedFromYarnPolicy = this.yarnCommonService.removeUserFromQueuePermission(
-                policyIds[1], userName);
-        return userRemovedFromHDFSPolicy && resourceRemovedFromHDFSPolicy && userRemovedFromYarnPolicy;
+        // Removal is idempotent, so a partial failure is not reverted but left to retry of whole operation
+        return new CompositeOperation("yarn.remove_user", backendExecutor)
+                .step("hdfs policy " + policyIds[0], () -> this.hdfsAdminService.removeUserFromPolicy(policyIds[0], userName) &&
+                        this.hdfsAdminService.removeResourceFromPolicy(policyIds[0], "/user/" + userName), null)
+                .step("yarn policy " + policyIds[1],
+                        () -> this.yarnCommonService.removeUserFromQueuePermission(policyIds[1], userName), null)
+                .run();
     }
 
-    //not used
     @Override
     public  List<String> getResourceFromPolicy(String policyId){
-        return yarnCommonService.getResourceFromQueuePolicy(policyId);
+        return yarnCommonService.getResourceFromQueuePolicy(policyId.split(":")[1]);
     }
 
     @Override
@@ -157,13 +222,4 @@ public class YarnAdminService implements OCDPAdminService {
         yarnCommonService.resizeResourceQuota(instance, cuzQuota);
     }
 
-    private void createHdfsPath(String path) {
-        try {
-            this.hdfsAdminService.createHDFSDir(path, null, null);
-        } catch (IOException e) {
-            logger.error("Create hdfs user path [{}] failed!", e);
-            throw new RuntimeException(e);
-        }
-    }
-
 }
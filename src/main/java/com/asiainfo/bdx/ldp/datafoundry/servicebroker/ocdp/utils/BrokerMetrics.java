@@ -0,0 +1,93 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * In-process metrics of broker, exposed by admin API.
+ * Three kinds of metrics are kept by name:
+ *     counter: number of events, e.g. failed backend requests;
+ *     timer: count/total/max time of an action, e.g. latency of backend requests;
+ *     gauge: value sampled when metrics are read, e.g. HTTP connection pool stats.
+ */
+public class BrokerMetrics {
+
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    private static final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    private static final Map<String, Supplier<?>> gauges = new ConcurrentHashMap<>();
+
+    private BrokerMetrics() {
+    }
+
+    public static void increment(String name) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).increment();
+    }
+
+    public static void increment(String name, long delta) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    /**
+     * Record time spent by one action
+     * @param name timer name
+     * @param millis time in millis
+     */
+    public static void record(String name, long millis) {
+        timers.computeIfAbsent(name, k -> new Timer()).record(millis);
+    }
+
+    /**
+     * Register gauge, replaces gauge registered with same name
+     * @param name gauge name
+     * @param gauge supplier of current value
+     */
+    public static void registerGauge(String name, Supplier<?> gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * @return current value of all metrics, sorted by name
+     */
+    public static Map<String, Object> snapshot() {
+        Map<String, Object> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+            result.put(e.getKey(), e.getValue().sum());
+        }
+        for (Map.Entry<String, Timer> e : timers.entrySet()) {
+            result.put(e.getKey(), e.getValue().toMap());
+        }
+        for (Map.Entry<String, Supplier<?>> e : gauges.entrySet()) {
+            result.put(e.getKey(), e.getValue().get());
+        }
+        return result;
+    }
+
+    private static class Timer {
+        final LongAdder count = new LongAdder();
+        final LongAdder totalMillis = new LongAdder();
+        final AtomicLong maxMillis = new AtomicLong();
+
+        void record(long millis) {
+            count.increment();
+            totalMillis.add(millis);
+            maxMillis.accumulateAndGet(millis, Math::max);
+        }
+
+        Map<String, Object> toMap() {
+            long n = count.sum();
+            long total = totalMillis.sum();
+            Map<String, Object> map = new TreeMap<>();
+            map.put("count", n);
+            map.put("total_ms", total);
+            map.put("mean_ms", n == 0 ? 0 : total / n);
+            map.put("max_ms", maxMillis.get());
+            return map;
+        }
+    }
+}
@@ -11,11 +11,19 @@ import org.springframework.ldap.core.AttributesMapper;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.BasicAttribute;
 import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
 import javax.naming.ldap.LdapName;
 import javax.naming.NamingException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.PrivilegedExceptionAction;
 
 /**
  * Created by baikai on 10/17/16.
@@ -24,6 +32,11 @@ public class BrokerUtil {
 
     private final static String uidNumberBase = "1500";
 
+    private final static String gidNumberBase = "20000";
+
+    // Kerberos login of each super user principal, shared by all threads
+    private final static Map<String, UserGroupInformation> loginUsers = new ConcurrentHashMap<>();
+
     public static void authentication(Configuration conf, String userPrincipal, String keyTabFilePath){
         UserGroupInformation.setConfiguration(conf);
         try{
@@ -33,6 +46,40 @@ public class BrokerUtil {
         }
     }
 
+    /**
+     * Run action as given kerberos principal.
+     * Unlike authentication(), this not replaces process-wide login user, so that actions of different
+     * principals (e.g. hdfs/hbase/hive super users) can run in parallel threads.
+     */
+    public static <T> T doAs(Configuration conf, String userPrincipal, String keyTabFilePath,
+                             PrivilegedExceptionAction<T> action) throws IOException{
+        UserGroupInformation ugi = getLoginUser(conf, userPrincipal, keyTabFilePath);
+        ugi.checkTGTAndReloginFromKeytab();
+        try{
+            return ugi.doAs(action);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while running action as " + userPrincipal);
+        }
+    }
+
+    private static UserGroupInformation getLoginUser(Configuration conf, String userPrincipal, String keyTabFilePath)
+            throws IOException{
+        UserGroupInformation ugi = loginUsers.get(userPrincipal);
+        if (ugi != null){
+            return ugi;
+        }
+        synchronized (loginUsers){
+            ugi = loginUsers.get(userPrincipal);
+            if (ugi == null){
+                UserGroupInformation.setConfiguration(conf);
+                ugi = UserGroupInformation.loginUserFromKeytabAndReturnUGI(userPrincipal, keyTabFilePath);
+                loginUsers.put(userPrincipal, ugi);
+            }
+        }
+        return ugi;
+    }
+
     public static String generateAccountName(int digits){
         String uuid = UUID.randomUUID().toString();
         return uuid.substring(0,digits);
@@ -77,6 +124,95 @@ public class BrokerUtil {
         return (list.size() != 0);
     }
 
+    /**
+     * Create posix group without members, members are listed by memberUid
+     */
+    public static void createLDAPGroup(LdapTemplate ldapTemplate, etcdClient etcdClient, String groupName){
+        Attributes groupAttributes = new BasicAttributes();
+        BasicAttribute classAttribute = new BasicAttribute("objectClass");
+        classAttribute.add("top");
+        classAttribute.add("posixGroup");
+        groupAttributes.put(classAttribute);
+        groupAttributes.put("cn", groupName);
+        groupAttributes.put("gidNumber", getNextGidNumber(ldapTemplate, etcdClient));
+        ldapTemplate.bind(groupDN(groupName), null, groupAttributes);
+    }
+
+    public static void removeLDAPGroup(LdapTemplate ldapTemplate, String groupName){
+        ldapTemplate.unbind(groupDN(groupName));
+    }
+
+    /**
+     * @return member user names of group, null if group not exists
+     */
+    public static List<String> getLDAPGroupMembers(LdapTemplate ldapTemplate, String groupName){
+        List<List<String>> list = ldapTemplate.search(
+                "ou=Group", "(&(objectClass=posixGroup)(cn=" + groupName + "))",
+                new AttributesMapper<List<String>>() {
+                    public List<String> mapFromAttributes(Attributes attrs)
+                            throws NamingException {
+                        List<String> members = new ArrayList<>();
+                        if (attrs.get("memberUid") != null){
+                            for (Object member : Collections.list(attrs.get("memberUid").getAll())){
+                                members.add(member.toString());
+                            }
+                        }
+                        return members;
+                    }
+                });
+        return list.isEmpty() ? null : list.get(0);
+    }
+
+    /**
+     * Add or remove members of group by one LDAP modify, users must not be (or must be) members already
+     */
+    public static void modifyLDAPGroupMembers(LdapTemplate ldapTemplate, String groupName, List<String> users,
+                                              boolean add){
+        BasicAttribute memberAttribute = new BasicAttribute("memberUid");
+        for (String user : users){
+            memberAttribute.add(user);
+        }
+        ModificationItem item = new ModificationItem(
+                add ? DirContext.ADD_ATTRIBUTE : DirContext.REMOVE_ATTRIBUTE, memberAttribute);
+        ldapTemplate.modifyAttributes(groupDN(groupName), new ModificationItem[]{item});
+    }
+
+    private static LdapName groupDN(String groupName){
+        return LdapNameBuilder.newInstance("ou=Group")
+                .add("cn", groupName)
+                .build();
+    }
+
+    /**
+     * Counter is never re-seeded because of a failed read: etcdClient throws if counter can not be read,
+     * so null means counter not exists. A missing counter is seeded above gidNumbers already used in LDAP,
+     * in case it was lost after groups were created.
+     */
+    private static synchronized String getNextGidNumber(LdapTemplate ldapTemplate, etcdClient etcdClient){
+        String gidNumber = etcdClient.readToString("/servicebroker/ocdp/group/gidNumber");
+        int nextGidNumber;
+        if(gidNumber == null){
+            nextGidNumber = Math.max(Integer.parseInt(gidNumberBase), getMaxLDAPGidNumber(ldapTemplate) + 1);
+        }else {
+            nextGidNumber = Integer.parseInt(gidNumber) + 1;
+        }
+        etcdClient.write("/servicebroker/ocdp/group/gidNumber", Integer.toString(nextGidNumber));
+        return Integer.toString(nextGidNumber);
+    }
+
+    private static int getMaxLDAPGidNumber(LdapTemplate ldapTemplate){
+        List<Integer> gidNumbers = ldapTemplate.search(
+                "ou=Group", "(objectClass=posixGroup)",
+                new AttributesMapper<Integer>() {
+                    public Integer mapFromAttributes(Attributes attrs)
+                            throws NamingException {
+                        return (attrs.get("gidNumber") != null) ?
+                                Integer.parseInt(attrs.get("gidNumber").get().toString()) : 0;
+                    }
+                });
+        return gidNumbers.isEmpty() ? 0 : Collections.max(gidNumbers);
+    }
+
     private static synchronized String getNextUidNumber(etcdClient etcdClient){
         String uidNumber = etcdClient.readToString("/servicebroker/ocdp/user/uidNumber");
         if(uidNumber == null){
@@ -0,0 +1,312 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.exception.BackendUnavailableException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker of one backend (Ranger, Ambari, Yarn RM, etcd, KDC, HDFS, HBase, Hive, Kafka).
+ * Outcome of the last calls is kept in a sliding window, calls slower than a threshold count as failures.
+ *     closed: calls go through, breaker opens once failure rate of window reaches threshold;
+ *     open: calls fail fast with BackendUnavailableException, so callers not wait for socket timeouts
+ *           or retry loops of a backend which is down;
+ *     half-open: after open period a few probe calls go through, breaker closes if they all succeed
+ *                and opens again if any fails.
+ *
+ * Breakers are kept in a registry by backend name and exposed by metrics and health admin API.
+ */
+public class CircuitBreaker {
+
+    public static final String CLOSED = "closed";
+
+    public static final String OPEN = "open";
+
+    public static final String HALF_OPEN = "half_open";
+
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private static final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    private static volatile Settings settings = new Settings(20, 10, 50, 10000L, 30000L, 1);
+
+    // Slow call threshold by backend, for backends whose calls are normally slower than others
+    private static final Map<String, Long> slowCallMillisByBackend = new ConcurrentHashMap<>();
+
+    private final String name;
+
+    private final Settings config;
+
+    // Outcome of last calls, true for failure
+    private final boolean[] window;
+
+    private int windowIndex;
+
+    private int windowCount;
+
+    private int windowFailures;
+
+    private String state = CLOSED;
+
+    // Increased on each state change, outcome of a call started in an earlier state is ignored
+    private long epoch;
+
+    private long openUntil;
+
+    private int probesInFlight;
+
+    private int probeSuccesses;
+
+    private long lastStateChange = System.currentTimeMillis();
+
+    private CircuitBreaker(String name, Settings config) {
+        this.name = name;
+        this.config = config;
+        this.window = new boolean[config.windowSize];
+    }
+
+    /**
+     * Configure breakers created from now on
+     * @param windowSize number of last calls whose outcome is kept
+     * @param minCalls min calls in window before failure rate is evaluated
+     * @param failureRatePercent failure rate of window which opens breaker
+     * @param slowCallMillis calls taking longer count as failures
+     * @param openMillis time breaker stays open before probing backend
+     * @param halfOpenProbes number of successful probes which close breaker
+     */
+    public static void configure(int windowSize, int minCalls, int failureRatePercent, long slowCallMillis,
+                                 long openMillis, int halfOpenProbes) {
+        settings = new Settings(Math.max(1, windowSize), Math.max(1, minCalls), failureRatePercent, slowCallMillis,
+                openMillis, Math.max(1, halfOpenProbes));
+    }
+
+    /**
+     * Configure slow call threshold of breakers of given backend created from now on, overrides the one of
+     * {@link #configure}, e.g. for Ambari whose capacity-scheduler refresh is normally slow
+     * @param backend backend name, also applies to breakers of its hosts (e.g. ambari@host)
+     * @param slowCallMillis calls taking longer count as failures
+     */
+    public static void configureSlowCall(String backend, long slowCallMillis) {
+        slowCallMillisByBackend.put(backend, slowCallMillis);
+    }
+
+    /**
+     * @return breaker of backend, created on first use
+     */
+    public static CircuitBreaker forBackend(String name) {
+        return breakers.computeIfAbsent(name, k -> {
+            int host = k.indexOf('@');
+            Long slowCallMillis = slowCallMillisByBackend.get(host < 0 ? k : k.substring(0, host));
+            CircuitBreaker breaker = new CircuitBreaker(k,
+                    slowCallMillis == null ? settings : settings.withSlowCallMillis(slowCallMillis));
+            BrokerMetrics.registerGauge("breaker." + k, breaker::snapshot);
+            return breaker;
+        });
+    }
+
+    /**
+     * @return stats of all breakers by backend name
+     */
+    public static Map<String, Map<String, Object>> snapshotAll() {
+        Map<String, Map<String, Object>> result = new TreeMap<>();
+        for (Map.Entry<String, CircuitBreaker> e : breakers.entrySet()) {
+            result.put(e.getKey(), e.getValue().snapshot());
+        }
+        return result;
+    }
+
+    /**
+     * Ask for permission to call backend
+     * @return ticket to pass to {@link #onSuccess} or {@link #onFailure} once call completes
+     * @throws BackendUnavailableException if breaker is open, or half-open with all probes in flight
+     */
+    public synchronized long acquire() throws BackendUnavailableException {
+        if (OPEN.equals(state)) {
+            long now = System.currentTimeMillis();
+            if (now < openUntil) {
+                BrokerMetrics.increment("breaker." + name + ".rejected");
+                throw new BackendUnavailableException("Backend " + name + " is unavailable, circuit breaker open for " +
+                        (openUntil - now) + "ms more.");
+            }
+            transition(HALF_OPEN);
+        }
+        if (HALF_OPEN.equals(state)) {
+            if (probesInFlight >= config.halfOpenProbes) {
+                BrokerMetrics.increment("breaker." + name + ".rejected");
+                throw new BackendUnavailableException("Backend " + name + " is unavailable, waiting for probe calls.");
+            }
+            probesInFlight++;
+        }
+        return epoch;
+    }
+
+    /**
+     * Record call completed by backend, a slow call counts as failure
+     */
+    public void onSuccess(long ticket, long elapsedMillis) {
+        record(ticket, elapsedMillis >= config.slowCallMillis);
+    }
+
+    /**
+     * Record call failed because of backend, e.g. connection refused or timeout
+     */
+    public void onFailure(long ticket, long elapsedMillis) {
+        record(ticket, true);
+    }
+
+    /**
+     * Give back permission of a call which was abandoned without an outcome, e.g. cancelled
+     */
+    public synchronized void release(long ticket) {
+        if (ticket == epoch && HALF_OPEN.equals(state)) {
+            probesInFlight--;
+        }
+    }
+
+    /**
+     * Call backend through breaker, every IOException counts as failure of backend
+     */
+    public <T> T execute(BackendCall<T> call) throws IOException {
+        return execute(call, e -> true);
+    }
+
+    /**
+     * Call backend through breaker
+     * @param isBackendFailure whether an exception thrown by call means backend is unhealthy,
+     *                         e.g. not for an error returned by a reachable backend
+     */
+    public <T> T execute(BackendCall<T> call, Predicate<Exception> isBackendFailure) throws IOException {
+        long ticket = acquire();
+        long start = System.currentTimeMillis();
+        // Outcome is unknown until call returns or throws an exception classified below, e.g. for an Error
+        boolean failed = true;
+        try {
+            T result = call.call();
+            failed = false;
+            return result;
+        } catch (IOException | RuntimeException e) {
+            failed = isBackendFailure.test(e);
+            throw e;
+        } finally {
+            complete(ticket, failed, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Record outcome of call, must be called exactly once for each ticket, best in a finally block
+     * so that a call ending with an unexpected exception still gives back its (probe) permission
+     * @param failed whether call failed because of backend, callers should pass true when outcome is unknown
+     */
+    public void complete(long ticket, boolean failed, long elapsedMillis) {
+        if (failed) {
+            onFailure(ticket, elapsedMillis);
+        } else {
+            onSuccess(ticket, elapsedMillis);
+        }
+    }
+
+    public synchronized String getState() {
+        if (OPEN.equals(state) && System.currentTimeMillis() >= openUntil) {
+            // Next call will probe backend
+            return HALF_OPEN;
+        }
+        return state;
+    }
+
+    public synchronized Map<String, Object> snapshot() {
+        Map<String, Object> stats = new TreeMap<>();
+        stats.put("state", getState());
+        stats.put("calls", windowCount);
+        stats.put("failures", windowFailures);
+        stats.put("failure_rate", windowCount == 0 ? 0 : windowFailures * 100 / windowCount);
+        stats.put("since", lastStateChange);
+        return stats;
+    }
+
+    private synchronized void record(long ticket, boolean failed) {
+        if (ticket != epoch) {
+            return;
+        }
+        if (HALF_OPEN.equals(state)) {
+            probesInFlight--;
+            if (failed) {
+                transition(OPEN);
+            } else if (++probeSuccesses >= config.halfOpenProbes) {
+                transition(CLOSED);
+            }
+            return;
+        }
+        if (!CLOSED.equals(state)) {
+            return;
+        }
+        if (windowCount == window.length) {
+            if (window[windowIndex]) {
+                windowFailures--;
+            }
+        } else {
+            windowCount++;
+        }
+        window[windowIndex] = failed;
+        if (failed) {
+            windowFailures++;
+        }
+        windowIndex = (windowIndex + 1) % window.length;
+        if (windowCount >= config.minCalls && windowFailures * 100 >= config.failureRatePercent * windowCount) {
+            transition(OPEN);
+        }
+    }
+
+    private void transition(String newState) {
+        logger.warn("Circuit breaker of backend [{}] changed from {} to {}, failures {} of last {} calls.",
+                name, state, newState, windowFailures, windowCount);
+        BrokerMetrics.increment("breaker." + name + "." + newState);
+        state = newState;
+        epoch++;
+        lastStateChange = System.currentTimeMillis();
+        probesInFlight = 0;
+        probeSuccesses = 0;
+        if (OPEN.equals(newState)) {
+            openUntil = lastStateChange + config.openMillis;
+        }
+        if (CLOSED.equals(newState)) {
+            windowIndex = 0;
+            windowCount = 0;
+            windowFailures = 0;
+        }
+    }
+
+    /**
+     * Blocking call of a backend
+     */
+    public interface BackendCall<T> {
+        T call() throws IOException;
+    }
+
+    private static class Settings {
+        final int windowSize;
+        final int minCalls;
+        final int failureRatePercent;
+        final long slowCallMillis;
+        final long openMillis;
+        final int halfOpenProbes;
+
+        Settings(int windowSize, int minCalls, int failureRatePercent, long slowCallMillis, long openMillis,
+                 int halfOpenProbes) {
+            this.windowSize = windowSize;
+            this.minCalls = minCalls;
+            this.failureRatePercent = failureRatePercent;
+            this.slowCallMillis = slowCallMillis;
+            this.openMillis = openMillis;
+            this.halfOpenProbes = halfOpenProbes;
+        }
+
+        Settings withSlowCallMillis(long slowCallMillis) {
+            return new Settings(windowSize, minCalls, failureRatePercent, slowCallMillis, openMillis, halfOpenProbes);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Operation made of independent steps on different backends, e.g. granting a user permissions in hive, hdfs
+ * and yarn policies of one hive instance. Steps run concurrently, so the operation takes about as long as
+ * its slowest step instead of the sum of all steps. If any step fails, every step which ran is rolled back,
+ * the failed step included as it may have taken effect partially, so that the operation takes effect on
+ * all backends or on none of them. Rollbacks run with a grace deadline of their own, so they still run when
+ * steps failed because the operation ran out of time.
+ *
+ * Caller thread runs steps not yet picked up by executor itself while waiting, so nested operations
+ * (e.g. steps of a bulk provision already running in backend executor) never wait for a free thread.
+ */
+public class CompositeOperation {
+
+    private Logger logger = LoggerFactory.getLogger(CompositeOperation.class);
+
+    private final String name;
+
+    private final Executor executor;
+
+    private final List<Step> steps = new ArrayList<>();
+
+    public CompositeOperation(String name, Executor executor) {
+        this.name = name;
+        this.executor = executor;
+    }
+
+    /**
+     * @param name step name, for logs
+     * @param action step action, returns true if step succeeded
+     * @param rollback reverts what action recorded as done, also after action failed or threw halfway,
+     *                 so it must only undo changes recorded by this action (e.g. users not in policy before);
+     *                 returns true if reverted; null if nothing to revert
+     */
+    public CompositeOperation step(String name, Callable<Boolean> action, Callable<Boolean> rollback) {
+        steps.add(new Step(name, action, rollback));
+        return this;
+    }
+
+    /**
+     * Run all steps concurrently, roll back all steps which ran if any step fails
+     * @return true if all steps succeeded
+     */
+    public boolean run() {
+        long start = System.currentTimeMillis();
+        runAll(steps, step -> step.action);
+        List<String> failed = new ArrayList<>();
+        for (Step step : steps) {
+            if (!step.result) {
+                failed.add(step.name);
+            }
+        }
+        BrokerMetrics.record("composite." + name, System.currentTimeMillis() - start);
+        if (failed.isEmpty()) {
+            return true;
+        }
+        List<Step> rollbacks = new ArrayList<>();
+        for (Step step : steps) {
+            if (step.started && step.rollback != null) {
+                rollbacks.add(step);
+            }
+        }
+        logger.error("Operation [{}] failed on steps {}, rolling back steps {}.", name, failed, names(rollbacks));
+        BrokerMetrics.increment("composite." + name + ".rollback");
+        // Most failures are timeouts, so rollbacks get their own budget instead of the spent one of operation
+        OperationDeadline.withGrace(() -> {
+            runAll(rollbacks, step -> step.rollback);
+            return null;
+        });
+        for (Step step : rollbacks) {
+            if (!step.result) {
+                logger.error("Rollback of step [{}] of operation [{}] failed.", step.name, name);
+            }
+        }
+        return false;
+    }
+
+    private void runAll(List<Step> toRun, Function<Step, Callable<Boolean>> task) {
+        List<FutureTask<Boolean>> futures = new ArrayList<>();
+        for (Step step : toRun) {
+            Callable<Boolean> callable = task.apply(step);
+            FutureTask<Boolean> future = new FutureTask<>(OperationDeadline.propagate(() -> {
+                step.started = true;
+                return callable.call();
+            }));
+            futures.add(future);
+            if (futures.size() > 1) {
+                // First step is run by caller thread
+                executor.execute(future);
+            }
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            FutureTask<Boolean> future = futures.get(i);
+            Step step = toRun.get(i);
+            // No-op if executor already started the step
+            future.run();
+            try {
+                step.result = Boolean.TRUE.equals(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                step.result = false;
+            } catch (ExecutionException e) {
+                logger.error("Step [{}] of operation [{}] failed due to: {}", step.name, name,
+                        e.getCause().getLocalizedMessage());
+                step.result = false;
+            }
+        }
+    }
+
+    private static List<String> names(List<Step> steps) {
+        List<String> names = new ArrayList<>();
+        for (Step step : steps) {
+            names.add(step.name);
+        }
+        return names;
+    }
+
+    private static class Step {
+        final String name;
+        final Callable<Boolean> action;
+        final Callable<Boolean> rollback;
+        // Result of last run of action or rollback
+        boolean result;
+        // Action ran, even if it failed, so its partial effects are rolled back too
+        volatile boolean started;
+
+        Step(String name, Callable<Boolean> action, Callable<Boolean> rollback) {
+            this.name = name;
+            this.action = action;
+            this.rollback = rollback;
+        }
+    }
+}
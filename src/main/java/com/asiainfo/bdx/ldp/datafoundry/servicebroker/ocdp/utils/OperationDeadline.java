@@ -0,0 +1,256 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.exception.OperationTimeoutException;
+import org.apache.http.client.config.RequestConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.function.Supplier;
+
+/**
+ * Time budget of one broker operation.
+ * Deadline is attached to the thread running the operation, so that backend clients (HTTP, kadmin...) and
+ * retry loops can bound their waits by the remaining budget and give up once it is spent.
+ * Cancelling the operation spends the whole budget at once and interrupts threads running stages of the operation.
+ */
+public class OperationDeadline {
+
+    private static final ThreadLocal<OperationDeadline> CURRENT = new ThreadLocal<>();
+
+    // Budget of clean-up of a failed operation, e.g. rollback after the operation ran out of time
+    private static volatile long graceMillis = 60000;
+
+    private final long timeoutMillis;
+
+    private final long expireTime;
+
+    private volatile boolean cancelled;
+
+    // Threads running stages of operation by run, guarded by this
+    private final List<Thread> runners = new ArrayList<>();
+
+    public OperationDeadline(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        this.expireTime = System.currentTimeMillis() + timeoutMillis;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public long remainingMillis() {
+        if (cancelled) {
+            return 0;
+        }
+        return Math.max(0, expireTime - System.currentTimeMillis());
+    }
+
+    public boolean isExpired() {
+        return cancelled || System.currentTimeMillis() >= expireTime;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Cancel operation, its next deadline check fails.
+     * @param mayInterruptIfRunning interrupt threads running stages of operation, so that blocking waits stop too
+     */
+    public synchronized void cancel(boolean mayInterruptIfRunning) {
+        this.cancelled = true;
+        if (mayInterruptIfRunning) {
+            for (Thread runner : runners) {
+                runner.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Run one stage of operation in current thread with this deadline attached,
+     * current thread is interrupted if operation is cancelled while stage is running.
+     * @param stage stage to run
+     * @return result of stage
+     */
+    public <T> T run(Supplier<T> stage) {
+        Thread thread = Thread.currentThread();
+        synchronized (this) {
+            if (cancelled) {
+                throw new OperationTimeoutException("Operation cancelled.");
+            }
+            runners.add(thread);
+        }
+        OperationDeadline previous = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            return stage.get();
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+            synchronized (this) {
+                runners.remove(thread);
+                // Interrupt of cancel must not leak to next task of pooled thread
+                if (cancelled && !runners.contains(thread)) {
+                    Thread.interrupted();
+                }
+            }
+        }
+    }
+
+    /**
+     * Throw OperationTimeoutException if deadline expired
+     * @param action action going to be executed, for error message
+     */
+    public void check(String action) {
+        if (cancelled) {
+            throw new OperationTimeoutException("Operation cancelled before " + action + ".");
+        }
+        if (isExpired()) {
+            throw new OperationTimeoutException("Operation deadline of " + (timeoutMillis / 1000) +
+                    "s exceeded before " + action + ".");
+        }
+    }
+
+    /**
+     * Attach deadline to current thread
+     */
+    public static void attach(OperationDeadline deadline) {
+        CURRENT.set(deadline);
+    }
+
+    /**
+     * Detach deadline from current thread
+     */
+    public static void detach() {
+        CURRENT.remove();
+    }
+
+    /**
+     * @return deadline of operation running in current thread, null if no deadline attached
+     */
+    public static OperationDeadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Carry deadline of current thread (if any) over to a task which runs in another thread, e.g. backend fan-out.
+     * @param task task to run
+     * @return task which runs with deadline of current thread attached
+     */
+    public static <T> Callable<T> propagate(Callable<T> task) {
+        OperationDeadline deadline = CURRENT.get();
+        return () -> {
+            OperationDeadline previous = CURRENT.get();
+            CURRENT.set(deadline);
+            try {
+                return task.call();
+            } finally {
+                if (previous == null) {
+                    CURRENT.remove();
+                } else {
+                    CURRENT.set(previous);
+                }
+            }
+        };
+    }
+
+    /**
+     * Run task in current thread with no deadline attached, e.g. work shared by several operations which must not
+     * fail because the operation that happens to run it is out of time.
+     * @param task task to run
+     * @return result of task
+     */
+    public static <T> T detached(Supplier<T> task) {
+        OperationDeadline previous = CURRENT.get();
+        CURRENT.remove();
+        try {
+            return task.get();
+        } finally {
+            if (previous != null) {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+    /**
+     * @param millis budget of clean-up of a failed operation
+     */
+    public static void configureGrace(long millis) {
+        graceMillis = millis;
+    }
+
+    /**
+     * Run clean-up (e.g. rollback) of a failed operation in current thread with a fresh grace deadline instead of
+     * deadline of the operation, so that it still runs after the operation timed out or was cancelled.
+     * @param task clean-up to run
+     * @return result of task
+     */
+    public static <T> T withGrace(Supplier<T> task) {
+        // Interrupt of a cancelled operation must not abort its clean-up, it is restored afterwards
+        boolean interrupted = Thread.interrupted();
+        try {
+            return new OperationDeadline(graceMillis).run(task);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Check deadline of current thread (if any)
+     * @param action action going to be executed, for error message
+     */
+    public static void checkCurrent(String action) {
+        OperationDeadline deadline = CURRENT.get();
+        if (deadline != null) {
+            deadline.check(action);
+        }
+    }
+
+    /**
+     * Bound given timeout by remaining time of current thread deadline.
+     * @param timeoutMillis timeout used if no deadline attached
+     * @return timeout in millis, at least 1 millis because 0 means infinite for socket timeouts
+     */
+    public static int remainingTimeout(int timeoutMillis) {
+        OperationDeadline deadline = CURRENT.get();
+        if (deadline == null) {
+            return timeoutMillis;
+        }
+        return (int) Math.max(1, Math.min(timeoutMillis, deadline.remainingMillis()));
+    }
+
+    /**
+     * Build HTTP request config with connect/socket timeouts bounded by remaining time of current thread deadline.
+     * @param timeoutMillis timeout used if no deadline attached
+     */
+    public static RequestConfig requestConfig(int timeoutMillis) {
+        int timeout = remainingTimeout(timeoutMillis);
+        return RequestConfig.custom()
+                .setConnectTimeout(timeout)
+                .setConnectionRequestTimeout(timeout)
+                .setSocketTimeout(timeout)
+                .build();
+    }
+
+    /**
+     * Sleep between retries, wake up early and fail if deadline of current thread expires.
+     * @param millis sleep time
+     * @throws InterruptedException if operation is cancelled
+     */
+    public static void sleep(long millis) throws InterruptedException {
+        OperationDeadline deadline = CURRENT.get();
+        if (deadline == null) {
+            Thread.sleep(millis);
+            return;
+        }
+        deadline.check("retry");
+        Thread.sleep(Math.min(millis, deadline.remainingMillis()));
+        deadline.check("retry");
+    }
+}
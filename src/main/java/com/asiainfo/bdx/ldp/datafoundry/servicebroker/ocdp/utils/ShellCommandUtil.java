@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class ShellCommandUtil {
 
@@ -17,6 +18,11 @@ public class ShellCommandUtil {
      */
     public static final String MASK_EVERYBODY_RWX = "777";
 
+    /**
+     * Max time to wait for a command, further bounded by deadline of current operation
+     */
+    public static final int COMMAND_TIMEOUT_MILLIS = 60000;
+
     /**
      * Gets file permissions on Linux systems.
      * Under Windows/Mac, command always returns MASK_EVERYBODY_RWX
@@ -81,7 +87,11 @@ public class ShellCommandUtil {
 
         Process process = builder.start();
         // if command output is too intensive
-        process.waitFor();
+        long timeout = OperationDeadline.remainingTimeout(COMMAND_TIMEOUT_MILLIS);
+        if (! process.waitFor(timeout, TimeUnit.MILLISECONDS)) {
+            process.destroyForcibly();
+            throw new IOException("Command " + args[0] + " not completed in " + timeout + " ms, killed.");
+        }
         String stdout = streamToString(process.getInputStream());
         String stderr = streamToString(process.getErrorStream());
         int exitCode = process.exitValue();
@@ -1,201 +1,264 @@
 package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils;
 
 import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.CapacitySchedulerConfig;
-import com.google.common.base.Splitter;
+import com.google.common.base.Joiner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
 /**
  * Created by Aaron on 16/7/26.
+ *
+ * Capacities are calculated on a parsed {@link YarnQueueTree}. Capacity of a queue is taken from the 'default'
+ * queue under same parent, the resource pool of its siblings, so parent queues (e.g. of a tenant) may nest queues
+ * with their own pool at any depth.
  */
 public class YarnCapacityCalculator {
 
-//    private String planId;
+    private static final BigInteger FULL = BigInteger.valueOf(YarnQueueTree.FULL_CAPACITY);
 
-//    private String serviceInstanceId;
-
-//    private CapacitySchedulerConfig csConfig;
     private Logger logger = LoggerFactory.getLogger(YarnCapacityCalculator.class);
-    private Map<String,String> properties;
-    private String allQueues;
-    private Double totalMemory;
-    private Double availableCapacity;
+    private YarnQueueTree queues;
+    // Total memory of cluster in MB
+    private long totalMemory;
+    // Ambari tag of capacity-scheduler config properties were loaded from
+    private String configTag;
 
 
     public YarnCapacityCalculator(String totalMem, CapacitySchedulerConfig csConfig){
+        this(totalMem, csConfig.getItems().get(0).getProperties(), csConfig.getItems().get(0).getTag());
+    }
 
-//        this.planId = planId;
-//        this.serviceInstanceId = serviceInstanceId;
-//        this.csConfig = csConfig;
-        this.properties = csConfig.getItems().get(0).getProperties();
-        this.totalMemory = Double.parseDouble(totalMem);
-        this.availableCapacity = Double.parseDouble(properties.get("yarn.scheduler.capacity.root.default.capacity"));
+    /**
+     * @param properties capacity-scheduler properties, not changed by queue operations
+     * @param configTag Ambari tag of config properties were loaded from
+     */
+    public YarnCapacityCalculator(String totalMem, Map<String,String> properties, String configTag){
+        this(totalMem, YarnQueueTree.parse(properties), configTag);
     }
 
-    public Map<String,String> getProperties(){ return properties;}
+    /**
+     * @param queues parsed capacity-scheduler config, changed in place by queue operations
+     * @param configTag Ambari tag of config queues were parsed from
+     */
+    public YarnCapacityCalculator(String totalMem, YarnQueueTree queues, String configTag){
+        this(Math.round(Double.parseDouble(totalMem)), queues, configTag);
+    }
+
+    private YarnCapacityCalculator(long totalMemory, YarnQueueTree queues, String configTag){
+        this.queues = queues;
+        this.configTag = configTag;
+        this.totalMemory = totalMemory;
+    }
+
+    /**
+     * @return calculator of a copy of config, changes of copy do not affect this calculator
+     */
+    public YarnCapacityCalculator copy(){
+        return new YarnCapacityCalculator(totalMemory, queues.copy(), configTag);
+    }
+
+    /**
+     * @return capacity-scheduler properties with all changes, sorted by key
+     */
+    public Map<String,String> getProperties(){ return queues.toProperties();}
+
+    public YarnQueueTree getQueueTree(){ return queues;}
+
+    public String getConfigTag(){ return configTag;}
 
     /**
-     * A Method to apply queue with capacity quota
-     * @param quota
-     * @param serviceInstanceId 
+     * A Method to apply queue under root with capacity quota
+     * @param quota memory quota in GB
+     * @return queue name under root, null if not enough capacity
      */
     public String applyQueue(Long quota){
+        String queuePath = applyQueue(YarnQueueTree.ROOT, quota);
+        return (queuePath == null) ? null : queuePath.substring(YarnQueueTree.ROOT.length() + 1);
+    }
 
-        String emptyQueue = null;
+    /**
+     * Apply queue under parent queue with capacity quota, a free queue of parent is reused if any
+     * @param parentPath path of parent queue, e.g. root or root.tenant1
+     * @param quota memory quota in GB
+     * @return path of queue, null if not enough capacity
+     */
+    public String applyQueue(String parentPath, Long quota){
+        YarnQueueTree.Queue parent = getExistingQueue(parentPath);
+        YarnQueueTree.Queue pool = getResourcePool(parent);
         //To make sure that the sum of all the queues capacity equals 100%, the patch for ambari server to support
         // two decimal places in capacity scheduler should be installed.
-        String targetQueueCapacity = String.format("%.2f", ((100 * quota) / (totalMemory / 1024)));
-        String resourcePoolCapacity = String.format("%.2f", (availableCapacity - (Double.parseDouble(targetQueueCapacity))));
-
-        if(Double.parseDouble(targetQueueCapacity) > availableCapacity){
+        int targetQueueCapacity = capacityOf(parent, quota);
+        if(targetQueueCapacity < 0 || targetQueueCapacity > pool.getCapacity()){
 //            throw new OCDPServiceException("Not Enough Capacity to apply!");
             return null;
         }
-        emptyQueue = getFirstEmptyQueue();
-
-        if(emptyQueue != null) {
-            properties.replace("yarn.scheduler.capacity.root."+emptyQueue+".capacity","0", targetQueueCapacity);
-            properties.replace("yarn.scheduler.capacity.root."+emptyQueue+".maximum-capacity","0",targetQueueCapacity);
+        YarnQueueTree.Queue queue = queues.pollFreeQueue(parent);
+        if(queue == null) {
+            queue = queues.addQueue(parent, UUID.randomUUID().toString());
         }
-        else {
-            String newQueue = UUID.randomUUID().toString();
-            emptyQueue = newQueue;
-            properties.replace("yarn.scheduler.capacity.root.queues",allQueues,allQueues+","+newQueue);
-            properties.put("yarn.scheduler.capacity.root."+newQueue+".capacity",targetQueueCapacity);
-            properties.put("yarn.scheduler.capacity.root."+newQueue+".maximum-capacity",targetQueueCapacity);
+        queues.setCapacity(queue, targetQueueCapacity, targetQueueCapacity);
+        setPoolCapacity(pool, pool.getCapacity() - targetQueueCapacity);
+        return queue.getPath();
+    }
+
+    /**
+     * Apply parent queue (e.g. of a tenant) under parent queue with capacity quota, new queue gets a resource pool
+     * with all its capacity, from which queues under it are applied
+     * @param parentPath path of parent queue, e.g. root
+     * @param name name of new parent queue
+     * @param quota memory quota in GB
+     * @return path of new parent queue, null if not enough capacity
+     */
+    public String applyParentQueue(String parentPath, String name, Long quota){
+        YarnQueueTree.Queue parent = getExistingQueue(parentPath);
+        YarnQueueTree.Queue pool = getResourcePool(parent);
+        int targetQueueCapacity = capacityOf(parent, quota);
+        if(targetQueueCapacity < 0 || targetQueueCapacity > pool.getCapacity()){
+            return null;
         }
-        properties.replace("yarn.scheduler.capacity.root.default.capacity",resourcePoolCapacity);
-        properties.replace("yarn.scheduler.capacity.root.default.maximum-capacity",resourcePoolCapacity);
+        // Never reuse a free leaf, Yarn only turns a stopped leaf into a parent
+        YarnQueueTree.Queue queue = queues.addQueue(parent, name);
+        queues.setCapacity(queue, targetQueueCapacity, targetQueueCapacity);
+        YarnQueueTree.Queue childPool = queues.addQueue(queue, YarnQueueTree.RESOURCE_POOL);
+        queues.setCapacity(childPool, YarnQueueTree.FULL_CAPACITY, YarnQueueTree.FULL_CAPACITY);
+        setPoolCapacity(pool, pool.getCapacity() - targetQueueCapacity);
+        return queue.getPath();
+    }
 
-        return emptyQueue;
+    /**
+     * @return number of queues under root with zero capacity, reused by next applies
+     */
+    public int countFreeQueues(){
+        return queues.countFreeQueues(queues.getRoot());
+    }
 
+    /**
+     * Add zero-capacity queues under root, so that next applies only change capacity of an existing queue
+     * @return names of new queues under root
+     */
+    public List<String> addFreeQueues(int count){
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < count; i++){
+            YarnQueueTree.Queue queue = queues.addQueue(queues.getRoot(), UUID.randomUUID().toString());
+            queues.setCapacity(queue, 0, 0);
+            names.add(queue.getName());
+        }
+        return names;
     }
 
     public void updateQueue(String queueName, Long quota) {
+        YarnQueueTree.Queue queue = getExistingQueue(queueName);
+        YarnQueueTree.Queue pool = getResourcePool(queue.getParent());
         // Re-calculate new capacity
-        String originQueueCapacity = properties.get("yarn.scheduler.capacity."+
-                queueName+".capacity");
-        String targetQueueCapacity = String.format("%.2f", ((100 * quota) / (totalMemory / 1024)));
-        String resourcePoolCapacity = String.format("%.2f", (availableCapacity - (Double.parseDouble(targetQueueCapacity) - Double.parseDouble(originQueueCapacity))));
+        int targetQueueCapacity = capacityOf(queue.getParent(), quota);
+        int resourcePoolCapacity = pool.getCapacity() - (targetQueueCapacity - queue.getCapacity());
+        if(targetQueueCapacity < 0 || resourcePoolCapacity < 0){
+            throw new IllegalArgumentException("Not Enough Queue Capacity to resize " + queueName + "!");
+        }
         // Update queue
-        properties.replace("yarn.scheduler.capacity."+queueName+".capacity", targetQueueCapacity);
-        properties.replace("yarn.scheduler.capacity."+queueName+".maximum-capacity",targetQueueCapacity);
+        queues.setCapacity(queue, targetQueueCapacity, targetQueueCapacity);
         // Update default queue
-        properties.replace("yarn.scheduler.capacity.root.default.capacity",resourcePoolCapacity);
-        properties.replace("yarn.scheduler.capacity.root.default.maximum-capacity",resourcePoolCapacity);
+        setPoolCapacity(pool, resourcePoolCapacity);
     }
 
     /**
-     * remoke capacity to zero
+     * remoke capacity to zero, queue becomes free for next apply
      */
     public boolean revokeQueue(String serviceInstanceResuorceName){
-
-        String targetQueueCapacity = properties.get("yarn.scheduler.capacity."+
-                serviceInstanceResuorceName+".capacity");
-        String resourcePoolCapacity = String.valueOf(availableCapacity+Double.parseDouble(targetQueueCapacity));
-        if(targetQueueCapacity == null)
+        YarnQueueTree.Queue queue = queues.getQueue(serviceInstanceResuorceName);
+        if(queue == null || !queue.hasCapacity() || queue.getParent() == null)
             return false;
-        else {
-            properties.replace("yarn.scheduler.capacity."+serviceInstanceResuorceName+".capacity"
-                    ,targetQueueCapacity,"0");
-            properties.replace("yarn.scheduler.capacity."+serviceInstanceResuorceName+".maximum-capacity"
-            ,targetQueueCapacity,"0");
-            properties.replace("yarn.scheduler.capacity.root.default.capacity",resourcePoolCapacity);
-            properties.replace("yarn.scheduler.capacity.root.default.maximum-capacity",resourcePoolCapacity);
-        }
+        YarnQueueTree.Queue pool = getResourcePool(queue.getParent());
+        int resourcePoolCapacity = pool.getCapacity() + queue.getCapacity();
+        queues.setCapacity(queue, 0, 0);
+        setPoolCapacity(pool, resourcePoolCapacity);
         return true;
     }
 
-    private String getFirstEmptyQueue(){
-
-//        ArrayList<String> queues = new ArrayList<String>();
-//        String emptyQueue = null;
-        String queuesStr = properties.get("yarn.scheduler.capacity.root.queues");
-        this.allQueues = queuesStr;
-        for(String queue : Splitter.on(",").split(queuesStr))
-        {
-//            queues.add(queue);
-            if(properties.get("yarn.scheduler.capacity.root."+queue+".capacity").equals("0")
-                    &&properties.get("yarn.scheduler.capacity.root."+queue+".maximum-capacity").equals("0"))
-            {
-                return queue;
-            }
-        }
+    public String removeQueueMapping(String user, String queue){
+        return removeQueueMappings(user, leafName(queue));
+    }
 
-        return null;
+    public String removeQueueMapping(String queue){
+        return removeQueueMappings(null, leafName(queue));
+    }
 
+    public String addQueueMapping(String user, String queue){
+        List<String> mappings = queues.getOrCreateQueueMappings();
+        mappings.add("u:" + user + ":" + leafName(queue));
+        return Joiner.on(",").join(mappings);
     }
 
-    public String removeQueueMapping(String user, String queue){
-        String absoluteQueue = queue.substring(5);
-        String newQueueMapStr = "";
-        String queueMapStr = this.properties.get("yarn.scheduler.capacity.queue-mappings");
-        if(queueMapStr == null)
+    /**
+     * Remove user mappings to queue
+     * @param user user of mappings to remove, null for all users
+     * @return new queue mappings, null if config has no mappings
+     */
+    private String removeQueueMappings(String user, String queueName){
+        List<String> mappings = queues.getQueueMappings();
+        if(mappings == null)
             return null;
-        for(String queueMap : Splitter.on(",").split(queueMapStr))
-        {
-            if(queueMap.startsWith("u")&&queueMap.endsWith(absoluteQueue)){
-                if(queueMap.contains(user)){
-                    continue;
-                }
+        Iterator<String> it = mappings.iterator();
+        while (it.hasNext()){
+            String[] parts = it.next().split(":");
+            if(parts.length == 3 && parts[0].trim().equals("u") && parts[2].trim().equals(queueName)
+                    && (user == null || parts[1].trim().equals(user))){
+                it.remove();
             }
-            newQueueMapStr += queueMap;
-            newQueueMapStr += ",";
         }
-        if(!newQueueMapStr.equals("")){
-            newQueueMapStr = newQueueMapStr.substring(0,newQueueMapStr.length()-1);
-            properties.replace("yarn.scheduler.capacity.queue-mappings",queueMapStr,newQueueMapStr);
-        }else{
-            properties.replace("yarn.scheduler.capacity.queue-mappings",queueMapStr,"");
-        }
-        return newQueueMapStr;
-
+        return Joiner.on(",").join(mappings);
     }
 
-    public String removeQueueMapping(String queue){
-        String absoluteQueue = queue.substring(5);
-        String newQueueMapStr = "";
-        String queueMapStr = this.properties.get("yarn.scheduler.capacity.queue-mappings");
-        if(queueMapStr == null)
-            return null;
-        for(String queueMap : Splitter.on(",").split(queueMapStr))
-        {
-            if(queueMap.startsWith("u")&&queueMap.endsWith(absoluteQueue)){
-                continue;
-            }
-            newQueueMapStr += queueMap;
-            newQueueMapStr += ",";
+    /**
+     * Capacity of quota relative to parent: quota / (total memory * absolute capacity of parent),
+     * rounded half up to hundredths of a percent
+     * @return capacity, -1 if parent has no capacity
+     */
+    private int capacityOf(YarnQueueTree.Queue parent, Long quota){
+        BigInteger numerator = BigInteger.valueOf(quota).multiply(BigInteger.valueOf(1024)).multiply(FULL);
+        BigInteger denominator = BigInteger.valueOf(totalMemory);
+        for (YarnQueueTree.Queue queue = parent; queue.getParent() != null; queue = queue.getParent()){
+            numerator = numerator.multiply(FULL);
+            denominator = denominator.multiply(BigInteger.valueOf(queue.getCapacity()));
         }
-        if(!newQueueMapStr.equals("")){
-            newQueueMapStr = newQueueMapStr.substring(0,newQueueMapStr.length()-1);
-            properties.replace("yarn.scheduler.capacity.queue-mappings",queueMapStr,newQueueMapStr);
-        }else{
-            properties.replace("yarn.scheduler.capacity.queue-mappings",queueMapStr,"");
+        if (denominator.signum() <= 0){
+            return -1;
         }
-        return newQueueMapStr;
+        BigInteger capacity = numerator.shiftLeft(1).add(denominator).divide(denominator.shiftLeft(1));
+        return capacity.compareTo(FULL) > 0 ? Integer.MAX_VALUE : capacity.intValue();
     }
 
-
-    public String addQueueMapping(String user, String queue){
-        String absoluteQueueName = queue.substring(5);
-        String newQueueMapStr = null;
-        String queueMapStr = this.properties.get("yarn.scheduler.capacity.queue-mappings");
-
-        if(queueMapStr == null||queueMapStr.equals(""))
-            newQueueMapStr = "u:"+user+":"+absoluteQueueName;
-        else
-            newQueueMapStr = queueMapStr + ",u:" +user+ ":" +absoluteQueueName;
-
-        properties.put("yarn.scheduler.capacity.queue-mappings",newQueueMapStr);
-
-        return newQueueMapStr;
+    private void setPoolCapacity(YarnQueueTree.Queue pool, int capacity){
+        logger.debug("Capacity of resource pool {} changed to {}.", pool.getPath(), capacity);
+        queues.setCapacity(pool, capacity, capacity);
     }
 
+    private YarnQueueTree.Queue getExistingQueue(String path){
+        YarnQueueTree.Queue queue = queues.getQueue(path);
+        if (queue == null){
+            throw new IllegalArgumentException("Queue " + path + " not exists in capacity-scheduler config.");
+        }
+        return queue;
+    }
 
+    private YarnQueueTree.Queue getResourcePool(YarnQueueTree.Queue parent){
+        YarnQueueTree.Queue pool = parent.getChild(YarnQueueTree.RESOURCE_POOL);
+        if (pool == null){
+            throw new IllegalArgumentException("Queue " + parent.getPath() + " has no resource pool queue " +
+                    YarnQueueTree.RESOURCE_POOL + ".");
+        }
+        return pool;
+    }
 
-
+    private static String leafName(String queue){
+        return queue.substring(queue.lastIndexOf('.') + 1);
+    }
 
 }
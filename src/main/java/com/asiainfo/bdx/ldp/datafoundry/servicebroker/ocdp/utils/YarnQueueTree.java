@@ -0,0 +1,329 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+
+/**
+ * Queue hierarchy of capacity-scheduler config, parsed from and serialized back to its properties.
+ * Capacities are fixed-point hundredths of a percent (10000 is 100%), the precision Ambari accepts, so capacities
+ * moved between queues sum up exactly instead of drifting by repeated "%.2f" round trips.
+ *
+ * Each parent queue keeps its free children (leaf queues other than 'default' with zero capacity and maximum
+ * capacity) in a list, so a free queue is taken in constant time instead of scanning all queues.
+ * Other properties (acls, states, user limits ...) are kept as they are, and capacities not changed are written
+ * back with their original text, so an unchanged tree serializes to the properties it was parsed from.
+ * Properties are serialized in key order, so same tree always gives same config.
+ */
+public class YarnQueueTree {
+
+    public static final String PREFIX = "yarn.scheduler.capacity.";
+
+    public static final String ROOT = "root";
+
+    // Queue holding unallocated capacity of its siblings, never free for allocation
+    public static final String RESOURCE_POOL = "default";
+
+    // 100.00%
+    public static final int FULL_CAPACITY = 10000;
+
+    private static final String QUEUE_MAPPINGS = PREFIX + "queue-mappings";
+
+    private final Queue root;
+
+    // All queues by path, e.g. root.default
+    private final Map<String, Queue> queues = new HashMap<>();
+
+    // Properties not describing queue hierarchy or capacities
+    private final Map<String, String> others;
+
+    // Entries of queue mappings, null if config has no mappings
+    private List<String> queueMappings;
+
+    private YarnQueueTree(Map<String, String> others) {
+        this.others = others;
+        this.root = new Queue(ROOT, ROOT, null);
+        queues.put(ROOT, root);
+    }
+
+    /**
+     * @param properties capacity-scheduler properties, not changed
+     */
+    public static YarnQueueTree parse(Map<String, String> properties) {
+        YarnQueueTree tree = new YarnQueueTree(new TreeMap<>(properties));
+        String mappings = tree.others.remove(QUEUE_MAPPINGS);
+        if (mappings != null) {
+            tree.queueMappings = new ArrayList<>();
+            for (String mapping : Splitter.on(",").trimResults().omitEmptyStrings().split(mappings)) {
+                tree.queueMappings.add(mapping);
+            }
+        }
+        tree.parseQueue(tree.root);
+        return tree;
+    }
+
+    private void parseQueue(Queue queue) {
+        String capacity = others.remove(PREFIX + queue.path + ".capacity");
+        String maximumCapacity = others.remove(PREFIX + queue.path + ".maximum-capacity");
+        queue.capacity = (capacity == null) ? null : Capacity.parse(queue.path, capacity);
+        queue.maximumCapacity = (maximumCapacity == null) ? null : Capacity.parse(queue.path, maximumCapacity);
+        String children = others.remove(PREFIX + queue.path + ".queues");
+        if (children == null) {
+            return;
+        }
+        queue.queuesText = children;
+        for (String name : Splitter.on(",").trimResults().omitEmptyStrings().split(children)) {
+            Queue child = new Queue(name, queue.path + "." + name, queue);
+            queue.children.put(name, child);
+            queues.put(child.path, child);
+            parseQueue(child);
+        }
+        for (Queue child : queue.children.values()) {
+            if (child.isFree()) {
+                child.free = true;
+                queue.freeChildren.add(child);
+            }
+        }
+    }
+
+    /**
+     * @return deep copy of tree, changes of copy do not affect this tree
+     */
+    public YarnQueueTree copy() {
+        YarnQueueTree tree = new YarnQueueTree(new TreeMap<>(others));
+        if (queueMappings != null) {
+            tree.queueMappings = new ArrayList<>(queueMappings);
+        }
+        copyQueue(root, tree.root, tree);
+        return tree;
+    }
+
+    private static void copyQueue(Queue from, Queue to, YarnQueueTree tree) {
+        to.capacity = from.capacity;
+        to.maximumCapacity = from.maximumCapacity;
+        to.queuesText = from.queuesText;
+        to.free = from.free;
+        for (Queue child : from.children.values()) {
+            Queue copy = new Queue(child.name, child.path, to);
+            to.children.put(copy.name, copy);
+            tree.queues.put(copy.path, copy);
+            copyQueue(child, copy, tree);
+        }
+        for (Queue free : from.freeChildren) {
+            to.freeChildren.add(to.children.get(free.name));
+        }
+    }
+
+    /**
+     * @return capacity-scheduler properties of tree, sorted by key
+     */
+    public Map<String, String> toProperties() {
+        Map<String, String> properties = new TreeMap<>(others);
+        if (queueMappings != null) {
+            properties.put(QUEUE_MAPPINGS, Joiner.on(",").join(queueMappings));
+        }
+        for (Queue queue : queues.values()) {
+            if (queue.capacity != null) {
+                properties.put(PREFIX + queue.path + ".capacity", queue.capacity.text);
+            }
+            if (queue.maximumCapacity != null) {
+                properties.put(PREFIX + queue.path + ".maximum-capacity", queue.maximumCapacity.text);
+            }
+            if (!queue.children.isEmpty()) {
+                properties.put(PREFIX + queue.path + ".queues", (queue.queuesText != null) ? queue.queuesText :
+                        Joiner.on(",").join(queue.children.keySet()));
+            }
+        }
+        return properties;
+    }
+
+    public Queue getRoot() {
+        return root;
+    }
+
+    /**
+     * @param path full queue path, e.g. root.default
+     * @return queue, null if not exists
+     */
+    public Queue getQueue(String path) {
+        return queues.get(path);
+    }
+
+    /**
+     * Take first free child of parent out of its free list, caller sets capacities of queue
+     * @return free queue, null if parent has none
+     */
+    public Queue pollFreeQueue(Queue parent) {
+        Queue queue = parent.freeChildren.pollFirst();
+        if (queue != null) {
+            queue.free = false;
+        }
+        return queue;
+    }
+
+    /**
+     * @return number of free children of parent
+     */
+    public int countFreeQueues(Queue parent) {
+        return parent.freeChildren.size();
+    }
+
+    /**
+     * Add a leaf queue without capacities to parent, caller sets capacities of queue
+     * @return new queue
+     */
+    public Queue addQueue(Queue parent, String name) {
+        if (parent.children.containsKey(name)) {
+            throw new IllegalArgumentException("Queue " + parent.path + "." + name + " already exists.");
+        }
+        if (parent.free) {
+            // A free leaf becoming a parent is no longer available for allocation
+            parent.parent.freeChildren.remove(parent);
+            parent.free = false;
+        }
+        Queue queue = new Queue(name, parent.path + "." + name, parent);
+        parent.children.put(name, queue);
+        parent.queuesText = null;
+        queues.put(queue.path, queue);
+        return queue;
+    }
+
+    /**
+     * Set capacity and maximum capacity of queue, both in hundredths of a percent of its parent.
+     * A leaf queue set to zero capacities becomes free.
+     */
+    public void setCapacity(Queue queue, int capacity, int maximumCapacity) {
+        queue.capacity = Capacity.of(capacity);
+        queue.maximumCapacity = Capacity.of(maximumCapacity);
+        boolean free = queue.isFree();
+        if (free && !queue.free && queue.parent != null) {
+            queue.parent.freeChildren.addLast(queue);
+        } else if (!free && queue.free) {
+            queue.parent.freeChildren.remove(queue);
+        }
+        queue.free = free && queue.parent != null;
+    }
+
+    /**
+     * @return entries of queue mappings (e.g. u:user1:queue1), changes are serialized; null if config has none
+     */
+    public List<String> getQueueMappings() {
+        return queueMappings;
+    }
+
+    /**
+     * @return entries of queue mappings, mappings are added to config if it has none
+     */
+    public List<String> getOrCreateQueueMappings() {
+        if (queueMappings == null) {
+            queueMappings = new ArrayList<>();
+        }
+        return queueMappings;
+    }
+
+    /**
+     * Queue of capacity-scheduler, capacities are null if not configured
+     */
+    public static class Queue {
+        private final String name;
+        private final String path;
+        private final Queue parent;
+        private final Map<String, Queue> children = new LinkedHashMap<>();
+        // Free leaf children, in order of queue list and then in order of release
+        private final ArrayDeque<Queue> freeChildren = new ArrayDeque<>();
+        private Capacity capacity;
+        private Capacity maximumCapacity;
+        // Original queue list, null once children change
+        private String queuesText;
+        // Whether queue is in free list of parent
+        private boolean free;
+
+        private Queue(String name, String path, Queue parent) {
+            this.name = name;
+            this.path = path;
+            this.parent = parent;
+        }
+
+        private boolean isFree() {
+            return children.isEmpty() && !RESOURCE_POOL.equals(name) && capacity != null && capacity.value == 0 &&
+                    maximumCapacity != null && maximumCapacity.value == 0;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public Queue getParent() {
+            return parent;
+        }
+
+        public Collection<Queue> getChildren() {
+            return Collections.unmodifiableCollection(children.values());
+        }
+
+        public Queue getChild(String name) {
+            return children.get(name);
+        }
+
+        public boolean hasCapacity() {
+            return capacity != null;
+        }
+
+        /**
+         * @return capacity in hundredths of a percent of parent, 100% if not configured
+         */
+        public int getCapacity() {
+            return (capacity == null) ? FULL_CAPACITY : capacity.value;
+        }
+
+        /**
+         * @return maximum capacity in hundredths of a percent of parent, 100% if not configured
+         */
+        public int getMaximumCapacity() {
+            return (maximumCapacity == null) ? FULL_CAPACITY : maximumCapacity.value;
+        }
+    }
+
+    /**
+     * Fixed-point capacity with its text in config
+     */
+    private static class Capacity {
+        final int value;
+        final String text;
+
+        private Capacity(int value, String text) {
+            this.value = value;
+            this.text = text;
+        }
+
+        static Capacity parse(String path, String text) {
+            try {
+                int value = new BigDecimal(text.trim()).movePointRight(2).setScale(0, RoundingMode.HALF_UP)
+                        .intValueExact();
+                return new Capacity(value, text);
+            } catch (ArithmeticException | NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid capacity of queue " + path + ": " + text);
+            }
+        }
+
+        static Capacity of(int value) {
+            // Zero written as in queues revoked by earlier versions, others with two decimals
+            return new Capacity(value, (value == 0) ? "0" : BigDecimal.valueOf(value, 2).toPlainString());
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.CircuitBreaker;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OperationDeadline;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.protocol.BasicHttpContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class HttpConnectionPoolTest {
+
+    private static final int SOCKET_TIMEOUT = 300;
+
+    // Backend which accepts connections but never responds
+    private ServerSocket server;
+
+    private final List<Socket> accepted = new ArrayList<>();
+
+    private HttpConnectionPool pool;
+
+    private String backend;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    accepted.add(server.accept());
+                }
+            } catch (Exception e) {
+                // Server closed
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        pool = new HttpConnectionPool(10, 10, 1000, SOCKET_TIMEOUT, 1000, 1000L, 1000L, 1);
+        backend = "test-" + UUID.randomUUID();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        OperationDeadline.detach();
+        pool.close();
+        server.close();
+        for (Socket socket : accepted) {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void timeoutOfBackendCountsAsFailure() throws Exception {
+        executeUntilTimeout();
+        assertEquals(1, breakerStats().get("failures"));
+    }
+
+    @Test
+    public void timeoutCutShortByDeadlineNotCountsAsFailure() throws Exception {
+        OperationDeadline.attach(new OperationDeadline(SOCKET_TIMEOUT / 3));
+        executeUntilTimeout();
+        assertEquals(0, breakerStats().get("calls"));
+    }
+
+    private void executeUntilTimeout() throws Exception {
+        try {
+            pool.execute(backend, new HttpGet("http://127.0.0.1:" + server.getLocalPort() + "/"),
+                    new BasicHttpContext()).close();
+            fail("Backend which never responds did not time out");
+        } catch (SocketTimeoutException expected) {
+        }
+    }
+
+    private Map<String, Object> breakerStats() {
+        return CircuitBreaker.snapshotAll().get(backend + "@127.0.0.1");
+    }
+}
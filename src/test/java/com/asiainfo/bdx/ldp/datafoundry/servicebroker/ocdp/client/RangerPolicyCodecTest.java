@@ -0,0 +1,133 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.RangerV2Policy;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RangerPolicyCodecTest {
+
+    private RangerV2Policy policy;
+
+    @Before
+    public void setUp() {
+        policy = new RangerV2Policy("hdfs_policy", "1", "tenant café", "cluster_hadoop", true, true);
+        policy.addResources2("path", Arrays.asList("/servicebroker/a", "/servicebroker/b"), false, true);
+        policy.addPolicyItems(Arrays.asList("alice", "bob"), Collections.emptyList(), Collections.emptyList(),
+                false, Arrays.asList("read", "write"));
+    }
+
+    @Test
+    public void policyWrittenToEntityIsReadBack() throws IOException {
+        HttpEntity request = RangerPolicyCodec.entity(policy);
+        assertTrue(request.isRepeatable());
+        byte[] body = written(request);
+        // Non-blocking client reads same body from content stream
+        assertArrayEquals(body, EntityUtils.toByteArray(request));
+
+        RangerV2Policy read = RangerPolicyCodec.read(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+        assertEquals(RangerPolicyCodec.toJson(policy), RangerPolicyCodec.toJson(read));
+        assertEquals(Arrays.asList("alice", "bob"), read.getUserList());
+        assertEquals(Arrays.asList("/servicebroker/a", "/servicebroker/b"), read.getResourceValues("path"));
+    }
+
+    @Test
+    public void responseIsDecodedWithItsCharset() throws IOException {
+        byte[] body = RangerPolicyCodec.toJson(policy).getBytes(StandardCharsets.ISO_8859_1);
+        RangerV2Policy read = RangerPolicyCodec.read(
+                new ByteArrayEntity(body, ContentType.create("application/json", StandardCharsets.ISO_8859_1)));
+        assertTrue(RangerPolicyCodec.toJson(read).contains("tenant café"));
+    }
+
+    @Test
+    public void emptyResponseIsNoPolicy() throws IOException {
+        assertNull(RangerPolicyCodec.read(null));
+        assertNull(RangerPolicyCodec.read(new ByteArrayEntity(new byte[0], ContentType.APPLICATION_JSON)));
+        assertTrue(RangerPolicyCodec.readList(null).isEmpty());
+    }
+
+    @Test
+    public void invalidResponseIsIOException() {
+        try {
+            RangerPolicyCodec.read(json("{\"name\": [}"));
+            fail("Invalid policy accepted");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Invalid ranger policy"));
+        }
+        try {
+            RangerPolicyCodec.readList(json("{\"name\": \"hdfs_policy\"}"));
+            fail("Policy accepted as policy list");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Invalid ranger policy list"));
+        }
+    }
+
+    @Test
+    public void policyListIsReadOneByOne() throws IOException {
+        String json = RangerPolicyCodec.toJson(policy);
+        List<RangerV2Policy> policies = RangerPolicyCodec.readList(json("[" + json + "," + json + "]"));
+        assertEquals(2, policies.size());
+        assertEquals("hdfs_policy", policies.get(1).getPolicyName());
+    }
+
+    @Test
+    public void importFileListsPolicies() throws IOException {
+        byte[] file = RangerPolicyCodec.toImportFile(Arrays.asList(policy, policy));
+        JsonObject root = new JsonParser().parse(new String(file, StandardCharsets.UTF_8)).getAsJsonObject();
+        assertEquals(2, root.getAsJsonArray("policies").size());
+        assertEquals("hdfs_policy",
+                root.getAsJsonArray("policies").get(0).getAsJsonObject().get("name").getAsString());
+    }
+
+    @Test
+    public void decodedPolicyIndexesItemsByUser() throws IOException {
+        // One item listing two users, and a second item also listing bob
+        RangerV2Policy shared = new RangerV2Policy("hdfs_policy", "1", "", "cluster_hadoop", true, true);
+        shared.addPolicyItem("carol", Collections.emptyList(), Collections.emptyList(), false,
+                Collections.singletonList("read"));
+        shared.addPolicyItem("bob", Collections.emptyList(), Collections.emptyList(), false,
+                Collections.singletonList("read"));
+        String json = RangerPolicyCodec.toJson(shared).replaceFirst("\"users\":\\[\"carol\"\\]",
+                "\"users\":[\"carol\",\"bob\"]");
+        assertTrue(json.contains("\"users\":[\"carol\",\"bob\"]"));
+
+        RangerV2Policy read = RangerPolicyCodec.read(json(json));
+        assertEquals(Arrays.asList("carol", "bob"), read.getUserList());
+        read.removePolicyItem("carol");
+        assertFalse(read.hasUser("carol"));
+        // bob is still granted by second item
+        assertTrue(read.hasUser("bob"));
+        assertEquals(1, read.getPolicyItems().size());
+        read.removePolicyItem("bob");
+        assertTrue(read.getUserList().isEmpty());
+    }
+
+    private static HttpEntity json(String json) {
+        return new ByteArrayEntity(json.getBytes(StandardCharsets.UTF_8), ContentType.APPLICATION_JSON);
+    }
+
+    private static byte[] written(HttpEntity entity) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        entity.writeTo(buffer);
+        return buffer.toByteArray();
+    }
+}
@@ -0,0 +1,170 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.exception.OperationTimeoutException;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.RangerV2Policy;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OperationDeadline;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RangerPolicyMutationQueueTest {
+
+    private static final long WINDOW_MILLIS = 200;
+
+    private ExecutorService executor;
+
+    // Policy id and mutation count of each write
+    private List<String> writes;
+
+    // Mutations in order applied
+    private List<String> applied;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        writes = new CopyOnWriteArrayList<>();
+        applied = new CopyOnWriteArrayList<>();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void mutationsWrittenOneByOneWithoutWindow() {
+        RangerPolicyMutationQueue queue = new RangerPolicyMutationQueue(0, this::write);
+        assertTrue(queue.submit("p1", mutation("a")));
+        assertTrue(queue.submit("p1", mutation("b")));
+        assertEquals(Arrays.asList("p1:1", "p1:1"), writes);
+        assertEquals(Arrays.asList("a", "b"), applied);
+    }
+
+    @Test
+    public void mutationsOfOnePolicyWithinWindowWrittenTogetherInArrivalOrder() throws Exception {
+        RangerPolicyMutationQueue queue = new RangerPolicyMutationQueue(WINDOW_MILLIS, this::write);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (String name : new String[]{"a", "b", "c"}) {
+            results.add(executor.submit(() -> queue.submit("p1", mutation(name))));
+            Thread.sleep(20);
+        }
+        for (Future<Boolean> result : results) {
+            assertTrue(result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(Arrays.asList("p1:3"), writes);
+        assertEquals(Arrays.asList("a", "b", "c"), applied);
+    }
+
+    @Test
+    public void mutationsOfDifferentPoliciesWrittenSeparately() throws Exception {
+        RangerPolicyMutationQueue queue = new RangerPolicyMutationQueue(WINDOW_MILLIS, this::write);
+        Future<Boolean> first = executor.submit(() -> queue.submit("p1", mutation("a")));
+        Future<Boolean> second = executor.submit(() -> queue.submit("p2", mutation("b")));
+        assertTrue(first.get(5, TimeUnit.SECONDS));
+        assertTrue(second.get(5, TimeUnit.SECONDS));
+        assertEquals(2, writes.size());
+        assertTrue(writes.containsAll(Arrays.asList("p1:1", "p2:1")));
+    }
+
+    @Test
+    public void failedWriteReachesEveryCallerOfBatch() throws Exception {
+        RangerPolicyMutationQueue queue = new RangerPolicyMutationQueue(WINDOW_MILLIS, (policyId, mutations) -> {
+            write(policyId, mutations);
+            throw new IllegalStateException("ranger down");
+        });
+        Future<Boolean> leader = executor.submit(() -> queue.submit("p1", mutation("a")));
+        Thread.sleep(20);
+        Future<Boolean> follower = executor.submit(() -> queue.submit("p1", mutation("b")));
+        for (Future<Boolean> result : Arrays.asList(leader, follower)) {
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                fail("Failure of write not thrown to caller");
+            } catch (ExecutionException e) {
+                assertEquals("ranger down", e.getCause().getMessage());
+            }
+        }
+        assertEquals(Arrays.asList("p1:2"), writes);
+    }
+
+    @Test
+    public void batchOfLeaderOutOfTimeIsStillWritten() throws Exception {
+        // Writer fails like a backend call if deadline of leader is still attached
+        RangerPolicyMutationQueue queue = new RangerPolicyMutationQueue(WINDOW_MILLIS, (policyId, mutations) -> {
+            OperationDeadline.checkCurrent("update ranger policy");
+            return write(policyId, mutations);
+        });
+        Future<Boolean> leader = executor.submit(() -> withDeadline(0, () -> queue.submit("p1", mutation("a"))));
+        Thread.sleep(20);
+        Future<Boolean> follower = executor.submit(() -> queue.submit("p1", mutation("b")));
+        assertTrue(leader.get(5, TimeUnit.SECONDS));
+        assertTrue(follower.get(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("p1:2"), writes);
+
+        // Policy is not left with a stranded batch
+        assertTrue(executor.submit(() -> queue.submit("p1", mutation("c"))).get(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("a", "b", "c"), applied);
+    }
+
+    @Test
+    public void callerStopsWaitingAtItsDeadline() throws Exception {
+        RangerPolicyMutationQueue queue = new RangerPolicyMutationQueue(WINDOW_MILLIS, (policyId, mutations) -> {
+            sleep(1000);
+            return write(policyId, mutations);
+        });
+        Future<Boolean> leader = executor.submit(() -> queue.submit("p1", mutation("a")));
+        Thread.sleep(20);
+        Future<Boolean> follower = executor.submit(() -> withDeadline(300, () -> queue.submit("p1", mutation("b"))));
+        try {
+            follower.get(5, TimeUnit.SECONDS);
+            fail("Caller waited beyond its deadline");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof OperationTimeoutException);
+        }
+        assertTrue(leader.get(5, TimeUnit.SECONDS));
+    }
+
+    private static <T> T withDeadline(long timeoutMillis, Callable<T> task) throws Exception {
+        OperationDeadline.attach(new OperationDeadline(timeoutMillis));
+        try {
+            return task.call();
+        } finally {
+            OperationDeadline.detach();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean write(String policyId, List<Consumer<RangerV2Policy>> mutations) {
+        writes.add(policyId + ":" + mutations.size());
+        for (Consumer<RangerV2Policy> mutation : mutations) {
+            mutation.accept(null);
+        }
+        return true;
+    }
+
+    private Consumer<RangerV2Policy> mutation(String name) {
+        return policy -> applied.add(name);
+    }
+}
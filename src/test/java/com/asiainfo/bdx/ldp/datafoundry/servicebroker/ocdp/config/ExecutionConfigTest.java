@@ -0,0 +1,108 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.mock.env.MockEnvironment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Microbenchmark of backend executor in pooled and virtual execution modes, on a simulated blocking backend call
+ * (e.g. a Ranger request waiting for response).
+ */
+public class ExecutionConfigTest {
+
+    private Logger logger = LoggerFactory.getLogger(ExecutionConfigTest.class);
+
+    private static final int POOL_SIZE = 10;
+
+    private static final int CALLS = 200;
+
+    private static final long CALL_MILLIS = 20;
+
+    @Test
+    public void pooledModeRunsBlockingCallsInWavesOfPoolSize() throws Exception {
+        ExecutionConfig config = config(ExecutionConfig.MODE_POOLED);
+        assertEquals(ExecutionConfig.MODE_POOLED, config.getExecutionMode());
+        long elapsed = benchmark(config);
+        // Pool threads are held while calls block, so calls run in CALLS / POOL_SIZE waves
+        assertTrue("pooled took " + elapsed + " ms", elapsed >= (CALLS / POOL_SIZE) * CALL_MILLIS);
+    }
+
+    @Test
+    public void virtualModeFallsBackToPooledWithoutVirtualThreads() {
+        ExecutionConfig config = config(ExecutionConfig.MODE_VIRTUAL);
+        if (!supportsVirtualThreads()) {
+            assertEquals(ExecutionConfig.MODE_POOLED, config.getExecutionMode());
+        } else {
+            assertEquals(ExecutionConfig.MODE_VIRTUAL, config.getExecutionMode());
+        }
+    }
+
+    @Test
+    public void virtualModeRunsBlockingCallsWithoutPoolBound() throws Exception {
+        Assume.assumeTrue("Runtime does not support virtual threads", supportsVirtualThreads());
+        long pooled = benchmark(config(ExecutionConfig.MODE_POOLED));
+        long virtual = benchmark(config(ExecutionConfig.MODE_VIRTUAL));
+        assertTrue("virtual took " + virtual + " ms, pooled took " + pooled + " ms", virtual < pooled);
+    }
+
+    private ExecutionConfig config(String mode) {
+        ExecutionConfig config = new ExecutionConfig();
+        config.setEnvironment(new MockEnvironment()
+                .withProperty("EXECUTION_MODE", mode)
+                .withProperty("BACKEND_POOL_SIZE", String.valueOf(POOL_SIZE)));
+        return config;
+    }
+
+    /**
+     * @return millis taken by CALLS concurrent blocking calls on backend executor, after one warm-up round
+     */
+    private long benchmark(ExecutionConfig config) throws Exception {
+        ExecutorService executor = config.backendExecutor();
+        try {
+            runCalls(executor);
+            long start = System.nanoTime();
+            runCalls(executor);
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            logger.info("{} mode: {} blocking calls of {} ms took {} ms.", config.getExecutionMode(), CALLS,
+                    CALL_MILLIS, elapsed);
+            return elapsed;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void runCalls(ExecutorService executor) throws Exception {
+        List<Callable<Integer>> calls = new ArrayList<>();
+        for (int i = 0; i < CALLS; i++) {
+            final int call = i;
+            calls.add(() -> {
+                Thread.sleep(CALL_MILLIS);
+                return call;
+            });
+        }
+        List<Future<Integer>> results = executor.invokeAll(calls);
+        for (int i = 0; i < CALLS; i++) {
+            assertEquals(Integer.valueOf(i), results.get(i).get());
+        }
+    }
+
+    private static boolean supportsVirtualThreads() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
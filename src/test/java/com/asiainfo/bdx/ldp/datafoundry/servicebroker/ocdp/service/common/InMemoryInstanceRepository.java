@@ -0,0 +1,43 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.ServiceInstance;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.repository.OCDPServiceInstanceRepository;
+
+/**
+ * Service instance repository in memory instead of etcd
+ */
+class InMemoryInstanceRepository implements OCDPServiceInstanceRepository {
+
+    final Map<String, ServiceInstance> instances = new ConcurrentHashMap<>();
+
+    @Override
+    public ServiceInstance findOne(String serviceInstanceId) {
+        return instances.get(serviceInstanceId);
+    }
+
+    @Override
+    public List<ServiceInstance> findAll(String organizationGuid, String spaceGuid) {
+        List<ServiceInstance> result = new ArrayList<>();
+        for (ServiceInstance instance : instances.values()) {
+            if (organizationGuid.equals(instance.getOrganizationGuid()) && spaceGuid.equals(instance.getSpaceGuid())) {
+                result.add(instance);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void save(ServiceInstance instance) {
+        instances.put(instance.getServiceInstanceId(), instance);
+    }
+
+    @Override
+    public void delete(String serviceInstanceId) {
+        instances.remove(serviceInstanceId);
+    }
+}
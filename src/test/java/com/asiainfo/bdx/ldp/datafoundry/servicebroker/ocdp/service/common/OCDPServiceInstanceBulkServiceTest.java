@@ -0,0 +1,192 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.common;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config.ClusterConfig;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.exception.OCDPServiceException;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.BulkCreateServiceInstanceRequest;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.BulkOperationResult;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.OperationProgress;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.ServiceInstance;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.OCDPAdminService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.support.StaticApplicationContext;
+import org.springframework.http.MediaType;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OCDPServiceInstanceBulkServiceTest {
+
+    private static final String HDFS_SERVICE_ID = "ae67d4ba-5c4e-4937-a68b-5b47cfe356d8";
+
+    private static final String HDFS_PLAN_ID = "72150b09-1025-4533-8bae-0e04ef68ac13";
+
+    private ExecutorService executor;
+
+    private StubAdminService hdfs;
+
+    private InMemoryInstanceRepository repository;
+
+    // Instances whose ranger policy create fails
+    private List<String> policyFailures;
+
+    private List<String> deletedPolicies;
+
+    private OCDPServiceInstanceBulkService bulkService;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+        hdfs = new StubAdminService(0);
+        repository = new InMemoryInstanceRepository();
+        policyFailures = new CopyOnWriteArrayList<>();
+        deletedPolicies = new CopyOnWriteArrayList<>();
+
+        // Tenant policy mode, so policies are created per instance instead of by batch import
+        ClusterConfig clusterConfig = new StubClusterConfig(new MockEnvironment()
+                .withProperty("RANGER_POLICY_MODE", ClusterConfig.RANGER_POLICY_MODE_TENANT));
+        StaticApplicationContext context = new StaticApplicationContext();
+        context.refresh();
+        context.getBeanFactory().registerSingleton("HDFSAdminService", hdfs);
+        OCDPServiceInstanceCommonService commonService = new OCDPServiceInstanceCommonService(clusterConfig) {
+            @Override
+            CompletableFuture<String> createPolicyForResourcesAsync(
+                    OCDPAdminService ocdp, String serviceInstanceResource, List<String> userList,
+                    List<String> accesses, String serviceDefinitionId, String serviceInstanceId,
+                    String organizationGuid, OperationProgress progress) {
+                CompletableFuture<String> policy = new CompletableFuture<>();
+                if (policyFailures.contains(serviceInstanceId)) {
+                    policy.completeExceptionally(new OCDPServiceException("Ranger policy create failed."));
+                } else {
+                    policy.complete("policy-" + serviceInstanceId);
+                }
+                return policy;
+            }
+
+            @Override
+            boolean deletePolicyOfInstance(OCDPAdminService ocdp, ServiceInstance instance, String policyId,
+                                           String resource) {
+                deletedPolicies.add(policyId);
+                return true;
+            }
+
+            @Override
+            String ldapGroupOf(String organizationGuid, String serviceDefinitionId, String serviceInstanceId) {
+                return null;
+            }
+        };
+
+        bulkService = new OCDPServiceInstanceBulkService(clusterConfig);
+        ReflectionTestUtils.setField(bulkService, "context", context);
+        ReflectionTestUtils.setField(bulkService, "repository", repository);
+        ReflectionTestUtils.setField(bulkService, "commonService", commonService);
+        ReflectionTestUtils.setField(bulkService, "tenantPolicyService", new RangerTenantPolicyService(clusterConfig));
+        ReflectionTestUtils.setField(bulkService, "groupAuthzService", new LdapGroupAuthzService(clusterConfig));
+        ReflectionTestUtils.setField(bulkService, "backendExecutor", executor);
+        ReflectionTestUtils.setField(bulkService, "operationExecutor", executor);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void resourcesOfInstanceFailingPolicyCreateAreDeleted() throws Exception {
+        policyFailures.add("i1");
+        List<BulkOperationResult> results = create("i1", "i2");
+
+        assertFalse(result(results, "i1").isSucceeded());
+        assertTrue(result(results, "i2").isSucceeded());
+        assertEquals(Arrays.asList("/servicebroker/i1"), hdfs.deprovisioned);
+        assertEquals(Collections.singleton("i2"), repository.instances.keySet());
+        assertTrue(deletedPolicies.isEmpty());
+    }
+
+    @Test
+    public void policyAndResourcesOfInstanceFailingSaveAreDeleted() throws Exception {
+        ReflectionTestUtils.setField(bulkService, "repository", new InMemoryInstanceRepository() {
+            @Override
+            public void save(ServiceInstance instance) {
+                throw new OCDPServiceException("etcd down");
+            }
+        });
+        List<BulkOperationResult> results = create("i1");
+
+        assertFalse(result(results, "i1").isSucceeded());
+        assertEquals(Arrays.asList("policy-i1"), deletedPolicies);
+        assertEquals(Arrays.asList("/servicebroker/i1"), hdfs.deprovisioned);
+    }
+
+    private List<BulkOperationResult> create(String... serviceInstanceIds) throws Exception {
+        StringBuilder instances = new StringBuilder();
+        for (String serviceInstanceId : serviceInstanceIds) {
+            if (instances.length() > 0) {
+                instances.append(",");
+            }
+            instances.append("{\"service_instance_id\":\"").append(serviceInstanceId)
+                    .append("\",\"service_id\":\"").append(HDFS_SERVICE_ID)
+                    .append("\",\"plan_id\":\"").append(HDFS_PLAN_ID)
+                    .append("\",\"parameters\":{\"user_name\":\"alice\",\"accesses\":\"read\"}}");
+        }
+        BulkCreateServiceInstanceRequest request = new ObjectMapper().readValue(
+                "{\"organization_guid\":\"org1\",\"space_guid\":\"space1\",\"instances\":[" + instances + "]}",
+                BulkCreateServiceInstanceRequest.class);
+        RecordingEmitter emitter = new RecordingEmitter();
+        bulkService.createServiceInstances(request, emitter);
+        assertTrue("Bulk create not completed", emitter.completed.await(5, TimeUnit.SECONDS));
+        return emitter.results;
+    }
+
+    private static BulkOperationResult result(List<BulkOperationResult> results, String serviceInstanceId) {
+        for (BulkOperationResult result : results) {
+            if (result.getServiceInstanceId().equals(serviceInstanceId)) {
+                return result;
+            }
+        }
+        throw new AssertionError("No result of service instance " + serviceInstanceId);
+    }
+
+    /**
+     * Emitter which keeps results instead of writing them to response
+     */
+    private static class RecordingEmitter extends ResponseBodyEmitter {
+
+        final List<BulkOperationResult> results = new CopyOnWriteArrayList<>();
+
+        final CountDownLatch completed = new CountDownLatch(1);
+
+        @Override
+        public void send(Object object, MediaType mediaType) {
+            if (object instanceof BulkOperationResult) {
+                results.add((BulkOperationResult) object);
+            }
+        }
+
+        @Override
+        public void complete() {
+            completed.countDown();
+        }
+
+        @Override
+        public void completeWithError(Throwable ex) {
+            completed.countDown();
+        }
+    }
+}
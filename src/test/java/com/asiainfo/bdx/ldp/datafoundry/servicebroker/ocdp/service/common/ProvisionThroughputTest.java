@@ -0,0 +1,142 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config.ExecutionConfig;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.OperationProgress;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.OperationType;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.ServiceInstance;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OperationDeadline;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cloud.servicebroker.model.CreateServiceInstanceRequest;
+import org.springframework.context.support.StaticApplicationContext;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Benchmark of concurrent service instance provisions through common service in pooled and virtual execution
+ * modes with default executor sizing, against a stub backend with latency of a real one:
+ * resource create (e.g. HDFS mkdir and quota by namenode RPC) followed by instance save to etcd.
+ */
+public class ProvisionThroughputTest {
+
+    private Logger logger = LoggerFactory.getLogger(ProvisionThroughputTest.class);
+
+    private static final String HDFS_SERVICE_ID = "ae67d4ba-5c4e-4937-a68b-5b47cfe356d8";
+
+    private static final String HDFS_PLAN_ID = "72150b09-1025-4533-8bae-0e04ef68ac13";
+
+    // Default ASYNC_POOL_SIZE
+    private static final int ASYNC_POOL_SIZE = 20;
+
+    // Within default ASYNC_POOL_SIZE + ASYNC_QUEUE_CAPACITY, so no provision is rejected
+    private static final int PROVISIONS = 200;
+
+    private static final long RESOURCE_MILLIS = 100;
+
+    private static final long SAVE_MILLIS = 20;
+
+    @Test
+    public void pooledModeRunsProvisionsInWavesOfAsyncPoolSize() throws Exception {
+        long elapsed = benchmark(ExecutionConfig.MODE_POOLED);
+        // Operation threads are held while backend calls block
+        assertTrue("pooled took " + elapsed + " ms",
+                elapsed >= (PROVISIONS / ASYNC_POOL_SIZE) * (RESOURCE_MILLIS + SAVE_MILLIS));
+    }
+
+    @Test
+    public void virtualModeRunsProvisionsWithoutPoolBound() throws Exception {
+        Assume.assumeTrue("Runtime does not support virtual threads", supportsVirtualThreads());
+        long pooled = benchmark(ExecutionConfig.MODE_POOLED);
+        long virtual = benchmark(ExecutionConfig.MODE_VIRTUAL);
+        assertTrue("virtual took " + virtual + " ms, pooled took " + pooled + " ms", virtual < pooled);
+    }
+
+    /**
+     * @return millis taken by PROVISIONS concurrent provisions on operation executor, after one warm-up round
+     */
+    private long benchmark(String mode) throws Exception {
+        ExecutionConfig config = new ExecutionConfig();
+        config.setEnvironment(new MockEnvironment().withProperty("EXECUTION_MODE", mode));
+        Executor executor = config.operationExecutor();
+        if (executor instanceof ThreadPoolTaskExecutor) {
+            ((ThreadPoolTaskExecutor) executor).initialize();
+        }
+        try {
+            provisionAll(executor, "warmup");
+            long start = System.nanoTime();
+            provisionAll(executor, "run");
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            logger.info("{} mode: {} provisions of {} ms took {} ms, {} provisions/s.", config.getExecutionMode(),
+                    PROVISIONS, RESOURCE_MILLIS + SAVE_MILLIS, elapsed, PROVISIONS * 1000 / Math.max(1, elapsed));
+            return elapsed;
+        } finally {
+            if (executor instanceof ThreadPoolTaskExecutor) {
+                ((ThreadPoolTaskExecutor) executor).shutdown();
+            } else {
+                config.backendExecutor().shutdownNow();
+            }
+        }
+    }
+
+    private void provisionAll(Executor executor, String round) throws Exception {
+        InMemoryInstanceRepository repository = new InMemoryInstanceRepository() {
+            @Override
+            public void save(ServiceInstance instance) {
+                sleep(SAVE_MILLIS);
+                super.save(instance);
+            }
+        };
+        OCDPServiceInstanceCommonService service = service(repository);
+        List<CompletableFuture<?>> provisions = new ArrayList<>();
+        for (int i = 0; i < PROVISIONS; i++) {
+            CreateServiceInstanceRequest request = new CreateServiceInstanceRequest(HDFS_SERVICE_ID, HDFS_PLAN_ID,
+                    "org1", "space1").withServiceInstanceId(round + "-" + i);
+            provisions.add(CompletableFuture.supplyAsync(() -> service.doCreateServiceInstance(request,
+                    new OperationProgress(OperationType.PROVISION, new OperationDeadline(60000))), executor));
+        }
+        for (CompletableFuture<?> provision : provisions) {
+            provision.get(60, TimeUnit.SECONDS);
+        }
+        assertEquals(PROVISIONS, repository.instances.size());
+    }
+
+    private static OCDPServiceInstanceCommonService service(InMemoryInstanceRepository repository) {
+        StaticApplicationContext context = new StaticApplicationContext();
+        context.refresh();
+        context.getBeanFactory().registerSingleton("HDFSAdminService", new StubAdminService(RESOURCE_MILLIS));
+        OCDPServiceInstanceCommonService service = new OCDPServiceInstanceCommonService(
+                new StubClusterConfig(new MockEnvironment()));
+        ReflectionTestUtils.setField(service, "context", context);
+        ReflectionTestUtils.setField(service, "repository", repository);
+        return service;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean supportsVirtualThreads() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
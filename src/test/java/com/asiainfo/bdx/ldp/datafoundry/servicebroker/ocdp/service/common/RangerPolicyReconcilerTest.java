@@ -0,0 +1,24 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RangerPolicyReconcilerTest {
+
+    @Test
+    public void brokerOwnedPolicyIsServiceNameAndGuid() {
+        assertTrue(RangerPolicyReconciler.isBrokerOwned("hdfs_0b1c2d3e-4f50-6172-8394-a5b6c7d8e9f0"));
+        assertTrue(RangerPolicyReconciler.isBrokerOwned("spark_0B1C2D3E-4F50-6172-8394-A5B6C7D8E9F0"));
+    }
+
+    @Test
+    public void policyWithOnlyServicePrefixIsNotBrokerOwned() {
+        assertFalse(RangerPolicyReconciler.isBrokerOwned("hive_finance"));
+        assertFalse(RangerPolicyReconciler.isBrokerOwned("hdfs_0b1c2d3e-4f50-6172-8394-a5b6c7d8e9f0_backup"));
+        assertFalse(RangerPolicyReconciler.isBrokerOwned("yarn_0b1c2d3e-4f50-6172-8394-a5b6c7d8e9f0"));
+        assertFalse(RangerPolicyReconciler.isBrokerOwned("all - path"));
+        assertFalse(RangerPolicyReconciler.isBrokerOwned(null));
+    }
+}
@@ -0,0 +1,139 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.common;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config.ClusterConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RequestDedupServiceTest {
+
+    private ExecutorService executor;
+
+    private AtomicInteger calls;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(2);
+        calls = new AtomicInteger();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void fingerprintIgnoresParameterOrder() {
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put("hdfsNameSpaceQuota", "1000");
+        params.put("hdfsStorageQuota", "10");
+        Map<String, Object> reordered = new LinkedHashMap<>();
+        reordered.put("hdfsStorageQuota", "10");
+        reordered.put("hdfsNameSpaceQuota", "1000");
+        assertEquals(RequestDedupService.fingerprint("si1", "provision", "plan1", params),
+                RequestDedupService.fingerprint("si1", "provision", "plan1", reordered));
+
+        Map<String, Object> changed = new HashMap<>(params);
+        changed.put("hdfsStorageQuota", "20");
+        assertNotEquals(RequestDedupService.fingerprint("si1", "provision", "plan1", params),
+                RequestDedupService.fingerprint("si1", "provision", "plan1", changed));
+        assertNotEquals(RequestDedupService.fingerprint("si1", "provision", "plan1", params),
+                RequestDedupService.fingerprint("si1", "update", "plan1", params));
+    }
+
+    @Test
+    public void duplicateRequestReturnsStoredResult() {
+        RequestDedupService service = service(300);
+        assertEquals("result1", service.execute("fp", this::count));
+        assertEquals("result1", service.execute("fp", this::count));
+        assertEquals("result2", service.execute("other", this::count));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void duplicateRequestAttachesToRequestInFlight() throws Exception {
+        RequestDedupService service = service(300);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> first = executor.submit(() -> service.execute("fp", () -> {
+            started.countDown();
+            await(release);
+            return count();
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Future<String> duplicate = executor.submit(() -> service.execute("fp", this::count));
+        release.countDown();
+        assertEquals("result1", first.get(5, TimeUnit.SECONDS));
+        assertEquals("result1", duplicate.get(5, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void failedRequestIsNotStored() {
+        RequestDedupService service = service(300);
+        try {
+            service.execute("fp", () -> {
+                throw new IllegalStateException("backend down");
+            });
+            fail("Failure of request not thrown");
+        } catch (IllegalStateException e) {
+            assertEquals("backend down", e.getMessage());
+        }
+        assertEquals("result1", service.execute("fp", this::count));
+    }
+
+    @Test
+    public void failedOperationInvalidatesStoredResult() {
+        RequestDedupService service = service(300);
+        assertEquals("result1", service.execute("fp", this::count));
+        CompletableFuture<Void> operation = new CompletableFuture<>();
+        service.attachOperation("fp", operation);
+        assertEquals("result1", service.execute("fp", this::count));
+        operation.completeExceptionally(new IllegalStateException("ranger down"));
+        assertEquals("result2", service.execute("fp", this::count));
+    }
+
+    @Test
+    public void expiredResultIsNotReturned() throws Exception {
+        RequestDedupService service = service(0);
+        assertEquals("result1", service.execute("fp", this::count));
+        Thread.sleep(5);
+        assertEquals("result2", service.execute("fp", this::count));
+    }
+
+    private RequestDedupService service(long ttlSeconds) {
+        ClusterConfig clusterConfig = new ClusterConfig();
+        clusterConfig.setEnvironment(new MockEnvironment()
+                .withProperty("REQUEST_DEDUP_TTL_SECONDS", String.valueOf(ttlSeconds)));
+        return new RequestDedupService(clusterConfig);
+    }
+
+    private String count() {
+        return "result" + calls.incrementAndGet();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.common;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.RangerV2Policy;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.model.ServiceInstance;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.OCDPAdminService;
+
+/**
+ * Backend of a service which records created and deleted resources, each call blocks for given latency
+ * like a call to a remote backend (e.g. namenode RPC).
+ */
+class StubAdminService implements OCDPAdminService {
+
+    final List<String> provisioned = new CopyOnWriteArrayList<>();
+
+    final List<String> deprovisioned = new CopyOnWriteArrayList<>();
+
+    private final long latencyMillis;
+
+    StubAdminService(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    @Override
+    public String provisionResources(String serviceDefinitionId, String planId, String serviceInstanceId,
+                                     Map<String, Object> cuzQuota) throws Exception {
+        Thread.sleep(latencyMillis);
+        String resource = "/servicebroker/" + serviceInstanceId;
+        provisioned.add(resource);
+        return resource;
+    }
+
+    @Override
+    public void deprovisionResources(String serviceInstanceResuorceName) throws Exception {
+        Thread.sleep(latencyMillis);
+        deprovisioned.add(serviceInstanceResuorceName);
+    }
+
+    @Override
+    public Map<String, Object> generateCredentialsInfo(String serviceInstanceId) {
+        return new HashMap<>();
+    }
+
+    @Override
+    public String createPolicyForResources(String policyName, List<String> resources, List<String> userList,
+                                           String groupName, List<String> permissions) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<RangerV2Policy> buildPoliciesForResources(String policyName, List<String> resources,
+                                                          List<String> userList, String groupName,
+                                                          List<String> permissions) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean appendResourcesToPolicy(String policyId, String serviceInstanceResource) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean appendUsersToPolicy(String policyId, String groupName, List<String> users,
+                                       List<String> permissions) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean deletePolicyForResources(String policyId) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean removeResourceFromPolicy(String policyId, String serviceInstanceResource) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean removeUserFromPolicy(String policyId, String userName) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<String> getResourceFromPolicy(String policyId) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void resizeResourceQuota(ServiceInstance instance, Map<String, Object> cuzQuota) {
+        throw new UnsupportedOperationException();
+    }
+}
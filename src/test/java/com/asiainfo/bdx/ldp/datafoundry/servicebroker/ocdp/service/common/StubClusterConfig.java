@@ -0,0 +1,41 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.common;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.etcdClient;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.client.rangerClient;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.config.ClusterConfig;
+import org.springframework.ldap.core.AttributesMapper;
+import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.mock.env.MockEnvironment;
+
+/**
+ * Cluster config of services under test: backend clients are never called, LDAP knows every user
+ */
+class StubClusterConfig extends ClusterConfig {
+
+    StubClusterConfig(MockEnvironment env) {
+        setEnvironment(env);
+    }
+
+    @Override
+    public LdapTemplate getLdapTemplate() {
+        return new LdapTemplate() {
+            @Override
+            public <T> List<T> search(String base, String filter, AttributesMapper<T> mapper) {
+                return Collections.singletonList(null);
+            }
+        };
+    }
+
+    @Override
+    public rangerClient getRangerClient() {
+        return null;
+    }
+
+    @Override
+    public etcdClient getEtcdClient() {
+        return null;
+    }
+}
@@ -0,0 +1,230 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.service.common;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.exception.OCDPServiceException;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.OperationDeadline;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.YarnCapacityCalculator;
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils.YarnQueueTree;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class YarnQueueChangeBatcherTest {
+
+    private static final long WINDOW_MILLIS = 200;
+
+    // 10 GB, so 1 GB is 10.00% of root
+    private static final String TOTAL_MEMORY = "10240";
+
+    private ExecutorService executor;
+
+    // Capacity-scheduler config in Ambari and its version
+    private Map<String, String> properties;
+
+    private int version;
+
+    private AtomicInteger loads;
+
+    private AtomicInteger commits;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        properties = new TreeMap<>();
+        properties.put(YarnQueueTree.PREFIX + "root.queues", "default");
+        properties.put(YarnQueueTree.PREFIX + "root.default.capacity", "100");
+        properties.put(YarnQueueTree.PREFIX + "root.default.maximum-capacity", "100");
+        version = 1;
+        loads = new AtomicInteger();
+        commits = new AtomicInteger();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void changesWithinWindowCommittedTogether() throws Exception {
+        YarnQueueChangeBatcher batcher = new YarnQueueChangeBatcher(WINDOW_MILLIS, this::load, this::commit);
+        List<Future<String>> queues = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            queues.add(executor.submit(() -> batcher.submit(apply(1L))));
+            Thread.sleep(20);
+        }
+        List<String> names = futureValues(queues);
+        assertEquals(3, new HashSet<>(names).size());
+        YarnQueueTree tree = committedTree();
+        for (String name : names) {
+            assertEquals(1000, tree.getQueue("root." + name).getCapacity());
+        }
+        assertEquals(7000, tree.getQueue("root.default").getCapacity());
+        assertEquals(1, commits.get());
+        assertTrue(batcher.isIdle());
+    }
+
+    @Test
+    public void batchOfLeaderOutOfTimeIsStillCommitted() throws Exception {
+        // Loader fails like a backend call if deadline of leader is still attached
+        YarnQueueChangeBatcher batcher = new YarnQueueChangeBatcher(WINDOW_MILLIS, () -> {
+            OperationDeadline.checkCurrent("load capacity-scheduler config");
+            return load();
+        }, this::commit);
+        Future<String> leader = executor.submit(() -> {
+            OperationDeadline.attach(new OperationDeadline(0));
+            try {
+                return batcher.submit(apply(1L));
+            } finally {
+                OperationDeadline.detach();
+            }
+        });
+        Thread.sleep(20);
+        Future<String> follower = executor.submit(() -> batcher.submit(apply(2L)));
+        assertNotNull(leader.get(5, TimeUnit.SECONDS));
+        assertNotNull(follower.get(5, TimeUnit.SECONDS));
+        assertEquals(1, commits.get());
+
+        // Batcher is not left with a stranded batch
+        assertTrue(batcher.isIdle());
+        assertNotNull(executor.submit(() -> batcher.submit(apply(1L))).get(5, TimeUnit.SECONDS));
+        assertEquals(6000, committedTree().getQueue("root.default").getCapacity());
+    }
+
+    @Test
+    public void changesWrittenOneByOneWithoutWindow() {
+        YarnQueueChangeBatcher batcher = new YarnQueueChangeBatcher(0, this::load, this::commit);
+        assertNotNull(batcher.submit(apply(1L)));
+        assertNotNull(batcher.submit(apply(2L)));
+        assertEquals(2, commits.get());
+        assertEquals(7000, committedTree().getQueue("root.default").getCapacity());
+    }
+
+    @Test
+    public void rejectedChangeFailsOnlyItsCaller() throws Exception {
+        YarnQueueChangeBatcher batcher = new YarnQueueChangeBatcher(WINDOW_MILLIS, this::load, this::commit);
+        Future<String> first = executor.submit(() -> batcher.submit(apply(4L)));
+        Thread.sleep(20);
+        // Fits in config as it was loaded, but not after first change
+        Future<String> rejected = executor.submit(() -> batcher.submit(apply(7L)));
+        Thread.sleep(20);
+        Future<String> last = executor.submit(() -> batcher.submit(apply(6L)));
+
+        try {
+            rejected.get(5, TimeUnit.SECONDS);
+            fail("Change beyond capacity accepted");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof OCDPServiceException);
+        }
+        YarnQueueTree tree = committedTree();
+        assertEquals(4000, tree.getQueue("root." + first.get(5, TimeUnit.SECONDS)).getCapacity());
+        assertEquals(6000, tree.getQueue("root." + last.get(5, TimeUnit.SECONDS)).getCapacity());
+        assertEquals(0, tree.getQueue("root.default").getCapacity());
+        assertEquals(1, commits.get());
+    }
+
+    @Test
+    public void nothingCommittedWhenAllChangesRejected() {
+        YarnQueueChangeBatcher batcher = new YarnQueueChangeBatcher(0, this::load, this::commit);
+        try {
+            batcher.submit(apply(11L));
+            fail("Change beyond capacity accepted");
+        } catch (OCDPServiceException e) {
+            assertEquals(0, commits.get());
+        }
+    }
+
+    @Test
+    public void conflictingCommitAppliesChangesAgainToNewConfig() {
+        AtomicInteger attempts = new AtomicInteger();
+        YarnQueueChangeBatcher batcher = new YarnQueueChangeBatcher(0, this::load, calculator -> {
+            if (attempts.incrementAndGet() == 1) {
+                // Another broker takes 2 GB between load and commit
+                YarnCapacityCalculator other = load();
+                other.applyQueue(2L);
+                assertTrue(commit(other));
+            }
+            return commit(calculator);
+        });
+        String queue = batcher.submit(apply(1L));
+
+        assertEquals(2, attempts.get());
+        // First load, load by other broker, load after conflict
+        assertEquals(3, loads.get());
+        YarnQueueTree tree = committedTree();
+        assertEquals(1000, tree.getQueue("root." + queue).getCapacity());
+        assertEquals(7000, tree.getQueue("root.default").getCapacity());
+        assertEquals(3, tree.getRoot().getChildren().size());
+    }
+
+    @Test
+    public void persistentConflictFailsCallers() {
+        AtomicInteger attempts = new AtomicInteger();
+        YarnQueueChangeBatcher batcher = new YarnQueueChangeBatcher(0, this::load, calculator -> {
+            attempts.incrementAndGet();
+            return false;
+        });
+        try {
+            batcher.submit(apply(1L));
+            fail("Change reported committed on conflict");
+        } catch (OCDPServiceException e) {
+            assertTrue(e.getMessage().contains("changed by others"));
+        }
+        assertEquals(5, attempts.get());
+        assertEquals(1, committedTree().getRoot().getChildren().size());
+    }
+
+    private synchronized YarnCapacityCalculator load() {
+        loads.incrementAndGet();
+        return new YarnCapacityCalculator(TOTAL_MEMORY, properties, "version" + version);
+    }
+
+    // Conditional put of config, like Ambari config put followed by queue refresh
+    private synchronized boolean commit(YarnCapacityCalculator calculator) {
+        if (!calculator.getConfigTag().equals("version" + version)) {
+            return false;
+        }
+        properties = calculator.getProperties();
+        version++;
+        commits.incrementAndGet();
+        return true;
+    }
+
+    private synchronized YarnQueueTree committedTree() {
+        return YarnQueueTree.parse(properties);
+    }
+
+    private static Function<YarnCapacityCalculator, String> apply(Long quota) {
+        return calculator -> {
+            String queue = calculator.applyQueue(quota);
+            if (queue == null) {
+                throw new OCDPServiceException("Not Enough Queue Capacity to apply!");
+            }
+            return queue;
+        };
+    }
+
+    private static List<String> futureValues(List<Future<String>> futures) throws Exception {
+        List<String> values = new ArrayList<>();
+        for (Future<String> future : futures) {
+            values.add(future.get(5, TimeUnit.SECONDS));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,148 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils;
+
+import java.io.IOException;
+import java.util.UUID;
+
+import com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.exception.BackendUnavailableException;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class CircuitBreakerTest {
+
+    private static final long OPEN_MILLIS = 50L;
+
+    private CircuitBreaker breaker;
+
+    @Before
+    public void setUp() {
+        // window 4, open once 2 of at least 2 calls failed, 1 probe closes breaker
+        CircuitBreaker.configure(4, 2, 50, 1000L, OPEN_MILLIS, 1);
+        breaker = CircuitBreaker.forBackend("test-" + UUID.randomUUID());
+    }
+
+    @Test
+    public void opensOnceFailureRateReachedAndFailsFast() throws Exception {
+        breaker.onSuccess(breaker.acquire(), 1);
+        assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+        breaker.onFailure(breaker.acquire(), 1);
+        assertEquals(CircuitBreaker.OPEN, breaker.getState());
+        assertRejected();
+    }
+
+    @Test
+    public void slowCallCountsAsFailure() throws Exception {
+        breaker.onSuccess(breaker.acquire(), 1);
+        breaker.onSuccess(breaker.acquire(), 1000);
+        assertEquals(CircuitBreaker.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void halfOpenLetsOneProbeThroughAndClosesOnSuccess() throws Exception {
+        open();
+        Thread.sleep(OPEN_MILLIS + 10);
+        assertEquals(CircuitBreaker.HALF_OPEN, breaker.getState());
+        long probe = breaker.acquire();
+        assertRejected();
+        breaker.onSuccess(probe, 1);
+        assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+        breaker.onSuccess(breaker.acquire(), 1);
+    }
+
+    @Test
+    public void failedProbeOpensAgain() throws Exception {
+        open();
+        Thread.sleep(OPEN_MILLIS + 10);
+        breaker.onFailure(breaker.acquire(), 1);
+        assertEquals(CircuitBreaker.OPEN, breaker.getState());
+        assertRejected();
+    }
+
+    @Test
+    public void releasedProbeLetsNextProbeThrough() throws Exception {
+        open();
+        Thread.sleep(OPEN_MILLIS + 10);
+        breaker.release(breaker.acquire());
+        breaker.onSuccess(breaker.acquire(), 1);
+        assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void outcomeOfTicketFromEarlierStateIsIgnored() throws Exception {
+        long staleTicket = breaker.acquire();
+        open();
+        Thread.sleep(OPEN_MILLIS + 10);
+        long probe = breaker.acquire();
+        // Late failure of a call started while closed must neither reopen breaker nor free the probe slot
+        breaker.onFailure(staleTicket, 1);
+        assertEquals(CircuitBreaker.HALF_OPEN, breaker.getState());
+        assertRejected();
+        breaker.onSuccess(probe, 1);
+        assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+        // Late success from before the state change does not count in the new window
+        breaker.onSuccess(staleTicket, 1);
+        breaker.onFailure(breaker.acquire(), 1);
+        breaker.onFailure(breaker.acquire(), 1);
+        assertEquals(CircuitBreaker.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void unexpectedExceptionOfProbeSettlesTicketAsFailure() throws Exception {
+        open();
+        Thread.sleep(OPEN_MILLIS + 10);
+        try {
+            breaker.execute(() -> {
+                throw new AssertionError("unexpected");
+            });
+            fail("Error not propagated");
+        } catch (AssertionError expected) {
+        }
+        // Probe was settled as failure, breaker opened again instead of waiting forever for the probe
+        assertEquals(CircuitBreaker.OPEN, breaker.getState());
+        Thread.sleep(OPEN_MILLIS + 10);
+        assertEquals("ok", breaker.execute(() -> "ok"));
+        assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void exceptionNotCausedByBackendCountsAsSuccess() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            try {
+                breaker.execute(() -> {
+                    throw new IOException("rejected by backend");
+                }, e -> false);
+                fail("Exception not propagated");
+            } catch (IOException expected) {
+            }
+        }
+        assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void slowCallThresholdConfiguredPerBackend() throws Exception {
+        String backend = "slow-" + UUID.randomUUID();
+        CircuitBreaker.configureSlowCall(backend, 5000L);
+        CircuitBreaker slow = CircuitBreaker.forBackend(backend + "@host1");
+        // Slow call of other backends is not slow for this one
+        slow.onSuccess(slow.acquire(), 1000);
+        assertEquals(0, slow.snapshot().get("failures"));
+        slow.onSuccess(slow.acquire(), 5000);
+        assertEquals(CircuitBreaker.OPEN, slow.getState());
+    }
+
+    private void open() throws IOException {
+        breaker.onFailure(breaker.acquire(), 1);
+        breaker.onFailure(breaker.acquire(), 1);
+        assertEquals(CircuitBreaker.OPEN, breaker.getState());
+    }
+
+    private void assertRejected() {
+        try {
+            breaker.acquire();
+            fail("Call not rejected");
+        } catch (BackendUnavailableException expected) {
+        }
+    }
+}
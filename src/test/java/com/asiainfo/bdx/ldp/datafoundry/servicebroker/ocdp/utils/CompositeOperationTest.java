@@ -0,0 +1,90 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CompositeOperationTest {
+
+    private ExecutorService executor;
+
+    private List<String> rolledBack;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(2);
+        rolledBack = new CopyOnWriteArrayList<>();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void nothingRolledBackWhenAllStepsSucceed() {
+        boolean succeeded = new CompositeOperation("test", executor)
+                .step("a", () -> true, () -> rolledBack.add("a"))
+                .step("b", () -> true, () -> rolledBack.add("b"))
+                .run();
+        assertTrue(succeeded);
+        assertTrue(rolledBack.isEmpty());
+    }
+
+    @Test
+    public void failedStepIsRolledBackWithSucceededSteps() {
+        boolean succeeded = new CompositeOperation("test", executor)
+                .step("a", () -> true, () -> rolledBack.add("a"))
+                // Partial effect of a failed step, e.g. dirs appended before users append failed
+                .step("b", () -> false, () -> rolledBack.add("b"))
+                .step("c", () -> {
+                    throw new IllegalStateException("backend down");
+                }, () -> rolledBack.add("c"))
+                .run();
+        assertFalse(succeeded);
+        assertEquals(3, rolledBack.size());
+        assertTrue(rolledBack.containsAll(Arrays.asList("a", "b", "c")));
+    }
+
+    @Test
+    public void stepsRolledBackAfterOperationTimedOut() {
+        // Backend calls check deadline of their thread, like HTTP requests of the pool
+        boolean succeeded = new OperationDeadline(100).run(() -> new CompositeOperation("test", executor)
+                .step("a", () -> true, () -> {
+                    OperationDeadline.checkCurrent("revoke a");
+                    return rolledBack.add("a");
+                })
+                .step("b", () -> {
+                    Thread.sleep(200);
+                    OperationDeadline.checkCurrent("grant b");
+                    return true;
+                }, () -> {
+                    OperationDeadline.checkCurrent("revoke b");
+                    return rolledBack.add("b");
+                })
+                .run());
+        assertFalse(succeeded);
+        assertEquals(2, rolledBack.size());
+        assertTrue(rolledBack.containsAll(Arrays.asList("a", "b")));
+    }
+
+    @Test
+    public void stepWithoutRollbackIsSkipped() {
+        boolean succeeded = new CompositeOperation("test", executor)
+                .step("a", () -> true, null)
+                .step("b", () -> false, () -> rolledBack.add("b"))
+                .run();
+        assertFalse(succeeded);
+        assertEquals(1, rolledBack.size());
+    }
+}
@@ -0,0 +1,195 @@
+package com.asiainfo.bdx.ldp.datafoundry.servicebroker.ocdp.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class YarnQueueTreeTest {
+
+    private Logger logger = LoggerFactory.getLogger(YarnQueueTreeTest.class);
+
+    private static final String PREFIX = YarnQueueTree.PREFIX;
+
+    // 10 GB, so 1 GB is 10.00% of root
+    private static final String TOTAL_MEMORY = "10240";
+
+    private Map<String, String> properties;
+
+    @Before
+    public void setUp() {
+        properties = new TreeMap<>();
+        properties.put(PREFIX + "maximum-applications", "10000");
+        properties.put(PREFIX + "queue-mappings", "u:alice:q1");
+        properties.put(PREFIX + "root.queues", "default, q1");
+        properties.put(PREFIX + "root.capacity", "100");
+        properties.put(PREFIX + "root.acl_administer_queue", "*");
+        properties.put(PREFIX + "root.default.capacity", "66.670");
+        properties.put(PREFIX + "root.default.maximum-capacity", "100");
+        properties.put(PREFIX + "root.q1.capacity", "33.33");
+        properties.put(PREFIX + "root.q1.maximum-capacity", "33.33");
+        properties.put(PREFIX + "root.q1.state", "RUNNING");
+    }
+
+    @Test
+    public void unchangedTreeSerializesToParsedProperties() {
+        YarnQueueTree tree = YarnQueueTree.parse(properties);
+        assertEquals(properties, tree.toProperties());
+        assertEquals(properties, tree.copy().toProperties());
+        assertEquals(6667, tree.getQueue("root.default").getCapacity());
+        assertEquals(3333, tree.getQueue("root.q1").getCapacity());
+    }
+
+    @Test
+    public void changedTreeRoundTripsThroughProperties() {
+        YarnCapacityCalculator calculator = new YarnCapacityCalculator(TOTAL_MEMORY, properties, "v1");
+        calculator.applyQueue(1L);
+        calculator.applyParentQueue(YarnQueueTree.ROOT, "tenant1", 2L);
+        Map<String, String> changed = calculator.getProperties();
+        assertEquals(changed, YarnQueueTree.parse(changed).toProperties());
+    }
+
+    @Test
+    public void capacitiesSumToFullAfterApply() {
+        YarnCapacityCalculator calculator = new YarnCapacityCalculator(TOTAL_MEMORY, properties, "v1");
+        String queue = calculator.applyQueue(1L);
+        assertNotNull(queue);
+        YarnQueueTree tree = YarnQueueTree.parse(calculator.getProperties());
+        assertEquals(1000, tree.getQueue("root." + queue).getCapacity());
+        assertEquals(1000, tree.getQueue("root." + queue).getMaximumCapacity());
+        assertEquals(5667, tree.getQueue("root.default").getCapacity());
+        assertEquals(YarnQueueTree.FULL_CAPACITY, sumOfChildren(tree.getRoot()));
+        // Parsed config is not changed by calculator
+        assertEquals("66.670", properties.get(PREFIX + "root.default.capacity"));
+    }
+
+    @Test
+    public void applyFailsWithoutEnoughCapacity() {
+        YarnCapacityCalculator calculator = new YarnCapacityCalculator(TOTAL_MEMORY, properties, "v1");
+        Map<String, String> before = calculator.getProperties();
+        assertNull(calculator.applyQueue(7L));
+        assertEquals(before, calculator.getProperties());
+    }
+
+    @Test
+    public void revokedQueueIsReusedByNextApply() {
+        YarnCapacityCalculator calculator = new YarnCapacityCalculator(TOTAL_MEMORY, properties, "v1");
+        String queue = calculator.applyQueue(1L);
+        assertTrue(calculator.revokeQueue("root." + queue));
+        YarnQueueTree tree = calculator.getQueueTree();
+        assertEquals(0, tree.getQueue("root." + queue).getCapacity());
+        assertEquals(6667, tree.getQueue("root.default").getCapacity());
+        assertEquals(1, calculator.countFreeQueues());
+        assertEquals(queue, calculator.applyQueue(2L));
+        assertEquals(0, calculator.countFreeQueues());
+        assertEquals(YarnQueueTree.FULL_CAPACITY, sumOfChildren(tree.getRoot()));
+        assertFalse(calculator.revokeQueue("root.missing"));
+    }
+
+    @Test
+    public void resizeMovesCapacityFromAndToPool() {
+        YarnCapacityCalculator calculator = new YarnCapacityCalculator(TOTAL_MEMORY, properties, "v1");
+        String queue = "root." + calculator.applyQueue(1L);
+        YarnQueueTree tree = calculator.getQueueTree();
+        calculator.updateQueue(queue, 3L);
+        assertEquals(3000, tree.getQueue(queue).getCapacity());
+        assertEquals(3667, tree.getQueue("root.default").getCapacity());
+        calculator.updateQueue(queue, 2L);
+        assertEquals(2000, tree.getQueue(queue).getCapacity());
+        assertEquals(4667, tree.getQueue("root.default").getCapacity());
+        assertEquals(YarnQueueTree.FULL_CAPACITY, sumOfChildren(tree.getRoot()));
+        try {
+            calculator.updateQueue(queue, 7L);
+            throw new AssertionError("Resize beyond pool capacity accepted");
+        } catch (IllegalArgumentException e) {
+            assertEquals(2000, tree.getQueue(queue).getCapacity());
+        }
+    }
+
+    @Test
+    public void nestedQueuesApplyFromPoolOfTheirParent() {
+        YarnCapacityCalculator calculator = new YarnCapacityCalculator(TOTAL_MEMORY, properties, "v1");
+        String tenant = calculator.applyParentQueue(YarnQueueTree.ROOT, "tenant1", 4L);
+        assertEquals("root.tenant1", tenant);
+        // 1 GB of tenant with 4 GB is 25.00%
+        String queue = calculator.applyQueue(tenant, 1L);
+        String team = calculator.applyParentQueue(tenant, "team1", 2L);
+        String nested = calculator.applyQueue(team, 1L);
+        assertNull(calculator.applyQueue(tenant, 2L));
+
+        YarnQueueTree tree = YarnQueueTree.parse(calculator.getProperties());
+        assertEquals(4000, tree.getQueue(tenant).getCapacity());
+        assertEquals(2500, tree.getQueue(queue).getCapacity());
+        assertEquals(5000, tree.getQueue(team).getCapacity());
+        assertEquals(5000, tree.getQueue(nested).getCapacity());
+        assertEquals(2500, tree.getQueue(tenant + "." + YarnQueueTree.RESOURCE_POOL).getCapacity());
+        assertEquals(5000, tree.getQueue(team + "." + YarnQueueTree.RESOURCE_POOL).getCapacity());
+        for (String parent : new String[]{YarnQueueTree.ROOT, tenant, team}) {
+            assertEquals(parent, YarnQueueTree.FULL_CAPACITY, sumOfChildren(tree.getQueue(parent)));
+        }
+
+        assertTrue(calculator.revokeQueue(nested));
+        assertEquals(YarnQueueTree.FULL_CAPACITY,
+                calculator.getQueueTree().getQueue(team + "." + YarnQueueTree.RESOURCE_POOL).getCapacity());
+    }
+
+    @Test
+    public void copyIsIndependentOfOriginal() {
+        YarnCapacityCalculator calculator = new YarnCapacityCalculator(TOTAL_MEMORY, properties, "v1");
+        YarnCapacityCalculator copy = calculator.copy();
+        copy.applyQueue(1L);
+        assertEquals(properties, calculator.getProperties());
+        assertNotEquals(properties, copy.getProperties());
+    }
+
+    /**
+     * Apply and revoke many small queues on a large tree: every capacity stays exact (pool back to its original
+     * capacity, siblings summing to 100%), and each operation takes constant time instead of scanning all queues.
+     */
+    @Test
+    public void manyAppliesAndRevokesStayExact() {
+        final int queues = 5000;
+        // 1 GB is 0.01% of root
+        YarnCapacityCalculator calculator = new YarnCapacityCalculator("102400000", properties, "v1");
+        calculator.addFreeQueues(queues);
+
+        long start = System.nanoTime();
+        List<String> applied = new ArrayList<>();
+        for (int i = 0; i < queues; i++) {
+            applied.add("root." + calculator.applyQueue(1L));
+        }
+        for (String queue : applied) {
+            calculator.updateQueue(queue, 2L);
+        }
+        for (String queue : applied) {
+            assertTrue(calculator.revokeQueue(queue));
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        logger.info("{} applies, resizes and revokes took {} ms.", queues, elapsed);
+
+        YarnQueueTree tree = YarnQueueTree.parse(calculator.getProperties());
+        assertEquals(6667, tree.getQueue("root.default").getCapacity());
+        assertEquals(YarnQueueTree.FULL_CAPACITY, sumOfChildren(tree.getRoot()));
+        assertEquals(queues, calculator.countFreeQueues());
+    }
+
+    private static int sumOfChildren(YarnQueueTree.Queue parent) {
+        int sum = 0;
+        for (YarnQueueTree.Queue child : parent.getChildren()) {
+            sum += child.getCapacity();
+        }
+        return sum;
+    }
+}